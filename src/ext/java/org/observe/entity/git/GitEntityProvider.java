@@ -0,0 +1,599 @@
+package org.observe.entity.git;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.observe.config.OperationResult;
+import org.observe.entity.ConfigurableOperation;
+import org.observe.entity.EntityChange;
+import org.observe.entity.EntityCondition;
+import org.observe.entity.EntityCreator;
+import org.observe.entity.EntityDeletion;
+import org.observe.entity.EntityIdentity;
+import org.observe.entity.EntityLoadRequest;
+import org.observe.entity.EntityLoadRequest.Fulfillment;
+import org.observe.entity.EntityOperationException;
+import org.observe.entity.EntityQuery;
+import org.observe.entity.EntityUpdate;
+import org.observe.entity.ObservableEntityDataSet;
+import org.observe.entity.ObservableEntityFieldType;
+import org.observe.entity.ObservableEntityProvider;
+import org.observe.entity.ObservableEntityType;
+import org.observe.util.TypeTokens;
+import org.observe.util.VersionedEntities;
+import org.qommons.Transaction;
+import org.qommons.collect.BetterCollection;
+import org.qommons.collect.BetterList;
+import org.qommons.collect.ElementId;
+import org.qommons.collect.MultiMap;
+import org.qommons.collect.QuickSet.QuickMap;
+import org.qommons.io.TextParseException;
+import org.versionedentity.GitEntities;
+
+/**
+ * <p>
+ * An entity provider backed by a {@link GitEntities} entity set. Each entity type is stored as the entity set's entity type of the same
+ * name, with the same fields.
+ * </p>
+ * <p>
+ * Queries, counts, and entity loads are served from the local entity set. {@link #changes() Changes} report the commits pulled from the
+ * remote, as well as local modifications made with <code>reportInChanges</code>. Modifications are committed locally and pushed with the
+ * next {@link GitEntities#commitAndPush(String) group push}. Synchronous modifications wait for the push, and fail if it fails;
+ * asynchronous modifications are fulfilled when the push succeeds.
+ * </p>
+ * <p>
+ * Only entity types whose fields are simple values are supported. Selections may be unconditional, by identity, or comparisons of
+ * fields of the entity against literal values, combined with <code>and</code> and <code>or</code>. Equality selections use
+ * {@link GitEntities#query(String, String, Object) queries}, which are served by a secondary index on the field if there is one; other
+ * selections scan the entity type.
+ * </p>
+ */
+public class GitEntityProvider implements ObservableEntityProvider {
+	private final GitEntities theEntities;
+	private final Map<String, ObservableEntityType<?>> theTypes;
+	private final List<EntityChange<?>> thePendingChanges;
+	private Runnable theListenerRemove;
+
+	/**
+	 * @param entities The entity set to store the entities in. Its remotes, group commit, and background synchronization should be
+	 *        configured by the caller.
+	 */
+	public GitEntityProvider(GitEntities entities) {
+		theEntities = entities;
+		theTypes = new HashMap<>();
+		thePendingChanges = new ArrayList<>();
+	}
+
+	/** @return The entity set that this provider stores its entities in */
+	public GitEntities getEntities() {
+		return theEntities;
+	}
+
+	@Override
+	public void install(ObservableEntityDataSet entitySet) throws EntityOperationException {
+		try (Transaction t = theEntities.lock(true, null)) {
+			for (ObservableEntityType<?> entity : entitySet.getEntityTypes()) {
+				theTypes.put(entity.getName(), entity);
+				VersionedEntities.EntityFormat existing = theEntities.getEntityType(entity.getName());
+				if (existing != null) {
+					checkSchema(entity, existing);
+					continue;
+				}
+				Map<String, Class<?>> fields = new LinkedHashMap<>();
+				for (ObservableEntityFieldType<?, ?> field : entity.getFields().allValues()) {
+					fields.put(field.getName(), TypeTokens.getRawType(field.getFieldType()));
+				}
+				List<String> ids = new ArrayList<>(entity.getIdentityFields().keySet());
+				theEntities.addEntityType(entity.getName(), fields, ids);
+			}
+			if (theEntities.hasModifications()) {
+				theEntities.commitAndPush("Installed entity types");
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			throw new EntityOperationException("Could not install entity types", e);
+		}
+		theListenerRemove = theEntities.addListener(this::remoteChange, true);
+	}
+
+	private static void checkSchema(ObservableEntityType<?> entity, VersionedEntities.EntityFormat existing)
+		throws EntityOperationException {
+		List<String> problems = new ArrayList<>();
+		for (ObservableEntityFieldType<?, ?> field : entity.getFields().allValues()) {
+			Class<?> type = TypeTokens.getRawType(field.getFieldType());
+			int index = existing.getFields().keySet().indexOf(field.getName());
+			if (index < 0) {
+				problems.add("missing field " + field.getName());
+			} else if (existing.getFields().get(index) != type) {
+				problems.add("field " + field.getName() + " is " + existing.getFields().get(index).getName() + ", not " + type.getName());
+			}
+		}
+		for (String field : existing.getFields().keySet()) {
+			if (entity.getFields().keySet().indexOf(field) < 0) {
+				problems.add("unexpected field " + field);
+			}
+		}
+		List<String> ids = new ArrayList<>(entity.getIdentityFields().keySet());
+		List<String> existingIds = existing.getFieldOrder().subList(0, existing.getIdFieldCount());
+		if (!ids.equals(existingIds)) {
+			problems.add("ID fields are " + existingIds + ", not " + ids);
+		}
+		if (!problems.isEmpty()) {
+			throw new EntityOperationException("Entity type " + entity.getName() + " does not match the stored schema: " + problems);
+		}
+	}
+
+	/**
+	 * Stops reporting pulled commits in {@link #changes()}. The {@link #getEntities() entity set} is not closed, since it was supplied
+	 * by the caller.
+	 */
+	public void close() {
+		if (theListenerRemove != null) {
+			theListenerRemove.run();
+			theListenerRemove = null;
+		}
+	}
+
+	@Override
+	public Object prepare(ConfigurableOperation<?> operation) throws EntityOperationException {
+		return null;
+	}
+
+	@Override
+	public void dispose(Object prepared) {
+	}
+
+	@Override
+	public <E> SimpleEntity<E> create(EntityCreator<? super E, E> creator, Object prepared, boolean reportInChanges)
+		throws EntityOperationException {
+		SimpleEntity<E> entity = createLocal(creator, reportInChanges);
+		push(commitLocal("Created " + creator.getEntityType().getName()));
+		return entity;
+	}
+
+	@Override
+	public <E> OperationResult<SimpleEntity<E>> createAsync(EntityCreator<? super E, E> creator, Object prepared, boolean reportInChanges) {
+		try {
+			SimpleEntity<E> entity = createLocal(creator, reportInChanges);
+			return result(commitLocal("Created " + creator.getEntityType().getName()).thenApply(__ -> entity));
+		} catch (EntityOperationException e) {
+			return failed(e);
+		}
+	}
+
+	private <E> SimpleEntity<E> createLocal(EntityCreator<? super E, E> creator, boolean reportInChanges)
+		throws EntityOperationException {
+		ObservableEntityType<E> type = creator.getEntityType();
+		QuickMap<String, Object> values = theEntities.getEntityType(type.getName()).create(false);
+		for (int f = 0; f < type.getFields().keySize(); f++) {
+			String field = type.getFields().keySet().get(f);
+			values = values.with(field, creator.getFieldValues().get(f));
+		}
+		try (Transaction t = theEntities.lock(true, null)) {
+			if (theEntities.get(type.getName(), values) != null) {
+				throw new EntityOperationException("Entity already exists: " + type.getName() + " " + values);
+			}
+			theEntities.update(type.getName(), values, true);
+		} catch (IOException e) {
+			throw new EntityOperationException("Could not create " + type.getName(), e);
+		}
+		SimpleEntity<E> entity = toEntity(type, values);
+		if (reportInChanges) {
+			reportLocal(new EntityChange.EntityExistenceChange<>(type, Instant.now(), true,
+				toIdentities(type, Collections.singletonList(values)), null));
+		}
+		return entity;
+	}
+
+	@Override
+	public OperationResult<Long> count(EntityQuery<?> query, Object prepared) {
+		try (Stream<QuickMap<String, Object>> rows = select(query.getEntityType(), query.getSelection())) {
+			return fulfilled(rows.count());
+		} catch (EntityOperationException e) {
+			return failed(e);
+		} catch (UncheckedIOException e) {
+			return failed(new EntityOperationException("Could not count " + query.getEntityType().getName(), e.getCause()));
+		}
+	}
+
+	@Override
+	public <E> OperationResult<Iterable<SimpleEntity<? extends E>>> query(EntityQuery<E> query, Object prepared) {
+		try (Stream<QuickMap<String, Object>> rows = select(query.getEntityType(), query.getSelection())) {
+			List<SimpleEntity<? extends E>> entities = rows.map(row -> toEntity(query.getEntityType(), row))
+				.collect(Collectors.toList());
+			return fulfilled(entities);
+		} catch (EntityOperationException e) {
+			return failed(e);
+		} catch (UncheckedIOException e) {
+			return failed(new EntityOperationException("Could not query " + query.getEntityType().getName(), e.getCause()));
+		}
+	}
+
+	@Override
+	public <E> long update(EntityUpdate<E> update, Object prepared, boolean reportInChanges) throws EntityOperationException {
+		long count = updateLocal(update, reportInChanges);
+		if (count > 0) {
+			push(commitLocal("Updated " + update.getEntityType().getName()));
+		}
+		return count;
+	}
+
+	@Override
+	public <E> OperationResult<Long> updateAsync(EntityUpdate<E> update, Object prepared, boolean reportInChanges) {
+		try {
+			long count = updateLocal(update, reportInChanges);
+			if (count == 0) {
+				return fulfilled(0L);
+			}
+			return result(commitLocal("Updated " + update.getEntityType().getName()).thenApply(__ -> count));
+		} catch (EntityOperationException e) {
+			return failed(e);
+		}
+	}
+
+	private <E> long updateLocal(EntityUpdate<E> update, boolean reportInChanges) throws EntityOperationException {
+		String typeName = update.getEntityType().getName();
+		try (Transaction t = theEntities.lock(true, null)) {
+			List<QuickMap<String, Object>> rows;
+			try (Stream<QuickMap<String, Object>> selected = select(update.getEntityType(), update.getSelection())) {
+				rows = selected.collect(Collectors.toList());
+			}
+			for (QuickMap<String, Object> row : rows) {
+				QuickMap<String, Object> newRow = row.copy();
+				for (int f = 0; f < update.getUpdateValues().keySize(); f++) {
+					Object value = update.getUpdateValues().get(f);
+					if (value != EntityUpdate.NOT_SET) {
+						newRow = newRow.with(update.getUpdateValues().keySet().get(f), value);
+					}
+				}
+				theEntities.update(typeName, newRow, false);
+			}
+			if (reportInChanges && !rows.isEmpty()) {
+				// Let the data set reload the updated entities, as for pulled changes
+				reportLocal(new EntityChange.EntityFieldValueChange<>(update.getEntityType(), Instant.now(),
+					toIdentities(update.getEntityType(), rows), Collections.emptyList(), null));
+			}
+			return rows.size();
+		} catch (IOException | UncheckedIOException e) {
+			throw new EntityOperationException("Could not update " + typeName, e);
+		}
+	}
+
+	@Override
+	public <E> long delete(EntityDeletion<E> delete, Object prepared, boolean reportInChanges) throws EntityOperationException {
+		long count = deleteLocal(delete, reportInChanges);
+		if (count > 0) {
+			push(commitLocal("Deleted " + delete.getEntityType().getName()));
+		}
+		return count;
+	}
+
+	@Override
+	public <E> OperationResult<Long> deleteAsync(EntityDeletion<E> delete, Object prepared, boolean reportInChanges) {
+		try {
+			long count = deleteLocal(delete, reportInChanges);
+			if (count == 0) {
+				return fulfilled(0L);
+			}
+			return result(commitLocal("Deleted " + delete.getEntityType().getName()).thenApply(__ -> count));
+		} catch (EntityOperationException e) {
+			return failed(e);
+		}
+	}
+
+	private <E> long deleteLocal(EntityDeletion<E> delete, boolean reportInChanges) throws EntityOperationException {
+		String typeName = delete.getEntityType().getName();
+		try (Transaction t = theEntities.lock(true, null)) {
+			List<QuickMap<String, Object>> rows;
+			try (Stream<QuickMap<String, Object>> selected = select(delete.getEntityType(), delete.getSelection())) {
+				rows = selected.collect(Collectors.toList());
+			}
+			for (QuickMap<String, Object> row : rows) {
+				theEntities.delete(typeName, row);
+			}
+			if (reportInChanges && !rows.isEmpty()) {
+				reportLocal(new EntityChange.EntityExistenceChange<>(delete.getEntityType(), Instant.now(), false,
+					toIdentities(delete.getEntityType(), rows), null));
+			}
+			return rows.size();
+		} catch (IOException | UncheckedIOException e) {
+			throw new EntityOperationException("Could not delete " + typeName, e);
+		}
+	}
+
+	@Override
+	public <V> ElementId updateCollection(BetterCollection<V> collection, CollectionOperationType changeType, ElementId element, V value,
+		boolean reportInChanges) throws EntityOperationException {
+		throw new EntityOperationException("Collection-typed fields are not supported by " + getClass().getSimpleName());
+	}
+
+	@Override
+	public <V> OperationResult<ElementId> updateCollectionAsync(BetterCollection<V> collection, CollectionOperationType changeType,
+		ElementId element, V value, boolean reportInChanges) {
+		return failed(new EntityOperationException("Collection-typed fields are not supported by " + getClass().getSimpleName()));
+	}
+
+	@Override
+	public <K, V> ElementId updateMap(Map<K, V> collection, CollectionOperationType changeType, K key, V value, Runnable asyncResult) {
+		throw new UnsupportedOperationException("Map-typed fields are not supported by " + getClass().getSimpleName());
+	}
+
+	@Override
+	public <K, V> ElementId updateMultiMap(MultiMap<K, V> collection, CollectionOperationType changeType, ElementId valueElement, K key,
+		V value, Consumer<ElementId> asyncResult) {
+		throw new UnsupportedOperationException("Multi-map-typed fields are not supported by " + getClass().getSimpleName());
+	}
+
+	@Override
+	public List<EntityChange<?>> changes() {
+		synchronized (thePendingChanges) {
+			if (thePendingChanges.isEmpty()) {
+				return Collections.emptyList();
+			}
+			List<EntityChange<?>> changes = new ArrayList<>(thePendingChanges);
+			thePendingChanges.clear();
+			return changes;
+		}
+	}
+
+	@Override
+	public List<Fulfillment<?>> loadEntityData(List<EntityLoadRequest<?>> loadRequests) throws EntityOperationException {
+		List<Fulfillment<?>> fulfillments = new ArrayList<>(loadRequests.size());
+		for (EntityLoadRequest<?> request : loadRequests) {
+			fulfillments.add(load(request));
+		}
+		return fulfillments;
+	}
+
+	private <E> Fulfillment<E> load(EntityLoadRequest<E> request) throws EntityOperationException {
+		String typeName = request.getType().getName();
+		List<QuickMap<String, Object>> results = new ArrayList<>(request.getEntities().size());
+		try {
+			for (EntityIdentity<? extends E> id : request.getEntities()) {
+				QuickMap<String, Object> row = theEntities.get(typeName, toIds(typeName, id));
+				results.add(row == null ? null : toFields(request.getType(), row));
+			}
+		} catch (IOException e) {
+			throw new EntityOperationException("Could not load " + typeName, e);
+		}
+		return new Fulfillment<>(request, results);
+	}
+
+	@Override
+	public OperationResult<List<Fulfillment<?>>> loadEntityDataAsync(List<EntityLoadRequest<?>> loadRequests) {
+		try {
+			return fulfilled(loadEntityData(loadRequests));
+		} catch (EntityOperationException e) {
+			return failed(e);
+		}
+	}
+
+	private Stream<QuickMap<String, Object>> select(ObservableEntityType<?> type, EntityCondition<?> selection)
+		throws EntityOperationException {
+		String typeName = type.getName();
+		try {
+			if (selection instanceof EntityCondition.All) {
+				return theEntities.scan(typeName, null, null, null);
+			} else if (selection instanceof EntityCondition.IdentityCondition) {
+				QuickMap<String, Object> row = theEntities.get(typeName,
+					toIds(typeName, ((EntityCondition.IdentityCondition<?>) selection).getIdentity()));
+				return row == null ? Stream.empty() : Stream.of(row);
+			}
+			String equalityField = getEqualityField(selection);
+			if (equalityField != null) {
+				return theEntities.query(typeName, equalityField, ((EntityCondition.LiteralCondition<?, ?>) selection).getValue()).stream();
+			}
+			Predicate<QuickMap<String, Object>> filter = toFilter(typeName, selection);
+			return theEntities.scan(typeName, null, null, null).filter(filter);
+		} catch (IOException | TextParseException e) {
+			throw new EntityOperationException("Could not read " + typeName, e);
+		}
+	}
+
+	/**
+	 * @param selection The selection
+	 * @return The name of the field that the selection tests for equality with a literal value, or null if the selection is not such a
+	 *         test
+	 */
+	private static String getEqualityField(EntityCondition<?> selection) {
+		if (!(selection instanceof EntityCondition.LiteralCondition)) {
+			return null;
+		}
+		EntityCondition.LiteralCondition<?, ?> literal = (EntityCondition.LiteralCondition<?, ?>) selection;
+		if (literal.getComparison() != 0 || !literal.isWithEquality() || !(literal.getField() instanceof ObservableEntityFieldType)) {
+			return null;
+		}
+		return ((ObservableEntityFieldType<?, ?>) literal.getField()).getName();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Predicate<QuickMap<String, Object>> toFilter(String typeName, EntityCondition<?> selection)
+		throws EntityOperationException {
+		if (selection instanceof EntityCondition.All) {
+			return row -> true;
+		} else if (selection instanceof EntityCondition.LiteralCondition) {
+			EntityCondition.LiteralCondition<?, ?> literal = (EntityCondition.LiteralCondition<?, ?>) selection;
+			if (!(literal.getField() instanceof ObservableEntityFieldType)) {
+				throw new EntityOperationException(
+					"Only conditions on fields of the entity are supported for " + typeName + ": " + selection);
+			}
+			String field = ((ObservableEntityFieldType<?, ?>) literal.getField()).getName();
+			Object value = literal.getValue();
+			int comparison = literal.getComparison();
+			boolean withEquality = literal.isWithEquality();
+			if (comparison == 0) {
+				return row -> Objects.equals(row.get(field), value) == withEquality;
+			} else if (!(value instanceof Comparable)) {
+				throw new EntityOperationException("Value of " + field + " cannot be compared for " + typeName + ": " + selection);
+			}
+			return row -> {
+				Object rowValue = row.get(field);
+				if (rowValue == null) {
+					return false;
+				}
+				int comp = ((Comparable<Object>) rowValue).compareTo(value);
+				return comp == 0 ? withEquality : Integer.signum(comp) == comparison;
+			};
+		} else if (selection instanceof EntityCondition.AndCondition) {
+			Predicate<QuickMap<String, Object>> filter = row -> true;
+			for (EntityCondition<?> component : ((EntityCondition.AndCondition<?>) selection).getConditions()) {
+				filter = filter.and(toFilter(typeName, component));
+			}
+			return filter;
+		} else if (selection instanceof EntityCondition.OrCondition) {
+			Predicate<QuickMap<String, Object>> filter = row -> false;
+			for (EntityCondition<?> component : ((EntityCondition.OrCondition<?>) selection).getConditions()) {
+				filter = filter.or(toFilter(typeName, component));
+			}
+			return filter;
+		}
+		throw new EntityOperationException("Unsupported selection for " + typeName + ": " + selection);
+	}
+
+	private CompletableFuture<Void> commitLocal(String message) throws EntityOperationException {
+		try {
+			return theEntities.commitAndPush(message);
+		} catch (IOException e) {
+			throw new EntityOperationException("Could not commit", e);
+		}
+	}
+
+	private static void push(CompletableFuture<Void> pushed) throws EntityOperationException {
+		try {
+			pushed.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EntityOperationException("Interrupted waiting for push", e);
+		} catch (ExecutionException e) {
+			throw new EntityOperationException("Push failed", e.getCause());
+		}
+	}
+
+	private void reportLocal(EntityChange<?> change) {
+		synchronized (thePendingChanges) {
+			thePendingChanges.add(change);
+		}
+	}
+
+	private QuickMap<String, Object> toIds(String typeName, EntityIdentity<?> id) {
+		QuickMap<String, Object> ids = theEntities.getEntityType(typeName).create(true);
+		for (int f = 0; f < id.getFields().keySize(); f++) {
+			ids = ids.with(id.getFields().keySet().get(f), id.getFields().get(f));
+		}
+		return ids;
+	}
+
+	private static QuickMap<String, Object> toFields(ObservableEntityType<?> type, QuickMap<String, Object> row) {
+		QuickMap<String, Object> fields = type.getFields().keySet().createMap();
+		for (int f = 0; f < fields.keySize(); f++) {
+			fields.put(f, row.get(fields.keySet().get(f)));
+		}
+		return fields;
+	}
+
+	private static <E> EntityIdentity<E> toIdentity(ObservableEntityType<E> type, QuickMap<String, Object> row) {
+		EntityIdentity.Builder<E> id = type.buildId();
+		for (String field : type.getIdentityFields().keySet()) {
+			id.with(field, row.get(field));
+		}
+		return id.build();
+	}
+
+	private static <E> BetterList<EntityIdentity<E>> toIdentities(ObservableEntityType<E> type, List<QuickMap<String, Object>> rows) {
+		List<EntityIdentity<E>> ids = new ArrayList<>(rows.size());
+		for (QuickMap<String, Object> row : rows) {
+			ids.add(toIdentity(type, row));
+		}
+		return BetterList.of(ids);
+	}
+
+	private static <E> SimpleEntity<E> toEntity(ObservableEntityType<E> type, QuickMap<String, Object> row) {
+		SimpleEntity<E> entity = new SimpleEntity<>(toIdentity(type, row));
+		for (int f = 0; f < type.getFields().keySize(); f++) {
+			entity.set(f, row.get(type.getFields().keySet().get(f)));
+		}
+		return entity;
+	}
+
+	private void remoteChange(VersionedEntities.Commit commit) {
+		List<EntityChange<?>> changes = new ArrayList<>();
+		Map<String, List<VersionedEntities.EntityUpdate>> byType = new LinkedHashMap<>();
+		for (VersionedEntities.EntityUpdate update : commit.getChanges()) {
+			byType.computeIfAbsent(update.getEntityType().getName(), __ -> new ArrayList<>()).add(update);
+		}
+		for (Map.Entry<String, List<VersionedEntities.EntityUpdate>> updates : byType.entrySet()) {
+			ObservableEntityType<?> type = theTypes.get(updates.getKey());
+			if (type != null) {
+				addChanges(type, commit.getCommitTime(), updates.getValue(), changes);
+			}
+		}
+		if (!changes.isEmpty()) {
+			synchronized (thePendingChanges) {
+				thePendingChanges.addAll(changes);
+			}
+		}
+	}
+
+	private static <E> void addChanges(ObservableEntityType<E> type, Instant time, List<VersionedEntities.EntityUpdate> updates,
+		List<EntityChange<?>> changes) {
+		List<EntityIdentity<E>> added = new ArrayList<>();
+		List<EntityIdentity<E>> removed = new ArrayList<>();
+		List<EntityIdentity<E>> updated = new ArrayList<>();
+		for (VersionedEntities.EntityUpdate update : updates) {
+			if (update.getOldValues() == null) {
+				added.add(toIdentity(type, update.getNewValues()));
+			} else if (update.getNewValues() == null) {
+				removed.add(toIdentity(type, update.getOldValues()));
+			} else {
+				updated.add(toIdentity(type, update.getNewValues()));
+			}
+		}
+		if (!added.isEmpty()) {
+			changes.add(new EntityChange.EntityExistenceChange<>(type, time, true, BetterList.of(added), null));
+		}
+		if (!removed.isEmpty()) {
+			changes.add(new EntityChange.EntityExistenceChange<>(type, time, false, BetterList.of(removed), null));
+		}
+		if (!updated.isEmpty()) {
+			// The pulled rows don't say which fields changed, so let the data set reload the updated entities
+			changes.add(new EntityChange.EntityFieldValueChange<>(type, time, BetterList.of(updated), Collections.emptyList(), null));
+		}
+	}
+
+	private static <T> OperationResult<T> fulfilled(T value) {
+		OperationResult.AsyncResult<T> result = new OperationResult.AsyncResult<>();
+		result.fulfilled(value);
+		return result;
+	}
+
+	private static <T> OperationResult<T> failed(EntityOperationException failure) {
+		OperationResult.AsyncResult<T> result = new OperationResult.AsyncResult<>();
+		result.failed(failure);
+		return result;
+	}
+
+	private static <T> OperationResult<T> result(CompletableFuture<T> future) {
+		OperationResult.AsyncResult<T> result = new OperationResult.AsyncResult<>();
+		future.whenComplete((value, ex) -> {
+			if (ex == null) {
+				result.fulfilled(value);
+			} else {
+				result.failed(new EntityOperationException("Push failed", ex));
+			}
+		});
+		return result;
+	}
+}
@@ -0,0 +1,332 @@
+package org.observe.entity.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.observe.Observable;
+import org.observe.config.OperationResult;
+import org.observe.entity.EntityChange;
+import org.observe.entity.EntityCondition;
+import org.observe.entity.EntityIdentity;
+import org.observe.entity.EntityOperationException;
+import org.observe.entity.EntityUpdate;
+import org.observe.entity.ObservableEntity;
+import org.observe.entity.ObservableEntityDataSet;
+import org.observe.entity.ObservableEntityType;
+import org.observe.util.Identified;
+import org.qommons.Nameable;
+import org.qommons.collect.QuickSet.QuickMap;
+import org.versionedentity.GitEntities;
+
+/** Tests the {@link GitEntityProvider} */
+public class GitEntityProviderTest {
+	/** Holds the repositories and indexes of each test */
+	@Rule
+	public final TemporaryFolder theTestDir = new TemporaryFolder();
+
+	/**
+	 * Ensures that installing a data set creates its entity types in the entity set, that installing it again accepts the stored types,
+	 * and that installing over a stored type with different fields fails
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testInstall() throws Exception {
+		try (Git master = init("master");
+			Git copy = clone(master, "copy")) {
+			GitEntities entities = new GitEntities(copy, theTestDir.newFolder("indexes"), null, null);
+			try {
+				GitEntityProvider provider = new GitEntityProvider(entities);
+				try {
+					buildDataSet(provider);
+					Assert.assertNotNull(entities.getEntityType("SimpleValue"));
+					Assert.assertEquals(Arrays.asList("id"), entities.getEntityType("SimpleValue").getFieldOrder().subList(0, 1));
+					Assert.assertEquals(1, entities.getEntityType("SimpleValue").getIdFieldCount());
+					Assert.assertFalse(entities.hasModifications());
+				} finally {
+					provider.close();
+				}
+
+				// The stored type matches, so nothing is changed
+				String head = copy.getRepository().resolve("HEAD").name();
+				provider = new GitEntityProvider(entities);
+				try {
+					buildDataSet(provider);
+					Assert.assertEquals(head, copy.getRepository().resolve("HEAD").name());
+				} finally {
+					provider.close();
+				}
+			} finally {
+				entities.close();
+			}
+		}
+
+		try (Git master = init("master2");
+			Git copy = clone(master, "copy2")) {
+			GitEntities entities = new GitEntities(copy, theTestDir.newFolder("indexes2"), null, null);
+			try {
+				Map<String, Class<?>> fields = new LinkedHashMap<>();
+				fields.put("id", long.class);
+				fields.put("name", String.class);
+				fields.put("size", int.class);
+				entities.addEntityType("SimpleValue", fields, Arrays.asList("id"));
+				entities.commit("Mismatched type");
+
+				GitEntityProvider provider = new GitEntityProvider(entities);
+				try {
+					buildDataSet(provider);
+					Assert.fail("The data set should not install over a mismatched entity type");
+				} catch (EntityOperationException e) {
+					Assert.assertTrue(e.getMessage(), e.getMessage().contains("missing field value"));
+					Assert.assertTrue(e.getMessage(), e.getMessage().contains("unexpected field size"));
+				} finally {
+					provider.close();
+				}
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that counts and queries select the right entities for each kind of selection
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testSelect() throws Exception {
+		try (Git master = init("master");
+			Git copy = clone(master, "copy")) {
+			GitEntities entities = new GitEntities(copy, theTestDir.newFolder("indexes"), null, null);
+			GitEntityProvider provider = new GitEntityProvider(entities);
+			try {
+				ObservableEntityType<SimpleValue> type = buildDataSet(provider).getEntityType(SimpleValue.class);
+				for (int i = 0; i < 10; i++) {
+					addValue(entities, i, "Value " + i, i % 5);
+				}
+				entities.commit("Values");
+				entities.addSecondaryIndex("SimpleValue", "value");
+
+				Assert.assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L), select(type.select()));
+				Assert.assertEquals(Arrays.asList(3L), select(type.select().entity(id(type, 3))));
+				Assert.assertEquals(Collections.emptyList(), select(type.select().entity(id(type, 30))));
+				// Equality is served by the secondary index
+				Assert.assertEquals(Arrays.asList(2L, 7L), select(type.select().where(SimpleValue::getValue).equal(2)));
+				Assert.assertEquals(Arrays.asList(3L, 4L, 8L, 9L),
+					select(type.select().where(SimpleValue::getValue).greaterThanOrEqual(3)));
+				Assert.assertEquals(Arrays.asList(0L, 1L, 5L, 6L), select(type.select().where(SimpleValue::getValue).lessThan(2)));
+				Assert.assertEquals(Arrays.asList(1L, 2L, 3L, 4L), select(type.select().where(SimpleValue::getValue).greaterThanOrEqual(1)//
+					.and(c -> c.where(SimpleValue::getId).lessThan(5L))));
+				Assert.assertEquals(Arrays.asList(0L, 5L, 9L), select(type.select().where(SimpleValue::getValue).equal(0)//
+					.or(c -> c.where(SimpleValue::getId).greaterThanOrEqual(9L))));
+
+				// Uncommitted modifications are included in equality selections
+				addValue(entities, 10, "Value 10", 2);
+				Assert.assertEquals(Arrays.asList(2L, 7L, 10L), select(type.select().where(SimpleValue::getValue).equal(2)));
+			} finally {
+				provider.close();
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that commits pulled from the remote are reported in {@link GitEntityProvider#changes()}
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testPulledChanges() throws Exception {
+		try (Git master = init("master");
+			Git copy1 = clone(master, "copy1");
+			Git copy2 = clone(master, "copy2")) {
+			GitEntities entities1 = new GitEntities(copy1, theTestDir.newFolder("indexes1"), null, null);
+			GitEntities entities2 = new GitEntities(copy2, theTestDir.newFolder("indexes2"), null, null);
+			GitEntityProvider provider = new GitEntityProvider(entities1);
+			try {
+				ObservableEntityType<SimpleValue> type = buildDataSet(provider).getEntityType(SimpleValue.class);
+				entities1.checkAndPush(null);
+				entities2.checkAndPush(null);
+				Assert.assertEquals(Collections.emptyList(), provider.changes());
+
+				addValue(entities2, 1, "Value 1", 1);
+				addValue(entities2, 2, "Value 2", 2);
+				entities2.commit("Added values");
+				entities2.checkAndPush(null);
+				entities1.checkAndPush(null);
+
+				List<EntityChange<?>> changes = provider.changes();
+				Assert.assertEquals(1, changes.size());
+				Assert.assertTrue(changes.get(0) instanceof EntityChange.EntityExistenceChange);
+				EntityChange.EntityExistenceChange<?> added = (EntityChange.EntityExistenceChange<?>) changes.get(0);
+				Assert.assertTrue(added.added);
+				Assert.assertEquals(Arrays.asList(id(type, 1), id(type, 2)), new ArrayList<>(added.getEntities()));
+				// Changes are only reported once
+				Assert.assertEquals(Collections.emptyList(), provider.changes());
+
+				QuickMap<String, Object> value = entities2.get("SimpleValue", id(entities2, 2)).copy().with("name", "Value 2B");
+				entities2.update("SimpleValue", value, false);
+				entities2.delete("SimpleValue", id(entities2, 1));
+				entities2.commit("Changed values");
+				entities2.checkAndPush(null);
+				entities1.checkAndPush(null);
+
+				changes = provider.changes();
+				Assert.assertEquals(2, changes.size());
+				EntityChange.EntityExistenceChange<?> removed = (EntityChange.EntityExistenceChange<?>) changes.get(0);
+				Assert.assertFalse(removed.added);
+				Assert.assertEquals(Arrays.asList(id(type, 1)), new ArrayList<>(removed.getEntities()));
+				Assert.assertTrue(changes.get(1) instanceof EntityChange.EntityFieldValueChange);
+				Assert.assertEquals(Arrays.asList(id(type, 2)), new ArrayList<>(changes.get(1).getEntities()));
+
+				// Local commits are not reported unless the modification asks for them
+				addValue(entities1, 3, "Value 3", 3);
+				entities1.commit("Added value 3");
+				Assert.assertEquals(Collections.emptyList(), provider.changes());
+
+				// A closed provider no longer reports pulled commits
+				provider.close();
+				addValue(entities2, 4, "Value 4", 4);
+				entities2.commit("Added value 4");
+				entities2.checkAndPush(null);
+				entities1.checkAndPush(null);
+				Assert.assertEquals(Collections.emptyList(), provider.changes());
+			} finally {
+				provider.close();
+				entities1.close();
+				entities2.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that a failed push fails a synchronous modification with an {@link EntityOperationException}, and fails the result of an
+	 * asynchronous one, while the modification itself remains committed locally
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testPushFailure() throws Exception {
+		try (Git master = init("master");
+			Git copy = clone(master, "copy")) {
+			GitEntities entities = new GitEntities(copy, theTestDir.newFolder("indexes"), null, null);
+			entities.withGroupCommit(Duration.ofMillis(10), 0);
+			GitEntityProvider provider = new GitEntityProvider(entities);
+			try {
+				ObservableEntityType<SimpleValue> type = buildDataSet(provider).getEntityType(SimpleValue.class);
+				addValue(entities, 1, "Value 1", 1);
+				addValue(entities, 2, "Value 2", 2);
+				entities.commit("Values");
+				entities.checkAndPush(null);
+
+				// A successful push
+				EntityUpdate<SimpleValue> update = type.select().entity(id(type, 1)).update().withField(SimpleValue::getName, "Value 1B");
+				Assert.assertEquals(1, provider.update(update, null, false));
+				Assert.assertEquals(copy.getRepository().resolve("HEAD"), master.getRepository().resolve("HEAD"));
+
+				// Point the remote somewhere that doesn't exist so that pushes fail
+				StoredConfig config = copy.getRepository().getConfig();
+				config.setString("remote", "origin", "url", new File(theTestDir.getRoot(), "missing").toURI().toString());
+				config.save();
+
+				update = type.select().entity(id(type, 1)).update().withField(SimpleValue::getName, "Value 1C");
+				try {
+					provider.update(update, null, false);
+					Assert.fail("A synchronous update should fail when the push fails");
+				} catch (EntityOperationException e) {
+					Assert.assertEquals("Push failed", e.getMessage());
+					Assert.assertNotNull(e.getCause());
+				}
+				Assert.assertEquals("Value 1C", entities.get("SimpleValue", id(entities, 1)).get("name"));
+				Assert.assertFalse(entities.hasModifications());
+
+				update = type.select().entity(id(type, 2)).update().withField(SimpleValue::getName, "Value 2B");
+				OperationResult<Long> result = provider.updateAsync(update, null, false);
+				result.waitFor(10_000);
+				Assert.assertEquals(OperationResult.ResultStatus.FAILED, result.getStatus());
+				Assert.assertTrue(result.getFailure() instanceof EntityOperationException);
+				Assert.assertNotNull(result.getFailure().getCause());
+				Assert.assertEquals("Value 2B", entities.get("SimpleValue", id(entities, 2)).get("name"));
+
+				// Updates that select nothing don't commit or push, so they succeed
+				update = type.select().entity(id(type, 30)).update().withField(SimpleValue::getName, "Value 30");
+				Assert.assertEquals(0, provider.update(update, null, false));
+				result = provider.updateAsync(update, null, false);
+				Assert.assertEquals(OperationResult.ResultStatus.FULFILLED, result.getStatus());
+				Assert.assertEquals(Long.valueOf(0), result.getResult());
+			} finally {
+				provider.close();
+				entities.close();
+			}
+		}
+	}
+
+	private Git init(String name) throws IOException, GitAPIException {
+		Git git = Git.init()//
+			.setDirectory(theTestDir.newFolder(name))//
+			.call();
+		git.commit()// Need a commit to create the master branch
+		.setAllowEmpty(true)//
+		.setMessage("Initial commit")//
+		.call();
+		return git;
+	}
+
+	private Git clone(Git master, String name) throws IOException, GitAPIException {
+		return Git.cloneRepository()//
+			.setURI(master.getRepository().getDirectory().getParentFile().toURI().toString())//
+			.setDirectory(theTestDir.newFolder(name))//
+			.call();
+	}
+
+	private static ObservableEntityDataSet buildDataSet(GitEntityProvider provider) throws EntityOperationException {
+		return ObservableEntityDataSet.build(provider)//
+			.withEntityType(SimpleValue.class).fillFieldsFromClass().build()//
+			.build(Observable.empty());
+	}
+
+	private static void addValue(GitEntities entities, long id, String name, int value) throws IOException {
+		entities.update("SimpleValue", entities.getEntityType("SimpleValue").create(false)//
+			.with("id", id)//
+			.with("name", name)//
+			.with("value", value), true);
+	}
+
+	private static QuickMap<String, Object> id(GitEntities entities, long id) {
+		return entities.getEntityType("SimpleValue").create(true).with("id", id);
+	}
+
+	private static EntityIdentity<SimpleValue> id(ObservableEntityType<SimpleValue> type, long id) {
+		return type.buildId().with("id", id).build();
+	}
+
+	private static List<Long> select(EntityCondition<SimpleValue> selection) throws EntityOperationException {
+		List<Long> ids = new ArrayList<>();
+		for (ObservableEntity<? extends SimpleValue> entity : selection.query().collect(false)) {
+			ids.add(entity.getEntity().getId());
+		}
+		Collections.sort(ids);
+		Assert.assertEquals(Long.valueOf(ids.size()), selection.query().count().get());
+		return ids;
+	}
+
+	/** A simple entity type to store */
+	public interface SimpleValue extends Identified, Nameable {
+		/** @return The entity's value */
+		int getValue();
+	}
+}
@@ -1,5 +1,6 @@
 package org.observe.entity.ui;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.sql.Connection;
@@ -8,11 +9,13 @@ import java.sql.SQLException;
 import java.time.Duration;
 import java.util.List;
 
+import org.eclipse.jgit.api.Git;
 import org.observe.Observable;
 import org.observe.ObservableValue;
 import org.observe.entity.EntityOperationException;
 import org.observe.entity.ObservableEntityDataSet;
 import org.observe.entity.ObservableEntityProvider;
+import org.observe.entity.git.GitEntityProvider;
 import org.observe.entity.jdbc.DbDialect2;
 import org.observe.entity.jdbc.DefaultConnectionPool;
 import org.observe.entity.jdbc.JdbcEntityProvider4;
@@ -25,6 +28,7 @@ import org.observe.util.Identified;
 import org.observe.util.swing.ObservableSwingUtils;
 import org.qommons.ArgumentParsing2;
 import org.qommons.Nameable;
+import org.versionedentity.GitEntities;
 
 import com.google.api.services.sheets.v4.Sheets;
 
@@ -35,6 +39,8 @@ public class ObservableEntityExplorerTest {
 			return getJdbcProvider(args);
 		case sheets:
 			return getGoogleSheetProvider(args);
+		case git:
+			return getGitProvider(args);
 		}
 		throw new IllegalArgumentException("Unrecognized entity provider type: " + args.get("provider"));
 	}
@@ -89,8 +95,21 @@ public class ObservableEntityExplorerTest {
 		return new GoogleSheetProvider(sheetsService, args.get("spreadsheet", String.class)).setPrintSheetIdOnCreate(true);
 	}
 
+	public static ObservableEntityProvider getGitProvider(ArgumentParsing2.Arguments args) {
+		GitEntities entities;
+		try {
+			Git git = Git.open(new File(args.get("repo", String.class)));
+			entities = new GitEntities(git, new File(args.get("index", String.class)), args.get("project", String.class), null);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not open git entities", e);
+		}
+		Duration syncInterval = Duration.ofSeconds(5);
+		entities.withGroupCommit(Duration.ofSeconds(1), 0).startSync(syncInterval, syncInterval.multipliedBy(12));
+		return new GitEntityProvider(entities);
+	}
+
 	enum ProviderType {
-		jdbc, sheets
+		jdbc, sheets, git
 	}
 
 	public static void main(String... args) {
@@ -123,6 +142,16 @@ public class ObservableEntityExplorerTest {
 					.when("provider", ProviderType.class, c -> c.matches(t -> t.eq(ProviderType.sheets).not()).forbidden())//
 					.when("provider", ProviderType.class, c -> c.matches(t -> t.eq(ProviderType.sheets)).required())//
 				)//
+				.addStringArgument("repo", a -> a//
+					.when("provider", ProviderType.class, c -> c.matches(t -> t.eq(ProviderType.git).not()).forbidden())//
+					.when("provider", ProviderType.class, c -> c.matches(t -> t.eq(ProviderType.git)).required())//
+				)//
+				.addStringArgument("index", a -> a//
+					.when("provider", ProviderType.class, c -> c.matches(t -> t.eq(ProviderType.git).not()).forbidden())//
+					.defaultValue("./observableEntityTestIndex"))//
+				.addStringArgument("project", a -> a//
+					.when("provider", ProviderType.class, c -> c.matches(t -> t.eq(ProviderType.git).not()).forbidden())//
+					.defaultValue("entity-explorer-test"))//
 			).build()//
 			.parse(args);
 		ObservableEntityDataSet ds;
@@ -0,0 +1,620 @@
+package org.versionedentity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.observe.util.VersionedEntities.EntityUpdate;
+import org.qommons.collect.QuickSet.QuickMap;
+
+/**
+ * <p>
+ * A durable, append-only journal of the entity changes in a {@link GitEntities} entity set, so that downstream consumers which were not
+ * running when changes were pulled can catch up without re-diffing git history.
+ * </p>
+ * <p>
+ * Each {@link EntityUpdate} is appended as a binary record with a sequential offset. Records are stored in segment files, each named for
+ * the offset of its first record, and a new segment is started when the current one reaches a maximum size. Consumers
+ * {@link #commitOffset(String, long) record} the offset they have consumed up to, and {@link #replay(long, Consumer) replay} from there.
+ * Old segments are deleted by {@link #retain(long, Duration)}, but never while a registered consumer still needs them.
+ * </p>
+ * <p>
+ * The journal is stamped with the {@link #getHead() last commit} it has journaled, so that commits made while the journal was not being
+ * maintained can be replayed into it when it is next opened.
+ * </p>
+ * <p>
+ * Field values are journaled in their {@link String#valueOf(Object) text} form. Consumers needing typed values can look entities up
+ * {@link GitEntities#getAsOf(String, String, QuickMap) as of} the journaled commit.
+ * </p>
+ */
+public class ChangeJournal {
+	/** A journaled entity change */
+	public static class Entry {
+		private final long theOffset;
+		private final ObjectId theCommitId;
+		private final Instant theCommitTime;
+		private final boolean isLocal;
+		private final String theEntityType;
+		private final int theFileIndex;
+		private final EntityHistory.ChangeType theChangeType;
+		private final Map<String, String> theOldValues;
+		private final Map<String, String> theNewValues;
+
+		Entry(long offset, ObjectId commitId, Instant commitTime, boolean local, String entityType, int fileIndex,
+			EntityHistory.ChangeType changeType, Map<String, String> oldValues, Map<String, String> newValues) {
+			theOffset = offset;
+			theCommitId = commitId;
+			theCommitTime = commitTime;
+			isLocal = local;
+			theEntityType = entityType;
+			theFileIndex = fileIndex;
+			theChangeType = changeType;
+			theOldValues = oldValues;
+			theNewValues = newValues;
+		}
+
+		/** @return The offset of this entry in the journal */
+		public long getOffset() {
+			return theOffset;
+		}
+
+		/** @return The ID of the commit that made the change */
+		public ObjectId getCommitId() {
+			return theCommitId;
+		}
+
+		/** @return The time of the commit that made the change */
+		public Instant getCommitTime() {
+			return theCommitTime;
+		}
+
+		/** @return Whether the change was committed locally, as opposed to pulled from the remote */
+		public boolean isLocal() {
+			return isLocal;
+		}
+
+		/** @return The name of the entity type of the changed entity */
+		public String getEntityType() {
+			return theEntityType;
+		}
+
+		/** @return The index of the shard file containing the entity */
+		public int getFileIndex() {
+			return theFileIndex;
+		}
+
+		/** @return The type of the change */
+		public EntityHistory.ChangeType getChangeType() {
+			return theChangeType;
+		}
+
+		/** @return The text of each field value of the entity before the change, or null if the entity was added */
+		public Map<String, String> getOldValues() {
+			return theOldValues;
+		}
+
+		/** @return The text of each field value of the entity after the change, or null if the entity was deleted */
+		public Map<String, String> getNewValues() {
+			return theNewValues;
+		}
+
+		@Override
+		public String toString() {
+			return theOffset + ": " + theChangeType + " " + theEntityType + "@" + theCommitId.name();
+		}
+	}
+
+	private static final String SEGMENT_EXTENSION = ".seg";
+	private static final String CONSUMERS_FILE = "consumers.properties";
+	private static final String HEAD_FILE = "head";
+
+	private final File theDirectory;
+	private final long theMaxSegmentSize;
+	/** Base offset to segment file */
+	private final TreeMap<Long, File> theSegments;
+	private final Map<String, Long> theConsumerOffsets;
+	private long theEndOffset;
+	/** The commit of the last record in the journal */
+	private ObjectId theLastCommit;
+	private String theHead;
+	private boolean isClosed;
+
+	/**
+	 * Opens the journal, truncating any partially written record at the end
+	 *
+	 * @param directory The directory for the journal's files
+	 * @param maxSegmentSize The size at which to start a new segment
+	 * @throws IOException If the journal could not be opened
+	 */
+	ChangeJournal(File directory, long maxSegmentSize) throws IOException {
+		if (maxSegmentSize <= 0) {
+			throw new IllegalArgumentException("Segment size must be positive: " + maxSegmentSize);
+		}
+		theDirectory = directory;
+		theMaxSegmentSize = maxSegmentSize;
+		theSegments = new TreeMap<>();
+		theConsumerOffsets = new LinkedHashMap<>();
+		directory.mkdirs();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(SEGMENT_EXTENSION)) {
+					String base = file.getName().substring(0, file.getName().length() - SEGMENT_EXTENSION.length());
+					try {
+						theSegments.put(Long.parseLong(base), file);
+					} catch (NumberFormatException e) {
+						System.err.println("Unrecognized journal file " + file.getPath());
+					}
+				}
+			}
+		}
+		if (theSegments.isEmpty()) {
+			theEndOffset = 0;
+		} else {
+			Map.Entry<Long, File> last = theSegments.lastEntry();
+			long[] validLength = new long[1];
+			long count = scan(last.getValue(), last.getKey(), Long.MAX_VALUE, entry -> theLastCommit = entry.getCommitId(), validLength);
+			if (validLength[0] < last.getValue().length()) {
+				System.err.println("Truncating partial journal record in " + last.getValue().getPath());
+				try (RandomAccessFile raf = new RandomAccessFile(last.getValue(), "rw")) {
+					raf.setLength(validLength[0]);
+				}
+			}
+			theEndOffset = last.getKey() + count;
+		}
+		File headFile = new File(directory, HEAD_FILE);
+		if (headFile.exists()) {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(headFile), StandardCharsets.UTF_8))) {
+				theHead = reader.readLine();
+			}
+			if (theHead != null && theHead.isEmpty()) {
+				theHead = null;
+			}
+		}
+		File consumers = new File(directory, CONSUMERS_FILE);
+		if (consumers.exists()) {
+			Properties props = new Properties();
+			try (InputStream in = new FileInputStream(consumers)) {
+				props.load(in);
+			}
+			for (String consumer : props.stringPropertyNames()) {
+				try {
+					theConsumerOffsets.put(consumer, Long.parseLong(props.getProperty(consumer)));
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad offset for consumer " + consumer + " in " + consumers.getPath(), e);
+				}
+			}
+		}
+	}
+
+	/** @return The offset of the oldest entry still in the journal */
+	public synchronized long getStartOffset() {
+		return theSegments.isEmpty() ? theEndOffset : theSegments.firstKey();
+	}
+
+	/** @return The offset that the next entry appended to the journal will have */
+	public synchronized long getEndOffset() {
+		return theEndOffset;
+	}
+
+	/**
+	 * @return The ID of the last commit whose changes have been appended to the journal (or that the journal was stamped with when it was
+	 *         created), or null if the journal has never been stamped
+	 */
+	public synchronized String getHead() {
+		return theHead;
+	}
+
+	/**
+	 * Records the commit that the journal is up to date with
+	 *
+	 * @param head The ID of the commit
+	 * @throws IOException If the stamp could not be written
+	 */
+	synchronized void stampHead(ObjectId head) throws IOException {
+		File file = new File(theDirectory, HEAD_FILE);
+		File temp = new File(theDirectory, HEAD_FILE + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			out.write(head.name().getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not replace " + file.getPath());
+		} else if (!temp.renameTo(file)) {
+			throw new IOException("Could not rename " + temp.getPath() + " to " + file.getPath());
+		}
+		theHead = head.name();
+	}
+
+	/** @return The number of bytes in all of the journal's segments */
+	public synchronized long getSize() {
+		long size = 0;
+		for (File segment : theSegments.values()) {
+			size += segment.length();
+		}
+		return size;
+	}
+
+	/**
+	 * @param consumer The name of the consumer
+	 * @return The offset that the consumer has consumed up to (exclusive), or -1 if the consumer has not recorded an offset
+	 */
+	public synchronized long getConsumerOffset(String consumer) {
+		Long offset = theConsumerOffsets.get(consumer);
+		return offset == null ? -1 : offset;
+	}
+
+	/**
+	 * Durably records the offset that a consumer has consumed up to. Segments still needed by a consumer are not deleted by
+	 * {@link #retain(long, Duration) retention}.
+	 *
+	 * @param consumer The name of the consumer
+	 * @param offset The offset of the next entry the consumer needs
+	 * @throws IOException If the offset could not be persisted
+	 */
+	public synchronized void commitOffset(String consumer, long offset) throws IOException {
+		if (offset < 0 || offset > theEndOffset) {
+			throw new IllegalArgumentException("Offset " + offset + " is not in the journal (0.." + theEndOffset + ")");
+		}
+		theConsumerOffsets.put(consumer, offset);
+		saveConsumers();
+	}
+
+	/**
+	 * Stops retaining entries for a consumer
+	 *
+	 * @param consumer The name of the consumer to remove
+	 * @throws IOException If the consumer offsets could not be persisted
+	 */
+	public synchronized void removeConsumer(String consumer) throws IOException {
+		if (theConsumerOffsets.remove(consumer) != null) {
+			saveConsumers();
+		}
+	}
+
+	private void saveConsumers() throws IOException {
+		Properties props = new Properties();
+		for (Map.Entry<String, Long> consumer : theConsumerOffsets.entrySet()) {
+			props.setProperty(consumer.getKey(), consumer.getValue().toString());
+		}
+		File file = new File(theDirectory, CONSUMERS_FILE);
+		File temp = new File(theDirectory, CONSUMERS_FILE + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			props.store(out, null);
+			out.getFD().sync();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not replace " + file.getPath());
+		} else if (!temp.renameTo(file)) {
+			throw new IOException("Could not rename " + temp.getPath() + " to " + file.getPath());
+		}
+	}
+
+	/**
+	 * Reads entries from the journal
+	 *
+	 * @param fromOffset The offset of the first entry to read
+	 * @param onEntry Accepts each entry from the given offset to the current end of the journal, in order
+	 * @return The offset after the last entry read
+	 * @throws IOException If the journal could not be read
+	 * @throws IllegalArgumentException If the given offset has been deleted from the journal or is past its end
+	 */
+	public long replay(long fromOffset, Consumer<? super Entry> onEntry) throws IOException, IllegalArgumentException {
+		List<Map.Entry<Long, File>> segments;
+		long end;
+		synchronized (this) {
+			if (fromOffset < getStartOffset() || fromOffset > theEndOffset) {
+				throw new IllegalArgumentException(
+					"Offset " + fromOffset + " is not in the journal (" + getStartOffset() + ".." + theEndOffset + ")");
+			}
+			segments = new ArrayList<>();
+			Long first = theSegments.floorKey(fromOffset);
+			if (first != null) {
+				segments.addAll(theSegments.tailMap(first, true).entrySet());
+			}
+			end = theEndOffset;
+		}
+		for (Map.Entry<Long, File> segment : segments) {
+			if (segment.getKey() >= end) {
+				break;
+			}
+			scan(segment.getValue(), segment.getKey(), end, entry -> {
+				if (entry.getOffset() >= fromOffset) {
+					onEntry.accept(entry);
+				}
+			}, null);
+		}
+		return end;
+	}
+
+	/**
+	 * Reads a consumer's unconsumed entries, then records that the consumer has consumed them
+	 *
+	 * @param consumer The name of the consumer
+	 * @param onEntry Accepts each entry the consumer has not consumed, in order
+	 * @return The number of entries consumed
+	 * @throws IOException If the journal could not be read or the offset persisted
+	 */
+	public long consume(String consumer, Consumer<? super Entry> onEntry) throws IOException {
+		long offset = getConsumerOffset(consumer);
+		if (offset < 0) {
+			offset = getStartOffset();
+		}
+		long end = replay(offset, onEntry);
+		commitOffset(consumer, end);
+		return end - offset;
+	}
+
+	/**
+	 * Deletes the oldest segments of the journal while the journal is larger than the given size, or while they only contain entries older
+	 * than the given age. The segment being appended to and segments containing entries that a registered consumer has not consumed are
+	 * never deleted.
+	 *
+	 * @param maxSize The maximum number of bytes to keep, or &lt;=0 for no size limit
+	 * @param maxAge The maximum age of entries to keep, or null for no age limit
+	 * @return The number of entries deleted
+	 * @throws IOException If a segment could not be deleted
+	 */
+	public synchronized long retain(long maxSize, Duration maxAge) throws IOException {
+		long minConsumed = Long.MAX_VALUE;
+		for (Long offset : theConsumerOffsets.values()) {
+			minConsumed = Math.min(minConsumed, offset);
+		}
+		long size = getSize();
+		long cutoff = maxAge == null ? Long.MIN_VALUE : System.currentTimeMillis() - maxAge.toMillis();
+		long deleted = 0;
+		while (theSegments.size() > 1) {
+			Map.Entry<Long, File> oldest = theSegments.firstEntry();
+			long nextBase = theSegments.higherKey(oldest.getKey());
+			if (nextBase > minConsumed) {
+				break; // A consumer still needs this segment
+			}
+			boolean tooBig = maxSize > 0 && size > maxSize;
+			boolean tooOld = oldest.getValue().lastModified() < cutoff;
+			if (!tooBig && !tooOld) {
+				break;
+			}
+			long length = oldest.getValue().length();
+			if (!oldest.getValue().delete()) {
+				throw new IOException("Could not delete journal segment " + oldest.getValue().getPath());
+			}
+			theSegments.remove(oldest.getKey());
+			size -= length;
+			deleted += nextBase - oldest.getKey();
+		}
+		return deleted;
+	}
+
+	/**
+	 * Appends the changes of a commit to the journal, forces them to disk, and {@link #getHead() stamps} the journal with the commit. If
+	 * the changes cannot all be written, none of them are kept.
+	 *
+	 * @param commit The commit whose changes to append
+	 * @throws IOException If the changes could not be written
+	 */
+	synchronized void append(GitEntities.CommitImpl commit) throws IOException {
+		if (isClosed) {
+			throw new IllegalStateException("This journal has been closed");
+		} else if (commit.getChanges().isEmpty() || commit.getId().equals(theLastCommit)) {
+			// Nothing to write, or the changes were written but the journal was not stamped
+			stampHead(commit.getId());
+			return;
+		}
+		Map.Entry<Long, File> last = theSegments.lastEntry();
+		File segment;
+		boolean newSegment;
+		if (last != null && last.getValue().length() < theMaxSegmentSize) {
+			segment = last.getValue();
+			newSegment = false;
+		} else {
+			segment = new File(theDirectory, String.format("%020d", theEndOffset) + SEGMENT_EXTENSION);
+			newSegment = true;
+		}
+		long startLength = segment.length();
+		try {
+			writeRecords(segment, commit);
+		} catch (IOException | RuntimeException e) {
+			// Don't leave part of the commit in the journal
+			try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+				raf.setLength(startLength);
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
+			if (newSegment && segment.length() == 0) {
+				segment.delete();
+			}
+			throw e;
+		}
+		if (newSegment) {
+			theSegments.put(theEndOffset, segment);
+		}
+		theEndOffset += commit.getChanges().size();
+		theLastCommit = commit.getId();
+		stampHead(commit.getId());
+	}
+
+	private static void writeRecords(File segment, GitEntities.CommitImpl commit) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		byte[] commitId = new byte[Constants.OBJECT_ID_LENGTH];
+		commit.getId().copyRawTo(commitId, 0);
+		CRC32 crc = new CRC32();
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			raf.seek(raf.length());
+			for (EntityUpdate update : commit.getChanges()) {
+				bytes.reset();
+				out.writeInt(0); // Placeholder for length
+				out.write(commitId);
+				out.writeLong(commit.getCommitTime().toEpochMilli());
+				out.writeBoolean(commit.isLocalOnly());
+				writeString(out, update.getEntityType().getName());
+				out.writeInt(((GitEntities.EntityUpdateImpl) update).getFileIndex());
+				EntityHistory.ChangeType type;
+				if (update.getOldValues() == null) {
+					type = EntityHistory.ChangeType.ADDED;
+				} else if (update.getNewValues() == null) {
+					type = EntityHistory.ChangeType.DELETED;
+				} else {
+					type = EntityHistory.ChangeType.MODIFIED;
+				}
+				out.writeByte(type.ordinal());
+				writeValues(out, update.getEntityType().getFieldOrder(), update.getOldValues());
+				writeValues(out, update.getEntityType().getFieldOrder(), update.getNewValues());
+				out.flush();
+				byte[] record = bytes.toByteArray();
+				int payload = record.length - 4;
+				record[0] = (byte) (payload >>> 24);
+				record[1] = (byte) (payload >>> 16);
+				record[2] = (byte) (payload >>> 8);
+				record[3] = (byte) payload;
+				crc.reset();
+				crc.update(record, 4, payload);
+				raf.write(record);
+				raf.writeInt((int) crc.getValue());
+			}
+			raf.getFD().sync();
+		}
+	}
+
+	/**
+	 * Reads the records of a segment
+	 *
+	 * @param segment The segment file
+	 * @param baseOffset The offset of the first record in the segment
+	 * @param endOffset The offset at which to stop reading
+	 * @param onEntry Accepts each valid record, or null to just count them
+	 * @param validLength If not null, the length of the valid portion of the segment is stored in its first element
+	 * @return The number of valid records read
+	 * @throws IOException If the segment could not be read
+	 */
+	private static long scan(File segment, long baseOffset, long endOffset, Consumer<? super Entry> onEntry, long[] validLength)
+		throws IOException {
+		long count = 0;
+		long position = 0;
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 64 * 1024))) {
+			while (baseOffset + count < endOffset) {
+				byte[] payload;
+				int storedCrc;
+				try {
+					int length = in.readInt();
+					if (length < 0 || length > segment.length()) {
+						break;
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+					storedCrc = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				crc.reset();
+				crc.update(payload, 0, payload.length);
+				if ((int) crc.getValue() != storedCrc) {
+					break;
+				}
+				if (onEntry != null) {
+					onEntry.accept(parse(baseOffset + count, payload));
+				}
+				count++;
+				position += 4 + payload.length + 4;
+			}
+		}
+		if (validLength != null) {
+			validLength[0] = position;
+		}
+		return count;
+	}
+
+	private static Entry parse(long offset, byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte[] commitId = new byte[Constants.OBJECT_ID_LENGTH];
+		in.readFully(commitId);
+		Instant time = Instant.ofEpochMilli(in.readLong());
+		boolean local = in.readBoolean();
+		String entityType = readString(in);
+		int fileIndex = in.readInt();
+		EntityHistory.ChangeType type = EntityHistory.ChangeType.values()[in.readByte()];
+		Map<String, String> oldValues = readValues(in);
+		Map<String, String> newValues = readValues(in);
+		return new Entry(offset, ObjectId.fromRaw(commitId), time, local, entityType, fileIndex, type, oldValues, newValues);
+	}
+
+	private static void writeValues(DataOutputStream out, List<String> fields, QuickMap<String, Object> values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(fields.size());
+		for (String field : fields) {
+			writeString(out, field);
+			Object value = values.get(field);
+			out.writeBoolean(value != null);
+			if (value != null) {
+				writeString(out, String.valueOf(value));
+			}
+		}
+	}
+
+	private static Map<String, String> readValues(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			return null;
+		}
+		Map<String, String> values = new LinkedHashMap<>(count * 2);
+		for (int i = 0; i < count; i++) {
+			String field = readString(in);
+			values.put(field, in.readBoolean() ? readString(in) : null);
+		}
+		return Collections.unmodifiableMap(values);
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Closes this journal when its entity set is closed. No files are held open between operations, so this only prevents further
+	 * appends.
+	 */
+	synchronized void close() {
+		isClosed = true;
+	}
+
+	@Override
+	public String toString() {
+		return "Journal " + getStartOffset() + ".." + getEndOffset();
+	}
+}
@@ -0,0 +1,336 @@
+package org.versionedentity;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.qommons.io.FileUtils;
+
+/**
+ * <p>
+ * An index of the change history of each entity in a {@link GitEntities} entity set, so that the history of an entity can be looked up
+ * without diffing the entire commit log.
+ * </p>
+ * <p>
+ * The history may be held on the heap or {@link #isOffHeap() off-heap}. Off-heap, the history of each entity type is kept in a
+ * {@link MappedHistoryIndex memory-mapped index file} persisted next to the type's history file, and only the changes recorded since the
+ * index was last rebuilt are held on the heap.
+ * </p>
+ */
+public class EntityHistory {
+	/** The types of changes to an entity */
+	public enum ChangeType {
+		/** The entity was created */
+		ADDED,
+		/** The entity's values were modified */
+		MODIFIED,
+		/** The entity was deleted */
+		DELETED
+	}
+
+	/** Represents a single change to an entity */
+	public static class HistoryEntry {
+		private final ObjectId theCommitId;
+		private final Instant theCommitTime;
+		private final ChangeType theChangeType;
+
+		HistoryEntry(ObjectId commitId, Instant commitTime, ChangeType changeType) {
+			theCommitId = commitId;
+			theCommitTime = commitTime;
+			theChangeType = changeType;
+		}
+
+		/** @return The ID of the commit in which the change was made */
+		public ObjectId getCommitId() {
+			return theCommitId;
+		}
+
+		/** @return The time of the commit in which the change was made */
+		public Instant getCommitTime() {
+			return theCommitTime;
+		}
+
+		/** @return The type of the change */
+		public ChangeType getChangeType() {
+			return theChangeType;
+		}
+
+		@Override
+		public String toString() {
+			return theChangeType + "@" + theCommitId.name();
+		}
+	}
+
+	private static final String HEAD_FILE = "head";
+	private static final String OFF_HEAP_FILE = "offheap";
+	private static final String HISTORY_EXTENSION = ".hist";
+	private static final String INDEX_EXTENSION = ".hidx";
+	/** The number of changes to an entity type held on the heap before its off-heap index is rebuilt */
+	static final int REBUILD_THRESHOLD = 1 << 16;
+
+	private final File theDirectory;
+	private final boolean isOffHeap;
+	/** Entity type to (ID key to history). Off-heap, this only contains changes not yet in the type's index. */
+	private final Map<String, Map<String, List<HistoryEntry>>> theHistory;
+	/** Entity type to number of changes in {@link #theHistory} */
+	private final Map<String, Integer> theHeapCounts;
+	/** Entity type to off-heap index */
+	private final Map<String, MappedHistoryIndex> theIndexes;
+	/** Entity type to lines to append to the type's history file */
+	private final Map<String, StringBuilder> thePending;
+
+	EntityHistory(File directory, boolean offHeap) {
+		theDirectory = directory;
+		isOffHeap = offHeap;
+		theHistory = new HashMap<>();
+		theHeapCounts = new HashMap<>();
+		theIndexes = new HashMap<>();
+		thePending = new HashMap<>();
+	}
+
+	/**
+	 * @param directory The history directory
+	 * @return Whether the history in the directory was last stored off-heap
+	 */
+	static boolean hasOffHeapIndex(File directory) {
+		return new File(directory, OFF_HEAP_FILE).exists();
+	}
+
+	/** @return Whether this history is stored in memory-mapped index files instead of on the heap */
+	public boolean isOffHeap() {
+		return isOffHeap;
+	}
+
+	/**
+	 * @param entityType The name of the entity type
+	 * @param idKey The ID key of the entity
+	 * @return The changes to the entity, oldest first
+	 */
+	public synchronized List<HistoryEntry> getHistory(String entityType, String idKey) {
+		Map<String, List<HistoryEntry>> entityHistory = theHistory.get(entityType);
+		List<HistoryEntry> history = entityHistory == null ? null : entityHistory.get(idKey);
+		MappedHistoryIndex index = theIndexes.get(entityType);
+		if (index != null) {
+			List<HistoryEntry> indexed = index.get(idKey);
+			if (history != null && !indexed.isEmpty()) {
+				indexed.addAll(history);
+			}
+			if (!indexed.isEmpty()) {
+				history = indexed;
+			}
+		}
+		return history == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(history));
+	}
+
+	synchronized void record(String entityType, String idKey, ObjectId commitId, Instant commitTime, ChangeType changeType) {
+		addToHeap(entityType, idKey, new HistoryEntry(commitId, commitTime, changeType));
+		thePending.computeIfAbsent(entityType, __ -> new StringBuilder())//
+			.append(changeType.ordinal()).append('\t')//
+			.append(commitId.name()).append('\t')//
+			.append(commitTime.toEpochMilli()).append('\t')//
+			.append(SecondaryIndex.escape(idKey)).append('\n');
+	}
+
+	/**
+	 * Appends all recorded changes to the history files and stamps the history with the commit it now reflects
+	 *
+	 * @param head The commit that the history is now up-to-date with
+	 * @throws IOException If the history could not be written
+	 */
+	synchronized void flush(String head) throws IOException {
+		theDirectory.mkdirs();
+		for (Map.Entry<String, StringBuilder> pending : thePending.entrySet()) {
+			try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(new File(theDirectory, pending.getKey() + HISTORY_EXTENSION), true), StandardCharsets.UTF_8))) {
+				writer.append(pending.getValue());
+			}
+		}
+		thePending.clear();
+		if (isOffHeap) {
+			for (String entityType : new ArrayList<>(theHeapCounts.keySet())) {
+				if (theHeapCounts.get(entityType) >= REBUILD_THRESHOLD) {
+					rebuildIndex(entityType, new File(theDirectory, entityType + HISTORY_EXTENSION).length());
+				}
+			}
+		}
+		markStorage();
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(theDirectory, HEAD_FILE)), StandardCharsets.UTF_8)) {
+			writer.write(head);
+		}
+	}
+
+	/**
+	 * Loads the history from its files
+	 *
+	 * @return The commit that the history reflects, or null if there is no persisted history
+	 * @throws IOException If the history files could not be read
+	 */
+	synchronized String load() throws IOException {
+		theHistory.clear();
+		theHeapCounts.clear();
+		for (MappedHistoryIndex index : theIndexes.values()) {
+			index.close();
+		}
+		theIndexes.clear();
+		thePending.clear();
+		File headFile = new File(theDirectory, HEAD_FILE);
+		if (!headFile.exists()) {
+			return null;
+		}
+		String head;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(headFile), StandardCharsets.UTF_8))) {
+			head = reader.readLine();
+		}
+		File[] files = theDirectory.listFiles();
+		if (files == null) {
+			return null;
+		}
+		for (File file : files) {
+			if (!file.getName().endsWith(HISTORY_EXTENSION)) {
+				continue;
+			}
+			String entityType = file.getName().substring(0, file.getName().length() - HISTORY_EXTENSION.length());
+			long position = 0;
+			if (isOffHeap) {
+				long generation = MappedIndexFile.getLatestGeneration(theDirectory, entityType, INDEX_EXTENSION);
+				MappedHistoryIndex index = generation < 0 ? null
+					: MappedHistoryIndex.open(MappedIndexFile.getGenerationFile(theDirectory, entityType, generation, INDEX_EXTENSION));
+				MappedIndexFile.deleteOldGenerations(theDirectory, entityType, INDEX_EXTENSION, index == null ? -1 : generation);
+				// Just map the index and read any changes written after it was built
+				if (index != null && index.getCoveredLength() <= file.length()) {
+					theIndexes.put(entityType, index);
+					position = index.getCoveredLength();
+				} else if (index != null) {
+					index.close();
+				}
+			}
+			try (InputStream in = new FileInputStream(file)) {
+				for (long skipped = 0; skipped < position;) {
+					long n = in.skip(position - skipped);
+					if (n <= 0) {
+						throw new IOException("Could not skip to " + position + " in " + file.getPath());
+					}
+					skipped += n;
+				}
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					// Lines are only ever written with '\n', so we can keep track of our position in the file
+					position += line.getBytes(StandardCharsets.UTF_8).length + 1;
+					int tab1 = line.indexOf('\t');
+					int tab2 = line.indexOf('\t', tab1 + 1);
+					int tab3 = line.indexOf('\t', tab2 + 1);
+					if (tab1 < 0 || tab2 < 0 || tab3 < 0) {
+						throw new IOException("Bad history line in " + file.getPath() + ": " + line);
+					}
+					ChangeType type;
+					ObjectId commit;
+					Instant time;
+					try {
+						type = ChangeType.values()[Integer.parseInt(line.substring(0, tab1))];
+						commit = ObjectId.fromString(line.substring(tab1 + 1, tab2));
+						time = Instant.ofEpochMilli(Long.parseLong(line.substring(tab2 + 1, tab3)));
+					} catch (RuntimeException e) {
+						throw new IOException("Bad history line in " + file.getPath() + ": " + line, e);
+					}
+					addToHeap(entityType, SecondaryIndex.unescape(line.substring(tab3 + 1)), new HistoryEntry(commit, time, type));
+					if (isOffHeap && theHeapCounts.get(entityType) >= REBUILD_THRESHOLD) {
+						rebuildIndex(entityType, position);
+					}
+				}
+			}
+			if (isOffHeap && theHeapCounts.containsKey(entityType)
+				&& (!theIndexes.containsKey(entityType) || theHeapCounts.get(entityType) >= REBUILD_THRESHOLD / 4)) {
+				rebuildIndex(entityType, position);
+			}
+		}
+		markStorage();
+		return head;
+	}
+
+	/**
+	 * Records whether this history is stored off-heap, so that it is stored the same way the next time it is loaded
+	 *
+	 * @throws IOException If the marker file could not be written or deleted
+	 */
+	private void markStorage() throws IOException {
+		File offHeapFile = new File(theDirectory, OFF_HEAP_FILE);
+		if (isOffHeap) {
+			offHeapFile.createNewFile();
+		} else if (offHeapFile.exists() && !offHeapFile.delete()) {
+			throw new IOException("Could not delete " + offHeapFile.getPath());
+		}
+	}
+
+	private void addToHeap(String entityType, String idKey, HistoryEntry entry) {
+		theHistory.computeIfAbsent(entityType, __ -> new HashMap<>())//
+			.computeIfAbsent(idKey, __ -> new ArrayList<>(2))//
+			.add(entry);
+		theHeapCounts.merge(entityType, 1, Integer::sum);
+	}
+
+	/**
+	 * Merges the changes held on the heap for an entity type into a new off-heap index. The new index is written to a new generation of
+	 * the index file, since the current one is still mapped.
+	 *
+	 * @param entityType The entity type to rebuild the index for
+	 * @param coveredLength The length of the entity type's history file that the changes on the heap extend to
+	 * @throws IOException If the index could not be written
+	 */
+	private void rebuildIndex(String entityType, long coveredLength) throws IOException {
+		Map<String, List<HistoryEntry>> onHeap = theHistory.remove(entityType);
+		theHeapCounts.remove(entityType);
+		long generation = MappedIndexFile.getLatestGeneration(theDirectory, entityType, INDEX_EXTENSION) + 1;
+		MappedHistoryIndex old = theIndexes.get(entityType);
+		MappedHistoryIndex index = MappedHistoryIndex.rebuild(
+			MappedIndexFile.getGenerationFile(theDirectory, entityType, generation, INDEX_EXTENSION), old,
+			onHeap == null ? Collections.emptyMap() : onHeap, coveredLength);
+		theIndexes.put(entityType, index);
+		if (old != null) {
+			old.close();
+		}
+		MappedIndexFile.deleteOldGenerations(theDirectory, entityType, INDEX_EXTENSION, generation);
+	}
+
+	/** Releases the mappings of this history's off-heap indexes. This history may not be used afterward. */
+	synchronized void close() {
+		for (MappedHistoryIndex index : theIndexes.values()) {
+			index.close();
+		}
+		theIndexes.clear();
+		theHistory.clear();
+		theHeapCounts.clear();
+	}
+
+	/**
+	 * Deletes all history
+	 *
+	 * @throws IOException If the history files could not be deleted
+	 */
+	synchronized void clear() throws IOException {
+		theHistory.clear();
+		theHeapCounts.clear();
+		for (MappedHistoryIndex index : theIndexes.values()) {
+			index.close();
+		}
+		theIndexes.clear();
+		thePending.clear();
+		if (theDirectory.exists()) {
+			FileUtils.delete(theDirectory, null);
+		}
+	}
+}
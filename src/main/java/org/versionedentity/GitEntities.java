@@ -1,6 +1,7 @@
 package org.versionedentity;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -11,39 +12,102 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.eclipse.jgit.api.AddCommand;
+import org.eclipse.jgit.api.CherryPickResult;
+import org.eclipse.jgit.api.CommitCommand;
 import org.eclipse.jgit.api.CreateBranchCommand.SetupUpstreamMode;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.LogCommand;
 import org.eclipse.jgit.api.MergeResult;
+import org.eclipse.jgit.api.PushCommand;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
+import org.eclipse.jgit.api.RmCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffEntry.ChangeType;
 import org.eclipse.jgit.diff.DiffFormatter;
 import org.eclipse.jgit.diff.RawTextComparator;
 import org.eclipse.jgit.lib.BranchTrackingStatus;
+import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.merge.MergeStrategy;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefLeaseSpec;
 import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
 import org.eclipse.jgit.transport.TrackingRefUpdate;
+import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.eclipse.jgit.util.io.DisabledOutputStream;
+import org.observe.ObservableValue;
+import org.observe.SettableValue;
 import org.observe.util.VersionedEntities;
+import org.qommons.Transaction;
 import org.qommons.collect.CircularArrayList;
 import org.qommons.collect.ListenerList;
 import org.qommons.collect.QuickSet.QuickMap;
@@ -52,6 +116,20 @@ import org.qommons.io.TextParseException;
 
 /** {@link VersionedEntities} implementation backed by JGit */
 public class GitEntities extends VersionedEntities {
+	/**
+	 * The maximum number of shard blobs to cache ID ranges for, for {@link #getAsOf(String, String, QuickMap) historical} lookups, and
+	 * hashes for, for {@link #summarizeAsOf(String) historical summaries}
+	 */
+	public static final int MAX_CACHED_SHARD_RANGES = 100_000;
+	/**
+	 * The number of rows beyond which a shard rewritten by a {@link #bulkImport(String, Iterator, int, String) bulk import} is split, with
+	 * the rest of its rows going to a new shard
+	 */
+	public static final int MAX_REWRITTEN_SHARD_ROWS = 10_000;
+	private static final ShardRange EMPTY_SHARD = new ShardRange(null, null);
+	private static final String HEAD_STAMP_FILE = ".head";
+	private static final String SUBSCRIPTION_FILE = ".subscription";
+
 	static class ChangeListenerHolder {
 		final ChangeListener listener;
 		final boolean remoteOnly;
@@ -63,12 +141,63 @@ public class GitEntities extends VersionedEntities {
 	}
 
 	private final Git theGit;
+	private final GitEntitiesHub theHub;
+	private final Object theGitLock;
 	private final CredentialsProvider theCredentials;
 	private final File theRepoRoot;
+	private final File theProjectDir;
+	private final File theIndexDirectory;
+	private final String theProjectPrefix;
+	private final Map<ObjectId, ShardRange> theShardRanges;
 	private ListenerList<ChangeListenerHolder> theListeners;
-	private int theLocalListeners;
-	private boolean hasModifications;
-	private boolean isFreshBranch;
+	private final AtomicInteger theLocalListeners;
+	private volatile boolean hasModifications;
+	private volatile boolean isFreshBranch;
+	private final ReentrantReadWriteLock theLock;
+	private final ReentrantLock theSyncLock;
+	private boolean isStagingDeferred;
+	private final Set<String> theStagedAdds;
+	private final Set<String> theStagedRemovals;
+	private final Map<String, Map<String, SecondaryIndex>> theSecondaryIndexes;
+	private Runnable theSecondaryIndexListener;
+	private volatile EntityHistory theHistory;
+	private volatile OffHeapIdIndex theIdIndex;
+	private volatile MerkleSummary theSummary;
+	private volatile ChangeJournal theJournal;
+	private final Map<ObjectId, MerkleSummary.ShardSum> theShardSums;
+	/** The column mappings of shards with older schemas being read by the superclass, by the parser reading each shard */
+	private final Map<CsvParser, ColumnMapping> theParserMappings;
+	private volatile Set<String> theSubscription;
+	private volatile boolean isLazySchema;
+	private int theMaxPushRetries;
+	private long theRetryBackoff;
+	private final AtomicLong thePushRetries;
+	private volatile List<String> thePrimaryRemotes;
+	private volatile String theActivePrimary;
+	private volatile Map<String, MirrorState> theMirrors;
+	private volatile ExecutorService theMirrorExecutor;
+	private long theGroupWindow;
+	private int theGroupMaxCommits;
+	private final List<CompletableFuture<Void>> thePendingPushes;
+	private ScheduledFuture<?> theScheduledPush;
+	private volatile ScheduledExecutorService theBackground;
+	private volatile boolean isClosed;
+	private final SettableValue<SyncState> theSyncState;
+	private long theMinSyncInterval;
+	private long theMaxSyncInterval;
+	private long theSyncInterval;
+	private ScheduledFuture<?> theScheduledSync;
+	/** Incremented whenever background sync is started or stopped, so that a sync from a previous run knows not to reschedule itself */
+	private int theSyncGeneration;
+	private volatile RefUpdate.Result theLastFetchResult;
+	private volatile boolean isReplayIncomplete;
+	private int theMaxLooseObjects;
+	private int theMaxPackFiles;
+	private ScheduledFuture<?> theScheduledMaintenance;
+	private final AtomicLong theMaintenanceCount;
+	private final AtomicLong theMaintenanceNanos;
+	private volatile long theLastMaintenanceNanos;
+	private volatile Instant theLastMaintenanceTime;
 
 	/**
 	 * @param git The git repository to manage entities in
@@ -78,26 +207,183 @@ public class GitEntities extends VersionedEntities {
 	 * @throws IOException If an error occurs scanning the directory for entity types
 	 */
 	public GitEntities(Git git, File indexDirectory, String projectPath, CredentialsProvider credentials) throws IOException {
+		this(git, indexDirectory, projectPath, credentials, null);
+	}
+
+	/**
+	 * @param git The git repository to manage entities in
+	 * @param indexDirectory The directory in which to put entity index files
+	 * @param projectPath The path within the repository to the entity set
+	 * @param credentials The credentials to use to communicate with the remote
+	 * @param hub The hub that synchronizes this entity set with the remote along with other projects in the same repository, or null
+	 *        if this entity set synchronizes itself
+	 * @throws IOException If an error occurs scanning the directory for entity types
+	 */
+	GitEntities(Git git, File indexDirectory, String projectPath, CredentialsProvider credentials, GitEntitiesHub hub) throws IOException {
 		super(getProjectDir(git, projectPath), indexDirectory);
 		theGit = git;
+		theHub = hub;
+		theGitLock = hub != null ? hub : new Object();
 		theCredentials = credentials;
 		theRepoRoot = theGit.getRepository().getDirectory().getParentFile();
+		theProjectDir = getProjectDir(git, projectPath);
+		theIndexDirectory = indexDirectory;
+		theProjectPrefix = getProjectPrefix(projectPath);
+		theShardRanges = Collections.synchronizedMap(new LinkedHashMap<ObjectId, ShardRange>(1024, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ObjectId, ShardRange> eldest) {
+				return size() > MAX_CACHED_SHARD_RANGES;
+			}
+		});
 		theListeners = ListenerList.build().build();
+		theShardSums = Collections.synchronizedMap(new LinkedHashMap<ObjectId, MerkleSummary.ShardSum>(1024, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ObjectId, MerkleSummary.ShardSum> eldest) {
+				return size() > MAX_CACHED_SHARD_RANGES;
+			}
+		});
+		theLocalListeners = new AtomicInteger();
+		theLock = new ReentrantReadWriteLock();
+		theSyncLock = new ReentrantLock();
+		thePushRetries = new AtomicLong();
+		thePrimaryRemotes = Collections.emptyList();
+		theMirrors = Collections.emptyMap();
+		theMaintenanceCount = new AtomicLong();
+		theMaintenanceNanos = new AtomicLong();
+		theStagedAdds = new LinkedHashSet<>();
+		theStagedRemovals = new LinkedHashSet<>();
+		theSecondaryIndexes = new ConcurrentHashMap<>();
+		theParserMappings = Collections.synchronizedMap(new WeakHashMap<>());
+		theSubscription = readSubscription();
 		isFreshBranch = getEntityTypes().isEmpty();
+		if (readHeadStamp() == null) {
+			stampHead();
+		}
+		if (OffHeapIdIndex.exists(new File(theIndexDirectory, "ids"))) {
+			withOffHeapIdIndex();
+		}
+		theMaxPushRetries = 5;
+		theRetryBackoff = 100;
+		theGroupWindow = 200;
+		thePendingPushes = new ArrayList<>();
+		theSyncState = SettableValue.<SyncState> build().withValue(SyncState.STOPPED).build();
 		addListener(commit -> {
-			for (EntityUpdate update : commit.getChanges()) {
+			try {
+				applyToIdIndex((CommitImpl) commit);
+			} catch (IOException e) {
+				System.err.println("Could not update the ID index for commit " + ((CommitImpl) commit).getId().name());
+				e.printStackTrace();
+			}
+		}, true);
+	}
+
+	/**
+	 * Applies the shard moves and the entity additions and removals of a commit that was not made through this entity set to the ID index.
+	 * A move that fails does not keep the other moves or the changes from being applied.
+	 *
+	 * @param commit The commit to apply
+	 * @throws IOException If a moved shard could not be read or its entity type reindexed, or the index could not be updated
+	 */
+	private void applyToIdIndex(CommitImpl commit) throws IOException {
+		IOException failure = null;
+		for (ShardMove move : commit.getShardMoves()) {
+			try {
+				moveIndex(move);
+			} catch (IOException e) {
+				failure = addFailure(failure, e);
+			}
+		}
+		for (EntityUpdate update : commit.getChanges()) {
+			if (update.getOldValues() == null) {
+				updateIndex(update.getEntityType(), update.getNewValues(), true, ((EntityUpdateImpl) update).getFileIndex());
+			} else if (update.getNewValues() == null) {
+				updateIndex(update.getEntityType(), update.getOldValues(), false, ((EntityUpdateImpl) update).getFileIndex());
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Re-points the ID index entries of a renamed shard. Only the IDs of the shard's rows are parsed. If any row cannot be re-pointed,
+	 * the rest are still attempted, and then the entity type is {@link #reindexIds(EntityFormat) reindexed} so that its entries are not
+	 * left split between the old and new shards.
+	 *
+	 * @param move The shard move to apply
+	 * @throws IOException If the entity type could not be reindexed after a failure
+	 */
+	private void moveIndex(ShardMove move) throws IOException {
+		Exception failure = null;
+		try (ObjectReader reader = theGit.getRepository().newObjectReader();
+			BlobShardCursor cursor = new BlobShardCursor(move.entityType, reader.open(move.blob), move.oldFileIndex)) {
+			while (cursor.advance()) {
+				QuickMap<String, Object> ids = cursor.ids.copy();
 				try {
-					if (update.getOldValues() == null) {
-						updateIndex(update.getEntityType(), update.getNewValues(), true, ((EntityUpdateImpl) update).getFileIndex());
-					} else if (update.getNewValues() == null) {
-						updateIndex(update.getEntityType(), update.getOldValues(), false, ((EntityUpdateImpl) update).getFileIndex());
+					updateIndex(move.entityType, ids, false, move.oldFileIndex);
+					updateIndex(move.entityType, ids, true, move.newFileIndex);
+				} catch (IOException | RuntimeException e) {
+					if (failure == null) {
+						failure = e;
+					} else {
+						failure.addSuppressed(e);
 					}
-				} catch (IOException e) {
-					System.err.println("Could not update " + update.getEntityType().getName());
-					e.printStackTrace();
 				}
 			}
-		}, true);
+		} catch (IOException e) {
+			if (failure == null) {
+				failure = e;
+			} else {
+				failure.addSuppressed(e);
+			}
+		}
+		if (failure != null) {
+			System.err.println("Could not move the ID index entries of " + move.entityType.getName() + " shard " + move.oldFileIndex
+				+ " to " + move.newFileIndex + ". Reindexing " + move.entityType.getName() + ".");
+			failure.printStackTrace();
+			try {
+				reindexIds(move.entityType);
+			} catch (IOException | RuntimeException e) {
+				e.addSuppressed(failure);
+				throw e instanceof IOException ? (IOException) e
+					: new IOException("Could not reindex the IDs of " + move.entityType.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Points the ID index entries of every entity of a type to the shard that contains it in the working tree
+	 *
+	 * @param entity The entity type to reindex
+	 * @throws IOException If a shard could not be read or the index updated
+	 */
+	private void reindexIds(EntityFormat entity) throws IOException {
+		File[] shards = new File(theProjectDir, entity.getName()).listFiles();
+		if (shards == null) {
+			return;
+		}
+		for (File shard : shards) {
+			int fileIndex = getShardIndex(entity.getName(), shard.getName());
+			if (fileIndex < 0) {
+				continue;
+			}
+			try (FileShardCursor cursor = new FileShardCursor(entity, shard, fileIndex)) {
+				while (cursor.advance()) {
+					updateIndex(entity, cursor.ids.copy(), true, fileIndex);
+				}
+			}
+		}
+	}
+
+	private static String getProjectPrefix(String projectPath) {
+		if (projectPath == null || projectPath.isEmpty()) {
+			return "";
+		}
+		String prefix = projectPath.replace('\\', '/');
+		while (prefix.startsWith("/")) {
+			prefix = prefix.substring(1);
+		}
+		return prefix.endsWith("/") ? prefix : prefix + "/";
 	}
 
 	private static File getProjectDir(Git git, String projectPath) {
@@ -111,27 +397,103 @@ public class GitEntities extends VersionedEntities {
 		if (remoteOnly) {
 			return remove;
 		}
-		theLocalListeners++;
+		theLocalListeners.getAndIncrement();
 		boolean[] removed = new boolean[1];
 		return () -> {
 			if (!removed[0]) {
 				removed[0] = true;
-				theLocalListeners--;
+				theLocalListeners.getAndDecrement();
 				remove.run();
 			}
 		};
 	}
 
+	/**
+	 * <p>
+	 * Fetches and merges changes from the remote, firing listeners for them, then pushes any local commits.
+	 * </p>
+	 * <p>
+	 * Only one synchronization may run at a time, but the network operations (fetch and push) are performed without holding this entity
+	 * set's {@link #lock(boolean, Object) lock}, so readers are only blocked while fetched changes are being merged into the working tree
+	 * and indexes.
+	 * </p>
+	 * <p>
+	 * If this entity set was created by a {@link GitEntitiesHub hub}, this {@link GitEntitiesHub#sync() synchronizes} all of the hub's
+	 * projects together, using this entity set's {@link #withRemotes(List, Collection) remotes} and
+	 * {@link #withPushRetry(int, Duration) push retry} settings.
+	 * </p>
+	 */
 	@Override
 	public VersionedEntities checkAndPush(ConflictResolver onConflict) throws IOException, IllegalStateException {
-		if (hasModifications) {
+		return checkAndPush(onConflict, NullProgressMonitor.INSTANCE);
+	}
+
+	/**
+	 * <p>
+	 * Like {@link #checkAndPush(ConflictResolver)}, but reports progress to a monitor and stops if the monitor is
+	 * {@link ProgressMonitor#isCancelled() cancelled} (see {@link SyncProgress} for a monitor that can be cancelled or given a deadline).
+	 * </p>
+	 * <p>
+	 * Cancellation is checked during the fetch, between fetched commits as their changes are applied to the indexes and fired to
+	 * listeners, and during the push. Cancellation always leaves the repository and indexes consistent: if it occurs after the fetched
+	 * changes have been merged but before all of them have been applied, the remainder is {@link #catchUp() caught up} as a single change
+	 * before the write lock is released, so that readers and writers never see indexes that lag the working tree.
+	 * </p>
+	 *
+	 * @param onConflict The conflict resolver (currently unused)
+	 * @param monitor The monitor to report progress to and check for cancellation
+	 * @return This entity set
+	 * @throws IOException If the synchronization fails
+	 * @throws IllegalStateException If this entity set has uncommitted changes
+	 * @throws CancellationException If the monitor was cancelled before the synchronization finished
+	 */
+	public VersionedEntities checkAndPush(ConflictResolver onConflict, ProgressMonitor monitor)
+		throws IOException, IllegalStateException, CancellationException {
+		if (theHub != null) {
+			theHub.sync(this, monitor);
+			return this;
+		}
+		theSyncLock.lock();
+		try {
+			syncWithRemote(monitor);
+		} finally {
+			theSyncLock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * Performs a fetch, merge, and push. If this entity set belongs to a {@link GitEntitiesHub hub}, the caller must hold the hub's sync
+	 * lock.
+	 *
+	 * @throws IOException If the synchronization fails
+	 */
+	void syncWithRemote() throws IOException {
+		syncWithRemote(NullProgressMonitor.INSTANCE);
+	}
+
+	/**
+	 * Performs a fetch, merge, and push. If this entity set belongs to a {@link GitEntitiesHub hub}, the caller must hold the hub's sync
+	 * lock.
+	 *
+	 * @param monitor The monitor to report progress to and check for cancellation
+	 * @throws IOException If the synchronization fails
+	 * @throws CancellationException If the monitor was cancelled
+	 */
+	void syncWithRemote(ProgressMonitor monitor) throws IOException, CancellationException {
+		if (isReplayIncomplete) {
+			// The last synchronization was cancelled before all the merged changes were applied, and they could not be caught up then
+			catchUp();
+			isReplayIncomplete = false;
+		}
+		if (isModified()) {
 			throw new IllegalStateException("Checking and pushing with uncommitted changes");
 		}
+		checkCancelled(monitor);
 		String branch = theGit.getRepository().getFullBranch();
 		if (branch == null) {
 			throw new IllegalStateException("Not checked out to a branch");
 		}
-		String remoteName = theGit.getRepository().getRemoteNames().iterator().next();
 		String shortBranch = theGit.getRepository().getBranch();
 		BranchTrackingStatus status = BranchTrackingStatus.of(theGit.getRepository(), branch);
 		if (status == null) {
@@ -148,510 +510,3727 @@ public class GitEntities extends VersionedEntities {
 				}
 			}
 		}
-		if (status != null) {
-			FetchResult fetch;
+		// Fetch from the first primary remote that we can reach
+		String remoteName = null;
+		FetchResult fetch = null;
+		IOException fetchFailure = null;
+		for (String primary : getPrimaryRemotes()) {
 			try {
-				fetch = theGit.fetch().setCredentialsProvider(theCredentials).call();
-			} catch (GitAPIException e) {
-				throw new IOException("Unable to fetch", e);
-			}
-			Ref previousHead = theGit.getRepository().getRefDatabase().findRef(Constants.HEAD);
-			TrackingRefUpdate update = fetch.getTrackingRefUpdate(status.getRemoteTrackingBranch());
-			if (update != null) {
-				switch (update.getResult()) {
-				case NOT_ATTEMPTED:
-					return this; // Ok, canceled somehow
-				case IO_FAILURE:
-				case LOCK_FAILURE:
-				case REJECTED:
-				case REJECTED_CURRENT_BRANCH:
-				case REJECTED_MISSING_OBJECT:
-				case REJECTED_OTHER_REASON:
-					throw new IOException("Fetch failed: " + update.getResult());
-				case RENAMED:
-					throw new IOException("Remote branch renamed");
-				case FAST_FORWARD:
-				case FORCED:
-					// Try to merge into local branch
-					MergeResult mergeResult;
-					try {
-						mergeResult = theGit.merge().setStrategy(MergeStrategy.RESOLVE).include(update.getNewObjectId()).call();
-					} catch (GitAPIException e) {
-						throw new IOException("Merge failed", e);
-					}
-					switch (mergeResult.getMergeStatus()) {
-					case ABORTED:
-						return this;
-					case FAILED:
-					case NOT_SUPPORTED:
-						throw new IOException("Merge failed: " + mergeResult.getMergeStatus());
-					case CHECKOUT_CONFLICT:
-					case CONFLICTING:
-						// TODO Resolve merge conflicts
-						throw new IllegalStateException("Conflict resolution not yet supported");
-						//$FALL-THROUGH$ Still need to merge and fire listeners
-					case MERGED:
-					case MERGED_NOT_COMMITTED:
-					case MERGED_SQUASHED:
-					case MERGED_SQUASHED_NOT_COMMITTED:
-						try {
-							theGit.commit().setMessage("Auto-merge from remote: " + mergeResult.getMergeStatus()).call();
-						} catch (GitAPIException e) {
-							throw new IOException("Could not commit post=merge", e);
-						}
-						//$FALL-THROUGH$ Still need to fire listeners
-					case FAST_FORWARD:
-					case FAST_FORWARD_SQUASHED:
-						if (!theListeners.isEmpty()) { // Determine what changed and fire listeners
-							RevCommit oldHead, newHead;
-							try {
-								LogCommand log = theGit.log()//
-									// .add(previousHead.getObjectId())
-									.add(theGit.getRepository().getRefDatabase().findRef(Constants.HEAD).getObjectId());
-								// for (ObjectId merged : mergeResult.getMergedCommits()) {
-								// log.add(merged);
-								// }
-								Iterator<RevCommit> logs = log.call().iterator();
-								// Logs are sorted most recent first
-								newHead = logs.next();
-								oldHead = null;
-								while (logs.hasNext()) {
-									oldHead = logs.next();
-									if (oldHead.equals(previousHead.getObjectId())) {
-										break;
-									}
-								}
-							} catch (GitAPIException e) {
-								throw new IOException("Could not query change commits", e);
-							}
-							// Find a direct path between previousHead and newHead
-							List<RevCommit> path = findPath(oldHead, newHead);
-							RevCommit previous = oldHead;
-							CanonicalTreeParser parser1 = new CanonicalTreeParser();
-							CanonicalTreeParser parser2 = new CanonicalTreeParser();
-							try (ObjectReader reader = theGit.getRepository().newObjectReader()) {
-								parser1.reset(reader, theGit.getRepository().resolve(previous.name() + "^{tree}"));
-								for (RevCommit merged : path) {
-									parser2.reset(reader, theGit.getRepository().resolve(merged.name() + "^{tree}"));
-									CommitImpl commit = parseCommit(merged, parser1, parser2, false);
-									previous = merged;
-									CanonicalTreeParser tempTree = parser1;
-									parser1 = parser2;
-									parser2 = tempTree;
-									fireListeners(commit);
-								}
-							}
-						}
-						break;
-					case ALREADY_UP_TO_DATE:
-						break;
-					}
-					break;
-				case NEW:
-					throw new IOException("Don't know how to handle " + update.getResult());
-				case NO_CHANGE:
-					break;
+				fetch = fetch(primary, monitor);
+				remoteName = primary;
+				break;
+			} catch (IOException e) {
+				if (fetchFailure == null) {
+					fetchFailure = e;
+				} else {
+					fetchFailure.addSuppressed(e);
 				}
 			}
+		}
+		if (remoteName == null) {
+			throw fetchFailure != null ? fetchFailure : new IOException("No remotes configured");
+		}
+		theActivePrimary = remoteName;
+		String remoteTrackingBranch = Constants.R_REMOTES + remoteName + "/" + shortBranch;
+		if (status != null || theGit.getRepository().resolve(remoteTrackingBranch) != null) {
+			if (!merge(fetch, remoteTrackingBranch, monitor)) {
+				return;
+			}
 			// Pull successful
 		}
 
 		// Push if we have anything new.
-		Ref head = theGit.getRepository().getRefDatabase().findRef(Constants.HEAD);
-		if (status == null || status.getAheadCount() > 0) {
-			try {
-				theGit.push()//
-					.add(head)//
-					.setRemote(remoteName)//
-					.setRefSpecs(new RefSpec(shortBranch + ":" + shortBranch))//
-					.setCredentialsProvider(theCredentials).call();
-			} catch (GitAPIException e) {
-				throw new IOException("Push failed", e);
+		if (status == null || isAhead(remoteTrackingBranch)) {
+			for (int attempt = 0;; attempt++) {
+				checkCancelled(monitor);
+				RemoteRefUpdate.Status pushStatus = push(remoteName, shortBranch, null, monitor);
+				switch (pushStatus) {
+				case OK:
+				case UP_TO_DATE:
+					pushToMirrors(shortBranch);
+					return;
+				case REJECTED_NONFASTFORWARD:
+				case REJECTED_REMOTE_CHANGED:
+					// Someone else pushed between our fetch and our push. Back off, pull their changes, and try again.
+					if (attempt >= theMaxPushRetries) {
+						throw new IOException("Push rejected after " + attempt + " retries: " + pushStatus);
+					}
+					thePushRetries.getAndIncrement();
+					backOff(attempt);
+					if (!pull(remoteName, remoteTrackingBranch, monitor)) {
+						return;
+					}
+					break;
+				default:
+					throw new IOException("Push failed: " + pushStatus);
+				}
 			}
+		} else {
+			pushToMirrors(shortBranch);
 		}
-		return this;
 	}
 
-	static class CommitTree {
-		final RevCommit commit;
-		final CommitTree child;
-		final int depth;
-		CommitTree[] parents;
+	/**
+	 * Fetches from a remote and merges any new changes from the given remote tracking branch into the local branch, firing listeners for
+	 * the changes
+	 *
+	 * @param remoteName The name of the remote to fetch from
+	 * @param remoteTrackingBranch The full name of the remote tracking branch to merge from
+	 * @param monitor The monitor to report progress to and check for cancellation
+	 * @return False if the fetch or merge was canceled or aborted
+	 * @throws IOException If the fetch or merge fails
+	 */
+	private boolean pull(String remoteName, String remoteTrackingBranch, ProgressMonitor monitor) throws IOException {
+		return merge(fetch(remoteName, monitor), remoteTrackingBranch, monitor);
+	}
 
-		CommitTree(RevCommit commit, CommitTree child) {
-			this.commit = commit;
-			this.child = child;
-			depth = child == null ? 1 : child.depth + 1;
+	private FetchResult fetch(String remoteName, ProgressMonitor monitor) throws IOException, CancellationException {
+		checkCancelled(monitor);
+		try {
+			return theGit.fetch().setRemote(remoteName).setCredentialsProvider(theCredentials).setProgressMonitor(monitor).call();
+		} catch (GitAPIException e) {
+			checkCancelled(monitor);
+			throw new IOException("Unable to fetch from " + remoteName, e);
 		}
+	}
 
-		List<RevCommit> getPath() {
-			List<RevCommit> path = new ArrayList<>(depth);
-			CommitTree tree = this;
-			while (tree != null) {
-				path.add(tree.commit);
-				tree = tree.child;
-			}
-			return path;
+	private static void checkCancelled(ProgressMonitor monitor) throws CancellationException {
+		if (monitor.isCancelled()) {
+			throw new CancellationException("Synchronization cancelled");
 		}
 	}
 
-	private static List<RevCommit> findPath(RevCommit oldHead, RevCommit newHead) {
-		CircularArrayList<CommitTree> trees = CircularArrayList.build().build();
-		trees.add(new CommitTree(newHead, null));
-		while (true) {
-			CommitTree tree = trees.removeFirst();
-			for (int i = 0; i < tree.commit.getParentCount(); i++) {
-				RevCommit parent = tree.commit.getParent(i);
-				if (parent.equals(oldHead)) {
-					return tree.getPath();
-				}
-				trees.add(new CommitTree(parent, tree));
+	/**
+	 * Merges any new changes fetched into the given remote tracking branch into the local branch, firing listeners for the changes
+	 *
+	 * @param fetch The result of the fetch
+	 * @param remoteTrackingBranch The full name of the remote tracking branch to merge from
+	 * @param monitor The monitor to report progress to and check for cancellation while applying the merged commits
+	 * @return False if the merge was canceled or aborted
+	 * @throws IOException If the merge fails
+	 */
+	private boolean merge(FetchResult fetch, String remoteTrackingBranch, ProgressMonitor monitor) throws IOException {
+		TrackingRefUpdate update = fetch.getTrackingRefUpdate(remoteTrackingBranch);
+		theLastFetchResult = update == null ? RefUpdate.Result.NO_CHANGE : update.getResult();
+		if (update == null) {
+			return true;
+		}
+		try (Transaction t = theHub != null ? theHub.lockAll() : lock(true, null)) {
+			if (isModified()) {
+				throw new IllegalStateException("Merging with uncommitted changes");
 			}
+			return merge(update, monitor);
 		}
 	}
 
-	private EntityFormat getEntityForFile(String file, boolean added, File content) throws IOException {
-		if (!file.endsWith(".csv")) {
-			return null;
+	/** @return Whether this entity set (or any project of its {@link GitEntitiesHub hub}) has uncommitted modifications */
+	private boolean isModified() {
+		return theHub != null ? theHub.hasModifications() : hasModifications;
+	}
+
+	/**
+	 * @param remoteTrackingBranch The full name of the remote tracking branch
+	 * @return Whether HEAD has commits that the remote tracking branch does not
+	 * @throws IOException If the commits could not be read
+	 */
+	private boolean isAhead(String remoteTrackingBranch) throws IOException {
+		ObjectId head = theGit.getRepository().resolve(Constants.HEAD);
+		ObjectId remote = theGit.getRepository().resolve(remoteTrackingBranch);
+		if (head == null) {
+			return false;
+		} else if (remote == null) {
+			return true;
 		}
-		int lastSlash = file.lastIndexOf('/');
-		if (lastSlash < 0) {
-			return null;
+		try (RevWalk walk = new RevWalk(theGit.getRepository())) {
+			return !walk.isMergedInto(walk.parseCommit(head), walk.parseCommit(remote));
 		}
-		int penultimateSlash = file.lastIndexOf('/', lastSlash - 1);
-		String entityName = file.substring(penultimateSlash < 0 ? 0 : penultimateSlash + 1, lastSlash);
-		String fileName = file.substring(lastSlash + 1, file.length() - 4);
-		if (!fileName.startsWith(entityName) || fileName.charAt(entityName.length()) != '_') {
-			return null;
+	}
+
+	/**
+	 * Starts a push of the branch to each {@link #withRemotes(List, Collection) mirror} that is not already being pushed to. Pushes to
+	 * mirrors run concurrently in the background so that a slow mirror never holds up synchronization with the primary.
+	 *
+	 * @param shortBranch The name of the branch to push
+	 * @throws IOException If HEAD could not be resolved
+	 */
+	private void pushToMirrors(String shortBranch) throws IOException {
+		Map<String, MirrorState> mirrors = theMirrors;
+		if (mirrors.isEmpty()) {
+			return;
 		}
-		EntityFormat entity = getEntityType(entityName);
-		if (entity != null) {
-			return entity;
-		} else if (added) {
-			// Maybe a new entity type?
-			try (Reader reader = new BufferedReader(new FileReader(content))) {
-				CsvParser parser = new CsvParser(reader, ',');
-				try {
-					String[] header = parser.parseNextLine();
-					EntityFormat format = parseHeader(entityName, header, parser);
-					// Can only change the schema through the API on a fresh branch, but if it's coming down from on high,
-					// we can't enforce that.
-					boolean preFresh = isFreshBranch;
-					isFreshBranch = true;
-					format = addEntityType(entityName, format.getFields().asJavaMap(),
-						format.getFieldOrder().subList(0, format.getIdFieldCount()));
-					isFreshBranch = preFresh;
-					return format;
-				} catch (TextParseException e) {
-					System.err.println("Bad header for potentiall new entity file " + file);
-					e.printStackTrace();
+		ObjectId head = theGit.getRepository().resolve(Constants.HEAD);
+		for (MirrorState mirror : mirrors.values()) {
+			boolean start;
+			synchronized (mirror) {
+				if (head != null && !head.equals(mirror.pushed) && mirror.behindSince == null) {
+					mirror.behindSince = Instant.now();
 				}
+				start = !mirror.pushing;
+				mirror.pushing = true;
+				mirror.pending = !start;
+			}
+			if (start) {
+				getMirrorExecutor().execute(() -> pushToMirror(mirror, shortBranch));
 			}
 		}
-		return null;
 	}
 
-	private CommitImpl parseCommit(RevCommit commit, CanonicalTreeParser parentTree, CanonicalTreeParser tree, boolean localOnly)
-		throws IOException {
-		CommitterImpl committer = new CommitterImpl(commit.getAuthorIdent().getName());
-		CommitImpl commitImpl = new CommitImpl(committer, commit.getAuthorIdent().getWhen().toInstant(), commit.getFullMessage(),
-			localOnly);
-		byte[] buffer = new byte[5 * 1024];
-		class Diff {
-			final DiffEntry entry;
-			final String entityName;
-			final int fileIndex;
-
-			Diff(DiffEntry entry, String entityName, int fileIndex) {
-				this.entry = entry;
-				this.entityName = entityName;
-				this.fileIndex = fileIndex;
+	private void pushToMirror(MirrorState mirror, String shortBranch) {
+		while (true) {
+			boolean force;
+			synchronized (mirror) {
+				force = mirror.rewritten;
+				mirror.rewritten = false;
 			}
-		}
-		List<Diff> diffs = new ArrayList<>();
-		try (DiffFormatter formatter = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
-			formatter.setRepository(theGit.getRepository());
-			formatter.setDiffComparator(RawTextComparator.DEFAULT);
-			for (DiffEntry diff : formatter.scan(parentTree, tree)) {
-				String file = diff.getNewPath();
-				if (file == null) {
-					file=diff.getOldPath();
-				}
-				if (!file.endsWith(".csv")) {
-					continue;
-				}
-				int lastSlash = file.lastIndexOf('/');
-				if (lastSlash < 0) {
-					continue;
+			ObjectId head;
+			RemoteRefUpdate.Status status;
+			Exception failure = null;
+			try {
+				head = theGit.getRepository().resolve(Constants.HEAD);
+				status = push(mirror.remote, shortBranch, force);
+			} catch (IOException | RuntimeException e) {
+				head = null;
+				status = null;
+				failure = e;
+			}
+			synchronized (mirror) {
+				if (status == RemoteRefUpdate.Status.OK || status == RemoteRefUpdate.Status.UP_TO_DATE) {
+					mirror.pushed = head;
+					mirror.lastFailure = null;
+					if (!mirror.pending) {
+						mirror.behindSince = null;
+					}
+				} else {
+					mirror.lastFailure = failure != null ? failure : new IOException("Push to " + mirror.remote + " failed: " + status);
+					if (force) {
+						mirror.rewritten = true; // Still needs to be forced next time
+					}
 				}
-				int penultimateSlash = file.lastIndexOf('/', lastSlash - 1);
-				String entityName = file.substring(penultimateSlash < 0 ? 0 : penultimateSlash + 1, lastSlash);
-				String fileName = file.substring(lastSlash + 1, file.length() - 4);
-				if (!fileName.startsWith(entityName) || fileName.charAt(entityName.length()) != '_') {
-					continue;
+				if (!mirror.pending) {
+					mirror.pushing = false;
+					return;
 				}
-				int fileIndex;
-				try {
-					fileIndex = Integer.parseInt(file.substring(lastSlash + 1 + entityName.length() + 1, file.length() - 4));
-				} catch (NumberFormatException e) {
-					continue;
+				mirror.pending = false;
+			}
+		}
+	}
+
+	private ExecutorService getMirrorExecutor() {
+		if (theMirrorExecutor == null) {
+			synchronized (this) {
+				if (isClosed) {
+					throw new IllegalStateException("This entity set has been closed");
+				} else if (theMirrorExecutor == null) {
+					theMirrorExecutor = Executors.newCachedThreadPool(r -> {
+						Thread t = new Thread(r, getClass().getSimpleName() + " mirror push");
+						t.setDaemon(true);
+						return t;
+					});
 				}
-				diffs.add(new Diff(diff, entityName, fileIndex));
 			}
 		}
-		for (Diff diff : diffs) {
-			String file = diff.entry.getNewPath();
-			if (file == null) {
-				file=diff.entry.getOldPath();
+		return theMirrorExecutor;
+	}
+
+	private boolean merge(TrackingRefUpdate update, ProgressMonitor monitor) throws IOException {
+		Ref previousHead = theGit.getRepository().getRefDatabase().findRef(Constants.HEAD);
+		// Listener failures are thrown after every merged commit has been fired and the indexes stamped, so no listener misses a commit
+		IOException listenerFailure = null;
+		switch (update.getResult()) {
+		case NOT_ATTEMPTED:
+			return false; // Ok, canceled somehow
+		case IO_FAILURE:
+		case LOCK_FAILURE:
+		case REJECTED:
+		case REJECTED_CURRENT_BRANCH:
+		case REJECTED_MISSING_OBJECT:
+		case REJECTED_OTHER_REASON:
+			throw new IOException("Fetch failed: " + update.getResult());
+		case RENAMED:
+			throw new IOException("Remote branch renamed");
+		case NEW:
+			if (previousHead == null || previousHead.getObjectId() == null) {
+				throw new IOException("Don't know how to handle " + update.getResult());
 			}
-			File tempNewFile = null;
-			if (diff.entry.getChangeType() == ChangeType.ADD || diff.entry.getChangeType() == ChangeType.MODIFY) {
-				tempNewFile = File.createTempFile(diff.entityName + "_" + diff.fileIndex, ".new.csv");
-				try (TreeWalk treeWalk = new TreeWalk(theGit.getRepository())) {
-					tree.reset();
-					treeWalk.addTree(tree);
-					treeWalk.setRecursive(true);
-					treeWalk.setFilter(PathFilter.create(file));
-					if (!treeWalk.next()) {
-						throw new IllegalStateException(file + " not found");
+			//$FALL-THROUGH$ The remote branch appeared since we last looked, e.g. while we were trying to push. Merge it.
+		case FAST_FORWARD:
+		case FORCED:
+			if (update.getResult() == RefUpdate.Result.FORCED && isRewritten(previousHead.getObjectId(), update)) {
+				// The remote history was compacted, so there may be no path from our previous head to the new one
+				adoptRewrittenHistory(previousHead.getObjectId(), update);
+				break;
+			}
+			// Try to merge into local branch
+			MergeResult mergeResult;
+			try {
+				mergeResult = theGit.merge().setStrategy(MergeStrategy.RESOLVE).include(update.getNewObjectId()).call();
+			} catch (GitAPIException e) {
+				throw new IOException("Merge failed", e);
+			}
+			switch (mergeResult.getMergeStatus()) {
+			case ABORTED:
+				return false;
+			case FAILED:
+			case NOT_SUPPORTED:
+				throw new IOException("Merge failed: " + mergeResult.getMergeStatus());
+			case CHECKOUT_CONFLICT:
+			case CONFLICTING:
+				// TODO Resolve merge conflicts
+				throw new IllegalStateException("Conflict resolution not yet supported");
+				//$FALL-THROUGH$ Still need to merge and fire listeners
+			case MERGED:
+			case MERGED_NOT_COMMITTED:
+			case MERGED_SQUASHED:
+			case MERGED_SQUASHED_NOT_COMMITTED:
+				try {
+					theGit.commit().setMessage("Auto-merge from remote: " + mergeResult.getMergeStatus()).call();
+				} catch (GitAPIException e) {
+					throw new IOException("Could not commit post=merge", e);
+				}
+				//$FALL-THROUGH$ Still need to fire listeners
+			case FAST_FORWARD:
+			case FAST_FORWARD_SQUASHED:
+				if (theHub != null || !theListeners.isEmpty()) { // Determine what changed and fire listeners
+					RevCommit oldHead, newHead;
+					try {
+						LogCommand log = theGit.log()//
+							// .add(previousHead.getObjectId())
+							.add(theGit.getRepository().getRefDatabase().findRef(Constants.HEAD).getObjectId());
+						// for (ObjectId merged : mergeResult.getMergedCommits()) {
+						// log.add(merged);
+						// }
+						Iterator<RevCommit> logs = log.call().iterator();
+						// Logs are sorted most recent first
+						newHead = logs.next();
+						oldHead = null;
+						while (logs.hasNext()) {
+							oldHead = logs.next();
+							if (oldHead.equals(previousHead.getObjectId())) {
+								break;
+							}
+						}
+					} catch (GitAPIException e) {
+						throw new IOException("Could not query change commits", e);
 					}
-					ObjectId object = treeWalk.getObjectId(0);
-					ObjectLoader loader = theGit.getRepository().open(object);
-					try (OutputStream out = new FileOutputStream(tempNewFile)) {
-						loader.copyTo(out);
+					// Find a direct path between previousHead and newHead
+					List<RevCommit> path = findPath(oldHead, newHead);
+					if (theHub != null) {
+						listenerFailure = theHub.fireMerged(oldHead, path);
+						break;
+					}
+					RevCommit previous = oldHead;
+					CanonicalTreeParser parser1 = new CanonicalTreeParser();
+					CanonicalTreeParser parser2 = new CanonicalTreeParser();
+					monitor.beginTask("Applying merged commits", path.size());
+					try (ObjectReader reader = theGit.getRepository().newObjectReader()) {
+						parser1.reset(reader, theGit.getRepository().resolve(previous.name() + "^{tree}"));
+						for (RevCommit merged : path) {
+							if (monitor.isCancelled()) {
+								// Record the last commit we applied and catch up the rest as one change while we still hold the write lock.
+								// If that fails, the next synchronization will try again.
+								stampHead(previous);
+								isReplayIncomplete = true;
+								catchUp();
+								isReplayIncomplete = false;
+								CancellationException cancelled = new CancellationException("Synchronization cancelled");
+								if (listenerFailure != null) {
+									cancelled.addSuppressed(listenerFailure);
+								}
+								throw cancelled;
+							}
+							parser2.reset(reader, theGit.getRepository().resolve(merged.name() + "^{tree}"));
+							CommitImpl commit = parseCommit(merged, parser1, parser2, false);
+							previous = merged;
+							CanonicalTreeParser tempTree = parser1;
+							parser1 = parser2;
+							parser2 = tempTree;
+							try {
+								fireListeners(commit);
+							} catch (IOException e) {
+								listenerFailure = addFailure(listenerFailure, e);
+							}
+							monitor.update(1);
+						}
+					} finally {
+						monitor.endTask();
 					}
 				}
-			}
-			EntityFormat entity = getEntityForFile(file, diff.entry.getChangeType() == ChangeType.ADD, tempNewFile);
+				break;
+			case ALREADY_UP_TO_DATE:
+				break;
+			}
+			if (theHub != null) {
+				theHub.stampAll();
+			} else {
+				stampHead();
+			}
+			if (listenerFailure != null) {
+				throw listenerFailure;
+			}
+			break;
+		case NO_CHANGE:
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * @param previousHead The local head before the fetch
+	 * @param update The forced update of the remote tracking branch
+	 * @return Whether the remote history was rewritten (e.g. {@link #compactHistory(Duration) compacted}) such that neither our local head
+	 *         nor the remote's previous head is in the remote's new history
+	 * @throws IOException If the commits could not be read
+	 */
+	private boolean isRewritten(ObjectId previousHead, TrackingRefUpdate update) throws IOException {
+		if (update.getOldObjectId() == null || ObjectId.zeroId().equals(update.getOldObjectId())) {
+			return false;
+		}
+		try (RevWalk walk = new RevWalk(theGit.getRepository())) {
+			RevCommit newRemote = walk.parseCommit(update.getNewObjectId());
+			return !walk.isMergedInto(walk.parseCommit(update.getOldObjectId()), newRemote)
+				&& !walk.isMergedInto(walk.parseCommit(previousHead), newRemote);
+		}
+	}
+
+	/**
+	 * Moves the local branch onto rewritten remote history, re-applying any local commits that had not been pushed. Since there is no
+	 * commit path from our previous head to the new one, the changes are determined by diffing the two trees directly and fired to
+	 * listeners as a single remote commit.
+	 *
+	 * @param previousHead The local head before the fetch
+	 * @param update The forced update of the remote tracking branch
+	 * @throws IOException If the history could not be adopted, e.g. because a local commit conflicts with the rewritten history. The
+	 *         local branch and working tree are restored to the previous head in this case.
+	 */
+	private void adoptRewrittenHistory(ObjectId previousHead, TrackingRefUpdate update) throws IOException {
+		List<RevCommit> localCommits = new ArrayList<>();
+		try (RevWalk walk = new RevWalk(theGit.getRepository())) {
+			walk.sort(RevSort.TOPO);
+			walk.sort(RevSort.REVERSE, true);
+			walk.markStart(walk.parseCommit(previousHead));
+			walk.markUninteresting(walk.parseCommit(update.getOldObjectId()));
+			for (RevCommit commit : walk) {
+				if (commit.getParentCount() == 1) { // Merges have nothing of our own to re-apply
+					localCommits.add(commit);
+				}
+			}
+		}
+		try {
+			theGit.reset().setMode(ResetType.HARD).setRef(update.getNewObjectId().name()).call();
+			for (RevCommit commit : localCommits) {
+				CherryPickResult result = theGit.cherryPick().include(commit).call();
+				if (result.getStatus() != CherryPickResult.CherryPickStatus.OK) {
+					throw new IOException("Could not re-apply local commit " + commit.name() + " onto rewritten history: "
+						+ result.getStatus());
+				}
+			}
+		} catch (GitAPIException | IOException | RuntimeException e) {
+			// Put the local branch and the working tree back where they were, so our commits are not lost
+			try {
+				theGit.reset().setMode(ResetType.HARD).setRef(previousHead.name()).call();
+			} catch (GitAPIException | RuntimeException e2) {
+				e.addSuppressed(e2);
+			}
+			if (e instanceof IOException) {
+				throw (IOException) e;
+			}
+			throw new IOException("Could not adopt rewritten history", e);
+		}
+		IOException listenerFailure = null;
+		if (theHub != null || !theListeners.isEmpty()) {
+			try (RevWalk walk = new RevWalk(theGit.getRepository()); ObjectReader reader = theGit.getRepository().newObjectReader()) {
+				RevCommit oldHead = walk.parseCommit(previousHead);
+				RevCommit newHead = walk.parseCommit(theGit.getRepository().resolve(Constants.HEAD));
+				if (theHub != null) {
+					listenerFailure = theHub.fireMerged(oldHead, Collections.singletonList(newHead));
+				} else {
+					CanonicalTreeParser oldTree = new CanonicalTreeParser();
+					oldTree.reset(reader, oldHead.getTree());
+					CanonicalTreeParser newTree = new CanonicalTreeParser();
+					newTree.reset(reader, newHead.getTree());
+					CommitImpl commit = parseCommit(newHead, oldTree, newTree, false);
+					try {
+						fireListeners(commit);
+					} catch (IOException e) {
+						listenerFailure = e;
+					}
+				}
+			}
+		}
+		if (theHub != null) {
+			theHub.stampAll();
+		} else {
+			stampHead();
+		}
+		if (listenerFailure != null) {
+			throw listenerFailure;
+		}
+	}
+
+	/**
+	 * Pushes the local branch to a mirror
+	 *
+	 * @param remoteName The name of the remote to push to
+	 * @param shortBranch The name of the branch to push
+	 * @param force Whether to overwrite the remote branch even if the push is not a fast-forward, e.g. after the history was
+	 *        {@link #compactHistory(Duration) compacted}
+	 * @return The status of the push of the branch
+	 * @throws IOException If the push could not be performed
+	 */
+	private RemoteRefUpdate.Status push(String remoteName, String shortBranch, boolean force) throws IOException {
+		return push(remoteName, shortBranch, null, force, NullProgressMonitor.INSTANCE);
+	}
+
+	/**
+	 * Pushes the local branch to the remote
+	 *
+	 * @param remoteName The name of the remote to push to
+	 * @param shortBranch The name of the branch to push
+	 * @param expectedRemote If non-null, the push is forced, but only if the remote branch is still at this commit
+	 * @param monitor The monitor to report progress to and check for cancellation
+	 * @return The status of the push of the branch
+	 * @throws IOException If the push could not be performed
+	 * @throws CancellationException If the monitor was cancelled
+	 */
+	private RemoteRefUpdate.Status push(String remoteName, String shortBranch, ObjectId expectedRemote, ProgressMonitor monitor)
+		throws IOException, CancellationException {
+		return push(remoteName, shortBranch, expectedRemote, false, monitor);
+	}
+
+	private RemoteRefUpdate.Status push(String remoteName, String shortBranch, ObjectId expectedRemote, boolean force,
+		ProgressMonitor monitor) throws IOException, CancellationException {
+		Ref head = theGit.getRepository().getRefDatabase().findRef(Constants.HEAD);
+		Iterable<PushResult> results;
+		try {
+			PushCommand push = theGit.push()//
+				.add(head)//
+				.setRemote(remoteName)//
+				.setRefSpecs(new RefSpec(shortBranch + ":" + shortBranch))//
+				.setCredentialsProvider(theCredentials)//
+				.setProgressMonitor(monitor);
+			if (expectedRemote != null) {
+				push.setForce(true).setRefLeaseSpecs(new RefLeaseSpec(Constants.R_HEADS + shortBranch, expectedRemote.name()));
+			} else if (force) {
+				push.setForce(true);
+			}
+			results = push.call();
+		} catch (GitAPIException e) {
+			checkCancelled(monitor);
+			throw new IOException("Push failed", e);
+		}
+		RemoteRefUpdate.Status status = RemoteRefUpdate.Status.UP_TO_DATE;
+		for (PushResult result : results) {
+			for (RemoteRefUpdate update : result.getRemoteUpdates()) {
+				switch (update.getStatus()) {
+				case OK:
+					if (status == RemoteRefUpdate.Status.UP_TO_DATE) {
+						status = update.getStatus();
+					}
+					break;
+				case UP_TO_DATE:
+					break;
+				default:
+					return update.getStatus();
+				}
+			}
+		}
+		return status;
+	}
+
+	private void backOff(int attempt) throws IOException {
+		long delay = theRetryBackoff << Math.min(attempt, 16);
+		// Jitter so that clients rejected by the same push don't all come back at the same time
+		delay += ThreadLocalRandom.current().nextLong(delay + 1);
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to retry push", e);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Locks this entity set for reading or writing. Each {@link #get(String, QuickMap) read} obtains the read lock internally, and each
+	 * {@link #update(String, QuickMap, boolean) modification}, {@link #delete(String, QuickMap) deletion},
+	 * {@link #addEntityType(String, Map, List) schema change}, and commit obtains the write lock, so individual calls never see a
+	 * synchronization's merge half-applied. Readers may hold the read lock themselves to see a consistent view of the entities across
+	 * several calls. {@link #scan(String, QuickMap, QuickMap, Set) Scans} hold the read lock until their stream is closed.
+	 * </p>
+	 * <p>
+	 * A thread holding the read lock must not modify entities or commit, as the read lock cannot be upgraded.
+	 * </p>
+	 *
+	 * @param write Whether to lock for writing
+	 * @param cause The cause of the lock (currently unused)
+	 * @return The transaction to close to release the lock
+	 */
+	public Transaction lock(boolean write, Object cause) {
+		Lock lock = write ? theLock.writeLock() : theLock.readLock();
+		lock.lock();
+		return lock::unlock;
+	}
+
+	/**
+	 * @param write Whether to lock for writing
+	 * @param cause The cause of the lock (currently unused)
+	 * @return The transaction to close to release the lock, or null if the lock could not be obtained immediately
+	 * @see #lock(boolean, Object)
+	 */
+	public Transaction tryLock(boolean write, Object cause) {
+		Lock lock = write ? theLock.writeLock() : theLock.readLock();
+		if (!lock.tryLock()) {
+			return null;
+		}
+		return lock::unlock;
+	}
+
+	/**
+	 * @param maxRetries The maximum number of times to re-fetch, merge, and re-push when a push to the remote is rejected because the
+	 *        remote has changed
+	 * @param backoff The base amount of time to wait before the first retry. Subsequent retries wait exponentially longer, with jitter.
+	 * @return This entity set
+	 */
+	public GitEntities withPushRetry(int maxRetries, Duration backoff) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("Negative retries: " + maxRetries);
+		}
+		theMaxPushRetries = maxRetries;
+		theRetryBackoff = backoff.toMillis();
+		return this;
+	}
+
+	/**
+	 * <p>
+	 * Configures the remotes that this entity set synchronizes with.
+	 * </p>
+	 * <p>
+	 * Each {@link #checkAndPush(ConflictResolver) synchronization} fetches from the first of the primary remotes that can be reached,
+	 * merges, and pushes to it. Once the primary has the local branch, it is pushed to every mirror concurrently in the background. A
+	 * synchronization does not wait for the mirrors, and a push to a mirror that is still running when the next synchronization completes
+	 * is simply repeated with the newer head when it finishes. When the history is {@link #compactHistory(Duration) compacted}, the new
+	 * history is force-pushed to every mirror.
+	 * </p>
+	 *
+	 * @param primaries The names of the remotes to synchronize with, in order of preference. If empty, the repository's first remote is
+	 *        used.
+	 * @param mirrors The names of the remotes to replicate the branch to
+	 * @return This entity set
+	 * @throws IllegalArgumentException If any of the remotes is not configured in the repository, or is both a primary and a mirror
+	 */
+	public GitEntities withRemotes(List<String> primaries, Collection<String> mirrors) throws IllegalArgumentException {
+		Set<String> remotes = theGit.getRepository().getRemoteNames();
+		for (String remote : primaries) {
+			if (!remotes.contains(remote)) {
+				throw new IllegalArgumentException("No such remote: " + remote);
+			}
+		}
+		Map<String, MirrorState> mirrorStates = new LinkedHashMap<>();
+		for (String remote : mirrors) {
+			if (!remotes.contains(remote)) {
+				throw new IllegalArgumentException("No such remote: " + remote);
+			} else if (primaries.contains(remote)) {
+				throw new IllegalArgumentException("Remote " + remote + " cannot be both a primary and a mirror");
+			}
+			MirrorState state = theMirrors.get(remote);
+			mirrorStates.put(remote, state != null ? state : new MirrorState(remote));
+		}
+		thePrimaryRemotes = Collections.unmodifiableList(new ArrayList<>(primaries));
+		theMirrors = Collections.unmodifiableMap(mirrorStates);
+		return this;
+	}
+
+	/** @return The remotes to synchronize with, in order of preference */
+	public List<String> getPrimaryRemotes() {
+		List<String> primaries = thePrimaryRemotes;
+		if (primaries.isEmpty()) {
+			Set<String> remotes = theGit.getRepository().getRemoteNames();
+			return remotes.isEmpty() ? Collections.emptyList() : Collections.singletonList(remotes.iterator().next());
+		}
+		return primaries;
+	}
+
+	/** @return The primary remote that the last synchronization was performed with, or null if none has been performed */
+	public String getActivePrimary() {
+		return theActivePrimary;
+	}
+
+	/** @return The names of the remotes that this entity set replicates its branch to */
+	public Set<String> getMirrors() {
+		return theMirrors.keySet();
+	}
+
+	/**
+	 * @param mirror The name of the mirror remote
+	 * @return How long the mirror has been missing commits that the primary has, or zero if it is up to date
+	 * @throws IllegalArgumentException If the remote is not a {@link #withRemotes(List, Collection) mirror}
+	 */
+	public Duration getMirrorLag(String mirror) throws IllegalArgumentException {
+		MirrorState state = theMirrors.get(mirror);
+		if (state == null) {
+			throw new IllegalArgumentException("Not a mirror: " + mirror);
+		}
+		Instant behindSince = state.behindSince;
+		return behindSince == null ? Duration.ZERO : Duration.between(behindSince, Instant.now());
+	}
+
+	/**
+	 * @param mirror The name of the mirror remote
+	 * @return The failure of the last push to the mirror, or null if it succeeded or no push has been attempted
+	 * @throws IllegalArgumentException If the remote is not a {@link #withRemotes(List, Collection) mirror}
+	 */
+	public Exception getMirrorFailure(String mirror) throws IllegalArgumentException {
+		MirrorState state = theMirrors.get(mirror);
+		if (state == null) {
+			throw new IllegalArgumentException("Not a mirror: " + mirror);
+		}
+		return state.lastFailure;
+	}
+
+	/** @return The number of times a push to the remote has been rejected and retried by this entity set */
+	public long getPushRetries() {
+		return thePushRetries.get();
+	}
+
+	/**
+	 * Configures group-commit for {@link #commitAndPush(String)}. Commits made through that method are made locally immediately, but are
+	 * only pushed to the remote by a background task which waits for the given window (or the given number of commits) so that a single
+	 * {@link #checkAndPush(ConflictResolver) checkAndPush} can send several commits together.
+	 *
+	 * @param window The maximum amount of time to wait after a commit before pushing it
+	 * @param maxCommits The number of pending commits which will trigger a push before the window has elapsed, or &lt;=0 for no limit
+	 * @return This entity set
+	 */
+	public GitEntities withGroupCommit(Duration window, int maxCommits) {
+		theGroupWindow = window.toMillis();
+		theGroupMaxCommits = maxCommits;
+		return this;
+	}
+
+	/**
+	 * Commits any modifications locally, then schedules a background push of the commit along with any others made within the
+	 * {@link #withGroupCommit(Duration, int) group-commit window}
+	 *
+	 * @param message The commit message, or null to auto-generate one
+	 * @return A future that completes when the commit has been pushed to the remote, or completes exceptionally if the push fails
+	 * @throws IOException If the local commit fails
+	 */
+	public CompletableFuture<Void> commitAndPush(String message) throws IOException {
+		commit(message);
+		CompletableFuture<Void> pushed = new CompletableFuture<>();
+		synchronized (thePendingPushes) {
+			thePendingPushes.add(pushed);
+			if (theGroupMaxCommits > 0 && thePendingPushes.size() >= theGroupMaxCommits) {
+				if (theScheduledPush != null) {
+					theScheduledPush.cancel(false);
+				}
+				theScheduledPush = getBackground().schedule(this::groupPush, 0, TimeUnit.MILLISECONDS);
+			} else if (theScheduledPush == null) {
+				theScheduledPush = getBackground().schedule(this::groupPush, theGroupWindow, TimeUnit.MILLISECONDS);
+			}
+		}
+		return pushed;
+	}
+
+	/**
+	 * Pushes the pending group commits. The check for uncommitted changes and the synchronization happen under the sync lock and the
+	 * write lock (in that order, as for a merge), so that a modification can't slip in between them and fail the synchronization. If
+	 * someone is in the middle of making changes, the push is rescheduled instead.
+	 */
+	private void groupPush() {
+		synchronized (thePendingPushes) {
+			theScheduledPush = null;
+			if (thePendingPushes.isEmpty()) {
+				return;
+			}
+		}
+		List<CompletableFuture<Void>> pending;
+		Exception failure = null;
+		ReentrantLock syncLock = getSyncLock();
+		syncLock.lock();
+		try {
+			Transaction t = theHub != null ? theHub.lockAll() : tryLock(true, null);
+			if (t == null || isModified()) {
+				// Someone is in the middle of making changes. Can't push until they're committed.
+				if (t != null) {
+					t.close();
+				}
+				rescheduleGroupPush();
+				return;
+			}
+			try (Transaction lock = t) {
+				synchronized (thePendingPushes) {
+					pending = new ArrayList<>(thePendingPushes);
+					thePendingPushes.clear();
+				}
+				try {
+					syncWithRemote(NullProgressMonitor.INSTANCE);
+				} catch (IOException | RuntimeException e) {
+					failure = e;
+				}
+			}
+		} finally {
+			syncLock.unlock();
+		}
+		// Complete the futures outside the locks, since their dependents may do anything
+		for (CompletableFuture<Void> p : pending) {
+			if (failure == null) {
+				p.complete(null);
+			} else {
+				p.completeExceptionally(failure);
+			}
+		}
+	}
+
+	private void rescheduleGroupPush() {
+		synchronized (thePendingPushes) {
+			if (theScheduledPush == null && !thePendingPushes.isEmpty()) {
+				theScheduledPush = getBackground().schedule(this::groupPush, theGroupWindow, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/** The states of an entity set's {@link GitEntities#startSync(Duration, Duration) background synchronization} */
+	public enum SyncState {
+		/** Background synchronization is not running */
+		STOPPED,
+		/** Waiting for the next synchronization */
+		WAITING,
+		/** Synchronizing with the remote */
+		SYNCING,
+		/** The last synchronization attempt failed. Synchronization will be re-attempted. */
+		FAILED
+	}
+
+	/**
+	 * Starts synchronizing this entity set with its remote periodically in the background. The interval between synchronizations adapts
+	 * to activity: it doubles (up to the maximum) each time a fetch brings no changes or fails, and drops back to the minimum when changes
+	 * come in. A random jitter is applied to each interval so that many clients don't all hit the remote at the same time.
+	 *
+	 * @param minInterval The minimum (and initial) interval between synchronizations
+	 * @param maxInterval The maximum interval between synchronizations
+	 * @return This entity set
+	 */
+	public GitEntities startSync(Duration minInterval, Duration maxInterval) {
+		if (minInterval.isNegative() || minInterval.isZero() || maxInterval.compareTo(minInterval) < 0) {
+			throw new IllegalArgumentException("Bad sync interval: " + minInterval + "..." + maxInterval);
+		} else if (isClosed) {
+			throw new IllegalStateException("This entity set has been closed");
+		}
+		synchronized (theSyncState) {
+			stopSync();
+			theMinSyncInterval = minInterval.toMillis();
+			theMaxSyncInterval = maxInterval.toMillis();
+			theSyncInterval = theMinSyncInterval;
+			theSyncState.set(SyncState.WAITING, null);
+			scheduleSync(++theSyncGeneration);
+		}
+		return this;
+	}
+
+	/** Stops {@link #startSync(Duration, Duration) background synchronization} */
+	public void stopSync() {
+		synchronized (theSyncState) {
+			if (theScheduledSync != null) {
+				theScheduledSync.cancel(false);
+				theScheduledSync = null;
+			}
+			theSyncGeneration++;
+			theSyncState.set(SyncState.STOPPED, null);
+		}
+	}
+
+	/** @return The state of this entity set's {@link #startSync(Duration, Duration) background synchronization} */
+	public ObservableValue<SyncState> getSyncState() {
+		return theSyncState.unsettable();
+	}
+
+	/** @return The current interval between {@link #startSync(Duration, Duration) background synchronizations} */
+	public Duration getSyncInterval() {
+		return Duration.ofMillis(theSyncInterval);
+	}
+
+	/**
+	 * <p>
+	 * Starts checking the repository's object database periodically in the background, running a garbage collection (which packs loose
+	 * objects and consolidates packs) when there are too many loose objects or pack files.
+	 * </p>
+	 * <p>
+	 * Each commit writes new blobs for every shard it rewrote, so loose objects accumulate quickly and slow down object lookups when
+	 * parsing commits and fetching. Maintenance never runs while this entity set (or its {@link GitEntitiesHub hub}) is
+	 * {@link #checkAndPush(ConflictResolver) synchronizing}; a check that would overlap a synchronization is skipped.
+	 * </p>
+	 *
+	 * @param maxLooseObjects The number of loose objects that triggers a garbage collection, or &lt;=0 to ignore loose objects
+	 * @param maxPackFiles The number of pack files that triggers a garbage collection, or &lt;=0 to ignore pack files
+	 * @param checkInterval The interval between checks
+	 * @return This entity set
+	 */
+	public GitEntities withMaintenance(int maxLooseObjects, int maxPackFiles, Duration checkInterval) {
+		if (checkInterval.isNegative() || checkInterval.isZero()) {
+			throw new IllegalArgumentException("Bad maintenance interval: " + checkInterval);
+		}
+		synchronized (theMaintenanceCount) {
+			stopMaintenance();
+			theMaxLooseObjects = maxLooseObjects;
+			theMaxPackFiles = maxPackFiles;
+			theScheduledMaintenance = getBackground().scheduleWithFixedDelay(this::checkMaintenance, checkInterval.toMillis(),
+				checkInterval.toMillis(), TimeUnit.MILLISECONDS);
+		}
+		return this;
+	}
+
+	/** Stops {@link #withMaintenance(int, int, Duration) background maintenance} */
+	public void stopMaintenance() {
+		synchronized (theMaintenanceCount) {
+			if (theScheduledMaintenance != null) {
+				theScheduledMaintenance.cancel(false);
+				theScheduledMaintenance = null;
+			}
+		}
+	}
+
+	/**
+	 * Checks the repository's object database against the {@link #withMaintenance(int, int, Duration) maintenance} thresholds and runs a
+	 * garbage collection if they are exceeded
+	 *
+	 * @return Whether a garbage collection was run
+	 * @throws IOException If the object database could not be inspected or collected
+	 */
+	public boolean runMaintenance() throws IOException {
+		ReentrantLock syncLock = getSyncLock();
+		if (!syncLock.tryLock()) {
+			return false; // Synchronizing--try again next time
+		}
+		try {
+			Properties stats = theGit.gc().getStatistics();
+			long loose = getStatistic(stats, "numberOfLooseObjects");
+			long packs = getStatistic(stats, "numberOfPackFiles");
+			if ((theMaxLooseObjects <= 0 || loose < theMaxLooseObjects) && (theMaxPackFiles <= 0 || packs < theMaxPackFiles)) {
+				return false;
+			}
+			long start = System.nanoTime();
+			theGit.gc().call();
+			long time = System.nanoTime() - start;
+			theLastMaintenanceNanos = time;
+			theMaintenanceNanos.addAndGet(time);
+			theMaintenanceCount.getAndIncrement();
+			theLastMaintenanceTime = Instant.now();
+			return true;
+		} catch (GitAPIException e) {
+			throw new IOException("Repository maintenance failed", e);
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	private static long getStatistic(Properties stats, String name) {
+		Object value = stats.get(name);
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+
+	private void checkMaintenance() {
+		try {
+			runMaintenance();
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Background maintenance failed");
+			e.printStackTrace();
+		}
+	}
+
+	/** @return The number of garbage collections that {@link #withMaintenance(int, int, Duration) maintenance} has run */
+	public long getMaintenanceCount() {
+		return theMaintenanceCount.get();
+	}
+
+	/** @return The total time spent in garbage collections run by {@link #withMaintenance(int, int, Duration) maintenance} */
+	public Duration getTotalMaintenanceTime() {
+		return Duration.ofNanos(theMaintenanceNanos.get());
+	}
+
+	/** @return The duration of the last garbage collection run by {@link #withMaintenance(int, int, Duration) maintenance} */
+	public Duration getLastMaintenanceDuration() {
+		return Duration.ofNanos(theLastMaintenanceNanos);
+	}
+
+	/**
+	 * @return The time at which the last garbage collection run by {@link #withMaintenance(int, int, Duration) maintenance} finished, or
+	 *         null if none has run
+	 */
+	public Instant getLastMaintenanceTime() {
+		return theLastMaintenanceTime;
+	}
+
+	private void scheduleSync(int generation) {
+		// Jitter the interval by +/-20%
+		long delay = theSyncInterval * 4 / 5 + ThreadLocalRandom.current().nextLong(theSyncInterval * 2 / 5 + 1);
+		theScheduledSync = getBackground().schedule(() -> backgroundSync(generation), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void backgroundSync(int generation) {
+		boolean success;
+		RefUpdate.Result result = null;
+		// Check the generation under the sync lock, so a sync stopped while waiting for another to finish doesn't run
+		ReentrantLock syncLock = getSyncLock();
+		syncLock.lock();
+		try {
+			synchronized (theSyncState) {
+				if (generation != theSyncGeneration) {
+					return; // Stopped or restarted
+				}
+				theSyncState.set(SyncState.SYNCING, null);
+			}
+			if (isModified()) {
+				success = true; // Can't sync with uncommitted changes--just try again later
+			} else {
+				try {
+					theLastFetchResult = null;
+					checkAndPush(null);
+					result = theLastFetchResult;
+					success = true;
+				} catch (IOException | RuntimeException e) {
+					System.err.println("Background sync failed");
+					e.printStackTrace();
+					success = false;
+				}
+			}
+		} finally {
+			syncLock.unlock();
+		}
+		synchronized (theSyncState) {
+			if (generation != theSyncGeneration) {
+				return; // Stopped or restarted while syncing
+			}
+			if (result == null || result == RefUpdate.Result.NO_CHANGE || !success) {
+				theSyncInterval = Math.min(theMaxSyncInterval, theSyncInterval * 2);
+			} else {
+				theSyncInterval = theMinSyncInterval;
+			}
+			theSyncState.set(success ? SyncState.WAITING : SyncState.FAILED, null);
+			scheduleSync(generation);
+		}
+	}
+
+	/** @return The lock held while this entity set (or its {@link GitEntitiesHub hub}) is synchronizing */
+	ReentrantLock getSyncLock() {
+		return theHub != null ? theHub.getSyncLock() : theSyncLock;
+	}
+
+	/** @return The executor for this entity set's background tasks */
+	protected ScheduledExecutorService getBackground() {
+		if (theBackground == null) {
+			synchronized (this) {
+				if (isClosed) {
+					throw new IllegalStateException("This entity set has been closed");
+				} else if (theBackground == null) {
+					theBackground = Executors.newSingleThreadScheduledExecutor(r -> {
+						Thread t = new Thread(r, getClass().getSimpleName() + " background");
+						t.setDaemon(true);
+						return t;
+					});
+				}
+			}
+		}
+		return theBackground;
+	}
+
+	/**
+	 * Stops all of this entity set's background work ({@link #startSync(Duration, Duration) synchronization},
+	 * {@link #withGroupCommit(Duration, int) group-commit} pushes, {@link #withMaintenance(int, int, Duration) maintenance}, and
+	 * {@link #withRemotes(List, Collection) mirror} replication) and releases its threads, its {@link #withJournal(long) journal}, and the
+	 * mappings of its {@link #withHistory(boolean) off-heap history}. An {@link #withOffHeapIdIndex() off-heap ID index} is saved so that
+	 * it can be mapped again when the entity set is reopened, unless there are uncommitted modifications. Commits still waiting for a
+	 * group-commit push are not pushed, and their futures complete exceptionally.
+	 */
+	@Override
+	public void close() throws IOException {
+		stopSync();
+		stopMaintenance();
+		List<CompletableFuture<Void>> unpushed;
+		synchronized (thePendingPushes) {
+			if (theScheduledPush != null) {
+				theScheduledPush.cancel(false);
+				theScheduledPush = null;
+			}
+			unpushed = new ArrayList<>(thePendingPushes);
+			thePendingPushes.clear();
+		}
+		for (CompletableFuture<Void> push : unpushed) {
+			push.completeExceptionally(new CancellationException("Entity set closed before the commit was pushed"));
+		}
+		synchronized (this) {
+			isClosed = true;
+			// Let tasks already running finish. Scheduled ones were all cancelled above.
+			if (theBackground != null) {
+				theBackground.shutdown();
+			}
+			if (theMirrorExecutor != null) {
+				theMirrorExecutor.shutdown();
+			}
+		}
+		try (Transaction t = lock(true, null)) {
+			if (theJournal != null) {
+				theJournal.close();
+				theJournal = null;
+			}
+			if (theHistory != null) {
+				theHistory.close();
+				theHistory = null;
+			}
+			if (theIdIndex != null) {
+				if (hasModifications) {
+					theIdIndex.clear(); // Doesn't reflect the working tree. Rebuild it when reopened.
+				} else {
+					theIdIndex.save(readHeadStamp());
+				}
+				theIdIndex.close();
+				theIdIndex = null;
+			}
+		}
+		super.close();
+	}
+
+	/** Replication state of a {@link GitEntities#withRemotes(List, Collection) mirror} remote */
+	static class MirrorState {
+		final String remote;
+		/** The head last successfully pushed to the mirror */
+		ObjectId pushed;
+		/** When the mirror first fell behind the primary, or null if it is up to date */
+		volatile Instant behindSince;
+		volatile Exception lastFailure;
+		/** Whether the history has been rewritten since the last successful push, so that the next push must be forced */
+		boolean rewritten;
+		boolean pushing;
+		boolean pending;
+
+		MirrorState(String remote) {
+			this.remote = remote;
+		}
+	}
+
+	static class CommitTree {
+		final RevCommit commit;
+		final CommitTree child;
+		final int depth;
+		CommitTree[] parents;
+
+		CommitTree(RevCommit commit, CommitTree child) {
+			this.commit = commit;
+			this.child = child;
+			depth = child == null ? 1 : child.depth + 1;
+		}
+
+		List<RevCommit> getPath() {
+			List<RevCommit> path = new ArrayList<>(depth);
+			CommitTree tree = this;
+			while (tree != null) {
+				path.add(tree.commit);
+				tree = tree.child;
+			}
+			return path;
+		}
+	}
+
+	private static List<RevCommit> findPath(RevCommit oldHead, RevCommit newHead) {
+		CircularArrayList<CommitTree> trees = CircularArrayList.build().build();
+		trees.add(new CommitTree(newHead, null));
+		while (true) {
+			CommitTree tree = trees.removeFirst();
+			for (int i = 0; i < tree.commit.getParentCount(); i++) {
+				RevCommit parent = tree.commit.getParent(i);
+				if (parent.equals(oldHead)) {
+					return tree.getPath();
+				}
+				trees.add(new CommitTree(parent, tree));
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #findPath(RevCommit, RevCommit)}, but parses commits as needed and returns null if the old head is not an ancestor of
+	 * the new head
+	 *
+	 * @param walk The walk to parse commits with
+	 * @param oldHead The old commit
+	 * @param newHead The new commit
+	 * @return The commits after oldHead leading to newHead, in order, or null if oldHead is not an ancestor of newHead
+	 * @throws IOException If the commits could not be parsed
+	 */
+	private static List<RevCommit> findPath(RevWalk walk, RevCommit oldHead, RevCommit newHead) throws IOException {
+		if (oldHead.equals(newHead)) {
+			return Collections.emptyList();
+		}
+		CircularArrayList<CommitTree> trees = CircularArrayList.build().build();
+		Set<ObjectId> visited = new HashSet<>();
+		trees.add(new CommitTree(newHead, null));
+		while (!trees.isEmpty()) {
+			CommitTree tree = trees.removeFirst();
+			walk.parseHeaders(tree.commit);
+			for (int i = 0; i < tree.commit.getParentCount(); i++) {
+				RevCommit parent = tree.commit.getParent(i);
+				if (parent.equals(oldHead)) {
+					return tree.getPath();
+				} else if (visited.add(parent)) {
+					trees.add(new CommitTree(parent, tree));
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parses the entity changes in each commit between two commits without firing listeners
+	 *
+	 * @param from The commit to start after, or null to parse the first-parent history of the target from the beginning
+	 * @param to The commit to parse up to (inclusive)
+	 * @param onCommit Accepts each parsed commit, in order
+	 * @return False if <code>from</code> is not an ancestor of <code>to</code>
+	 * @throws IOException If the commits could not be parsed
+	 */
+	boolean replay(ObjectId from, ObjectId to, Consumer<CommitImpl> onCommit) throws IOException {
+		try (RevWalk walk = new RevWalk(theGit.getRepository()); ObjectReader reader = theGit.getRepository().newObjectReader()) {
+			RevCommit newHead = walk.parseCommit(to);
+			List<RevCommit> path;
+			AbstractTreeIterator parentTree;
+			if (from == null) {
+				path = new ArrayList<>();
+				for (RevCommit c = newHead; c != null; c = c.getParentCount() == 0 ? null : walk.parseCommit(c.getParent(0))) {
+					path.add(c);
+				}
+				Collections.reverse(path);
+				parentTree = new EmptyTreeIterator();
+			} else {
+				RevCommit oldHead = walk.parseCommit(from);
+				path = findPath(walk, oldHead, newHead);
+				if (path == null) {
+					return false;
+				}
+				CanonicalTreeParser parser = new CanonicalTreeParser();
+				parser.reset(reader, oldHead.getTree());
+				parentTree = parser;
+			}
+			for (RevCommit commit : path) {
+				CanonicalTreeParser tree = new CanonicalTreeParser();
+				tree.reset(reader, walk.parseCommit(commit).getTree());
+				onCommit.accept(parseCommit(commit, parentTree, tree, false));
+				parentTree = tree;
+			}
+		}
+		return true;
+	}
+
+	private EntityFormat getEntityForFile(String file, boolean added, File content) throws IOException {
+		if (!file.endsWith(".csv")) {
+			return null;
+		}
+		int lastSlash = file.lastIndexOf('/');
+		if (lastSlash < 0) {
+			return null;
+		}
+		int penultimateSlash = file.lastIndexOf('/', lastSlash - 1);
+		String entityName = file.substring(penultimateSlash < 0 ? 0 : penultimateSlash + 1, lastSlash);
+		String fileName = file.substring(lastSlash + 1, file.length() - 4);
+		if (!fileName.startsWith(entityName) || fileName.charAt(entityName.length()) != '_') {
+			return null;
+		}
+		if (!isSubscribed(entityName)) {
+			return null;
+		}
+		EntityFormat entity = getEntityType(entityName);
+		if (entity != null) {
+			return entity;
+		} else if (added) {
+			// Maybe a new entity type?
+			try (Reader reader = new BufferedReader(new FileReader(content))) {
+				CsvParser parser = new CsvParser(reader, ',');
+				try {
+					String[] header = parser.parseNextLine();
+					EntityFormat format = parseHeader(entityName, header, parser);
+					// Can only change the schema through the API on a fresh branch, but if it's coming down from on high,
+					// we can't enforce that.
+					boolean preFresh = isFreshBranch;
+					isFreshBranch = true;
+					format = addEntityType(entityName, format.getFields().asJavaMap(),
+						format.getFieldOrder().subList(0, format.getIdFieldCount()));
+					isFreshBranch = preFresh;
+					return format;
+				} catch (TextParseException e) {
+					System.err.println("Bad header for potentiall new entity file " + file);
+					e.printStackTrace();
+				}
+			}
+		}
+		return null;
+	}
+
+	private CommitImpl parseCommit(RevCommit commit, AbstractTreeIterator parentTree, AbstractTreeIterator tree, boolean localOnly)
+		throws IOException {
+		return parseDiffs(commit, scanDiffs(theGit.getRepository(), getDiffFilter(), parentTree, tree), parentTree, tree, localOnly);
+	}
+
+	/**
+	 * @param repo The repository to diff in
+	 * @param pathFilter The filter for the paths to diff, or null to diff all paths
+	 * @param parentTree The tree to diff from
+	 * @param tree The tree to diff to
+	 * @return The differences between the trees, with renames detected
+	 * @throws IOException If the trees could not be read
+	 */
+	static List<DiffEntry> scanDiffs(Repository repo, TreeFilter pathFilter, AbstractTreeIterator parentTree, AbstractTreeIterator tree)
+		throws IOException {
+		try (DiffFormatter formatter = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+			formatter.setRepository(repo);
+			formatter.setDiffComparator(RawTextComparator.DEFAULT);
+			formatter.setDetectRenames(true);
+			if (pathFilter != null) {
+				formatter.setPathFilter(pathFilter);
+			}
+			return formatter.scan(parentTree, tree);
+		}
+	}
+
+	/**
+	 * Parses the entity changes represented by a set of differences between two trees. Differences to files outside this entity set's
+	 * project path or to unsubscribed entity types are ignored.
+	 *
+	 * @param commit The commit that the differences are for
+	 * @param diffEntries The differences between the commit's parent tree and its tree
+	 * @param parentTree The tree of the commit's parent
+	 * @param tree The tree of the commit
+	 * @param localOnly Whether the commit was made locally
+	 * @return The parsed commit
+	 * @throws IOException If the changed files could not be read
+	 */
+	CommitImpl parseDiffs(RevCommit commit, List<DiffEntry> diffEntries, AbstractTreeIterator parentTree, AbstractTreeIterator tree,
+		boolean localOnly) throws IOException {
+		CommitterImpl committer = new CommitterImpl(commit.getAuthorIdent().getName());
+		CommitImpl commitImpl = new CommitImpl(commit.copy(), committer, commit.getAuthorIdent().getWhen().toInstant(),
+			commit.getFullMessage(), localOnly);
+		byte[] buffer = new byte[5 * 1024];
+		class Diff {
+			final DiffEntry entry;
+			final ChangeType type;
+			final String path;
+			final String entityName;
+			final int fileIndex;
+			final int oldFileIndex;
+
+			Diff(DiffEntry entry, ChangeType type, String path, String entityName, int fileIndex, int oldFileIndex) {
+				this.entry = entry;
+				this.type = type;
+				this.path = path;
+				this.entityName = entityName;
+				this.fileIndex = fileIndex;
+				this.oldFileIndex = oldFileIndex;
+			}
+		}
+		List<Diff> diffs = new ArrayList<>();
+		for (DiffEntry diff : diffEntries) {
+			switch (diff.getChangeType()) {
+			case ADD:
+			case COPY:
+			case MODIFY:
+				ShardPath newShard = getOwnShardPath(diff.getNewPath());
+				if (newShard != null) {
+					diffs.add(new Diff(diff, diff.getChangeType(), diff.getNewPath(), newShard.entityName, newShard.fileIndex, -1));
+				}
+				break;
+			case DELETE:
+				ShardPath oldShard = getOwnShardPath(diff.getOldPath());
+				if (oldShard != null) {
+					diffs.add(new Diff(diff, ChangeType.DELETE, diff.getOldPath(), oldShard.entityName, oldShard.fileIndex, -1));
+				}
+				break;
+			case RENAME:
+				newShard = getOwnShardPath(diff.getNewPath());
+				oldShard = getOwnShardPath(diff.getOldPath());
+				if (newShard != null && oldShard != null && newShard.entityName.equals(oldShard.entityName)) {
+					diffs.add(new Diff(diff, ChangeType.RENAME, diff.getNewPath(), newShard.entityName, newShard.fileIndex,
+						oldShard.fileIndex));
+				} else { // Not a simple shard rename--treat as an independent removal and addition
+					if (oldShard != null) {
+						diffs.add(new Diff(diff, ChangeType.DELETE, diff.getOldPath(), oldShard.entityName, oldShard.fileIndex, -1));
+					}
+					if (newShard != null) {
+						diffs.add(new Diff(diff, ChangeType.ADD, diff.getNewPath(), newShard.entityName, newShard.fileIndex, -1));
+					}
+				}
+				break;
+			}
+		}
+		for (Diff diff : diffs) {
+			String file = diff.path;
+			boolean contentChanged = true;
+			if (diff.type == ChangeType.RENAME) {
+				EntityFormat entity = getEntityType(diff.entityName);
+				if (entity == null) {
+					continue; // Don't care
+				}
+				// Shard renamed. Instead of reparsing its content, just point everything at the new file.
+				commitImpl.addShardMove(entity, diff.oldFileIndex, diff.fileIndex, diff.entry.getOldId().toObjectId());
+				contentChanged = diff.entry.getScore() < 100;
+				if (!contentChanged) {
+					continue;
+				}
+			}
+			File tempNewFile = null;
+			if (diff.type != ChangeType.DELETE) {
+				tempNewFile = File.createTempFile(diff.entityName + "_" + diff.fileIndex, ".new.csv");
+				try (TreeWalk treeWalk = new TreeWalk(theGit.getRepository())) {
+					tree.reset();
+					treeWalk.addTree(tree);
+					treeWalk.setRecursive(true);
+					treeWalk.setFilter(PathFilter.create(file));
+					if (!treeWalk.next()) {
+						throw new IllegalStateException(file + " not found");
+					}
+					ObjectId object = treeWalk.getObjectId(0);
+					ObjectLoader loader = theGit.getRepository().open(object);
+					try (OutputStream out = new FileOutputStream(tempNewFile)) {
+						loader.copyTo(out);
+					}
+				}
+			}
+			EntityFormat entity = getEntityForFile(file, diff.type == ChangeType.ADD || diff.type == ChangeType.COPY, tempNewFile);
 			if (entity == null) {
+				if (tempNewFile != null) {
+					tempNewFile.delete();
+				}
 				continue; // Don't care
 			}
-			File tempOldFile = null;
-			if (diff.entry.getChangeType() == ChangeType.DELETE || diff.entry.getChangeType() == ChangeType.MODIFY) {
-				tempOldFile = File.createTempFile(diff.entityName + "_" + diff.fileIndex, ".old.csv");
-				try (TreeWalk treeWalk = new TreeWalk(theGit.getRepository())) {
-					parentTree.reset();
-					treeWalk.addTree(parentTree);
-					treeWalk.setRecursive(true);
-					treeWalk.setFilter(PathFilter.create(file));
-					treeWalk.next();
-					ObjectId object = treeWalk.getObjectId(0);
-					ObjectLoader loader = theGit.getRepository().open(object);
-					try (OutputStream out = new FileOutputStream(tempOldFile)) {
-						loader.copyTo(out);
+			File tempOldFile = null;
+			if (diff.type == ChangeType.DELETE || diff.type == ChangeType.MODIFY || diff.type == ChangeType.RENAME) {
+				tempOldFile = File.createTempFile(diff.entityName + "_" + diff.fileIndex, ".old.csv");
+				try (TreeWalk treeWalk = new TreeWalk(theGit.getRepository())) {
+					parentTree.reset();
+					treeWalk.addTree(parentTree);
+					treeWalk.setRecursive(true);
+					treeWalk.setFilter(PathFilter.create(diff.entry.getOldPath()));
+					treeWalk.next();
+					ObjectId object = treeWalk.getObjectId(0);
+					ObjectLoader loader = theGit.getRepository().open(object);
+					try (OutputStream out = new FileOutputStream(tempOldFile)) {
+						loader.copyTo(out);
+					}
+				}
+			}
+			switch (diff.type) {
+			case ADD:
+			case COPY: // A copied shard's rows are new entities as far as this file is concerned
+				try (FileShardCursor cursor = new FileShardCursor(entity, tempNewFile, diff.fileIndex)) {
+					while (cursor.advance()) {
+						try {
+							commitImpl.addChange(entity, null, cursor.getRow().copy().unmodifiable(), diff.fileIndex);
+						} catch (TextParseException e) {}
+					}
+				}
+				break;
+			case DELETE:
+				try (FileShardCursor cursor = new FileShardCursor(entity, tempOldFile, diff.fileIndex)) {
+					while (cursor.advance()) {
+						try {
+							commitImpl.addChange(entity, cursor.getRow().copy().unmodifiable(), null, diff.fileIndex);
+						} catch (TextParseException e) {}
+					}
+				}
+				break;
+			case MODIFY:
+			case RENAME: // Renamed and modified. The shard has already been moved, so the edits are against the new file.
+				try {
+					parseEdit(entity, file, tempOldFile, tempNewFile, commitImpl, buffer, diff.fileIndex);
+				} catch (IOException e) {
+					System.err.println("Could not parse edit");
+					e.printStackTrace();
+				}
+				break;
+			}
+			if (tempNewFile != null) {
+				tempNewFile.delete();
+			}
+			if (tempOldFile != null) {
+				tempOldFile.delete();
+			}
+		}
+		return commitImpl;
+	}
+
+	/**
+	 * @return The filter for the paths that may affect this entity set's entities, or null if all paths in the repository may
+	 */
+	TreeFilter getDiffFilter() {
+		Set<String> subscription = theSubscription;
+		if (subscription != null) {
+			List<String> paths = new ArrayList<>(subscription.size());
+			for (String entityType : subscription) {
+				paths.add(theProjectPrefix + entityType);
+			}
+			return paths.isEmpty() ? TreeFilter.ALL.negate() : PathFilterGroup.createFromStrings(paths);
+		} else if (!theProjectPrefix.isEmpty()) {
+			return PathFilter.create(theProjectPrefix.substring(0, theProjectPrefix.length() - 1));
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Restricts this entity set to a subset of the entity types in the repository. Changes to other entity types are skipped when commits
+	 * are parsed, before any of their content is read from the repository, so unsubscribed types cost no parsing or indexing. New entity
+	 * types appearing in pulled commits are also ignored unless subscribed. Reads and writes of unsubscribed entity types are rejected.
+	 * </p>
+	 * <p>
+	 * The subscription is persisted in the index directory, so an entity set created later with the same index directory has the same
+	 * subscription. Since an unsubscribed type's indexes are not maintained, types cannot be added to a subscription once it is
+	 * established--only removed. Create an entity set with a fresh index directory to subscribe to more types.
+	 * </p>
+	 *
+	 * @param entityTypes The names of the entity types to subscribe to, or null to remove the subscription (only allowed if there is no
+	 *        subscription already)
+	 * @return This entity set
+	 * @throws IllegalStateException If the subscription would add entity types to an existing subscription
+	 * @throws IOException If the subscription could not be persisted
+	 */
+	public GitEntities subscribe(Collection<String> entityTypes) throws IllegalStateException, IOException {
+		try (Transaction t = lock(true, null)) {
+			Set<String> current = theSubscription;
+			if (current != null && (entityTypes == null || !current.containsAll(entityTypes))) {
+				throw new IllegalStateException("Entity types cannot be added to an established subscription");
+			}
+			Set<String> subscription = entityTypes == null ? null : Collections.unmodifiableSet(new LinkedHashSet<>(entityTypes));
+			writeSubscription(subscription);
+			theSubscription = subscription;
+		}
+		return this;
+	}
+
+	/** @return The names of the entity types this entity set is {@link #subscribe(Collection) subscribed} to, or null if all types */
+	public Set<String> getSubscription() {
+		return theSubscription;
+	}
+
+	/**
+	 * @param entityType The name of the entity type
+	 * @return Whether this entity set is {@link #subscribe(Collection) subscribed} to the given entity type
+	 */
+	public boolean isSubscribed(String entityType) {
+		Set<String> subscription = theSubscription;
+		return subscription == null || subscription.contains(entityType);
+	}
+
+	private void checkSubscribed(String entityType) throws IllegalArgumentException {
+		if (!isSubscribed(entityType)) {
+			throw new IllegalArgumentException("Not subscribed to entity type " + entityType);
+		}
+	}
+
+	/**
+	 * @param entityType The name of the entity type
+	 * @return The entity type with the given name, or null if there is no such entity type
+	 * @throws IllegalArgumentException If this entity set is not {@link #subscribe(Collection) subscribed} to the entity type
+	 */
+	private EntityFormat getSubscribedType(String entityType) throws IllegalArgumentException {
+		checkSubscribed(entityType);
+		return getEntityType(entityType);
+	}
+
+	private Set<String> readSubscription() throws IOException {
+		File file = new File(theIndexDirectory, SUBSCRIPTION_FILE);
+		if (!file.exists()) {
+			return null;
+		}
+		Set<String> subscription = new LinkedHashSet<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8))) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if (!line.isEmpty()) {
+					subscription.add(line);
+				}
+			}
+		}
+		return Collections.unmodifiableSet(subscription);
+	}
+
+	private void writeSubscription(Set<String> subscription) throws IOException {
+		File file = new File(theIndexDirectory, SUBSCRIPTION_FILE);
+		if (subscription == null) {
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Could not delete " + file.getPath());
+			}
+			return;
+		}
+		theIndexDirectory.mkdirs();
+		try (OutputStream out = new FileOutputStream(file)) {
+			for (String entityType : subscription) {
+				out.write(entityType.getBytes(UTF8));
+				out.write('\n');
+			}
+		}
+	}
+
+	static class ShardPath {
+		final String entityName;
+		final int fileIndex;
+
+		ShardPath(String entityName, int fileIndex) {
+			this.entityName = entityName;
+			this.fileIndex = fileIndex;
+		}
+	}
+
+	/**
+	 * @param file The repository-relative path of a file
+	 * @return The entity type name and file index of the shard, or null if the file is not an entity shard file
+	 */
+	static ShardPath parseShardPath(String file) {
+		if (file == null || !file.endsWith(".csv")) {
+			return null;
+		}
+		int lastSlash = file.lastIndexOf('/');
+		if (lastSlash < 0) {
+			return null;
+		}
+		int penultimateSlash = file.lastIndexOf('/', lastSlash - 1);
+		String entityName = file.substring(penultimateSlash < 0 ? 0 : penultimateSlash + 1, lastSlash);
+		int fileIndex = getShardIndex(entityName, file.substring(lastSlash + 1));
+		return fileIndex < 0 ? null : new ShardPath(entityName, fileIndex);
+	}
+
+	/**
+	 * @param file The repository-relative path of a file
+	 * @return The entity type name and file index of the shard, or null if the file is not a shard file of this entity set
+	 */
+	private ShardPath getOwnShardPath(String file) {
+		if (file == null || !file.startsWith(theProjectPrefix)) {
+			return null;
+		}
+		ShardPath shard = parseShardPath(file);
+		if (shard == null || !isSubscribed(shard.entityName)) {
+			return null;
+		}
+		return shard;
+	}
+
+	/** @return The path of this entity set's project within the repository, either empty or ending with '/' */
+	String getProjectPrefix() {
+		return theProjectPrefix;
+	}
+
+	private void parseEdit(EntityFormat entity, String file, File oldFile, File newFile, CommitImpl commit, byte[] buffer, int fileIndex)
+		throws IOException {
+		try (Reader oldReader = new BufferedReader(new InputStreamReader(new FileInputStream(oldFile), UTF8));
+			Reader newReader = new BufferedReader(new InputStreamReader(new FileInputStream(newFile), UTF8))) {
+			CsvParser oldParser = new CsvParser(oldReader, ',');
+			CsvParser newParser = new CsvParser(newReader, ',');
+			// Don't diff against headers, but read the rows of each version in terms of the current fields of the entity.
+			// Then a shard that was only rewritten to add columns with default values doesn't look like every row changed.
+			ColumnMapping oldColumns, newColumns;
+			String[] oldHeader, newHeader;
+			try {
+				oldHeader = oldParser.parseNextLine();
+				oldColumns = getColumnMapping(entity, oldHeader, oldParser);
+			} catch (TextParseException e) {
+				throw new IOException(file + " old version could not be parsed as CSV", e);
+			}
+			try {
+				newHeader = newParser.parseNextLine();
+				newColumns = getColumnMapping(entity, newHeader, newParser);
+			} catch (TextParseException e) {
+				throw new IOException(file + " new version could not be parsed as CSV", e);
+			}
+			class Entry {
+				final CsvParser parser;
+				final boolean isNew;
+				final ColumnMapping columns;
+				final String[] rawLine;
+				final String[] line = new String[entity.getFields().keySize()];
+				final QuickMap<String, Object> fields = entity.create(false);
+				boolean exists;
+				boolean hasIds;
+				boolean isFull;
+
+				Entry(CsvParser parser, boolean isNew, ColumnMapping columns) {
+					this.parser = parser;
+					this.isNew = isNew;
+					this.columns = columns;
+					rawLine = columns == null ? null : new String[columns.width];
+				}
+
+				Entry readLine() throws IOException, TextParseException {
+					exists = parser.parseNextLine(rawLine != null ? rawLine : line);
+					if (exists && columns != null) {
+						columns.map(rawLine, line);
+					}
+					hasIds = isFull = false;
+					return this;
+				}
+
+				Entry fillIds() throws IOException, TextParseException {
+					if (hasIds) {
+						return this;
+					}
+					parseIds(entity, line, fields, parser, false);
+					return this;
+				}
+
+				boolean fillNonIds() throws IOException {
+					if (isFull) {
+						return true;
+					}
+					try {
+						parseNonIds(entity, line, fields, parser);
+					} catch (TextParseException e) {
+						System.err.println("Could not parse " + (isNew ? "new" : "old") + " entity values: " + entity.getName() + " "
+							+ Arrays.toString(line));
+						e.printStackTrace();
+						return false;
+					}
+					isFull = true;
+					return true;
+				}
+			}
+			try {
+				Entry oldEntry = new Entry(oldParser, false, oldColumns).readLine();
+				Entry newEntry = new Entry(newParser, true, newColumns).readLine();
+				while (oldEntry.exists || newEntry.exists) {
+					if (Arrays.equals(oldEntry.line, newEntry.line)) {
+						oldEntry.readLine();
+						newEntry.readLine();
+					} else if (!oldEntry.exists) {
+						if (newEntry.fillIds().fillNonIds()) {
+							commit.addChange(entity, null, newEntry.fields.copy().unmodifiable(), fileIndex);
+						}
+						newEntry.readLine();
+					} else if (!newEntry.exists) {
+						if (oldEntry.fillIds().fillNonIds()) {
+							commit.addChange(entity, oldEntry.fields.copy().unmodifiable(), null, fileIndex);
+						}
+						oldEntry.readLine();
+					} else {
+						boolean sameId = true;
+						for (int i = 0; sameId && i < entity.getIdFieldCount(); i++) {
+							if (!oldEntry.line[i].equals(newEntry.line[i])) {
+								sameId = false;
+							}
+						}
+						int entityComp = 0;
+						if (!sameId) {
+							entityComp = entity.compareIds(oldEntry.fillIds().fields, newEntry.fillIds().fields);
+							sameId = entityComp == 0;
+						}
+						if (sameId) {
+							if (oldEntry.fillIds().fillNonIds() && newEntry.fillIds().fillNonIds()) {
+								commit.addChange(entity, oldEntry.fields.copy().unmodifiable(), newEntry.fields.copy().unmodifiable(),
+									fileIndex);
+							}
+							oldEntry.readLine();
+							newEntry.readLine();
+						} else {
+							if (entityComp < 0) { // Deleted old entry
+								if (oldEntry.fillIds().fillNonIds()) {
+									commit.addChange(entity, oldEntry.fields.copy().unmodifiable(), null, fileIndex);
+								}
+								oldEntry.readLine();
+							} else { // Added new entry
+								if (newEntry.fillIds().fillNonIds()) {
+									commit.addChange(entity, null, newEntry.fields.copy().unmodifiable(), fileIndex);
+								}
+								newEntry.readLine();
+							}
+						}
+					}
+				}
+			} catch (TextParseException e) {
+				throw new IOException("Could not diff old and new versions of " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Determines how the columns of a shard map to the current fields of its entity type.
+	 * </p>
+	 * <p>
+	 * Each shard's header records the schema it was written with. Under {@link #withLazySchemaEvolution(boolean) lazy schema evolution},
+	 * shards are not rewritten when fields are added, so a shard's header may lack fields of the current schema (or contain fields that
+	 * have since been removed). Rows of such shards are read by moving their values to the positions of the current fields, with the
+	 * {@link #getDefaultValue(Class) default value} of each field the shard doesn't have.
+	 * </p>
+	 *
+	 * @param entity The entity type
+	 * @param header The header of the shard
+	 * @param parser The parser the header was read from, for error reporting
+	 * @return The mapping of the shard's columns to the entity's current fields, or null if the shard's columns are exactly the entity's
+	 *         current fields
+	 * @throws TextParseException If the header could not be parsed
+	 */
+	ColumnMapping getColumnMapping(EntityFormat entity, String[] header, CsvParser parser) throws TextParseException {
+		if (header == null) {
+			return null;
+		}
+		return getColumnMapping(entity, super.parseHeader(entity.getName(), header, parser).getFieldOrder());
+	}
+
+	private static ColumnMapping getColumnMapping(EntityFormat entity, List<String> columns) {
+		List<String> fields = entity.getFieldOrder();
+		if (columns.equals(fields)) {
+			return null;
+		}
+		int[] mapping = new int[fields.size()];
+		String[] defaults = new String[fields.size()];
+		for (int f = 0; f < mapping.length; f++) {
+			mapping[f] = columns.indexOf(fields.get(f));
+			if (mapping[f] < 0) {
+				Object value = getDefaultValue(entity.getFields().get(fields.get(f)));
+				if (value != null) {
+					StringBuilder text = new StringBuilder();
+					entity.getFieldFormats().get(fields.get(f)).append(text, value);
+					defaults[f] = text.toString();
+				} else {
+					defaults[f] = "";
+				}
+			}
+		}
+		return new ColumnMapping(mapping, defaults, columns.size());
+	}
+
+	/**
+	 * @param type The type of a field
+	 * @return The value of the field for entities stored before the field was added: false for booleans, zero for numbers, and null
+	 *         otherwise
+	 */
+	static Object getDefaultValue(Class<?> type) {
+		if (type == boolean.class || type == Boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class || type == Integer.class) {
+			return 0;
+		} else if (type == long.class || type == Long.class) {
+			return 0L;
+		} else if (type == double.class || type == Double.class) {
+			return 0.0;
+		} else if (type == float.class || type == Float.class) {
+			return 0.0f;
+		} else if (type == short.class || type == Short.class) {
+			return (short) 0;
+		} else if (type == byte.class || type == Byte.class) {
+			return (byte) 0;
+		} else {
+			return null;
+		}
+	}
+
+	/** How the columns of a shard whose header differs from its entity's current schema map to the entity's current fields */
+	static class ColumnMapping {
+		/** For each of the entity's current fields, the index of the shard column containing it, or -1 if the shard has no such column */
+		final int[] columns;
+		/** For each of the entity's current fields, the text of the field's default value, used if the shard has no such column */
+		final String[] defaults;
+		/** The number of columns in the shard */
+		final int width;
+
+		ColumnMapping(int[] columns, String[] defaults, int width) {
+			this.columns = columns;
+			this.defaults = defaults;
+			this.width = width;
+		}
+
+		/**
+		 * @param rawLine A row read from the shard
+		 * @param line The array to put the row's values into, in the order of the entity's current fields
+		 */
+		void map(String[] rawLine, String[] line) {
+			for (int f = 0; f < columns.length; f++) {
+				int c = columns[f];
+				if (c < 0) {
+					line[f] = defaults[f];
+				} else {
+					line[f] = c >= rawLine.length || rawLine[c] == null ? "" : rawLine[c];
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Streams all entities of a type in ID order, merging the rows of each of the type's shard files as they are read. Only one row per
+	 * shard is held in memory at a time.
+	 * </p>
+	 * <p>
+	 * If fields are requested, only the ID fields and the requested fields of each row are parsed, and the other fields of the returned
+	 * maps are null.
+	 * </p>
+	 * <p>
+	 * The returned stream reads from the entity files as it is consumed. It holds this entity set's {@link #lock(boolean, Object) read
+	 * lock} from this call until it is closed, so the caller must close it when finished (on the same thread), and must not modify this
+	 * entity set while it is open.
+	 * </p>
+	 *
+	 * @param entityType The name of the entity type to scan
+	 * @param from The IDs of the first entity to return (inclusive), or null to start at the first entity
+	 * @param to The IDs of the entity at which to stop (exclusive), or null to scan to the end
+	 * @param fields The names of the fields needed by the caller, or null for all fields. The ID fields are always returned.
+	 * @return A stream of the entities of the given type within the given range, in ID order
+	 * @throws IOException If the shard files could not be opened
+	 * @throws IllegalArgumentException If there is no such entity type, or no such field in it
+	 */
+	public Stream<QuickMap<String, Object>> scan(String entityType, QuickMap<String, Object> from, QuickMap<String, Object> to,
+		Set<String> fields) throws IOException, IllegalArgumentException {
+		EntityFormat entity = getSubscribedType(entityType);
+		if (entity == null) {
+			throw new IllegalArgumentException("No such entity type: " + entityType);
+		}
+		boolean[] projection = null;
+		if (fields != null) {
+			List<String> fieldOrder = entity.getFieldOrder();
+			projection = new boolean[fieldOrder.size()];
+			for (int f = 0; f < entity.getIdFieldCount(); f++) {
+				projection[f] = true;
+			}
+			for (String field : fields) {
+				int f = fieldOrder.indexOf(field);
+				if (f < 0) {
+					throw new IllegalArgumentException("No such field: " + entityType + "." + field);
+				}
+				projection[f] = true;
+			}
+		}
+		Transaction lock = lock(false, null);
+		ShardScan scan = new ShardScan(entity, from, to, projection);
+		try {
+			File[] shards = new File(theProjectDir, entity.getName()).listFiles();
+			if (shards != null) {
+				for (File shard : shards) {
+					int fileIndex = getShardIndex(entity.getName(), shard.getName());
+					if (fileIndex >= 0) {
+						scan.addShard(new FileShardCursor(entity, shard, fileIndex));
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			scan.close();
+			lock.close();
+			throw e;
+		}
+		return StreamSupport.stream(scan, false).onClose(() -> {
+			try {
+				scan.close();
+			} finally {
+				lock.close();
+			}
+		});
+	}
+
+	/**
+	 * @param entityName The name of the entity type
+	 * @param fileName The name of the file
+	 * @return The index of the shard represented by the given file, or -1 if the file is not a shard file of the given entity type
+	 */
+	static int getShardIndex(String entityName, String fileName) {
+		if (!fileName.endsWith(".csv") || !fileName.startsWith(entityName) || fileName.length() <= entityName.length() + 5
+			|| fileName.charAt(entityName.length()) != '_') {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(fileName.substring(entityName.length() + 1, fileName.length() - 4));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** Reads the rows of a single shard in order */
+	static abstract class ShardCursor implements Closeable {
+		final int fileIndex;
+		/** The IDs of the current row, or null if the shard is exhausted */
+		QuickMap<String, Object> ids;
+
+		ShardCursor(int fileIndex) {
+			this.fileIndex = fileIndex;
+		}
+
+		/**
+		 * Moves to the next row, parsing its IDs into {@link #ids}
+		 *
+		 * @return False if there are no more rows in the shard
+		 * @throws IOException If the shard could not be read
+		 */
+		abstract boolean advance() throws IOException;
+
+		/**
+		 * @return All field values of the current row
+		 * @throws IOException If the shard could not be read
+		 * @throws TextParseException If the row could not be parsed
+		 */
+		abstract QuickMap<String, Object> getRow() throws IOException, TextParseException;
+
+		/**
+		 * @param projection For each of the entity's fields in field order, whether to parse it, or null to parse all fields
+		 * @return The ID values and the projected field values of the current row. The other fields are null.
+		 * @throws IOException If the shard could not be read
+		 * @throws TextParseException If the row could not be parsed
+		 */
+		abstract QuickMap<String, Object> getRow(boolean[] projection) throws IOException, TextParseException;
+	}
+
+	/**
+	 * Reads a shard file in the working tree. All of this entity set's own reads of shard files go through this class, so that the rows of
+	 * shards written with an older schema are {@link #getColumnMapping(EntityFormat, String[], CsvParser) mapped} to the current fields.
+	 */
+	class FileShardCursor extends CsvShardCursor {
+		FileShardCursor(EntityFormat entity, File shard, int fileIndex) throws IOException {
+			super(entity, new BufferedReader(new InputStreamReader(new FileInputStream(shard), UTF8)), true, fileIndex);
+		}
+	}
+
+	/** Reads a shard blob from the git object database */
+	class BlobShardCursor extends CsvShardCursor {
+		BlobShardCursor(EntityFormat entity, ObjectLoader blob, int fileIndex) throws IOException {
+			super(entity, new BufferedReader(new InputStreamReader(blob.openStream(), UTF8)), true, fileIndex);
+		}
+	}
+
+	/** Reads CSV rows of an entity type from a stream */
+	class CsvShardCursor extends ShardCursor {
+		private final EntityFormat theEntity;
+		private final Reader theReader;
+		private final CsvParser theParser;
+		private final String[] theLine;
+		private final ColumnMapping theColumns;
+		private final String[] theRawLine;
+		private final QuickMap<String, Object> theFields;
+		private String[] theProjectedLine;
+		private boolean isFull;
+
+		/**
+		 * @param entity The entity type of the rows
+		 * @param reader The reader to read the rows from
+		 * @param header Whether the rows are preceded by a header. If false, the rows must be in the order of the entity's current fields,
+		 *        as written by a {@link ShardWriter}.
+		 * @param fileIndex The file index of the shard, or the index of the run for a bulk import
+		 * @throws IOException If the header could not be read
+		 */
+		CsvShardCursor(EntityFormat entity, Reader reader, boolean header, int fileIndex) throws IOException {
+			super(fileIndex);
+			theEntity = entity;
+			theReader = reader;
+			theParser = new CsvParser(theReader, ',');
+			theLine = new String[entity.getFields().keySize()];
+			theFields = entity.create(false);
+			if (!header) {
+				theColumns = null;
+				theRawLine = null;
+				return;
+			}
+			try {
+				String[] headerLine = theParser.parseNextLine();
+				theColumns = getColumnMapping(entity, headerLine, theParser);
+				theRawLine = theColumns == null ? null : new String[theColumns.width];
+			} catch (TextParseException e) {
+				theReader.close();
+				throw new IOException("Could not parse header of " + entity.getName() + " shard " + fileIndex, e);
+			}
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			while (true) {
+				try {
+					if (!theParser.parseNextLine(theRawLine != null ? theRawLine : theLine)) {
+						ids = null;
+						return false;
+					}
+					if (theColumns != null) {
+						theColumns.map(theRawLine, theLine);
+					}
+					isFull = false;
+					parseIds(theEntity, theLine, theFields, theParser, false);
+					ids = theFields;
+					return true;
+				} catch (TextParseException e) {
+					System.err.println(
+						"Could not parse " + theEntity.getName() + " IDs in shard " + fileIndex + ": " + Arrays.toString(theLine));
+					e.printStackTrace();
+				}
+			}
+		}
+
+		@Override
+		QuickMap<String, Object> getRow() throws IOException, TextParseException {
+			if (!isFull) {
+				parseNonIds(theEntity, theLine, theFields, theParser);
+				isFull = true;
+			}
+			return theFields;
+		}
+
+		@Override
+		QuickMap<String, Object> getRow(boolean[] projection) throws IOException, TextParseException {
+			if (projection == null || isFull) {
+				getRow();
+			} else {
+				// Blank out the fields not needed, which parse as nulls
+				if (theProjectedLine == null) {
+					theProjectedLine = new String[theLine.length];
+				}
+				for (int f = 0; f < theLine.length; f++) {
+					theProjectedLine[f] = f < projection.length && projection[f] ? theLine[f] : "";
+				}
+				parseNonIds(theEntity, theProjectedLine, theFields, theParser);
+			}
+			if (projection != null) {
+				for (int f = theEntity.getIdFieldCount(); f < projection.length; f++) {
+					if (!projection[f]) {
+						theFields.with(theEntity.getFieldOrder().get(f), null);
+					}
+				}
+				isFull = false;
+			}
+			return theFields;
+		}
+
+		@Override
+		public void close() throws IOException {
+			theReader.close();
+		}
+	}
+
+	/** A spliterator that merges the rows from several sorted shards of an entity type into a single ID-ordered sequence */
+	class ShardScan extends Spliterators.AbstractSpliterator<QuickMap<String, Object>> {
+		private final EntityFormat theEntity;
+		private final QuickMap<String, Object> theFrom;
+		private final QuickMap<String, Object> theTo;
+		private final boolean[] theProjection;
+		private final boolean isIdsOnly;
+		private final PriorityQueue<ShardCursor> theCursors;
+		private final List<ShardCursor> theAllCursors;
+
+		/**
+		 * @param entity The entity type to scan
+		 * @param from The IDs of the first entity to return (inclusive), or null to start at the first entity
+		 * @param to The IDs of the entity at which to stop (exclusive), or null to scan to the end
+		 * @param projection For each of the entity's fields in field order, whether to parse it, or null to parse all fields
+		 */
+		ShardScan(EntityFormat entity, QuickMap<String, Object> from, QuickMap<String, Object> to, boolean[] projection) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.SORTED | Spliterator.NONNULL | Spliterator.DISTINCT);
+			theEntity = entity;
+			theFrom = from;
+			theTo = to;
+			theProjection = projection;
+			boolean idsOnly = projection != null;
+			for (int f = entity.getIdFieldCount(); idsOnly && f < projection.length; f++) {
+				idsOnly = !projection[f];
+			}
+			isIdsOnly = idsOnly;
+			// Rows with equal IDs (only possible between the runs of a bulk import) come out in the order of their cursors
+			theCursors = new PriorityQueue<>((c1, c2) -> {
+				int comp = theEntity.compareIds(c1.ids, c2.ids);
+				return comp != 0 ? comp : Integer.compare(c1.fileIndex, c2.fileIndex);
+			});
+			theAllCursors = new ArrayList<>();
+		}
+
+		void addShard(ShardCursor cursor) throws IOException {
+			theAllCursors.add(cursor);
+			if (seek(cursor)) {
+				theCursors.add(cursor);
+			}
+		}
+
+		/** Advances the cursor to the first row at or after the start of the range */
+		private boolean seek(ShardCursor cursor) throws IOException {
+			while (cursor.advance()) {
+				if (theFrom == null || theEntity.compareIds(cursor.ids, theFrom) >= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super QuickMap<String, Object>> action) {
+			while (true) {
+				ShardCursor cursor = theCursors.poll();
+				if (cursor == null || (theTo != null && theEntity.compareIds(cursor.ids, theTo) >= 0)) {
+					theCursors.clear();
+					return false;
+				}
+				QuickMap<String, Object> row;
+				try {
+					row = isIdsOnly ? cursor.ids.copy().unmodifiable() : cursor.getRow(theProjection).copy().unmodifiable();
+				} catch (TextParseException e) {
+					System.err.println("Could not parse " + theEntity.getName() + " entity in shard " + cursor.fileIndex);
+					e.printStackTrace();
+					row = null;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				try {
+					if (cursor.advance()) {
+						theCursors.add(cursor);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				if (row != null) {
+					action.accept(row);
+					return true;
+				}
+			}
+		}
+
+		@Override
+		public Comparator<? super QuickMap<String, Object>> getComparator() {
+			return theEntity::compareIds;
+		}
+
+		void close() {
+			for (ShardCursor cursor : theAllCursors) {
+				try {
+					cursor.close();
+				} catch (IOException e) {
+					System.err.println("Could not close shard " + cursor.fileIndex + " of " + theEntity.getName());
+					e.printStackTrace();
+				}
+			}
+			theAllCursors.clear();
+			theCursors.clear();
+		}
+	}
+
+	/**
+	 * Retrieves an entity as it was at a particular commit, without touching the working tree. The shard files of the entity type at the
+	 * commit are read directly from the object database. The ID range of each shard blob is cached by blob ID, so repeated lookups across
+	 * many commits (where most shards are unchanged from commit to commit) only need to parse the one shard that can contain the entity.
+	 *
+	 * @param revision The commit to read the entity at, e.g. a commit ID, branch, or tag name
+	 * @param entityType The name of the entity type
+	 * @param id The ID values of the entity to get
+	 * @return The entity as it was at the given commit, or null if it did not exist then
+	 * @throws IOException If the revision could not be resolved or the shards could not be read
+	 * @throws TextParseException If the entity could not be parsed
+	 */
+	public QuickMap<String, Object> getAsOf(String revision, String entityType, QuickMap<String, Object> id)
+		throws IOException, TextParseException {
+		EntityFormat entity = getSubscribedType(entityType);
+		if (entity == null) {
+			throw new IllegalArgumentException("No such entity type: " + entityType);
+		}
+		try (ObjectReader reader = theGit.getRepository().newObjectReader()) {
+			for (Map.Entry<Integer, ObjectId> shard : getShardsAsOf(revision, entityType).entrySet()) {
+				ShardRange range = getShardRange(reader, entity, shard.getKey(), shard.getValue());
+				if (range == null || entity.compareIds(id, range.first) < 0 || entity.compareIds(id, range.last) > 0) {
+					continue;
+				}
+				try (BlobShardCursor cursor = new BlobShardCursor(entity, reader.open(shard.getValue()), shard.getKey())) {
+					while (cursor.advance()) {
+						int comp = entity.compareIds(cursor.ids, id);
+						if (comp == 0) {
+							return cursor.getRow().copy().unmodifiable();
+						} else if (comp > 0) {
+							break;
+						}
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Scans all entities of a type as they were at a particular commit, without touching the working tree
+	 *
+	 * @param revision The commit to read the entities at, e.g. a commit ID, branch, or tag name
+	 * @param entityType The name of the entity type
+	 * @return A stream of all entities of the given type at the given commit, in ID order. The stream must be closed.
+	 * @throws IOException If the revision could not be resolved or the shards could not be read
+	 */
+	public Stream<QuickMap<String, Object>> scanAsOf(String revision, String entityType) throws IOException {
+		EntityFormat entity = getSubscribedType(entityType);
+		if (entity == null) {
+			throw new IllegalArgumentException("No such entity type: " + entityType);
+		}
+		ObjectReader reader = theGit.getRepository().newObjectReader();
+		ShardScan scan = new ShardScan(entity, null, null, null);
+		try {
+			for (Map.Entry<Integer, ObjectId> shard : getShardsAsOf(revision, entityType).entrySet()) {
+				scan.addShard(new BlobShardCursor(entity, reader.open(shard.getValue()), shard.getKey()));
+			}
+		} catch (IOException | RuntimeException e) {
+			scan.close();
+			reader.close();
+			throw e;
+		}
+		return StreamSupport.stream(scan, false).onClose(() -> {
+			scan.close();
+			reader.close();
+		});
+	}
+
+	/**
+	 * @param revision The revision to get the shards at
+	 * @param entityType The name of the entity type to get the shards of
+	 * @return The blob ID of each of the entity type's shard files at the given revision, by file index
+	 * @throws IOException If the revision could not be resolved or its tree could not be read
+	 */
+	private Map<Integer, ObjectId> getShardsAsOf(String revision, String entityType) throws IOException {
+		ObjectId commitId = theGit.getRepository().resolve(revision);
+		if (commitId == null) {
+			throw new IllegalArgumentException("No such revision: " + revision);
+		}
+		String entityDir = theProjectPrefix + entityType;
+		Map<Integer, ObjectId> shards = new TreeMap<>();
+		try (RevWalk walk = new RevWalk(theGit.getRepository()); //
+			TreeWalk treeWalk = new TreeWalk(theGit.getRepository())) {
+			treeWalk.addTree(walk.parseCommit(commitId).getTree());
+			treeWalk.setRecursive(true);
+			treeWalk.setFilter(PathFilter.create(entityDir));
+			while (treeWalk.next()) {
+				String path = treeWalk.getPathString();
+				if (path.length() != entityDir.length() + 1 + treeWalk.getNameString().length()) {
+					continue; // Not directly under the entity directory
+				}
+				int fileIndex = getShardIndex(entityType, treeWalk.getNameString());
+				if (fileIndex >= 0) {
+					shards.put(fileIndex, treeWalk.getObjectId(0));
+				}
+			}
+		}
+		return shards;
+	}
+
+	static class ShardRange {
+		final QuickMap<String, Object> first;
+		final QuickMap<String, Object> last;
+
+		ShardRange(QuickMap<String, Object> first, QuickMap<String, Object> last) {
+			this.first = first;
+			this.last = last;
+		}
+	}
+
+	/**
+	 * @param reader The object reader to read the blob with
+	 * @param entity The entity type of the shard
+	 * @param fileIndex The file index of the shard
+	 * @param blob The blob ID of the shard
+	 * @return The range of entity IDs in the shard, or null if the shard is empty
+	 * @throws IOException If the blob could not be read
+	 */
+	private ShardRange getShardRange(ObjectReader reader, EntityFormat entity, int fileIndex, ObjectId blob) throws IOException {
+		ShardRange range = theShardRanges.get(blob);
+		if (range != null) {
+			return range == EMPTY_SHARD ? null : range;
+		}
+		QuickMap<String, Object> first = null, last = null;
+		try (BlobShardCursor cursor = new BlobShardCursor(entity, reader.open(blob), fileIndex)) {
+			while (cursor.advance()) {
+				if (first == null) {
+					first = cursor.ids.copy().unmodifiable();
+				}
+				last = cursor.ids;
+			}
+		}
+		range = first == null ? EMPTY_SHARD : new ShardRange(first, last.copy().unmodifiable());
+		theShardRanges.put(blob.copy(), range);
+		return range == EMPTY_SHARD ? null : range;
+	}
+
+	/**
+	 * <p>
+	 * Declares a secondary index on a non-ID field of an entity type, allowing {@link #query(String, String, Object) queries} on the field
+	 * to read only the shards that can contain matches.
+	 * </p>
+	 * <p>
+	 * The index is persisted in this entity set's index directory. If it has not been built or is out of date, it is built by scanning
+	 * the entity type's shards. Afterward, it is maintained from the changes of each local commit and each commit pulled from the remote.
+	 * </p>
+	 *
+	 * @param entityType The name of the entity type to index
+	 * @param field The name of the field to index
+	 * @return The index
+	 * @throws IOException If the index could not be loaded or built
+	 * @throws TextParseException If an entity could not be parsed while building the index
+	 */
+	public SecondaryIndex addSecondaryIndex(String entityType, String field) throws IOException, TextParseException {
+		EntityFormat entity = getSubscribedType(entityType);
+		if (entity == null) {
+			throw new IllegalArgumentException("No such entity type: " + entityType);
+		} else if (!entity.getFieldOrder().contains(field)) {
+			throw new IllegalArgumentException("No such field " + entityType + "." + field);
+		}
+		try (Transaction t = lock(true, null)) {
+			Map<String, SecondaryIndex> entityIndexes = theSecondaryIndexes.computeIfAbsent(entityType, __ -> new LinkedHashMap<>());
+			SecondaryIndex index = entityIndexes.get(field);
+			if (index != null) {
+				return index;
+			}
+			index = new SecondaryIndex(entityType, field,
+				new File(theIndexDirectory, "secondary" + File.separator + entityType + "." + field + ".idx"));
+			String head = getHeadName();
+			if (!index.load(head)) {
+				index.clear();
+				File[] shards = new File(theProjectDir, entityType).listFiles();
+				if (shards != null) {
+					for (File shard : shards) {
+						int fileIndex = getShardIndex(entityType, shard.getName());
+						if (fileIndex < 0) {
+							continue;
+						}
+						try (FileShardCursor cursor = new FileShardCursor(entity, shard, fileIndex)) {
+							while (cursor.advance()) {
+								index.add(cursor.getRow().get(field), fileIndex);
+							}
+						}
+					}
+				}
+				index.save(head);
+			}
+			entityIndexes.put(field, index);
+			if (theSecondaryIndexListener == null) {
+				theSecondaryIndexListener = addListener(this::updateSecondaryIndexes, false);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * @param entityType The name of the entity type
+	 * @param field The name of the field
+	 * @return The {@link #addSecondaryIndex(String, String) secondary index} on the given field, or null if none has been declared
+	 */
+	public SecondaryIndex getSecondaryIndex(String entityType, String field) {
+		Map<String, SecondaryIndex> entityIndexes = theSecondaryIndexes.get(entityType);
+		return entityIndexes == null ? null : entityIndexes.get(field);
+	}
+
+	/**
+	 * <p>
+	 * Queries all entities of a type whose field has a given value. If a {@link #addSecondaryIndex(String, String) secondary index} has
+	 * been declared for the field, only the shards that the index says contain the value are read. Otherwise all of the type's entities are
+	 * scanned.
+	 * </p>
+	 * <p>
+	 * Secondary indexes reflect the last commit, so while this entity set has {@link #hasModifications() uncommitted modifications}, all
+	 * of the type's entities are scanned so that the results include the modifications.
+	 * </p>
+	 *
+	 * @param entityType The name of the entity type to query
+	 * @param field The name of the field to test
+	 * @param value The value of the field to match
+	 * @return All entities of the given type whose field has the given value, in ID order
+	 * @throws IOException If the entity files could not be read
+	 * @throws TextParseException If an entity could not be parsed
+	 */
+	public List<QuickMap<String, Object>> query(String entityType, String field, Object value) throws IOException, TextParseException {
+		EntityFormat entity = getSubscribedType(entityType);
+		if (entity == null) {
+			throw new IllegalArgumentException("No such entity type: " + entityType);
+		}
+		List<QuickMap<String, Object>> results = new ArrayList<>();
+		try (Transaction t = lock(false, null)) {
+			SecondaryIndex index = hasModifications ? null : getSecondaryIndex(entityType, field);
+			if (index == null) {
+				try (Stream<QuickMap<String, Object>> all = scan(entityType, null, null, null)) {
+					all.filter(row -> Objects.equals(row.get(field), value)).forEach(results::add);
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+				return results;
+			}
+			File entityDir = new File(theProjectDir, entityType);
+			for (int shard : index.getShards(value)) {
+				File shardFile = new File(entityDir, entityType + "_" + shard + ".csv");
+				if (!shardFile.exists()) {
+					continue;
+				}
+				try (FileShardCursor cursor = new FileShardCursor(entity, shardFile, shard)) {
+					while (cursor.advance()) {
+						QuickMap<String, Object> row = cursor.getRow();
+						if (Objects.equals(row.get(field), value)) {
+							results.add(row.copy().unmodifiable());
+						}
+					}
+				}
+			}
+		}
+		results.sort(entity::compareIds);
+		return results;
+	}
+
+	private void updateSecondaryIndexes(Commit commit) {
+		boolean changed = false;
+		for (ShardMove move : ((CommitImpl) commit).getShardMoves()) {
+			Map<String, SecondaryIndex> entityIndexes = theSecondaryIndexes.get(move.entityType.getName());
+			if (entityIndexes != null) {
+				for (SecondaryIndex index : entityIndexes.values()) {
+					index.shardRenamed(move.oldFileIndex, move.newFileIndex);
+					changed = true;
+				}
+			}
+		}
+		for (EntityUpdate update : commit.getChanges()) {
+			Map<String, SecondaryIndex> entityIndexes = theSecondaryIndexes.get(update.getEntityType().getName());
+			if (entityIndexes == null) {
+				continue;
+			}
+			int fileIndex = ((EntityUpdateImpl) update).getFileIndex();
+			for (SecondaryIndex index : entityIndexes.values()) {
+				if (update.getOldValues() != null) {
+					index.remove(update.getOldValues().get(index.getField()), fileIndex);
+				}
+				if (update.getNewValues() != null) {
+					index.add(update.getNewValues().get(index.getField()), fileIndex);
+				}
+				changed = true;
+			}
+		}
+		if (changed) {
+			String head = ((CommitImpl) commit).getId().name();
+			for (Map<String, SecondaryIndex> entityIndexes : theSecondaryIndexes.values()) {
+				for (SecondaryIndex index : entityIndexes.values()) {
+					try {
+						index.save(head);
+					} catch (IOException e) {
+						System.err.println("Could not save " + index);
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Enables the {@link MerkleSummary hash summary} of this entity set's content. The summary is persisted in the index directory. If it
+	 * does not exist yet or is out of date, it is built once by reading every shard. Afterward it is maintained from the changes of each
+	 * local commit and each commit pulled from the remote.
+	 *
+	 * @return The summary
+	 * @throws IOException If the summary could not be loaded or built
+	 * @throws TextParseException If an entity could not be parsed while building the summary
+	 */
+	public MerkleSummary withSummary() throws IOException, TextParseException {
+		try (Transaction t = lock(true, null)) {
+			if (theSummary != null) {
+				return theSummary;
+			}
+			MerkleSummary summary = new MerkleSummary(new File(theIndexDirectory, "summary.sum"));
+			String head = getHeadName();
+			if (!summary.load(head)) {
+				summary.clear();
+				for (EntityFormat entity : getEntityTypesOnDisk()) {
+					File[] shards = new File(theProjectDir, entity.getName()).listFiles();
+					if (shards == null) {
+						continue;
+					}
+					for (File shard : shards) {
+						int fileIndex = getShardIndex(entity.getName(), shard.getName());
+						if (fileIndex < 0) {
+							continue;
+						}
+						try (FileShardCursor cursor = new FileShardCursor(entity, shard, fileIndex)) {
+							while (cursor.advance()) {
+								summary.add(entity.getName(), MerkleSummary.hashRow(entity.getFieldOrder(), cursor.getRow()), fileIndex);
+							}
+						}
+					}
+				}
+				summary.save(head);
+			}
+			theSummary = summary;
+			addListener(commit -> updateSummary(summary, commit), false);
+			return summary;
+		}
+	}
+
+	/** @return The {@link #withSummary() hash summary} of this entity set, or null if it has not been enabled */
+	public MerkleSummary getSummary() {
+		return theSummary;
+	}
+
+	private void updateSummary(MerkleSummary summary, Commit commit) {
+		for (ShardMove move : ((CommitImpl) commit).getShardMoves()) {
+			summary.shardRenamed(move.entityType.getName(), move.oldFileIndex, move.newFileIndex);
+		}
+		for (EntityUpdate update : commit.getChanges()) {
+			EntityFormat entity = update.getEntityType();
+			int fileIndex = ((EntityUpdateImpl) update).getFileIndex();
+			if (update.getOldValues() != null) {
+				summary.remove(entity.getName(), MerkleSummary.hashRow(entity.getFieldOrder(), update.getOldValues()), fileIndex);
+			}
+			if (update.getNewValues() != null) {
+				summary.add(entity.getName(), MerkleSummary.hashRow(entity.getFieldOrder(), update.getNewValues()), fileIndex);
+			}
+		}
+		try {
+			summary.save(((CommitImpl) commit).getId().name());
+		} catch (IOException e) {
+			System.err.println("Could not save " + summary);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Computes the {@link MerkleSummary hash summary} of this entity set's content as of a particular commit. Shard hashes are cached by
+	 * blob, so summarizing a commit close to one already summarized only reads the shards that differ.
+	 *
+	 * @param revision The commit to summarize the entities at, e.g. a commit ID, branch, or tag name
+	 * @return The summary of the entities at the given commit
+	 * @throws IOException If the revision could not be resolved or the shards could not be read
+	 * @throws TextParseException If an entity could not be parsed
+	 */
+	public MerkleSummary summarizeAsOf(String revision) throws IOException, TextParseException {
+		MerkleSummary summary = new MerkleSummary(null);
+		try (ObjectReader reader = theGit.getRepository().newObjectReader()) {
+			for (EntityFormat entity : getEntityTypesOnDisk()) {
+				for (Map.Entry<Integer, ObjectId> shard : getShardsAsOf(revision, entity.getName()).entrySet()) {
+					MerkleSummary.ShardSum sum = theShardSums.get(shard.getValue());
+					if (sum == null) {
+						sum = new MerkleSummary.ShardSum();
+						try (BlobShardCursor cursor = new BlobShardCursor(entity, reader.open(shard.getValue()), shard.getKey())) {
+							while (cursor.advance()) {
+								sum.add(MerkleSummary.hashRow(entity.getFieldOrder(), cursor.getRow()), 1);
+							}
+						}
+						theShardSums.put(shard.getValue(), sum);
+					}
+					summary.putShard(entity.getName(), shard.getKey(), sum);
+				}
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Hashes each row of a shard in the working tree, to pinpoint the rows that differ in a shard that has been found to differ between
+	 * two {@link MerkleSummary#diff(MerkleSummary) summaries}
+	 *
+	 * @param entityType The name of the entity type
+	 * @param shard The index of the shard
+	 * @return The hash of each row in the shard, by the {@link #getIdKey(EntityFormat, QuickMap) ID key} of the row
+	 * @throws IOException If the shard could not be read
+	 * @throws TextParseException If an entity could not be parsed
+	 */
+	public SortedMap<String, String> getRowHashes(String entityType, int shard) throws IOException, TextParseException {
+		EntityFormat entity = getSubscribedType(entityType);
+		if (entity == null) {
+			throw new IllegalArgumentException("No such entity type: " + entityType);
+		}
+		SortedMap<String, String> hashes = new TreeMap<>();
+		try (Transaction t = lock(false, null)) {
+			File shardFile = new File(new File(theProjectDir, entityType), entityType + "_" + shard + ".csv");
+			if (!shardFile.exists()) {
+				return hashes;
+			}
+			try (FileShardCursor cursor = new FileShardCursor(entity, shardFile, shard)) {
+				while (cursor.advance()) {
+					QuickMap<String, Object> row = cursor.getRow();
+					hashes.put(getIdKey(entity, row), MerkleSummary.toHex(MerkleSummary.hashRow(entity.getFieldOrder(), row)));
+				}
+			}
+		}
+		return hashes;
+	}
+
+	/**
+	 * Like {@link #getRowHashes(String, int)}, but hashes the rows of the shard as of a particular commit
+	 *
+	 * @param revision The commit to read the shard at, e.g. a commit ID, branch, or tag name
+	 * @param entityType The name of the entity type
+	 * @param shard The index of the shard
+	 * @return The hash of each row in the shard at the given commit, by the {@link #getIdKey(EntityFormat, QuickMap) ID key} of the row
+	 * @throws IOException If the revision could not be resolved or the shard could not be read
+	 * @throws TextParseException If an entity could not be parsed
+	 */
+	public SortedMap<String, String> getRowHashesAsOf(String revision, String entityType, int shard)
+		throws IOException, TextParseException {
+		EntityFormat entity = getSubscribedType(entityType);
+		if (entity == null) {
+			throw new IllegalArgumentException("No such entity type: " + entityType);
+		}
+		SortedMap<String, String> hashes = new TreeMap<>();
+		ObjectId blob = getShardsAsOf(revision, entityType).get(shard);
+		if (blob == null) {
+			return hashes;
+		}
+		try (ObjectReader reader = theGit.getRepository().newObjectReader();
+			BlobShardCursor cursor = new BlobShardCursor(entity, reader.open(blob), shard)) {
+			while (cursor.advance()) {
+				QuickMap<String, Object> row = cursor.getRow();
+				hashes.put(getIdKey(entity, row), MerkleSummary.toHex(MerkleSummary.hashRow(entity.getFieldOrder(), row)));
+			}
+		}
+		return hashes;
+	}
+
+	/**
+	 * <p>
+	 * Enables the {@link ChangeJournal change journal} for this entity set. From this point, the entity changes of each local commit and
+	 * each commit pulled from the remote are durably appended to the journal, in the index directory, before other listeners are notified
+	 * of later commits. If the journal cannot be written, the failure is thrown from the operation that made or pulled the commit, once
+	 * the other listeners have been notified and the indexes stamped. The commits that could not be journaled are replayed into the
+	 * journal with the next commit.
+	 * </p>
+	 * <p>
+	 * The journal is stamped with the last commit it has journaled. When it is reopened, or when commits reach HEAD without being fired
+	 * (e.g. while the entity set was closed), the commits since that stamp are replayed into the journal. If the stamped commit is no
+	 * longer an ancestor of HEAD, the difference between the two trees is journaled as a single commit instead.
+	 * </p>
+	 *
+	 * @param maxSegmentSize The size in bytes at which to start a new journal segment
+	 * @return The journal
+	 * @throws IOException If the journal could not be opened or caught up
+	 */
+	public ChangeJournal withJournal(long maxSegmentSize) throws IOException {
+		try (Transaction t = lock(true, null)) {
+			if (theJournal != null) {
+				return theJournal;
+			}
+			ChangeJournal journal = new ChangeJournal(new File(theIndexDirectory, "journal"), maxSegmentSize);
+			ObjectId head = theGit.getRepository().resolve(Constants.HEAD);
+			if (head != null) {
+				if (journal.getHead() == null) {
+					journal.stampHead(head); // New journal--start from here
+				} else if (!head.name().equals(journal.getHead())) {
+					catchUpJournal(journal, head);
+				}
+			}
+			theJournal = journal;
+			addListener(commit -> {
+				try {
+					journalCommit(journal, (CommitImpl) commit);
+				} catch (IOException e) {
+					throw new UncheckedIOException("Could not journal commit " + ((CommitImpl) commit).getId().name(), e);
+				}
+			}, false);
+			return journal;
+		}
+	}
+
+	private void journalCommit(ChangeJournal journal, CommitImpl commit) throws IOException {
+		String journalHead = journal.getHead();
+		if (journalHead == null || journalHead.equals(commit.getId().name())) {
+			if (journalHead == null) {
+				journal.append(commit);
+			}
+			return;
+		}
+		try (RevWalk walk = new RevWalk(theGit.getRepository())) {
+			for (RevCommit parent : walk.parseCommit(commit.getId()).getParents()) {
+				if (parent.name().equals(journalHead)) {
+					journal.append(commit);
+					return;
+				}
+			}
+		}
+		// Commits have reached HEAD without being journaled
+		catchUpJournal(journal, commit.getId());
+	}
+
+	private void catchUpJournal(ChangeJournal journal, ObjectId head) throws IOException {
+		ObjectId journalHead = ObjectId.fromString(journal.getHead());
+		if (!theGit.getRepository().hasObject(journalHead)) {
+			journalHead = null; // History has been rewritten
+		}
+		boolean caughtUp;
+		try {
+			caughtUp = journalHead != null && replay(journalHead, head, commit -> {
+				try {
+					journal.append(commit);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		if (!caughtUp) {
+			try (RevWalk walk = new RevWalk(theGit.getRepository()); ObjectReader reader = theGit.getRepository().newObjectReader()) {
+				RevCommit headCommit = walk.parseCommit(head);
+				AbstractTreeIterator oldTree;
+				if (journalHead == null) {
+					oldTree = new EmptyTreeIterator();
+				} else {
+					CanonicalTreeParser parser = new CanonicalTreeParser();
+					parser.reset(reader, walk.parseCommit(journalHead).getTree());
+					oldTree = parser;
+				}
+				CanonicalTreeParser newTree = new CanonicalTreeParser();
+				newTree.reset(reader, headCommit.getTree());
+				journal.append(parseCommit(headCommit, oldTree, newTree, false));
+			}
+		}
+	}
+
+	/** @return The {@link #withJournal(long) change journal} of this entity set, or null if it has not been enabled */
+	public ChangeJournal getJournal() {
+		return theJournal;
+	}
+
+	/** @return All {@link #subscribe(Collection) subscribed} entity types of this entity set that have a directory in the project */
+	private List<EntityFormat> getEntityTypesOnDisk() {
+		List<EntityFormat> entities = new ArrayList<>();
+		File[] dirs = theProjectDir.listFiles();
+		if (dirs != null) {
+			for (File dir : dirs) {
+				EntityFormat entity = dir.isDirectory() && isSubscribed(dir.getName()) ? getEntityType(dir.getName()) : null;
+				if (entity != null) {
+					entities.add(entity);
+				}
+			}
+		}
+		return entities;
+	}
+
+	/**
+	 * <p>
+	 * Enables an off-heap index of the shard containing each entity, for entity sets too large for their ID index to be held on the
+	 * heap. {@link #get(String, QuickMap) Gets} look up the shard of the entity in memory-mapped index files and only read that shard.
+	 * </p>
+	 * <p>
+	 * The index is persisted in the index directory and saved when this entity set is {@link #close() closed}. Once enabled, it is enabled
+	 * automatically whenever an entity set is created with the same index directory, and reopening it only requires mapping its files. If
+	 * the entity set was not closed cleanly, the index is rebuilt from the IDs in the shard files.
+	 * </p>
+	 * <p>
+	 * The index reflects the last commit, so while this entity set has {@link #hasModifications() uncommitted modifications}, gets use the
+	 * regular index.
+	 * </p>
+	 *
+	 * @return This entity set
+	 * @throws IOException If the index could not be loaded or built
+	 */
+	public GitEntities withOffHeapIdIndex() throws IOException {
+		try (Transaction t = lock(true, null)) {
+			if (theIdIndex != null) {
+				return this;
+			}
+			OffHeapIdIndex idIndex = new OffHeapIdIndex(new File(theIndexDirectory, "ids"));
+			String indexedHead = idIndex.load();
+			String head = readHeadStamp();
+			if (indexedHead == null || !indexedHead.equals(head)) {
+				idIndex.clear();
+				for (EntityFormat entity : getEntityTypesOnDisk()) {
+					File[] shards = new File(theProjectDir, entity.getName()).listFiles();
+					if (shards == null) {
+						continue;
+					}
+					for (File shard : shards) {
+						int fileIndex = getShardIndex(entity.getName(), shard.getName());
+						if (fileIndex < 0) {
+							continue;
+						}
+						try (FileShardCursor cursor = new FileShardCursor(entity, shard, fileIndex)) {
+							while (cursor.advance()) {
+								idIndex.put(entity.getName(), getIdKey(entity, cursor.ids), fileIndex);
+							}
+						}
 					}
 				}
+				idIndex.save(head);
 			}
-			switch (diff.entry.getChangeType()) {
-			case COPY:
-			case RENAME:
-				break; // These don't affect the content
-			case ADD:
-				try (EntityGetterImpl getter = iterate(entity, tempNewFile, diff.fileIndex)) {
-					for (QuickMap<String, Object> added = getter.getNextGoodId(); added != null; added = getter.getNextGoodId()) {
-						try {
-							commitImpl.addChange(entity, null, getter.getLast(), diff.fileIndex);
-						} catch (TextParseException e) {}
-					}
+			theIdIndex = idIndex;
+			// Remote changes reach the index through updateIndex. Apply our own commits here.
+			addListener(commit -> {
+				if (!commit.isLocalOnly() || theIdIndex != idIndex) {
+					return;
 				}
-				break;
-			case DELETE:
-				try (EntityGetterImpl getter = iterate(entity, tempOldFile, diff.fileIndex)) {
-					for (QuickMap<String, Object> removed = getter.getNextGoodId(); removed != null; removed = getter.getNextGoodId()) {
-						try {
-							commitImpl.addChange(entity, removed, getter.getLast(), diff.fileIndex);
-						} catch (TextParseException e) {}
+				try {
+					for (EntityUpdate update : commit.getChanges()) {
+						int fileIndex = ((EntityUpdateImpl) update).getFileIndex();
+						if (update.getOldValues() == null) {
+							idIndex.put(update.getEntityType().getName(), getIdKey(update.getEntityType(), update.getNewValues()), fileIndex);
+						} else if (update.getNewValues() == null) {
+							idIndex.remove(update.getEntityType().getName(), getIdKey(update.getEntityType(), update.getOldValues()),
+								fileIndex);
+						}
 					}
+				} catch (IOException e) {
+					// Fall back to the regular index. Since the off-heap index was not saved, it will be rebuilt when next enabled.
+					theIdIndex = null;
+					idIndex.close();
 				}
-				break;
-			case MODIFY:
+			}, false);
+		}
+		return this;
+	}
+
+	/** @return Whether the {@link #withOffHeapIdIndex() off-heap ID index} is enabled for this entity set */
+	public boolean isIdIndexOffHeap() {
+		return theIdIndex != null;
+	}
+
+	/**
+	 * Enables the {@link #getHistory(String, QuickMap) change history index} for this entity set. The index is persisted in the index
+	 * directory. If it does not exist yet, it is built once by replaying the branch's history. Afterward it is maintained from the changes
+	 * of each local commit and each commit pulled from the remote. The history is stored {@link EntityHistory#isOffHeap() off-heap} if it
+	 * was the last time it was enabled for the index directory.
+	 *
+	 * @return This entity set
+	 * @throws IOException If the history index could not be loaded or built
+	 * @see #withHistory(boolean)
+	 */
+	public GitEntities withHistory() throws IOException {
+		return withHistory(EntityHistory.hasOffHeapIndex(new File(theIndexDirectory, "history")));
+	}
+
+	/**
+	 * Like {@link #withHistory()}, but specifies where the history is stored. Off-heap history is kept in memory-mapped index files in
+	 * the index directory, so it costs little heap even for very large entity sets and reopening it only requires mapping the files.
+	 *
+	 * @param offHeap Whether to store the history off-heap
+	 * @return This entity set
+	 * @throws IOException If the history index could not be loaded or built
+	 * @throws IllegalStateException If history is already enabled with a different storage
+	 */
+	public GitEntities withHistory(boolean offHeap) throws IOException, IllegalStateException {
+		try (Transaction t = lock(true, null)) {
+			if (theHistory != null) {
+				if (theHistory.isOffHeap() != offHeap) {
+					throw new IllegalStateException("History is already enabled " + (offHeap ? "on" : "off") + "-heap");
+				}
+				return this;
+			}
+			EntityHistory history = new EntityHistory(new File(theIndexDirectory, "history"), offHeap);
+			String indexedHead = history.load();
+			ObjectId head = theGit.getRepository().resolve(Constants.HEAD);
+			if (head != null && !head.name().equals(indexedHead)) {
+				boolean caughtUp = false;
+				if (indexedHead != null && !indexedHead.isEmpty()) {
+					caughtUp = replay(ObjectId.fromString(indexedHead), head, commit -> recordHistory(history, commit));
+				}
+				if (!caughtUp) {
+					history.clear();
+					replay(null, head, commit -> recordHistory(history, commit));
+				}
+				history.flush(head.name());
+			}
+			theHistory = history;
+			addListener(commit -> {
+				recordHistory(history, (CommitImpl) commit);
 				try {
-					parseEdit(entity, file, tempOldFile, tempNewFile, commitImpl, buffer, diff.fileIndex);
+					history.flush(((CommitImpl) commit).getId().name());
 				} catch (IOException e) {
-					System.err.println("Could not parse edit");
+					System.err.println("Could not write entity history");
 					e.printStackTrace();
 				}
-				break;
+			}, false);
+		}
+		return this;
+	}
+
+	private static void recordHistory(EntityHistory history, CommitImpl commit) {
+		for (EntityUpdate update : commit.getChanges()) {
+			EntityHistory.ChangeType type;
+			QuickMap<String, Object> values;
+			if (update.getOldValues() == null) {
+				type = EntityHistory.ChangeType.ADDED;
+				values = update.getNewValues();
+			} else if (update.getNewValues() == null) {
+				type = EntityHistory.ChangeType.DELETED;
+				values = update.getOldValues();
+			} else {
+				type = EntityHistory.ChangeType.MODIFIED;
+				values = update.getNewValues();
 			}
-			if (tempNewFile != null) {
-				tempNewFile.delete();
+			history.record(update.getEntityType().getName(), getIdKey(update.getEntityType(), values), commit.getId(),
+				commit.getCommitTime(), type);
+		}
+	}
+
+	/**
+	 * @param entityType The name of the entity type
+	 * @param id The ID values of the entity
+	 * @return All changes to the entity, oldest first
+	 * @throws IllegalStateException If {@link #withHistory() history} has not been enabled for this entity set
+	 */
+	public List<EntityHistory.HistoryEntry> getHistory(String entityType, QuickMap<String, Object> id) throws IllegalStateException {
+		EntityFormat entity = getSubscribedType(entityType);
+		if (entity == null) {
+			throw new IllegalArgumentException("No such entity type: " + entityType);
+		} else if (theHistory == null) {
+			throw new IllegalStateException("History has not been enabled");
+		}
+		return theHistory.getHistory(entityType, getIdKey(entity, id));
+	}
+
+	/**
+	 * @param entityType The name of the entity type
+	 * @param id The ID values of the entity
+	 * @return The values of the entity after each of its {@link #getHistory(String, QuickMap) changes}, oldest first. Values are null for
+	 *         deletions.
+	 * @throws IOException If the historical shards could not be read
+	 * @throws TextParseException If the entity could not be parsed
+	 * @throws IllegalStateException If {@link #withHistory() history} has not been enabled for this entity set
+	 */
+	public List<QuickMap<String, Object>> getHistoricalValues(String entityType, QuickMap<String, Object> id)
+		throws IOException, TextParseException, IllegalStateException {
+		List<EntityHistory.HistoryEntry> history = getHistory(entityType, id);
+		List<QuickMap<String, Object>> values = new ArrayList<>(history.size());
+		for (EntityHistory.HistoryEntry entry : history) {
+			if (entry.getChangeType() == EntityHistory.ChangeType.DELETED) {
+				values.add(null);
+			} else {
+				values.add(getAsOf(entry.getCommitId().name(), entityType, id));
 			}
-			if (tempOldFile != null) {
-				tempOldFile.delete();
+		}
+		return values;
+	}
+
+	/**
+	 * @param entity The entity type
+	 * @param values The ID values (or all values) of an entity
+	 * @return A string uniquely identifying the entity within its type
+	 */
+	static String getIdKey(EntityFormat entity, QuickMap<String, Object> values) {
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < entity.getIdFieldCount(); i++) {
+			if (i > 0) {
+				key.append('\u001f');
 			}
+			key.append(values.get(entity.getFieldOrder().get(i)));
 		}
-		return commitImpl;
+		return key.toString();
 	}
 
-	private void parseEdit(EntityFormat entity, String file, File oldFile, File newFile, CommitImpl commit, byte[] buffer, int fileIndex)
-		throws IOException {
-		try (Reader oldReader = new BufferedReader(new InputStreamReader(new FileInputStream(oldFile), UTF8));
-			Reader newReader = new BufferedReader(new InputStreamReader(new FileInputStream(newFile), UTF8))) {
-			CsvParser oldParser = new CsvParser(oldReader, ',');
-			CsvParser newParser = new CsvParser(newReader, ',');
-			// Don't diff against headers
-			try {
-				oldParser.parseNextLine();
-			} catch (TextParseException e) {
-				throw new IOException(file + " old version could not be parsed as CSV", e);
+	/**
+	 * <p>
+	 * Brings this entity set's indexes up to date with the working tree after it has been changed outside of this entity set, e.g. by
+	 * checking out a different commit or branch.
+	 * </p>
+	 * <p>
+	 * Every time this entity set's indexes are updated, the HEAD commit they reflect is recorded in the index directory. This method diffs
+	 * the tree of that commit directly against the tree of the current HEAD and fires the differences to listeners as a single remote
+	 * commit, so the cost is proportional to the difference between the two trees, not to the number of commits between them.
+	 * </p>
+	 *
+	 * @return This entity set
+	 * @throws IOException If the commits could not be read or the indexes updated
+	 */
+	public GitEntities catchUp() throws IOException {
+		try (Transaction t = lock(true, null)) {
+			String stamp = readHeadStamp();
+			ObjectId head = theGit.getRepository().resolve(Constants.HEAD);
+			if (head == null || head.name().equals(stamp)) {
+				return this;
+			}
+			CommitImpl commit;
+			try (RevWalk walk = new RevWalk(theGit.getRepository()); ObjectReader reader = theGit.getRepository().newObjectReader()) {
+				RevCommit headCommit = walk.parseCommit(head);
+				AbstractTreeIterator oldTree;
+				ObjectId stampId = stamp == null || stamp.isEmpty() ? null : theGit.getRepository().resolve(stamp);
+				if (stampId == null) {
+					oldTree = new EmptyTreeIterator();
+				} else {
+					CanonicalTreeParser parser = new CanonicalTreeParser();
+					parser.reset(reader, walk.parseCommit(stampId).getTree());
+					oldTree = parser;
+				}
+				CanonicalTreeParser newTree = new CanonicalTreeParser();
+				newTree.reset(reader, headCommit.getTree());
+				commit = parseCommit(headCommit, oldTree, newTree, false);
 			}
+			IOException listenerFailure = null;
 			try {
-				newParser.parseNextLine();
-			} catch (TextParseException e) {
-				throw new IOException(file + " new version could not be parsed as CSV", e);
+				fireListeners(commit);
+			} catch (IOException e) {
+				listenerFailure = e;
 			}
-			class Entry {
-				final CsvParser parser;
-				final boolean isNew;
-				final String[] line = new String[entity.getFields().keySize()];
-				final QuickMap<String, Object> fields = entity.create(false);
-				boolean exists;
-				boolean hasIds;
-				boolean isFull;
+			isFreshBranch = getEntityTypes().isEmpty();
+			stampHead();
+			if (listenerFailure != null) {
+				throw listenerFailure;
+			}
+		}
+		return this;
+	}
 
-				Entry(CsvParser parser, boolean isNew) {
-					this.parser = parser;
-					this.isNew = isNew;
+	/**
+	 * <p>
+	 * Squashes all history older than a retention window into a single snapshot commit, to bound the cost of cloning the repository and
+	 * of walking its history.
+	 * </p>
+	 * <p>
+	 * The newest commit on the first-parent history of HEAD that is older than the window is replaced by a parentless commit with the same
+	 * tree. All newer commits are rewritten on top of it with their content unchanged, and the branch is force-pushed to the remote, but
+	 * only if no one else has pushed to it in the meantime, and then to each {@link #withRemotes(List, Collection) mirror}. Other clients
+	 * detect the rewrite when they next {@link #checkAndPush(ConflictResolver) synchronize}: they move onto the new history, re-apply any
+	 * local commits they had not pushed, and update their indexes by diffing their previous tree against the new one.
+	 * </p>
+	 * <p>
+	 * Entity {@link #getHistory(String, QuickMap) history} recorded before the compaction will refer to commits that are no longer in the
+	 * branch's history.
+	 * </p>
+	 *
+	 * @param retention The amount of history to preserve
+	 * @return The new snapshot commit, or null if there was no history older than the window to compact
+	 * @throws IOException If the history could not be rewritten or pushed
+	 * @throws IllegalStateException If this entity set has uncommitted modifications or belongs to a {@link GitEntitiesHub hub}
+	 */
+	public ObjectId compactHistory(Duration retention) throws IOException, IllegalStateException {
+		if (theHub != null) {
+			throw new IllegalStateException("Compacting the history of a hub's repository is not supported");
+		}
+		Repository repo = theGit.getRepository();
+		theSyncLock.lock();
+		try {
+			boolean hasRemote = !repo.getRemoteNames().isEmpty();
+			if (hasRemote) {
+				syncWithRemote();
+			}
+			try (Transaction t = lock(true, null); RevWalk walk = new RevWalk(repo); ObjectInserter inserter = repo.newObjectInserter()) {
+				if (hasModifications) {
+					throw new IllegalStateException("Compacting with uncommitted changes");
+				}
+				String branch = repo.getFullBranch();
+				ObjectId head = repo.resolve(Constants.HEAD);
+				if (branch == null || head == null) {
+					return null;
+				}
+				long cutoff = (System.currentTimeMillis() - retention.toMillis()) / 1000;
+				RevCommit base = walk.parseCommit(head);
+				while (base.getCommitTime() >= cutoff && base.getParentCount() > 0) {
+					base = walk.parseCommit(base.getParent(0));
+				}
+				if (base.getCommitTime() >= cutoff || base.getParentCount() == 0) {
+					return null; // Nothing to squash
 				}
 
-				Entry readLine() throws IOException, TextParseException {
-					exists = parser.parseNextLine(line);
-					hasIds = isFull = false;
-					return this;
+				CommitBuilder snapshot = new CommitBuilder();
+				snapshot.setTreeId(base.getTree());
+				snapshot.setAuthor(base.getCommitterIdent());
+				snapshot.setCommitter(base.getCommitterIdent());
+				snapshot.setMessage("Compacted history through " + base.name());
+				ObjectId snapshotId = inserter.insert(snapshot);
+
+				// Rewrite everything newer than the base onto the snapshot, oldest first
+				Map<ObjectId, ObjectId> rewritten = new HashMap<>();
+				walk.reset();
+				walk.sort(RevSort.TOPO);
+				walk.sort(RevSort.REVERSE, true);
+				walk.markStart(walk.parseCommit(head));
+				walk.markUninteresting(base);
+				ObjectId newHead = snapshotId;
+				for (RevCommit commit : walk) {
+					Set<ObjectId> parents = new LinkedHashSet<>();
+					for (RevCommit parent : commit.getParents()) {
+						parents.add(rewritten.getOrDefault(parent, snapshotId));
+					}
+					CommitBuilder copy = new CommitBuilder();
+					copy.setTreeId(commit.getTree());
+					copy.setParentIds(new ArrayList<>(parents));
+					copy.setAuthor(commit.getAuthorIdent());
+					copy.setCommitter(commit.getCommitterIdent());
+					copy.setEncoding(commit.getEncoding());
+					copy.setMessage(commit.getFullMessage());
+					newHead = inserter.insert(copy);
+					rewritten.put(commit.copy(), newHead);
 				}
+				inserter.flush();
+
+				RefUpdate refUpdate = repo.updateRef(branch);
+				refUpdate.setNewObjectId(newHead);
+				refUpdate.setExpectedOldObjectId(head);
+				refUpdate.setForceUpdate(true);
+				refUpdate.setRefLogMessage("compact history through " + base.name(), false);
+				RefUpdate.Result result = refUpdate.update(walk);
+				if (result != RefUpdate.Result.FORCED && result != RefUpdate.Result.FAST_FORWARD) {
+					throw new IOException("Could not rewrite " + branch + ": " + result);
+				}
+				if (hasRemote) {
+					String remoteName = theActivePrimary;
+					ObjectId remoteHead = repo.resolve(Constants.R_REMOTES + remoteName + "/" + repo.getBranch());
+					RemoteRefUpdate.Status pushStatus = push(remoteName, repo.getBranch(), remoteHead == null ? head : remoteHead,
+						NullProgressMonitor.INSTANCE);
+					if (pushStatus != RemoteRefUpdate.Status.OK && pushStatus != RemoteRefUpdate.Status.UP_TO_DATE) {
+						// Someone pushed since we synchronized. Put the old history back; the caller can try again later.
+						refUpdate = repo.updateRef(branch);
+						refUpdate.setNewObjectId(head);
+						refUpdate.setForceUpdate(true);
+						refUpdate.update(walk);
+						throw new IOException("Could not push compacted history: " + pushStatus);
+					}
+					// The mirrors still have the old history, so the new one can't be fast-forwarded onto them
+					for (MirrorState mirror : theMirrors.values()) {
+						synchronized (mirror) {
+							mirror.rewritten = true;
+						}
+					}
+					pushToMirrors(repo.getBranch());
+				}
+				stampHead();
+				return snapshotId;
+			}
+		} finally {
+			theSyncLock.unlock();
+		}
+	}
+
+	/** @return The commit that this entity set's indexes were last updated for, or null if unknown */
+	String readHeadStamp() throws IOException {
+		File stampFile = new File(theIndexDirectory, HEAD_STAMP_FILE);
+		if (!stampFile.exists()) {
+			return null;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stampFile), UTF8))) {
+			String stamp = reader.readLine();
+			return stamp == null ? "" : stamp;
+		}
+	}
+
+	void stampHead() throws IOException {
+		theIndexDirectory.mkdirs();
+		try (OutputStream out = new FileOutputStream(new File(theIndexDirectory, HEAD_STAMP_FILE))) {
+			out.write(getHeadName().getBytes(UTF8));
+		}
+	}
+
+	/**
+	 * Records a commit other than HEAD as the one that this entity set's indexes reflect
+	 *
+	 * @param commit The commit that the indexes have been updated to
+	 * @throws IOException If the stamp could not be written
+	 */
+	private void stampHead(ObjectId commit) throws IOException {
+		theIndexDirectory.mkdirs();
+		try (OutputStream out = new FileOutputStream(new File(theIndexDirectory, HEAD_STAMP_FILE))) {
+			out.write(commit.name().getBytes(UTF8));
+		}
+	}
+
+	/**
+	 * @return The commit that HEAD points to, or null if there is none
+	 * @throws IOException If HEAD could not be resolved
+	 */
+	ObjectId getHead() throws IOException {
+		return theGit.getRepository().resolve(Constants.HEAD);
+	}
+
+	private String getHeadName() throws IOException {
+		ObjectId head = getHead();
+		return head == null ? "" : head.name();
+	}
+
+	static class RAFIS extends InputStream {
+		private final RandomAccessFile theRAF;
+
+		RAFIS(RandomAccessFile rAF) {
+			theRAF = rAF;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return theRAF.read();
+		}
+
+		@Override
+		public int read(byte[] b) throws IOException {
+			return theRAF.read(b);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return theRAF.read(b, off, len);
+		}
+	}
+
+	/**
+	 * Notifies each listener of a commit. A listener that fails does not keep the listeners after it from being notified. Once all have
+	 * been, the first failure is thrown with any later ones suppressed.
+	 *
+	 * @param commit The commit to fire
+	 * @throws IOException If a listener failed with an {@link UncheckedIOException}
+	 */
+	void fireListeners(Commit commit) throws IOException {
+		RuntimeException[] failure = new RuntimeException[1];
+		theListeners.forEach(//
+			listener -> {
+				if (commit.isLocalOnly() && listener.remoteOnly) {
+					return;
+				}
+				try {
+					listener.listener.changeOccurred(commit);
+				} catch (RuntimeException e) {
+					if (failure[0] == null) {
+						failure[0] = e;
+					} else {
+						failure[0].addSuppressed(e);
+					}
+				}
+			});
+		if (failure[0] instanceof UncheckedIOException) {
+			IOException cause = ((UncheckedIOException) failure[0]).getCause();
+			for (Throwable suppressed : failure[0].getSuppressed()) {
+				cause.addSuppressed(suppressed);
+			}
+			throw cause;
+		} else if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+
+	/**
+	 * @param failure The failure collected so far, or null
+	 * @param e The new failure
+	 * @return The first failure, with any later ones suppressed
+	 */
+	static IOException addFailure(IOException failure, IOException e) {
+		if (failure == null) {
+			return e;
+		}
+		failure.addSuppressed(e);
+		return failure;
+	}
+
+	@Override
+	public VersionedEntities commit(String message) throws IOException {
+		try (Transaction t = lock(true, null)) {
+			if (!hasModifications) {
+				return this;
+			}
+			RevCommit newCommit;
+			CommitCommand commit = theGit.commit().setMessage(message == null ? autoGenMessage() : message);
+			if (theHub != null && !theProjectPrefix.isEmpty()) {
+				// Other projects in the repository may have uncommitted changes. Only commit ours.
+				commit.setOnly(theProjectPrefix.substring(0, theProjectPrefix.length() - 1));
+			} else {
+				commit.setAll(true);
+			}
+			synchronized (theGitLock) {
+				try {
+					newCommit = commit.call();
+				} catch (GitAPIException e) {
+					throw new IOException("Could not commit changes", e);
+				}
+			}
+			isFreshBranch = getEntityTypes().isEmpty();
+			hasModifications = false;
+			// The commit has been made, so the indexes are stamped with it even if a listener fails
+			IOException listenerFailure = null;
+			if (theLocalListeners.get() > 0) {
+				CommitImpl parsed = parseLocalCommit(newCommit);
+				try {
+					fireListeners(parsed);
+				} catch (IOException e) {
+					listenerFailure = e;
+				}
+			}
+			stampHead();
+			if (listenerFailure != null) {
+				throw listenerFailure;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * @param commit The commit just made locally
+	 * @return The parsed entity changes made by the commit
+	 * @throws IOException If the commit could not be parsed
+	 */
+	private CommitImpl parseLocalCommit(RevCommit commit) throws IOException {
+		AbstractTreeIterator parentTree;
+		CanonicalTreeParser tree = new CanonicalTreeParser();
+		try (ObjectReader reader = theGit.getRepository().newObjectReader()) {
+			if (commit.getParentCount() == 0) {
+				parentTree = new EmptyTreeIterator();
+			} else {
+				CanonicalTreeParser parentParser = new CanonicalTreeParser();
+				parentParser.reset(reader, theGit.getRepository().resolve(commit.getParent(0).name() + "^{tree}"));
+				parentTree = parentParser;
+			}
+			tree.reset(reader, theGit.getRepository().resolve(commit.name() + "^{tree}"));
+			return parseCommit(commit, parentTree, tree, true);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Imports a large number of entities into this entity set and commits them all in a single commit.
+	 * </p>
+	 * <p>
+	 * This is an external sort: rows are read from the source in chunks of bounded size, each of which is sorted by ID and spilled to a
+	 * temporary run file. The runs are then merged by ID and written into the entity type's shards, each of which is read and
+	 * rewritten only once (see {@link #mergeIntoShards(EntityFormat, Iterator)}). If the rows fit in a single chunk, they are not spilled.
+	 * Staging of the changed shard files in git is deferred until all rows have been written, then performed with a single add.
+	 * </p>
+	 * <p>
+	 * If the source contains several rows with the same IDs, the last one is imported. If the import fails, the entity set is
+	 * {@link #discardModifications(ObjectId) restored} to the commit it was at before the import.
+	 * </p>
+	 *
+	 * @param entityType The name of the entity type to import entities of
+	 * @param rows The entities to import, in any order
+	 * @param chunkSize The maximum number of rows to hold in memory at once
+	 * @param message The commit message, or null to auto-generate one
+	 * @return The number of imported rows that replaced existing entities
+	 * @throws IOException If the entities could not be written or committed, or if an existing entity could not be parsed
+	 */
+	public long bulkImport(String entityType, Iterator<? extends QuickMap<String, Object>> rows, int chunkSize, String message)
+		throws IOException {
+		EntityFormat entity = getSubscribedType(entityType);
+		if (entity == null) {
+			throw new IllegalArgumentException("No such entity type: " + entityType);
+		} else if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		}
+		long replaced;
+		try (Transaction t = lock(true, null)) {
+			if (hasModifications) {
+				throw new IllegalStateException("Bulk import with uncommitted changes");
+			}
+			ObjectId previousHead = getHead();
+			try {
+				List<File> runs = new ArrayList<>();
+				try {
+					List<QuickMap<String, Object>> chunk = new ArrayList<>(Math.min(chunkSize, 64 * 1024));
+					while (rows.hasNext()) {
+						chunk.clear();
+						while (chunk.size() < chunkSize && rows.hasNext()) {
+							chunk.add(rows.next());
+						}
+						chunk.sort(entity::compareIds); // Stable, so the last of any duplicates stays last
+						if (runs.isEmpty() && !rows.hasNext()) {
+							break; // Everything fit in a single chunk
+						}
+						File run = File.createTempFile(entityType + "_run" + runs.size() + "_", ".csv");
+						runs.add(run);
+						try (ShardWriter writer = new ShardWriter(run, entity, null)) {
+							for (QuickMap<String, Object> row : chunk) {
+								writer.write(row);
+							}
+						}
+						chunk.clear();
+					}
+					isStagingDeferred = true;
+					try {
+						if (runs.isEmpty()) {
+							replaced = mergeIntoShards(entity, lastOfEachId(entity, chunk.iterator()));
+						} else {
+							ShardScan scan = new ShardScan(entity, null, null, null);
+							try {
+								for (int r = 0; r < runs.size(); r++) {
+									scan.addShard(new CsvShardCursor(entity,
+										new BufferedReader(new InputStreamReader(new FileInputStream(runs.get(r)), UTF8)), false, r));
+								}
+								replaced = mergeIntoShards(entity, lastOfEachId(entity, Spliterators.iterator(scan)));
+							} finally {
+								scan.close();
+							}
+						}
+					} finally {
+						isStagingDeferred = false;
+						flushStaging();
+					}
+				} finally {
+					for (File run : runs) {
+						if (!run.delete()) {
+							run.deleteOnExit();
+						}
+					}
+				}
+				if (hasModifications) {
+					commit(message);
+				}
+			} catch (IOException | RuntimeException e) {
+				// Don't leave a partial import in the working tree
+				try {
+					discardModifications(previousHead);
+				} catch (IOException | RuntimeException e2) {
+					e.addSuppressed(e2);
+				}
+				throw e;
+			}
+		}
+		return replaced;
+	}
+
+	/**
+	 * @param entity The entity type of the rows
+	 * @param rows The rows, in ID order
+	 * @return Writes of the given rows for {@link #mergeIntoShards(EntityFormat, Iterator)}, skipping all but the last of each run of rows
+	 *         with the same IDs
+	 */
+	private static Iterator<Map.Entry<QuickMap<String, Object>, QuickMap<String, Object>>> lastOfEachId(EntityFormat entity,
+		Iterator<? extends QuickMap<String, Object>> rows) {
+		return new Iterator<Map.Entry<QuickMap<String, Object>, QuickMap<String, Object>>>() {
+			private QuickMap<String, Object> theNext = rows.hasNext() ? rows.next() : null;
+
+			@Override
+			public boolean hasNext() {
+				return theNext != null;
+			}
 
-				Entry fillIds() throws IOException, TextParseException {
-					if (hasIds) {
-						return this;
-					}
-					parseIds(entity, line, fields, parser, false);
-					return this;
+			@Override
+			public Map.Entry<QuickMap<String, Object>, QuickMap<String, Object>> next() {
+				if (theNext == null) {
+					throw new NoSuchElementException();
+				}
+				QuickMap<String, Object> row = theNext;
+				theNext = rows.hasNext() ? rows.next() : null;
+				while (theNext != null && entity.compareIds(row, theNext) == 0) {
+					row = theNext;
+					theNext = rows.hasNext() ? rows.next() : null;
 				}
+				return new AbstractMap.SimpleImmutableEntry<>(row, row);
+			}
+		};
+	}
 
-				boolean fillNonIds() throws IOException {
-					if (isFull) {
-						return true;
+	/**
+	 * <p>
+	 * Merges a sequence of writes into the shards of an entity type, reading and rewriting each shard that any write falls into exactly
+	 * once instead of rewriting a shard for every write. The ID index entries of each rewritten shard are updated after the shard has
+	 * been written.
+	 * </p>
+	 * <p>
+	 * Shards hold contiguous, ordered ranges of IDs, so each write goes to the shard whose range it falls in, to the first shard if it
+	 * precedes them all, or to the last if it follows them all. A shard which grows beyond {@link #MAX_REWRITTEN_SHARD_ROWS} is split,
+	 * with the remainder of its rows going to new shards. Rewritten shards are written in the entity type's current schema.
+	 * </p>
+	 * <p>
+	 * The caller must hold the write lock.
+	 * </p>
+	 *
+	 * @param entity The entity type to write
+	 * @param writes The writes, in ID order with at most one per ID. The key of each is the entity (or only its IDs, for a deletion) and
+	 *        the value is the new entity, or null to delete it.
+	 * @return The number of writes that replaced or deleted an existing entity
+	 * @throws IOException If the shards could not be read or written
+	 */
+	long mergeIntoShards(EntityFormat entity, Iterator<? extends Map.Entry<QuickMap<String, Object>, QuickMap<String, Object>>> writes)
+		throws IOException {
+		return mergeIntoShards(entity, writes, true);
+	}
+
+	private long mergeIntoShards(EntityFormat entity,
+		Iterator<? extends Map.Entry<QuickMap<String, Object>, QuickMap<String, Object>>> writes, boolean canSeed) throws IOException {
+		if (!writes.hasNext()) {
+			return 0;
+		}
+		File dir = new File(theProjectDir, entity.getName());
+		List<FileShardCursor> shards = new ArrayList<>();
+		List<QuickMap<String, Object>> firstIds = new ArrayList<>();
+		try {
+			String[] header = null;
+			int maxFileIndex = -1;
+			int indexWidth = 0;
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					int fileIndex = getShardIndex(entity.getName(), file.getName());
+					if (fileIndex < 0) {
+						continue;
 					}
-					try {
-						parseNonIds(entity, line, fields, parser);
-					} catch (TextParseException e) {
-						System.err.println("Could not parse " + (isNew ? "new" : "old") + " entity values: " + entity.getName() + " "
-							+ Arrays.toString(line));
-						e.printStackTrace();
-						return false;
+					maxFileIndex = Math.max(maxFileIndex, fileIndex);
+					// Name new shards like the existing ones, in case their indexes are zero-padded
+					String indexText = file.getName().substring(entity.getName().length() + 1, file.getName().length() - 4);
+					if (indexText.length() > 1 && indexText.charAt(0) == '0') {
+						indexWidth = indexText.length();
+					}
+					if (header == null) {
+						header = getCurrentHeader(entity, file);
+					}
+					FileShardCursor cursor = new FileShardCursor(entity, file, fileIndex);
+					if (cursor.advance()) {
+						shards.add(cursor);
+					} else {
+						cursor.close();
 					}
-					isFull = true;
-					return true;
 				}
 			}
-			try {
-				Entry oldEntry = new Entry(oldParser, false).readLine(), newEntry = new Entry(newParser, false).readLine();
-				while (oldEntry.exists || newEntry.exists) {
-					if (Arrays.equals(oldEntry.line, newEntry.line)) {
-						oldEntry.readLine();
-						newEntry.readLine();
-					} else if (!oldEntry.exists) {
-						if (newEntry.fillIds().fillNonIds()) {
-							commit.addChange(entity, null, newEntry.fields.copy().unmodifiable(), fileIndex);
-						}
-						newEntry.readLine();
-					} else if (!newEntry.exists) {
-						if (oldEntry.fillIds().fillNonIds()) {
-							commit.addChange(entity, oldEntry.fields.copy().unmodifiable(), null, fileIndex);
+			if (header == null || shards.isEmpty()) {
+				// The format of the header belongs to VersionedEntities, so let it write the first new entity, giving a shard to take the
+				// header from and to merge the remaining writes into
+				for (FileShardCursor shard : shards) {
+					shard.close();
+				}
+				shards.clear();
+				Map.Entry<QuickMap<String, Object>, QuickMap<String, Object>> write = writes.next();
+				while (write.getValue() == null) { // Deletions of entities that can't exist
+					if (!writes.hasNext()) {
+						return 0;
+					}
+					write = writes.next();
+				}
+				if (!canSeed) {
+					throw new IOException("Could not find a shard of " + entity.getName() + " with the current schema");
+				}
+				long replaced = update(entity.getName(), write.getValue(), true) ? 1 : 0;
+				return replaced + mergeIntoShards(entity, writes, false);
+			}
+			List<Integer> order = new ArrayList<>(shards.size());
+			for (int s = 0; s < shards.size(); s++) {
+				order.add(s);
+				firstIds.add(shards.get(s).ids.copy());
+			}
+			order.sort((s1, s2) -> entity.compareIds(firstIds.get(s1), firstIds.get(s2)));
+
+			long replaced = 0;
+			Map.Entry<QuickMap<String, Object>, QuickMap<String, Object>> next = writes.next();
+			for (int o = 0; o < order.size() && next != null; o++) {
+				FileShardCursor shard = shards.get(order.get(o));
+				QuickMap<String, Object> bound = o + 1 < order.size() ? firstIds.get(order.get(o + 1)) : null;
+				if (bound != null && entity.compareIds(next.getKey(), bound) >= 0) {
+					continue; // No writes to this shard
+				}
+				ShardRewrite rewrite = new ShardRewrite(entity, dir, shard.fileIndex, indexWidth, header, maxFileIndex);
+				try {
+					boolean hasRow = true;
+					while (true) {
+						boolean writeInRange = next != null && (bound == null || entity.compareIds(next.getKey(), bound) < 0);
+						int comp;
+						if (hasRow && writeInRange) {
+							comp = entity.compareIds(next.getKey(), shard.ids);
+						} else if (writeInRange) {
+							comp = -1;
+						} else if (hasRow) {
+							comp = 1;
+						} else {
+							break;
 						}
-						oldEntry.readLine();
-					} else {
-						boolean sameId = true;
-						for (int i = 0; sameId && i < entity.getIdFieldCount(); i++) {
-							if (!oldEntry.line[i].equals(newEntry.line[i])) {
-								sameId = false;
+						if (comp < 0) {
+							if (next.getValue() != null) {
+								rewrite.write(next.getValue(), false);
 							}
-						}
-						int entityComp = 0;
-						if (!sameId) {
-							entityComp = entity.compareIds(oldEntry.fillIds().fields, newEntry.fillIds().fields);
-							sameId = entityComp == 0;
-						}
-						if (sameId) {
-							if (oldEntry.fillIds().fillNonIds() && newEntry.fillIds().fillNonIds()) {
-								commit.addChange(entity, oldEntry.fields.copy().unmodifiable(), newEntry.fields.copy().unmodifiable(),
-									fileIndex);
+							next = writes.hasNext() ? writes.next() : null;
+						} else if (comp == 0) {
+							replaced++;
+							if (next.getValue() != null) {
+								rewrite.write(next.getValue(), true);
+							} else {
+								rewrite.removed.add(shard.ids.copy());
 							}
-							oldEntry.readLine();
-							newEntry.readLine();
+							hasRow = shard.advance();
+							next = writes.hasNext() ? writes.next() : null;
 						} else {
-							if (entityComp < 0) { // Deleted old entry
-								if (oldEntry.fillIds().fillNonIds()) {
-									commit.addChange(entity, oldEntry.fields.copy().unmodifiable(), null, fileIndex);
-								}
-								oldEntry.readLine();
-							} else { // Added new entry
-								if (newEntry.fillIds().fillNonIds()) {
-									commit.addChange(entity, null, newEntry.fields.copy().unmodifiable(), fileIndex);
-								}
-								newEntry.readLine();
-							}
+							rewrite.write(shard.getRow(), true);
+							hasRow = shard.advance();
 						}
 					}
+					rewrite.finish();
+				} catch (TextParseException e) {
+					rewrite.abort();
+					throw new IOException("Could not parse " + entity.getName() + " shard " + shard.fileIndex, e);
+				} catch (IOException | RuntimeException e) {
+					rewrite.abort();
+					throw e;
 				}
-			} catch (TextParseException e) {
-				throw new IOException("Could not diff old and new versions of " + file, e);
+				maxFileIndex = rewrite.maxFileIndex;
+			}
+			return replaced;
+		} finally {
+			for (FileShardCursor shard : shards) {
+				shard.close();
 			}
 		}
 	}
 
-	static class RAFIS extends InputStream {
-		private final RandomAccessFile theRAF;
+	/** The rewrite of a single shard by {@link GitEntities#mergeIntoShards(EntityFormat, Iterator)} */
+	private class ShardRewrite {
+		private final EntityFormat theEntity;
+		private final File theDir;
+		private final int theFileIndex;
+		private final int theIndexWidth;
+		private final String[] theHeader;
+		private final File theFile;
+		private final List<ShardWriter> theWriters;
+		private ShardWriter theTarget;
+		private int theTargetIndex;
+		int maxFileIndex;
+		/** IDs whose index entries for the rewritten shard must be removed */
+		final List<QuickMap<String, Object>> removed;
+		/** File index to entities whose index entries must be added for that shard */
+		private final Map<Integer, List<QuickMap<String, Object>>> theAdded;
 
-		RAFIS(RandomAccessFile rAF) {
-			theRAF = rAF;
+		ShardRewrite(EntityFormat entity, File dir, int fileIndex, int indexWidth, String[] header, int maxFileIndex) throws IOException {
+			theEntity = entity;
+			theDir = dir;
+			theFileIndex = fileIndex;
+			theIndexWidth = indexWidth;
+			theHeader = header;
+			theFile = getShardFile(fileIndex);
+			this.maxFileIndex = maxFileIndex;
+			removed = new ArrayList<>();
+			theAdded = new LinkedHashMap<>();
+			theWriters = new ArrayList<>();
+			theTarget = new ShardWriter(new File(dir, theFile.getName() + ".tmp"), entity, header);
+			theWriters.add(theTarget);
+			theTargetIndex = fileIndex;
 		}
 
-		@Override
-		public int read() throws IOException {
-			return theRAF.read();
+		private File getShardFile(int fileIndex) {
+			String index = String.valueOf(fileIndex);
+			StringBuilder name = new StringBuilder(theEntity.getName()).append('_');
+			for (int i = index.length(); i < theIndexWidth; i++) {
+				name.append('0');
+			}
+			return new File(theDir, name.append(index).append(".csv").toString());
 		}
 
-		@Override
-		public int read(byte[] b) throws IOException {
-			return theRAF.read(b);
+		void write(QuickMap<String, Object> row, boolean existing) throws IOException {
+			if (theTarget.getRowCount() >= MAX_REWRITTEN_SHARD_ROWS) {
+				theTargetIndex = ++maxFileIndex;
+				theTarget = new ShardWriter(getShardFile(theTargetIndex), theEntity, theHeader);
+				theWriters.add(theTarget);
+			}
+			theTarget.write(row);
+			if (theTargetIndex != theFileIndex) {
+				if (existing) {
+					removed.add(row.copy());
+				}
+				theAdded.computeIfAbsent(theTargetIndex, __ -> new ArrayList<>()).add(row.copy());
+			} else if (!existing) {
+				theAdded.computeIfAbsent(theTargetIndex, __ -> new ArrayList<>()).add(row.copy());
+			}
 		}
 
-		@Override
-		public int read(byte[] b, int off, int len) throws IOException {
-			return theRAF.read(b, off, len);
+		void finish() throws IOException {
+			for (ShardWriter writer : theWriters) {
+				writer.close();
+			}
+			Files.move(theWriters.get(0).getFile().toPath(), theFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			fileChanged(theFile);
+			for (int w = 1; w < theWriters.size(); w++) {
+				fileAdded(theWriters.get(w).getFile());
+			}
+			for (QuickMap<String, Object> ids : removed) {
+				updateIndex(theEntity, ids, false, theFileIndex);
+			}
+			for (Map.Entry<Integer, List<QuickMap<String, Object>>> added : theAdded.entrySet()) {
+				for (QuickMap<String, Object> entity : added.getValue()) {
+					updateIndex(theEntity, entity, true, added.getKey());
+				}
+			}
 		}
-	}
 
-	private void fireListeners(Commit commit) {
-		theListeners.forEach(//
-			listener -> {
-				if (commit.isLocalOnly() && listener.remoteOnly) {
-					return;
+		void abort() {
+			for (ShardWriter writer : theWriters) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					// Deleting it anyway
 				}
-				listener.listener.changeOccurred(commit);
-			});
+				writer.getFile().delete();
+			}
+		}
 	}
 
-	@Override
-	public VersionedEntities commit(String message) throws IOException {
-		if (!hasModifications) {
-			return this;
-		}
-		try {
-			theGit.commit()//
-				.setMessage(message == null ? autoGenMessage() : message)//
-				.setAll(true)//
-				.call();
-		} catch (GitAPIException e) {
-			throw new IOException("Could not commit changes", e);
-		}
-		if (theLocalListeners > 0) {
-			// TODO
+	/**
+	 * @param entity The entity type
+	 * @param shard A shard file of the entity type
+	 * @return The shard's header if its columns are exactly the entity's current fields, otherwise null
+	 * @throws IOException If the header could not be read
+	 */
+	private String[] getCurrentHeader(EntityFormat entity, File shard) throws IOException {
+		try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(shard), UTF8))) {
+			CsvParser parser = new CsvParser(reader, ',');
+			String[] header = parser.parseNextLine();
+			return header != null && getColumnMapping(entity, header, parser) == null ? header : null;
+		} catch (TextParseException e) {
+			throw new IOException("Could not parse header of " + shard.getPath(), e);
 		}
-		isFreshBranch = getEntityTypes().isEmpty();
-		hasModifications = false;
-		return this;
+	}
+
+	/** @return Whether this entity set has modifications that have not been {@link #commit(String) committed} */
+	public boolean hasModifications() {
+		return hasModifications;
 	}
 
 	/**
@@ -705,9 +4284,146 @@ public class GitEntities extends VersionedEntities {
 		return this;
 	}
 
+	/**
+	 * <p>
+	 * Enables or disables lazy schema evolution. Normally the schema of an entity set may only be changed on a fresh
+	 * {@link #branch(String, int) branch}. With lazy evolution, changes may be made on any branch, and shards keep the header (and so the
+	 * schema) they were written with until they are rewritten for some other reason. Every read of a shard with an older header maps its
+	 * columns to the current fields, giving fields the shard lacks their {@link #getDefaultValue(Class) default value}.
+	 * </p>
+	 * <p>
+	 * This is only safe for additive changes that every replica reading the entity set understands, e.g. new fields whose default value is
+	 * acceptable for existing entities.
+	 * </p>
+	 *
+	 * @param lazy Whether to allow schema changes without branching
+	 * @return This entity set
+	 */
+	public GitEntities withLazySchemaEvolution(boolean lazy) {
+		isLazySchema = lazy;
+		return this;
+	}
+
+	/** @return Whether {@link #withLazySchemaEvolution(boolean) lazy schema evolution} is enabled */
+	public boolean isLazySchemaEvolution() {
+		return isLazySchema;
+	}
+
+	@Override
+	public QuickMap<String, Object> get(String entityType, QuickMap<String, Object> id) throws IOException {
+		try (Transaction t = lock(false, null)) {
+			checkSubscribed(entityType);
+			OffHeapIdIndex idIndex = theIdIndex;
+			// The off-heap index is only updated from commits, so it doesn't know about uncommitted modifications
+			EntityFormat entity = idIndex == null || hasModifications ? null : getEntityType(entityType);
+			if (entity == null) {
+				return super.get(entityType, id);
+			}
+			int shard = idIndex.getShard(entityType, getIdKey(entity, id));
+			if (shard < 0) {
+				return null;
+			}
+			File shardFile = new File(new File(theProjectDir, entityType), entityType + "_" + shard + ".csv");
+			if (!shardFile.exists()) {
+				return super.get(entityType, id);
+			}
+			try (FileShardCursor cursor = new FileShardCursor(entity, shardFile, shard)) {
+				while (cursor.advance()) {
+					int comp = entity.compareIds(cursor.ids, id);
+					if (comp == 0) {
+						return cursor.getRow().copy().unmodifiable();
+					} else if (comp > 0) {
+						break;
+					}
+				}
+			} catch (TextParseException e) {
+				throw new IOException("Could not parse " + entityType + " shard " + shard, e);
+			}
+			return null;
+		}
+	}
+
+	@Override
+	public boolean update(String entityType, QuickMap<String, Object> values, boolean add) throws IOException {
+		try (Transaction t = lock(true, null)) {
+			checkSubscribed(entityType);
+			return super.update(entityType, values, add);
+		}
+	}
+
+	@Override
+	public boolean delete(String entityType, QuickMap<String, Object> values) throws IOException {
+		try (Transaction t = lock(true, null)) {
+			checkSubscribed(entityType);
+			return super.delete(entityType, values);
+		}
+	}
+
+	@Override
+	public EntityFormat addEntityType(String entityName, Map<String, Class<?>> fields, List<String> idFields) throws IOException {
+		try (Transaction t = lock(true, null)) {
+			checkSubscribed(entityName);
+			return super.addEntityType(entityName, fields, idFields);
+		}
+	}
+
+	@Override
+	protected void updateIndex(EntityFormat entity, QuickMap<String, Object> values, boolean add, int fileIndex) throws IOException {
+		if (!isSubscribed(entity.getName())) {
+			return;
+		}
+		super.updateIndex(entity, values, add, fileIndex);
+		OffHeapIdIndex idIndex = theIdIndex;
+		if (idIndex != null) {
+			if (add) {
+				idIndex.put(entity.getName(), getIdKey(entity, values), fileIndex);
+			} else {
+				idIndex.remove(entity.getName(), getIdKey(entity, values), fileIndex);
+			}
+		}
+	}
+
+	/**
+	 * Reads the header of a shard being read by the superclass. If the shard was written with an older schema, the shard's rows are
+	 * {@link #getColumnMapping(EntityFormat, String[], CsvParser) mapped} to the current fields as they are parsed.
+	 */
+	@Override
+	protected EntityFormat parseHeader(String entityName, String[] header, CsvParser parser) throws TextParseException {
+		EntityFormat format = super.parseHeader(entityName, header, parser);
+		EntityFormat entity = getEntityType(entityName);
+		ColumnMapping mapping = entity == null ? null : getColumnMapping(entity, format.getFieldOrder());
+		if (mapping == null) {
+			return format;
+		}
+		theParserMappings.put(parser, mapping);
+		return entity;
+	}
+
+	@Override
+	protected void parseIds(EntityFormat entity, String[] line, QuickMap<String, Object> fields, CsvParser parser, boolean check)
+		throws TextParseException {
+		super.parseIds(entity, mapLine(line, parser), fields, parser, check);
+	}
+
+	@Override
+	protected void parseNonIds(EntityFormat entity, String[] line, QuickMap<String, Object> fields, CsvParser parser)
+		throws TextParseException {
+		super.parseNonIds(entity, mapLine(line, parser), fields, parser);
+	}
+
+	private String[] mapLine(String[] line, CsvParser parser) {
+		ColumnMapping mapping = theParserMappings.get(parser);
+		if (mapping == null) {
+			return line;
+		}
+		String[] mapped = new String[mapping.columns.length];
+		mapping.map(line, mapped);
+		return mapped;
+	}
+
 	@Override
 	protected void schemaChanged() {
-		if (!isFreshBranch) {
+		if (!isFreshBranch && !isLazySchema) {
 			throw new IllegalStateException("The version must be branched immediately before schema change.  Use branch(String, int)");
 		}
 		hasModifications = true;
@@ -716,47 +4432,184 @@ public class GitEntities extends VersionedEntities {
 
 	@Override
 	protected void fileAdded(File file) throws IOException {
-		try {
-			theGit.add().addFilepattern(getFilePattern(file)).call();
-		} catch (GitAPIException e) {
-			throw new IOException("Unable to add file", e);
+		try (Transaction t = lock(true, null)) {
+			stageAdd(getFilePattern(file), false);
+			hasModifications = true;
+			super.fileAdded(file);
 		}
-		hasModifications = true;
-		super.fileAdded(file);
 	}
 
 	@Override
 	protected void fileRemoved(File file) throws IOException {
-		try {
-			theGit.rm().addFilepattern(getFilePattern(file)).call();
-		} catch (GitAPIException e) {
-			throw new IOException("Unable to remove file", e);
+		try (Transaction t = lock(true, null)) {
+			stageRemove(getFilePattern(file));
+			hasModifications = true;
+			super.fileRemoved(file);
 		}
-		hasModifications = true;
-		super.fileRemoved(file);
 	}
 
 	@Override
 	protected void fileChanged(File file) throws IOException {
-		try {
-			theGit.add().setUpdate(true).addFilepattern(getFilePattern(file)).call();
-		} catch (GitAPIException e) {
-			throw new IOException("Unable to add file", e);
+		try (Transaction t = lock(true, null)) {
+			stageAdd(getFilePattern(file), true);
+			hasModifications = true;
+			super.fileChanged(file);
 		}
-		hasModifications = true;
-		super.fileChanged(file);
 	}
 
 	@Override
 	protected void fileRenamed(File oldFile, File newFile) throws IOException {
+		try (Transaction t = lock(true, null)) {
+			stageRemove(getFilePattern(oldFile));
+			stageAdd(getFilePattern(newFile), false);
+			hasModifications = true;
+			super.fileRenamed(oldFile, newFile);
+		}
+	}
+
+	private void stageAdd(String filePattern, boolean update) throws IOException {
+		if (isStagingDeferred) {
+			theStagedRemovals.remove(filePattern);
+			theStagedAdds.add(filePattern);
+			return;
+		}
+		synchronized (theGitLock) {
+			try {
+				theGit.add().setUpdate(update).addFilepattern(filePattern).call();
+			} catch (GitAPIException e) {
+				throw new IOException("Unable to add file", e);
+			}
+		}
+	}
+
+	private void stageRemove(String filePattern) throws IOException {
+		if (isStagingDeferred) {
+			theStagedAdds.remove(filePattern);
+			theStagedRemovals.add(filePattern);
+			return;
+		}
+		synchronized (theGitLock) {
+			try {
+				theGit.rm().addFilepattern(filePattern).call();
+			} catch (GitAPIException e) {
+				throw new IOException("Unable to remove file", e);
+			}
+		}
+	}
+
+	/**
+	 * Defers or resumes staging of changed files in git. The caller must hold the write {@link #lock(boolean, Object) lock}.
+	 *
+	 * @param deferred Whether to defer staging. When false, all changes deferred so far are staged.
+	 * @throws IOException If deferred changes could not be staged
+	 */
+	void setStagingDeferred(boolean deferred) throws IOException {
+		isStagingDeferred = deferred;
+		if (!deferred) {
+			flushStaging();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Discards all uncommitted modifications to this entity set and restores its files to a commit. The caller must hold the write
+	 * {@link #lock(boolean, Object) lock}.
+	 * </p>
+	 * <p>
+	 * The modifications have already been applied to the ID index, so the modified files are staged and written as a tree, and the
+	 * difference from that tree to the restored commit is applied to the index, as {@link #catchUp()} does for commits. Listeners are not
+	 * notified, since they were never notified of the modifications.
+	 * </p>
+	 * <p>
+	 * If this entity set belongs to a {@link GitEntitiesHub hub}, other projects in the repository may have modifications of their own,
+	 * so only this entity set's files are restored, and only to HEAD. Otherwise, the branch is hard-reset to the given commit and any
+	 * index changes for commits that were made since it are {@link #catchUp() caught up}.
+	 * </p>
+	 *
+	 * @param restoreTo The commit to restore this entity set to, which must be HEAD or an ancestor of it
+	 * @throws IOException If the files could not be restored or the index updated
+	 */
+	void discardModifications(ObjectId restoreTo) throws IOException {
+		Repository repo = theGit.getRepository();
+		String path = theProjectPrefix.isEmpty() ? "." : theProjectPrefix.substring(0, theProjectPrefix.length() - 1);
+		try (RevWalk walk = new RevWalk(repo); ObjectReader reader = repo.newObjectReader();
+			ObjectInserter inserter = repo.newObjectInserter()) {
+			ObjectId modifiedTree;
+			synchronized (theGitLock) {
+				theStagedAdds.clear();
+				theStagedRemovals.clear();
+				theGit.add().addFilepattern(path).call();
+				theGit.add().setUpdate(true).addFilepattern(path).call();
+				modifiedTree = repo.readDirCache().writeTree(inserter);
+				inserter.flush();
+			}
+			RevCommit target = walk.parseCommit(theHub == null ? restoreTo : repo.resolve(Constants.HEAD));
+			CanonicalTreeParser oldTree = new CanonicalTreeParser();
+			oldTree.reset(reader, modifiedTree);
+			CanonicalTreeParser newTree = new CanonicalTreeParser();
+			newTree.reset(reader, target.getTree());
+			List<DiffEntry> diffs = scanDiffs(repo, getDiffFilter(), oldTree, newTree);
+			synchronized (theGitLock) {
+				if (theHub == null) {
+					theGit.reset().setMode(ResetType.HARD).setRef(target.name()).call();
+				} else {
+					theGit.reset().setRef(Constants.HEAD).addPath(path).call();
+					theGit.checkout().setStartPoint(Constants.HEAD).addPath(path).call();
+					for (DiffEntry diff : diffs) {
+						if (diff.getChangeType() == ChangeType.DELETE) { // Added by the modifications
+							Files.deleteIfExists(new File(repo.getWorkTree(), diff.getOldPath()).toPath());
+						}
+					}
+				}
+			}
+			hasModifications = false;
+			oldTree.reset(reader, modifiedTree);
+			newTree.reset(reader, target.getTree());
+			applyToIdIndex(parseDiffs(target, diffs, oldTree, newTree, true));
+		} catch (GitAPIException e) {
+			throw new IOException("Could not discard modifications", e);
+		}
+		if (theHub == null) {
+			catchUp();
+		}
+	}
+
+	/**
+	 * @return A new batch of writes to apply to this entity set and commit together
+	 * @see GitEntityBatch
+	 */
+	public GitEntityBatch batch() {
+		return new GitEntityBatch(this);
+	}
+
+	/**
+	 * Stages all file changes that were deferred while {@link #isStagingDeferred} was set, with a single add and a single remove command
+	 *
+	 * @throws IOException If the changes could not be staged
+	 */
+	private void flushStaging() throws IOException {
 		try {
-			theGit.rm().addFilepattern(getFilePattern(oldFile)).call();
-			theGit.add().addFilepattern(getFilePattern(newFile)).call();
+			synchronized (theGitLock) {
+				if (!theStagedAdds.isEmpty()) {
+					AddCommand add = theGit.add();
+					for (String pattern : theStagedAdds) {
+						add.addFilepattern(pattern);
+					}
+					add.call();
+					theStagedAdds.clear();
+				}
+				if (!theStagedRemovals.isEmpty()) {
+					RmCommand rm = theGit.rm();
+					for (String pattern : theStagedRemovals) {
+						rm.addFilepattern(pattern);
+					}
+					rm.call();
+					theStagedRemovals.clear();
+				}
+			}
 		} catch (GitAPIException e) {
-			throw new IOException("Unable to rename file", e);
+			throw new IOException("Unable to stage changes", e);
 		}
-		hasModifications = true;
-		super.fileRenamed(oldFile, newFile);
 	}
 
 	private String getFilePattern(File file) {
@@ -821,25 +4674,43 @@ public class GitEntities extends VersionedEntities {
 		}
 	}
 
-	private static class CommitImpl implements Commit {
+	static class CommitImpl implements Commit {
+		private final ObjectId theId;
 		private final CommitterImpl theCommitter;
 		private final Instant theCommitTime;
 		private final String theMessage;
 		private final boolean isLocalOnly;
 		private final List<EntityUpdate> theChanges;
+		private final List<ShardMove> theShardMoves;
 
-		CommitImpl(CommitterImpl committer, Instant commitTime, String message, boolean localOnly) {
+		CommitImpl(ObjectId id, CommitterImpl committer, Instant commitTime, String message, boolean localOnly) {
+			theId = id;
 			theCommitter = committer;
 			theCommitTime = commitTime;
 			theMessage = message;
 			isLocalOnly = localOnly;
 			theChanges = new ArrayList<>();
+			theShardMoves = new ArrayList<>(0);
 		}
 
 		void addChange(EntityFormat entityType, QuickMap<String, Object> oldValues, QuickMap<String, Object> newValues, int fileIndex) {
 			theChanges.add(new EntityUpdateImpl(this, entityType, oldValues, newValues, fileIndex));
 		}
 
+		void addShardMove(EntityFormat entityType, int oldFileIndex, int newFileIndex, ObjectId blob) {
+			theShardMoves.add(new ShardMove(entityType, oldFileIndex, newFileIndex, blob));
+		}
+
+		/** @return All shard files that were renamed in this commit, to be applied before the {@link #getChanges() changes} */
+		List<ShardMove> getShardMoves() {
+			return theShardMoves;
+		}
+
+		/** @return The ID of the git commit */
+		public ObjectId getId() {
+			return theId;
+		}
+
 		@Override
 		public Committer getCommitter() {
 			return theCommitter;
@@ -866,6 +4737,22 @@ public class GitEntities extends VersionedEntities {
 		}
 	}
 
+	/** Represents the rename of a shard file, which affects the location of its entities but not their content */
+	static class ShardMove {
+		final EntityFormat entityType;
+		final int oldFileIndex;
+		final int newFileIndex;
+		/** The blob of the shard before the rename */
+		final ObjectId blob;
+
+		ShardMove(EntityFormat entityType, int oldFileIndex, int newFileIndex, ObjectId blob) {
+			this.entityType = entityType;
+			this.oldFileIndex = oldFileIndex;
+			this.newFileIndex = newFileIndex;
+			this.blob = blob;
+		}
+	}
+
 	static class EntityUpdateImpl implements EntityUpdate {
 		private final CommitImpl theCommit;
 		private final EntityFormat theEntityType;
@@ -0,0 +1,274 @@
+package org.versionedentity;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.filter.OrTreeFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.qommons.Transaction;
+
+/**
+ * <p>
+ * Owns a git repository containing several {@link GitEntities} projects (entity sets under different paths of the same repository) and
+ * synchronizes them all with the remote together.
+ * </p>
+ * <p>
+ * Each {@link #sync() synchronization} performs a single fetch, merge, and push for the whole repository. The tree differences of each
+ * merged commit are computed once, then split by project path and routed to each project's entity set and listeners. Calling
+ * {@link GitEntities#checkAndPush(org.observe.util.VersionedEntities.ConflictResolver) checkAndPush}, background synchronization, or
+ * group-commit pushes on any of the hub's projects synchronizes all of them, using that project's
+ * {@link GitEntities#withRemotes(List, java.util.Collection) remotes} and {@link GitEntities#withPushRetry(int, java.time.Duration) push
+ * retry} settings.
+ * </p>
+ */
+public class GitEntitiesHub {
+	private final Git theGit;
+	private final CredentialsProvider theCredentials;
+	private final List<GitEntities> theProjects;
+	private final ReentrantLock theSyncLock;
+
+	/**
+	 * @param git The git repository to manage entities in
+	 * @param credentials The credentials to use to communicate with the remote
+	 */
+	public GitEntitiesHub(Git git, CredentialsProvider credentials) {
+		theGit = git;
+		theCredentials = credentials;
+		theProjects = new CopyOnWriteArrayList<>();
+		theSyncLock = new ReentrantLock();
+	}
+
+	/** @return The git repository managed by this hub */
+	public Git getGit() {
+		return theGit;
+	}
+
+	/**
+	 * Creates an entity set for a project in this hub's repository
+	 *
+	 * @param projectPath The path within the repository to the entity set
+	 * @param indexDirectory The directory in which to put the entity set's index files
+	 * @return The new entity set
+	 * @throws IOException If an error occurs scanning the directory for entity types
+	 * @throws IllegalArgumentException If the project's path contains or is contained by that of another project in this hub
+	 */
+	public GitEntities addProject(String projectPath, File indexDirectory) throws IOException, IllegalArgumentException {
+		theSyncLock.lock();
+		try {
+			GitEntities project = new GitEntities(theGit, indexDirectory, projectPath, theCredentials, this);
+			String prefix = project.getProjectPrefix();
+			for (GitEntities other : theProjects) {
+				String otherPrefix = other.getProjectPrefix();
+				if (prefix.startsWith(otherPrefix) || otherPrefix.startsWith(prefix)) {
+					project.close();
+					throw new IllegalArgumentException(
+						"Project path " + projectPath + " overlaps with existing project " + (otherPrefix.isEmpty() ? "/" : otherPrefix));
+				}
+			}
+			theProjects.add(project);
+			return project;
+		} finally {
+			theSyncLock.unlock();
+		}
+	}
+
+	/** @return All entity sets managed by this hub */
+	public List<GitEntities> getProjects() {
+		return Collections.unmodifiableList(theProjects);
+	}
+
+	/**
+	 * Fetches and merges changes from the remote, firing listeners for them in each affected project, then pushes any local commits
+	 *
+	 * @throws IOException If the synchronization fails
+	 * @throws IllegalStateException If any project has uncommitted changes
+	 */
+	public void sync() throws IOException, IllegalStateException {
+		sync(NullProgressMonitor.INSTANCE);
+	}
+
+	/**
+	 * Like {@link #sync()}, but reports progress to a monitor and stops the fetch or push if the monitor is
+	 * {@link ProgressMonitor#isCancelled() cancelled}. Once fetched changes have been merged, they are applied to all projects without
+	 * checking for cancellation.
+	 *
+	 * @param monitor The monitor to report progress to and check for cancellation
+	 * @throws IOException If the synchronization fails
+	 * @throws IllegalStateException If any project has uncommitted changes
+	 * @throws CancellationException If the monitor was cancelled before the synchronization finished
+	 */
+	public void sync(ProgressMonitor monitor) throws IOException, IllegalStateException, CancellationException {
+		theSyncLock.lock();
+		try {
+			if (!theProjects.isEmpty()) {
+				// Any project can drive the synchronization, since they all share the repository
+				sync(theProjects.get(0), monitor);
+			}
+		} finally {
+			theSyncLock.unlock();
+		}
+	}
+
+	/**
+	 * Synchronizes the repository using the remotes and settings of one of this hub's projects, e.g. the one whose
+	 * {@link GitEntities#checkAndPush(org.observe.util.VersionedEntities.ConflictResolver) checkAndPush} was called
+	 *
+	 * @param project The project to drive the synchronization
+	 * @param monitor The monitor to report progress to and check for cancellation
+	 * @throws IOException If the synchronization fails
+	 * @throws IllegalStateException If any project has uncommitted changes
+	 * @throws CancellationException If the monitor was cancelled before the synchronization finished
+	 */
+	void sync(GitEntities project, ProgressMonitor monitor) throws IOException, IllegalStateException, CancellationException {
+		theSyncLock.lock();
+		try {
+			project.syncWithRemote(monitor);
+		} finally {
+			theSyncLock.unlock();
+		}
+	}
+
+	/** @return The lock held while synchronizing the repository with the remote */
+	ReentrantLock getSyncLock() {
+		return theSyncLock;
+	}
+
+	/**
+	 * Closes all of this hub's entity sets
+	 *
+	 * @throws IOException If an entity set could not be closed
+	 */
+	public void close() throws IOException {
+		theSyncLock.lock();
+		try {
+			for (GitEntities project : theProjects) {
+				project.close();
+			}
+			theProjects.clear();
+		} finally {
+			theSyncLock.unlock();
+		}
+	}
+
+	/** @return Whether any of this hub's projects have uncommitted modifications */
+	boolean hasModifications() {
+		for (GitEntities project : theProjects) {
+			if (project.hasModifications()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Write-locks all of this hub's projects, always in the same order
+	 *
+	 * @return The transaction to close to release the locks
+	 */
+	Transaction lockAll() {
+		List<Transaction> locks = new ArrayList<>(theProjects.size());
+		for (GitEntities project : theProjects) {
+			locks.add(project.lock(true, null));
+		}
+		return () -> {
+			for (int i = locks.size() - 1; i >= 0; i--) {
+				locks.get(i).close();
+			}
+		};
+	}
+
+	/**
+	 * Parses the changes in each merged commit and fires them to the listeners of each project. Each commit's tree is only diffed once for
+	 * all projects. The caller must hold the {@link #lockAll() locks} of all projects. A listener that fails does not keep the other
+	 * listeners from being notified of the commit or any later one.
+	 *
+	 * @param previous The head before the merge
+	 * @param path The merged commits after the previous head, in order
+	 * @return The first failure of a listener, with any later ones suppressed, or null if no listener failed
+	 * @throws IOException If the commits could not be parsed
+	 */
+	IOException fireMerged(RevCommit previous, List<RevCommit> path) throws IOException {
+		IOException listenerFailure = null;
+		TreeFilter filter = getDiffFilter();
+		CanonicalTreeParser parser1 = new CanonicalTreeParser();
+		CanonicalTreeParser parser2 = new CanonicalTreeParser();
+		try (ObjectReader reader = theGit.getRepository().newObjectReader()) {
+			parser1.reset(reader, theGit.getRepository().resolve(previous.name() + "^{tree}"));
+			for (RevCommit merged : path) {
+				parser2.reset(reader, theGit.getRepository().resolve(merged.name() + "^{tree}"));
+				List<DiffEntry> diffs = GitEntities.scanDiffs(theGit.getRepository(), filter, parser1, parser2);
+				for (GitEntities project : theProjects) {
+					List<DiffEntry> projectDiffs = getProjectDiffs(project.getProjectPrefix(), diffs);
+					GitEntities.CommitImpl commit = project.parseDiffs(merged, projectDiffs, parser1, parser2, false);
+					try {
+						project.fireListeners(commit);
+					} catch (IOException e) {
+						listenerFailure = GitEntities.addFailure(listenerFailure, e);
+					}
+				}
+				CanonicalTreeParser tempTree = parser1;
+				parser1 = parser2;
+				parser2 = tempTree;
+			}
+		}
+		return listenerFailure;
+	}
+
+	/**
+	 * Records the current HEAD as the commit that each project's indexes reflect
+	 *
+	 * @throws IOException If a stamp could not be written
+	 */
+	void stampAll() throws IOException {
+		for (GitEntities project : theProjects) {
+			project.stampHead();
+		}
+	}
+
+	/** @return A filter accepting any path that any project cares about, or null if all paths should be diffed */
+	private TreeFilter getDiffFilter() {
+		List<TreeFilter> filters = new ArrayList<>(theProjects.size());
+		for (GitEntities project : theProjects) {
+			TreeFilter filter = project.getDiffFilter();
+			if (filter == null) {
+				return null;
+			}
+			filters.add(filter);
+		}
+		switch (filters.size()) {
+		case 0:
+			return TreeFilter.ALL.negate();
+		case 1:
+			return filters.get(0);
+		default:
+			return OrTreeFilter.create(filters.toArray(new TreeFilter[filters.size()]));
+		}
+	}
+
+	private static List<DiffEntry> getProjectDiffs(String prefix, List<DiffEntry> diffs) {
+		if (prefix.isEmpty()) {
+			return diffs;
+		}
+		List<DiffEntry> projectDiffs = new ArrayList<>();
+		for (DiffEntry diff : diffs) {
+			if (diff.getOldPath().startsWith(prefix) || diff.getNewPath().startsWith(prefix)) {
+				projectDiffs.add(diff);
+			}
+		}
+		return projectDiffs;
+	}
+}
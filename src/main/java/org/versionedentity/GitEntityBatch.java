@@ -0,0 +1,151 @@
+package org.versionedentity;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.qommons.Transaction;
+import org.qommons.collect.QuickSet.QuickMap;
+
+/**
+ * <p>
+ * A batch of writes to a {@link GitEntities} entity set which are gathered in memory and then applied and committed together.
+ * </p>
+ * <p>
+ * Writes to the same entity are collapsed so that only the last one is applied. On {@link #commit(String) commit}, the writes to each
+ * entity type are {@link GitEntities#mergeIntoShards(org.observe.util.VersionedEntities.EntityFormat, java.util.Iterator) merged} into
+ * its shards in ID order, so each shard touched by the batch is read and rewritten once, however many of the writes fall in it. Staging
+ * of the changed shard files in git is deferred until all writes have been applied, then performed with a single add, and all the
+ * writes are committed in a single commit. If any of this fails, the entity set is
+ * {@link GitEntities#discardModifications(org.eclipse.jgit.lib.ObjectId) restored} to the commit it was at before the batch, so no
+ * partial batch is ever left in the entity set, committed, or pushed.
+ * </p>
+ * <p>
+ * A batch is not thread-safe. Writes made to a batch are not visible in the entity set until the batch is committed.
+ * </p>
+ */
+public class GitEntityBatch implements AutoCloseable {
+	private final GitEntities theEntities;
+	/** Entity type name to ID-sorted writes. A null value is a deletion. */
+	private final Map<String, TreeMap<QuickMap<String, Object>, QuickMap<String, Object>>> theWrites;
+	private int theSize;
+	private boolean isDone;
+
+	GitEntityBatch(GitEntities entities) {
+		theEntities = entities;
+		theWrites = new TreeMap<>();
+	}
+
+	/** @return The entity set that this batch writes to */
+	public GitEntities getEntities() {
+		return theEntities;
+	}
+
+	/** @return The number of distinct entities written in this batch */
+	public int size() {
+		return theSize;
+	}
+
+	/**
+	 * Adds or replaces an entity in this batch
+	 *
+	 * @param entityType The name of the entity type
+	 * @param values The field values of the entity
+	 * @return This batch
+	 * @throws IllegalArgumentException If the entity type does not exist
+	 * @throws IllegalStateException If this batch has already been committed or closed
+	 */
+	public GitEntityBatch put(String entityType, QuickMap<String, Object> values) throws IllegalArgumentException, IllegalStateException {
+		write(entityType, values, values.copy().unmodifiable());
+		return this;
+	}
+
+	/**
+	 * Removes an entity in this batch
+	 *
+	 * @param entityType The name of the entity type
+	 * @param id The ID field values of the entity to delete
+	 * @return This batch
+	 * @throws IllegalArgumentException If the entity type does not exist
+	 * @throws IllegalStateException If this batch has already been committed or closed
+	 */
+	public GitEntityBatch delete(String entityType, QuickMap<String, Object> id) throws IllegalArgumentException, IllegalStateException {
+		write(entityType, id, null);
+		return this;
+	}
+
+	private void write(String entityType, QuickMap<String, Object> id, QuickMap<String, Object> values) {
+		if (isDone) {
+			throw new IllegalStateException("This batch has already been committed or closed");
+		}
+		TreeMap<QuickMap<String, Object>, QuickMap<String, Object>> writes = theWrites.get(entityType);
+		if (writes == null) {
+			GitEntities.EntityFormat entity = theEntities.getEntityType(entityType);
+			if (entity == null) {
+				throw new IllegalArgumentException("No such entity type: " + entityType);
+			}
+			writes = new TreeMap<>(entity::compareIds);
+			theWrites.put(entityType, writes);
+		}
+		boolean replaced = writes.containsKey(id);
+		writes.put(values != null ? values : id.copy().unmodifiable(), values);
+		if (!replaced) {
+			theSize++;
+		}
+	}
+
+	/**
+	 * Applies all the writes in this batch to the entity set and commits them
+	 *
+	 * @param message The commit message, or null to auto-generate one
+	 * @return The number of writes that replaced or removed an existing entity
+	 * @throws IOException If the writes could not be applied or committed. None of the writes are applied in this case.
+	 * @throws IllegalStateException If this batch has already been committed or closed, or if the entity set has uncommitted
+	 *         modifications
+	 */
+	public long commit(String message) throws IOException, IllegalStateException {
+		if (isDone) {
+			throw new IllegalStateException("This batch has already been committed or closed");
+		}
+		isDone = true;
+		long changed = 0;
+		try (Transaction t = theEntities.lock(true, null)) {
+			if (theEntities.hasModifications()) {
+				throw new IllegalStateException("Committing a batch with uncommitted changes");
+			}
+			ObjectId previousHead = theEntities.getHead();
+			try {
+				theEntities.setStagingDeferred(true);
+				try {
+					for (Map.Entry<String, TreeMap<QuickMap<String, Object>, QuickMap<String, Object>>> writes : theWrites.entrySet()) {
+						changed += theEntities.mergeIntoShards(theEntities.getEntityType(writes.getKey()),
+							writes.getValue().entrySet().iterator());
+					}
+				} finally {
+					theEntities.setStagingDeferred(false);
+				}
+				if (theEntities.hasModifications()) {
+					theEntities.commit(message);
+				}
+			} catch (IOException | RuntimeException e) {
+				try {
+					theEntities.discardModifications(previousHead);
+				} catch (IOException | RuntimeException e2) {
+					e.addSuppressed(e2);
+				}
+				throw e;
+			}
+		} finally {
+			theWrites.clear();
+		}
+		return changed;
+	}
+
+	/** Discards any writes in this batch that have not been committed */
+	@Override
+	public void close() {
+		isDone = true;
+		theWrites.clear();
+	}
+}
@@ -0,0 +1,164 @@
+package org.versionedentity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jgit.api.CreateBranchCommand.SetupUpstreamMode;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.qommons.Transaction;
+
+/**
+ * <p>
+ * Manages {@link GitEntities} entity sets for several branches of the same repository, e.g. several live
+ * {@link org.observe.util.VersionedEntities.BranchInfo schema versions}, so that switching between branches does not require rebuilding
+ * indexes.
+ * </p>
+ * <p>
+ * Each branch gets its own index directory under a common root, keyed by branch name. Each index directory records the HEAD commit its
+ * indexes reflect, so switching to a branch is a checkout, a lookup of the branch's (possibly still open) entity set, and a
+ * {@link GitEntities#catchUp() tree diff} from the recorded commit to the branch's current head. Entity sets for the least recently used
+ * branches are closed when more than a maximum number are open; their indexes remain on disk.
+ * </p>
+ * <p>
+ * Since all the entity sets share one working tree, only the {@link #getCurrent() current} one may be used. Switching away from a branch
+ * stops the {@link GitEntities#startSync(java.time.Duration, java.time.Duration) background synchronization} and
+ * {@link GitEntities#withMaintenance(int, int, java.time.Duration) maintenance} of its entity set.
+ * </p>
+ */
+public class GitEntityBranches {
+	private final Git theGit;
+	private final File theIndexRoot;
+	private final String theProjectPath;
+	private final CredentialsProvider theCredentials;
+	private final int theMaxOpen;
+	private final LinkedHashMap<String, GitEntities> theOpenBranches;
+	private GitEntities theCurrent;
+
+	/**
+	 * @param git The git repository to manage entities in
+	 * @param indexRoot The directory in which to put each branch's index directory
+	 * @param projectPath The path within the repository to the entity set
+	 * @param credentials The credentials to use to communicate with the remote
+	 * @param maxOpen The maximum number of entity sets to keep open
+	 * @throws IOException If the entity set for the currently checked-out branch could not be opened
+	 */
+	public GitEntityBranches(Git git, File indexRoot, String projectPath, CredentialsProvider credentials, int maxOpen)
+		throws IOException {
+		if (maxOpen < 1) {
+			throw new IllegalArgumentException("Must allow at least one open branch: " + maxOpen);
+		}
+		theGit = git;
+		theIndexRoot = indexRoot;
+		theProjectPath = projectPath;
+		theCredentials = credentials;
+		theMaxOpen = maxOpen;
+		theOpenBranches = new LinkedHashMap<>(maxOpen * 2, 0.75f, true);
+		String branch = theGit.getRepository().getBranch();
+		theCurrent = open(branch);
+		theOpenBranches.put(branch, theCurrent);
+	}
+
+	/** @return The entity set for the currently checked-out branch */
+	public synchronized GitEntities getCurrent() {
+		return theCurrent;
+	}
+
+	/**
+	 * Checks out the given branch and returns the entity set for it. If there is no local branch with the name, it is created to track
+	 * the remote's branch, or from the current HEAD if the repository has no remote.
+	 *
+	 * @param branch The name of the branch to switch to
+	 * @return The entity set for the branch
+	 * @throws IOException If the branch could not be checked out or its entity set could not be opened or updated
+	 * @throws IllegalStateException If the current entity set has uncommitted modifications
+	 */
+	public synchronized GitEntities switchTo(String branch) throws IOException, IllegalStateException {
+		if (branch.equals(theGit.getRepository().getBranch())) {
+			return theCurrent;
+		}
+		ReentrantLock syncLock = theCurrent.getSyncLock();
+		syncLock.lock(); // Wait for any synchronization of the current branch to finish
+		try (Transaction t = theCurrent.lock(true, null)) {
+			if (theCurrent.hasModifications()) {
+				throw new IllegalStateException("Cannot switch branches with uncommitted changes");
+			}
+			// An entity set can only synchronize or maintain its branch while it is checked out
+			theCurrent.stopSync();
+			theCurrent.stopMaintenance();
+			try {
+				boolean exists = theGit.getRepository().findRef(Constants.R_HEADS + branch) != null;
+				String remote = exists ? null : getRemoteName();
+				theGit.checkout()//
+					.setName(branch)//
+					.setCreateBranch(!exists)//
+					.setUpstreamMode(remote == null ? null : SetupUpstreamMode.TRACK)//
+					.setStartPoint(remote == null ? null : remote + "/" + branch)// With no remote, branch from HEAD
+					.call();
+			} catch (GitAPIException e) {
+				throw new IOException("Could not check out " + branch, e);
+			}
+		} finally {
+			syncLock.unlock();
+		}
+		GitEntities entities = theOpenBranches.get(branch);
+		if (entities == null) {
+			entities = open(branch);
+			theOpenBranches.put(branch, entities);
+		}
+		theCurrent = entities;
+		evict();
+		entities.catchUp();
+		return entities;
+	}
+
+	/**
+	 * Closes all open entity sets
+	 *
+	 * @throws IOException If an entity set could not be closed
+	 */
+	public synchronized void close() throws IOException {
+		for (GitEntities entities : theOpenBranches.values()) {
+			entities.close();
+		}
+		theOpenBranches.clear();
+	}
+
+	private GitEntities open(String branch) throws IOException {
+		return new GitEntities(theGit, new File(theIndexRoot, getIndexDirName(branch)), theProjectPath, theCredentials);
+	}
+
+	private void evict() throws IOException {
+		Iterator<Map.Entry<String, GitEntities>> iter = theOpenBranches.entrySet().iterator();
+		while (theOpenBranches.size() > theMaxOpen && iter.hasNext()) {
+			Map.Entry<String, GitEntities> eldest = iter.next();
+			if (eldest.getValue() == theCurrent) {
+				continue;
+			}
+			iter.remove();
+			eldest.getValue().close();
+		}
+	}
+
+	/** @return The name of the remote to create local branches from, or null if the repository has no remote */
+	private String getRemoteName() {
+		Iterator<String> remotes = theGit.getRepository().getRemoteNames().iterator();
+		return remotes.hasNext() ? remotes.next() : null;
+	}
+
+	private static String getIndexDirName(String branch) {
+		try {
+			return URLEncoder.encode(branch, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package org.versionedentity;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.lib.Constants;
+import org.observe.collect.ObservableSortedCollection;
+import org.observe.util.VersionedEntities.Commit;
+import org.observe.util.VersionedEntities.EntityUpdate;
+import org.qommons.Transaction;
+import org.qommons.collect.CollectionElement;
+import org.qommons.collect.ElementId;
+import org.qommons.collect.QuickSet.QuickMap;
+
+/**
+ * <p>
+ * Exposes the entities of each entity type of a {@link GitEntities} entity set as an {@link ObservableSortedCollection}, sorted by ID.
+ * </p>
+ * <p>
+ * Each collection is populated once from the entity set when first requested. After that, it is kept up to date from the change stream
+ * of the entity set: each {@link EntityUpdate} is applied as a single element addition, removal, or update, and all the updates of a
+ * commit are applied within a single transaction on the collection, so observers see one batch of events per commit.
+ * </p>
+ * <p>
+ * The collections reflect the entities committed to HEAD, not uncommitted modifications. They are unmodifiable views; the entity set
+ * must be modified directly.
+ * </p>
+ */
+public class GitEntityCollections {
+	private static class TypeCollection {
+		final ObservableSortedCollection<QuickMap<String, Object>> collection;
+		/** The unmodifiable view of the collection exposed to callers */
+		final ObservableSortedCollection<QuickMap<String, Object>> view;
+		/** Entity ID key to element in the collection */
+		final Map<String, ElementId> elements;
+
+		TypeCollection(ObservableSortedCollection<QuickMap<String, Object>> collection) {
+			this.collection = collection;
+			view = collection.flow().unmodifiable().collect();
+			elements = new HashMap<>();
+		}
+	}
+
+	private final GitEntities theEntities;
+	private final Map<String, TypeCollection> theCollections;
+	private final Runnable theListenerRemove;
+
+	/** @param entities The entity set to expose */
+	public GitEntityCollections(GitEntities entities) {
+		theEntities = entities;
+		theCollections = new ConcurrentHashMap<>();
+		theListenerRemove = entities.addListener(this::changeOccurred, false);
+	}
+
+	/** @return The entity set whose entity types this object exposes */
+	public GitEntities getEntities() {
+		return theEntities;
+	}
+
+	/**
+	 * @param entityType The name of the entity type
+	 * @return An unmodifiable observable collection of all entities of the given type committed to HEAD, sorted by ID
+	 * @throws IOException If the entities could not be read
+	 * @throws IllegalArgumentException If the entity type does not exist
+	 */
+	public ObservableSortedCollection<QuickMap<String, Object>> getCollection(String entityType)
+		throws IOException, IllegalArgumentException {
+		TypeCollection collection = theCollections.get(entityType);
+		if (collection != null) {
+			return collection.view;
+		}
+		GitEntities.EntityFormat entity = theEntities.getEntityType(entityType);
+		if (entity == null) {
+			throw new IllegalArgumentException("No such entity type: " + entityType);
+		}
+		// Hold the read lock so that no commits are applied while we load the initial content
+		try (Transaction t = theEntities.lock(false, null)) {
+			collection = theCollections.get(entityType);
+			if (collection != null) {
+				return collection.view;
+			}
+			collection = new TypeCollection(ObservableSortedCollection.build(entity::compareIds).build());
+			try (Transaction ct = collection.collection.lock(true, null);
+				Stream<QuickMap<String, Object>> rows = theEntities.scanAsOf(Constants.HEAD, entityType)) {
+				TypeCollection c = collection;
+				rows.forEach(row -> {
+					CollectionElement<QuickMap<String, Object>> element = c.collection.addElement(row, false);
+					c.elements.put(GitEntities.getIdKey(entity, row), element.getElementId());
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			theCollections.put(entityType, collection);
+		}
+		return collection.view;
+	}
+
+	/** Stops updating the collections from the entity set */
+	public void close() {
+		theListenerRemove.run();
+		theCollections.clear();
+	}
+
+	private void changeOccurred(Commit commit) {
+		Map<String, List<EntityUpdate>> byType = new HashMap<>();
+		for (EntityUpdate update : commit.getChanges()) {
+			if (theCollections.containsKey(update.getEntityType().getName())) {
+				byType.computeIfAbsent(update.getEntityType().getName(), __ -> new ArrayList<>()).add(update);
+			}
+		}
+		for (Map.Entry<String, List<EntityUpdate>> updates : byType.entrySet()) {
+			TypeCollection collection = theCollections.get(updates.getKey());
+			if (collection == null) {
+				continue;
+			}
+			try (Transaction t = collection.collection.lock(true, commit)) {
+				for (EntityUpdate update : updates.getValue()) {
+					apply(collection, update);
+				}
+			}
+		}
+	}
+
+	private static void apply(TypeCollection collection, EntityUpdate update) {
+		GitEntities.EntityFormat entity = update.getEntityType();
+		if (update.getNewValues() == null) {
+			ElementId element = collection.elements.remove(GitEntities.getIdKey(entity, update.getOldValues()));
+			if (element != null && element.isPresent()) {
+				collection.collection.mutableElement(element).remove();
+			}
+			return;
+		}
+		QuickMap<String, Object> newValues = update.getNewValues();
+		String key = GitEntities.getIdKey(entity, newValues);
+		ElementId element = collection.elements.get(key);
+		if (element != null && element.isPresent()) {
+			collection.collection.mutableElement(element).set(newValues);
+		} else {
+			collection.elements.put(key, collection.collection.addElement(newValues, false).getElementId());
+		}
+	}
+}
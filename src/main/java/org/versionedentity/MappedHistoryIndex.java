@@ -0,0 +1,210 @@
+package org.versionedentity;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * <p>
+ * A read-only, memory-mapped index of the {@link EntityHistory history} of each entity of one entity type, so that the history of very
+ * large entity sets does not need to be held on the heap.
+ * </p>
+ * <p>
+ * Each record is the length of an entity's ID key, the UTF-8 bytes of the key, the number of changes, and each change as its type, raw
+ * commit ID, and commit time. The trailer holds the number of records, the position of the record position table, and the length of the
+ * history file the index covers. The index is immutable; it is rebuilt into a new file by
+ * {@link #rebuild(File, MappedHistoryIndex, Map, long) merging} it with the changes recorded since it was built.
+ * </p>
+ */
+class MappedHistoryIndex extends MappedIndexFile {
+	private static final int MAGIC = 0x48494458; // "HIDX"
+	private static final int TRAILER_SIZE = 8 + 8 + 8 + 4;
+	private static final int ENTRY_SIZE = 1 + Constants.OBJECT_ID_LENGTH + 8;
+
+	private final long theCoveredLength;
+
+	private MappedHistoryIndex(File file, MappedByteBuffer[] segments, long keyCount, long offsetTable, long coveredLength) {
+		super(file, segments, keyCount, offsetTable);
+		theCoveredLength = coveredLength;
+	}
+
+	/**
+	 * @param file The index file
+	 * @return The mapped index, or null if the file does not exist or is not a complete index
+	 * @throws IOException If the file could not be mapped
+	 */
+	static MappedHistoryIndex open(File file) throws IOException {
+		if (!file.exists() || file.length() < TRAILER_SIZE) {
+			return null;
+		}
+		MappedByteBuffer[] segments = map(file);
+		long size = file.length();
+		MappedHistoryIndex index = new MappedHistoryIndex(file, segments, 0, 0, 0);
+		long trailer = size - TRAILER_SIZE;
+		if (index.readInt(trailer + 24) != MAGIC) {
+			return null;
+		}
+		long keyCount = index.readLong(trailer);
+		long offsetTable = index.readLong(trailer + 8);
+		if (offsetTable + keyCount * 8 != trailer) {
+			return null;
+		}
+		return new MappedHistoryIndex(file, segments, keyCount, offsetTable, index.readLong(trailer + 16));
+	}
+
+	/** @return The number of bytes of the entity type's history file that this index reflects */
+	long getCoveredLength() {
+		return theCoveredLength;
+	}
+
+	/**
+	 * @param idKey The ID key of the entity
+	 * @return The indexed changes to the entity, oldest first
+	 */
+	List<EntityHistory.HistoryEntry> get(String idKey) {
+		long record = findRecord(idKey.getBytes(StandardCharsets.UTF_8));
+		return record < 0 ? Collections.emptyList() : readEntries(getContent(record));
+	}
+
+	private List<EntityHistory.HistoryEntry> readEntries(long pos) {
+		int count = readInt(pos);
+		pos += 4;
+		List<EntityHistory.HistoryEntry> entries = new ArrayList<>(count);
+		byte[] commit = new byte[Constants.OBJECT_ID_LENGTH];
+		for (int i = 0; i < count; i++, pos += ENTRY_SIZE) {
+			EntityHistory.ChangeType type = EntityHistory.ChangeType.values()[readByte(pos)];
+			readBytes(pos + 1, commit);
+			long time = readLong(pos + 1 + commit.length);
+			entries.add(new EntityHistory.HistoryEntry(ObjectId.fromRaw(commit), Instant.ofEpochMilli(time), type));
+		}
+		return entries;
+	}
+
+	/**
+	 * Writes a new index containing the entries of an existing index plus additional entries
+	 *
+	 * @param file The file to write the index to. This must not be the file of the base index, which is still mapped.
+	 * @param base The existing index, or null
+	 * @param added Entity ID key to changes to add to the index. Changes are appended after any in the base index for the same entity.
+	 * @param coveredLength The number of bytes of the history file that the new index will reflect
+	 * @return The new index
+	 * @throws IOException If the index could not be written or mapped
+	 */
+	static MappedHistoryIndex rebuild(File file, MappedHistoryIndex base, Map<String, List<EntityHistory.HistoryEntry>> added,
+		long coveredLength) throws IOException {
+		List<byte[]> addedKeys = new ArrayList<>(added.size());
+		List<List<EntityHistory.HistoryEntry>> addedEntries = new ArrayList<>(added.size());
+		{
+			List<Map.Entry<String, List<EntityHistory.HistoryEntry>>> sorted = new ArrayList<>(added.entrySet());
+			List<byte[]> keys = new ArrayList<>(sorted.size());
+			for (Map.Entry<String, List<EntityHistory.HistoryEntry>> entry : sorted) {
+				keys.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+			}
+			Integer[] order = new Integer[sorted.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (i1, i2) -> compareKeys(keys.get(i1), keys.get(i2)));
+			for (Integer i : order) {
+				addedKeys.add(keys.get(i));
+				addedEntries.add(sorted.get(i).getValue());
+			}
+		}
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		File tempOffsets = new File(file.getPath() + ".offsets.tmp");
+		long keyCount = 0;
+		long pos = 0;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+			DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempOffsets), 64 * 1024))) {
+			long baseRecord = 0;
+			long baseEnd = base == null ? 0 : base.getOffsetTable();
+			int a = 0;
+			byte[] commit = new byte[Constants.OBJECT_ID_LENGTH];
+			while (baseRecord < baseEnd || a < addedKeys.size()) {
+				byte[] baseKey = baseRecord < baseEnd ? base.readKey(baseRecord) : null;
+				int comp;
+				if (baseKey == null) {
+					comp = 1;
+				} else if (a == addedKeys.size()) {
+					comp = -1;
+				} else {
+					comp = compareKeys(baseKey, addedKeys.get(a));
+				}
+				byte[] key = comp <= 0 ? baseKey : addedKeys.get(a);
+				int baseCount = 0;
+				long baseEntries = 0;
+				if (comp <= 0) {
+					baseEntries = baseRecord + 4 + baseKey.length;
+					baseCount = base.readInt(baseEntries);
+					baseEntries += 4;
+					baseRecord = baseEntries + (long) baseCount * ENTRY_SIZE;
+				}
+				List<EntityHistory.HistoryEntry> newEntries = comp >= 0 ? addedEntries.get(a++) : Collections.emptyList();
+
+				offsets.writeLong(pos);
+				keyCount++;
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeInt(baseCount + newEntries.size());
+				pos += 4 + key.length + 4;
+				for (int i = 0; i < baseCount; i++, baseEntries += ENTRY_SIZE) {
+					out.writeByte(base.readByte(baseEntries));
+					base.readBytes(baseEntries + 1, commit);
+					out.write(commit);
+					out.writeLong(base.readLong(baseEntries + 1 + commit.length));
+				}
+				for (EntityHistory.HistoryEntry entry : newEntries) {
+					out.writeByte(entry.getChangeType().ordinal());
+					entry.getCommitId().copyRawTo(commit, 0);
+					out.write(commit);
+					out.writeLong(entry.getCommitTime().toEpochMilli());
+				}
+				pos += (long) (baseCount + newEntries.size()) * ENTRY_SIZE;
+			}
+			offsets.flush();
+			long offsetTable = pos;
+			try (InputStream in = new FileInputStream(tempOffsets)) {
+				byte[] buffer = new byte[64 * 1024];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, read);
+				}
+			}
+			out.writeLong(keyCount);
+			out.writeLong(offsetTable);
+			out.writeLong(coveredLength);
+			out.writeInt(MAGIC);
+		} finally {
+			tempOffsets.delete();
+		}
+		if (!tempFile.renameTo(file)) {
+			throw new IOException("Could not rename " + tempFile.getPath() + " to " + file.getPath());
+		}
+		MappedHistoryIndex index = open(file);
+		if (index == null) {
+			throw new IOException("Could not read back " + file.getPath());
+		}
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return getFile().getName() + " (" + getKeyCount() + " entities)";
+	}
+}
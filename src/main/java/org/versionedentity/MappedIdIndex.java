@@ -0,0 +1,165 @@
+package org.versionedentity;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A read-only, memory-mapped index of the shard containing each entity of one entity type, the storage of an {@link OffHeapIdIndex}.
+ * </p>
+ * <p>
+ * Each record is the length of an entity's ID key, the UTF-8 bytes of the key, and the file index of the shard containing the entity.
+ * The trailer holds the number of records and the position of the record position table. The index is immutable; it is rebuilt into a new
+ * file by {@link #rebuild(File, MappedIdIndex, Map) merging} it with the changes made since it was built.
+ * </p>
+ */
+class MappedIdIndex extends MappedIndexFile {
+	private static final int MAGIC = 0x49494458; // "IIDX"
+	private static final int TRAILER_SIZE = 8 + 8 + 4;
+
+	private MappedIdIndex(File file, MappedByteBuffer[] segments, long keyCount, long offsetTable) {
+		super(file, segments, keyCount, offsetTable);
+	}
+
+	/**
+	 * @param file The index file
+	 * @return The mapped index, or null if the file does not exist or is not a complete index
+	 * @throws IOException If the file could not be mapped
+	 */
+	static MappedIdIndex open(File file) throws IOException {
+		if (!file.exists() || file.length() < TRAILER_SIZE) {
+			return null;
+		}
+		MappedByteBuffer[] segments = map(file);
+		MappedIdIndex index = new MappedIdIndex(file, segments, 0, 0);
+		long trailer = file.length() - TRAILER_SIZE;
+		if (index.readInt(trailer + 16) != MAGIC) {
+			return null;
+		}
+		long keyCount = index.readLong(trailer);
+		long offsetTable = index.readLong(trailer + 8);
+		if (offsetTable + keyCount * 8 != trailer) {
+			return null;
+		}
+		return new MappedIdIndex(file, segments, keyCount, offsetTable);
+	}
+
+	/**
+	 * @param idKey The ID key of the entity
+	 * @return The file index of the shard containing the entity, or -1 if the entity is not in this index
+	 */
+	int getShard(String idKey) {
+		long record = findRecord(idKey.getBytes(StandardCharsets.UTF_8));
+		return record < 0 ? -1 : readInt(getContent(record));
+	}
+
+	/**
+	 * Writes a new index containing the entries of an existing index with changes applied
+	 *
+	 * @param file The file to write the index to. This must not be the file of the base index, which is still mapped.
+	 * @param base The existing index, or null
+	 * @param changes Entity ID key to the file index of the shard now containing the entity, or to a negative value for entities that
+	 *        have been removed
+	 * @return The new index
+	 * @throws IOException If the index could not be written or mapped
+	 */
+	static MappedIdIndex rebuild(File file, MappedIdIndex base, Map<String, Integer> changes) throws IOException {
+		byte[][] changedKeys = new byte[changes.size()][];
+		int[] changedShards = new int[changes.size()];
+		{
+			List<Map.Entry<String, Integer>> entries = new ArrayList<>(changes.entrySet());
+			byte[][] keys = new byte[entries.size()][];
+			Integer[] order = new Integer[entries.size()];
+			for (int i = 0; i < order.length; i++) {
+				keys[i] = entries.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+				order[i] = i;
+			}
+			Arrays.sort(order, (i1, i2) -> compareKeys(keys[i1], keys[i2]));
+			for (int i = 0; i < order.length; i++) {
+				changedKeys[i] = keys[order[i]];
+				changedShards[i] = entries.get(order[i]).getValue();
+			}
+		}
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		File tempOffsets = new File(file.getPath() + ".offsets.tmp");
+		long keyCount = 0;
+		long pos = 0;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+			DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempOffsets), 64 * 1024))) {
+			long baseRecord = 0;
+			long baseEnd = base == null ? 0 : base.getOffsetTable();
+			int c = 0;
+			while (baseRecord < baseEnd || c < changedKeys.length) {
+				byte[] baseKey = baseRecord < baseEnd ? base.readKey(baseRecord) : null;
+				int comp;
+				if (baseKey == null) {
+					comp = 1;
+				} else if (c == changedKeys.length) {
+					comp = -1;
+				} else {
+					comp = compareKeys(baseKey, changedKeys[c]);
+				}
+				byte[] key;
+				int shard;
+				if (comp < 0) {
+					key = baseKey;
+					shard = base.readInt(base.getContent(baseRecord));
+				} else {
+					key = changedKeys[c];
+					shard = changedShards[c++];
+				}
+				if (comp <= 0) {
+					baseRecord = base.getContent(baseRecord) + 4;
+				}
+				if (shard < 0) {
+					continue; // Removed
+				}
+				offsets.writeLong(pos);
+				keyCount++;
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeInt(shard);
+				pos += 4 + key.length + 4;
+			}
+			offsets.flush();
+			long offsetTable = pos;
+			try (InputStream in = new FileInputStream(tempOffsets)) {
+				byte[] buffer = new byte[64 * 1024];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, read);
+				}
+			}
+			out.writeLong(keyCount);
+			out.writeLong(offsetTable);
+			out.writeInt(MAGIC);
+		} finally {
+			tempOffsets.delete();
+		}
+		if (!tempFile.renameTo(file)) {
+			throw new IOException("Could not rename " + tempFile.getPath() + " to " + file.getPath());
+		}
+		MappedIdIndex index = open(file);
+		if (index == null) {
+			throw new IOException("Could not read back " + file.getPath());
+		}
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return getFile().getName() + " (" + getKeyCount() + " entities)";
+	}
+}
@@ -0,0 +1,244 @@
+package org.versionedentity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A read-only, memory-mapped index file whose records are sorted by a byte key, such as the UTF-8 bytes of an entity's ID key.
+ * </p>
+ * <p>
+ * The file consists of its records, each beginning with the length of its key and the key itself, followed by a table of the position of
+ * each record, followed by a trailer. Subclasses define the rest of each record and of the trailer. Index files are never modified,
+ * deleted, or replaced while they are mapped, which some platforms do not allow. Instead, each rebuild of an index writes a new
+ * {@link #getGenerationFile(File, String, long, String) generation} of the file, and older generations are deleted when they can be.
+ * </p>
+ */
+abstract class MappedIndexFile {
+	static final long SEGMENT_SIZE = 1L << 30;
+
+	private final File theFile;
+	private final MappedByteBuffer[] theSegments;
+	private final long theKeyCount;
+	private final long theOffsetTable;
+
+	MappedIndexFile(File file, MappedByteBuffer[] segments, long keyCount, long offsetTable) {
+		theFile = file;
+		theSegments = segments;
+		theKeyCount = keyCount;
+		theOffsetTable = offsetTable;
+	}
+
+	/**
+	 * @param file The file to map
+	 * @return The mapped segments of the file
+	 * @throws IOException If the file could not be mapped
+	 */
+	static MappedByteBuffer[] map(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			long size = channel.size();
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+			}
+			return segments;
+		}
+	}
+
+	/** @return The mapped file */
+	File getFile() {
+		return theFile;
+	}
+
+	/** @return The number of records in this index */
+	long getKeyCount() {
+		return theKeyCount;
+	}
+
+	/** @return The position of the table of record positions, which is also the end of the records */
+	long getOffsetTable() {
+		return theOffsetTable;
+	}
+
+	/**
+	 * @param key The key to find
+	 * @return The position of the record with the given key, or -1 if there is no such record
+	 */
+	long findRecord(byte[] key) {
+		long low = 0, high = theKeyCount - 1;
+		while (low <= high) {
+			long mid = (low + high) >>> 1;
+			long record = readLong(theOffsetTable + mid * 8);
+			int comp = compareKey(record, key);
+			if (comp < 0) {
+				low = mid + 1;
+			} else if (comp > 0) {
+				high = mid - 1;
+			} else {
+				return record;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param record The position of a record
+	 * @return The key of the record
+	 */
+	byte[] readKey(long record) {
+		byte[] key = new byte[readInt(record)];
+		readBytes(record + 4, key);
+		return key;
+	}
+
+	/**
+	 * @param record The position of a record
+	 * @return The position of the content of the record after its key
+	 */
+	long getContent(long record) {
+		return record + 4 + readInt(record);
+	}
+
+	private int compareKey(long record, byte[] key) {
+		int len = readInt(record);
+		long pos = record + 4;
+		for (int i = 0; i < len && i < key.length; i++) {
+			int comp = Integer.compare(readByte(pos + i) & 0xff, key[i] & 0xff);
+			if (comp != 0) {
+				return comp;
+			}
+		}
+		return Integer.compare(len, key.length);
+	}
+
+	static int compareKeys(byte[] key1, byte[] key2) {
+		for (int i = 0; i < key1.length && i < key2.length; i++) {
+			int comp = Integer.compare(key1[i] & 0xff, key2[i] & 0xff);
+			if (comp != 0) {
+				return comp;
+			}
+		}
+		return Integer.compare(key1.length, key2.length);
+	}
+
+	byte readByte(long pos) {
+		return theSegments[(int) (pos / SEGMENT_SIZE)].get((int) (pos % SEGMENT_SIZE));
+	}
+
+	void readBytes(long pos, byte[] dest) {
+		for (int i = 0; i < dest.length; i++) {
+			dest[i] = readByte(pos + i);
+		}
+	}
+
+	int readInt(long pos) {
+		int offset = (int) (pos % SEGMENT_SIZE);
+		MappedByteBuffer segment = theSegments[(int) (pos / SEGMENT_SIZE)];
+		if (offset + 4 <= segment.limit()) {
+			return segment.getInt(offset);
+		}
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (readByte(pos + i) & 0xff);
+		}
+		return value;
+	}
+
+	long readLong(long pos) {
+		int offset = (int) (pos % SEGMENT_SIZE);
+		MappedByteBuffer segment = theSegments[(int) (pos / SEGMENT_SIZE)];
+		if (offset + 8 <= segment.limit()) {
+			return segment.getLong(offset);
+		}
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (readByte(pos + i) & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * Releases this index's mappings. Java offers no way to unmap a file explicitly, so the memory is unmapped when the buffers are
+	 * garbage-collected. This index may not be used afterward.
+	 */
+	void close() {
+		Arrays.fill(theSegments, null);
+	}
+
+	/**
+	 * @param directory The directory of the index files
+	 * @param name The name of the index
+	 * @param generation The generation of the index
+	 * @param extension The extension of the index files, including the '.'
+	 * @return The file for the given generation of the index
+	 */
+	static File getGenerationFile(File directory, String name, long generation, String extension) {
+		return new File(directory, name + "." + generation + extension);
+	}
+
+	/**
+	 * @param directory The directory of the index files
+	 * @param name The name of the index
+	 * @param extension The extension of the index files, including the '.'
+	 * @return The newest generation of the index in the directory, or -1 if there is none
+	 */
+	static long getLatestGeneration(File directory, String name, String extension) {
+		long latest = -1;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				latest = Math.max(latest, parseGeneration(file.getName(), name, extension));
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * Deletes all generations of an index but one. Files that cannot be deleted, e.g. because they are still mapped, are left for the
+	 * next call.
+	 *
+	 * @param directory The directory of the index files
+	 * @param name The name of the index
+	 * @param extension The extension of the index files, including the '.'
+	 * @param keep The generation to keep
+	 */
+	static void deleteOldGenerations(File directory, String name, String extension, long keep) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				long generation = parseGeneration(file.getName(), name, extension);
+				if ((generation >= 0 && generation != keep) || file.getName().equals(name + extension)) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	private static long parseGeneration(String fileName, String name, String extension) {
+		if (!fileName.startsWith(name) || !fileName.endsWith(extension) || fileName.length() <= name.length() + 1 + extension.length()
+			|| fileName.charAt(name.length()) != '.') {
+			return -1;
+		}
+		String generation = fileName.substring(name.length() + 1, fileName.length() - extension.length());
+		for (int i = 0; i < generation.length(); i++) {
+			if (generation.charAt(i) < '0' || generation.charAt(i) > '9') {
+				return -1;
+			}
+		}
+		try {
+			return Long.parseLong(generation);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return theFile.getName() + " (" + theKeyCount + " keys)";
+	}
+}
@@ -0,0 +1,360 @@
+package org.versionedentity;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.qommons.collect.QuickSet.QuickMap;
+
+/**
+ * <p>
+ * Hash summaries of the content of a {@link GitEntities} entity set, for checking whether two replicas (or a replica and a commit) hold
+ * the same data without comparing every row.
+ * </p>
+ * <p>
+ * Each row is hashed on its own. Each shard's hash is the sum of its rows' hashes (and their count), which can be updated incrementally
+ * as rows are added and removed without re-reading the shard. An entity type's hash is a digest of its shard hashes in shard order, and
+ * the {@link #getRootHash() root hash} is a digest of the entity type hashes, forming a Merkle tree. Two summaries are
+ * {@link #diff(MerkleSummary) compared} from the root down, so only the shards that actually differ need to be
+ * {@link GitEntities#getRowHashes(String, int) compared row-by-row}.
+ * </p>
+ */
+public class MerkleSummary {
+	/** The additive hash of the rows in a shard */
+	static class ShardSum {
+		long count;
+		long hash1;
+		long hash2;
+
+		ShardSum() {}
+
+		ShardSum(long count, long hash1, long hash2) {
+			this.count = count;
+			this.hash1 = hash1;
+			this.hash2 = hash2;
+		}
+
+		void add(long[] rowHash, int sign) {
+			count += sign;
+			hash1 += sign * rowHash[0];
+			hash2 += sign * rowHash[1];
+		}
+
+		boolean isEmpty() {
+			return count == 0 && hash1 == 0 && hash2 == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(hash1);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ShardSum)) {
+				return false;
+			}
+			ShardSum other = (ShardSum) obj;
+			return count == other.count && hash1 == other.hash1 && hash2 == other.hash2;
+		}
+
+		@Override
+		public String toString() {
+			return count + ":" + toHex(hash1) + toHex(hash2);
+		}
+	}
+
+	private final File theFile;
+	/** Entity type to (shard index to sum) */
+	private final Map<String, TreeMap<Integer, ShardSum>> theShards;
+	private boolean isDirty;
+
+	MerkleSummary(File file) {
+		theFile = file;
+		theShards = new TreeMap<>();
+	}
+
+	/** @return The names of all entity types with content in this summary */
+	public synchronized NavigableSet<String> getEntityTypes() {
+		return Collections.unmodifiableNavigableSet(new TreeSet<>(theShards.keySet()));
+	}
+
+	/**
+	 * @param entityType The name of the entity type
+	 * @return The number of rows of the entity type
+	 */
+	public synchronized long getRowCount(String entityType) {
+		TreeMap<Integer, ShardSum> shards = theShards.get(entityType);
+		long count = 0;
+		if (shards != null) {
+			for (ShardSum sum : shards.values()) {
+				count += sum.count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param entityType The name of the entity type
+	 * @param shard The index of the shard
+	 * @return The hash of the shard's rows, or null if the shard has no rows
+	 */
+	public synchronized String getShardHash(String entityType, int shard) {
+		TreeMap<Integer, ShardSum> shards = theShards.get(entityType);
+		ShardSum sum = shards == null ? null : shards.get(shard);
+		return sum == null ? null : sum.toString();
+	}
+
+	/**
+	 * @param entityType The name of the entity type
+	 * @return The hash of all of the entity type's rows, or null if the entity type has no rows
+	 */
+	public synchronized String getTypeHash(String entityType) {
+		TreeMap<Integer, ShardSum> shards = theShards.get(entityType);
+		if (shards == null) {
+			return null;
+		}
+		MessageDigest digest = newDigest();
+		for (Map.Entry<Integer, ShardSum> shard : shards.entrySet()) {
+			update(digest, shard.getKey() + "=" + shard.getValue());
+		}
+		return toHex(digest.digest());
+	}
+
+	/** @return The hash of all rows of all entity types */
+	public synchronized String getRootHash() {
+		MessageDigest digest = newDigest();
+		for (String entityType : theShards.keySet()) {
+			update(digest, entityType + "=" + getTypeHash(entityType));
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param other The summary to compare with
+	 * @return Each entity type with differing content, with the indexes of the shards that differ. Empty if the summaries are the same.
+	 */
+	public Map<String, NavigableSet<Integer>> diff(MerkleSummary other) {
+		Map<String, NavigableSet<Integer>> diffs = new LinkedHashMap<>();
+		if (getRootHash().equals(other.getRootHash())) {
+			return diffs;
+		}
+		Set<String> entityTypes = new TreeSet<>(getEntityTypes());
+		entityTypes.addAll(other.getEntityTypes());
+		for (String entityType : entityTypes) {
+			String hash = getTypeHash(entityType);
+			if (hash != null && hash.equals(other.getTypeHash(entityType))) {
+				continue;
+			}
+			Map<Integer, ShardSum> shards = getShards(entityType);
+			Map<Integer, ShardSum> otherShards = other.getShards(entityType);
+			NavigableSet<Integer> diffShards = new TreeSet<>(shards.keySet());
+			diffShards.addAll(otherShards.keySet());
+			diffShards.removeIf(shard -> shards.containsKey(shard) && shards.get(shard).equals(otherShards.get(shard)));
+			diffs.put(entityType, Collections.unmodifiableNavigableSet(diffShards));
+		}
+		return diffs;
+	}
+
+	private synchronized Map<Integer, ShardSum> getShards(String entityType) {
+		TreeMap<Integer, ShardSum> shards = theShards.get(entityType);
+		if (shards == null) {
+			return Collections.emptyMap();
+		}
+		Map<Integer, ShardSum> copy = new TreeMap<>();
+		for (Map.Entry<Integer, ShardSum> shard : shards.entrySet()) {
+			ShardSum sum = shard.getValue();
+			copy.put(shard.getKey(), new ShardSum(sum.count, sum.hash1, sum.hash2));
+		}
+		return copy;
+	}
+
+	synchronized void add(String entityType, long[] rowHash, int shard) {
+		modify(entityType, shard, rowHash, 1);
+	}
+
+	synchronized void remove(String entityType, long[] rowHash, int shard) {
+		modify(entityType, shard, rowHash, -1);
+	}
+
+	synchronized void putShard(String entityType, int shard, ShardSum sum) {
+		if (sum.isEmpty()) {
+			return;
+		}
+		theShards.computeIfAbsent(entityType, __ -> new TreeMap<>()).put(shard, sum);
+		isDirty = true;
+	}
+
+	private void modify(String entityType, int shard, long[] rowHash, int sign) {
+		TreeMap<Integer, ShardSum> shards = theShards.computeIfAbsent(entityType, __ -> new TreeMap<>());
+		ShardSum sum = shards.computeIfAbsent(shard, __ -> new ShardSum());
+		sum.add(rowHash, sign);
+		if (sum.isEmpty()) {
+			shards.remove(shard);
+			if (shards.isEmpty()) {
+				theShards.remove(entityType);
+			}
+		}
+		isDirty = true;
+	}
+
+	/**
+	 * Updates the summary for a shard file that has been renamed without changing its content
+	 *
+	 * @param entityType The name of the entity type of the shard
+	 * @param oldShard The previous index of the shard
+	 * @param newShard The new index of the shard
+	 */
+	synchronized void shardRenamed(String entityType, int oldShard, int newShard) {
+		TreeMap<Integer, ShardSum> shards = theShards.get(entityType);
+		ShardSum sum = shards == null ? null : shards.remove(oldShard);
+		if (sum != null) {
+			ShardSum existing = shards.get(newShard);
+			if (existing != null) {
+				sum = new ShardSum(sum.count + existing.count, sum.hash1 + existing.hash1, sum.hash2 + existing.hash2);
+			}
+			shards.put(newShard, sum);
+			isDirty = true;
+		}
+	}
+
+	synchronized void clear() {
+		theShards.clear();
+		isDirty = true;
+	}
+
+	/**
+	 * @param head The commit that the summary is being loaded for
+	 * @return Whether the summary was loaded from its file. False if the file does not exist or was written for a different commit.
+	 * @throws IOException If the summary file could not be read
+	 */
+	synchronized boolean load(String head) throws IOException {
+		theShards.clear();
+		if (theFile == null || !theFile.exists()) {
+			return false;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(theFile), StandardCharsets.UTF_8))) {
+			String line = reader.readLine();
+			if (line == null || !line.equals(head)) {
+				return false;
+			}
+			for (line = reader.readLine(); line != null; line = reader.readLine()) {
+				String[] split = line.split("\t");
+				if (split.length != 5) {
+					throw new IOException("Bad summary line in " + theFile.getPath() + ": " + line);
+				}
+				try {
+					theShards.computeIfAbsent(SecondaryIndex.unescape(split[0]), __ -> new TreeMap<>()).put(Integer.parseInt(split[1]),
+						new ShardSum(Long.parseLong(split[2]), Long.parseUnsignedLong(split[3], 16), Long.parseUnsignedLong(split[4], 16)));
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad summary line in " + theFile.getPath() + ": " + line, e);
+				}
+			}
+		}
+		isDirty = false;
+		return true;
+	}
+
+	/**
+	 * Writes this summary to its file if it has changed
+	 *
+	 * @param head The commit that the summary's content reflects
+	 * @throws IOException If the summary file could not be written
+	 */
+	synchronized void save(String head) throws IOException {
+		if (theFile == null || !isDirty) {
+			return;
+		}
+		theFile.getParentFile().mkdirs();
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(theFile), StandardCharsets.UTF_8))) {
+			writer.write(head == null ? "" : head);
+			writer.write('\n');
+			for (Map.Entry<String, TreeMap<Integer, ShardSum>> entityType : theShards.entrySet()) {
+				String escaped = SecondaryIndex.escape(entityType.getKey());
+				for (Map.Entry<Integer, ShardSum> shard : entityType.getValue().entrySet()) {
+					writer.write(escaped);
+					writer.write('\t');
+					writer.write(shard.getKey().toString());
+					writer.write('\t');
+					writer.write(Long.toString(shard.getValue().count));
+					writer.write('\t');
+					writer.write(Long.toHexString(shard.getValue().hash1));
+					writer.write('\t');
+					writer.write(Long.toHexString(shard.getValue().hash2));
+					writer.write('\n');
+				}
+			}
+		}
+		isDirty = false;
+	}
+
+	/**
+	 * @param fields The fields of the entity's type, in order
+	 * @param values All values of an entity
+	 * @return The 128-bit hash of the entity's values
+	 */
+	static long[] hashRow(List<String> fields, QuickMap<String, Object> values) {
+		MessageDigest digest = newDigest();
+		for (String field : fields) {
+			update(digest, String.valueOf(values.get(field)));
+			digest.update((byte) 0x1f);
+		}
+		byte[] bytes = digest.digest();
+		long[] hash = new long[2];
+		for (int i = 0; i < 16; i++) {
+			hash[i / 8] = (hash[i / 8] << 8) | (bytes[i] & 0xff);
+		}
+		return hash;
+	}
+
+	static String toHex(long[] hash) {
+		return toHex(hash[0]) + toHex(hash[1]);
+	}
+
+	private static String toHex(long value) {
+		String hex = Long.toHexString(value);
+		return hex.length() == 16 ? hex : "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder str = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			str.append(Character.forDigit((b >>> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return str.toString();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not supported", e);
+		}
+	}
+
+	private static void update(MessageDigest digest, String str) {
+		digest.update(str.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public String toString() {
+		return "Summary " + getRootHash();
+	}
+}
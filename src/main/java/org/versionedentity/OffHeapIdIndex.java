@@ -0,0 +1,226 @@
+package org.versionedentity;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.qommons.io.FileUtils;
+
+/**
+ * <p>
+ * An index of the shard containing each entity of a {@link GitEntities} entity set, stored off-heap so that looking up an entity of a
+ * very large entity set does not require a large heap.
+ * </p>
+ * <p>
+ * The index of each entity type is kept in a {@link MappedIdIndex memory-mapped file}. Only the changes made since the file was last
+ * built are held on the heap. They are merged into a new generation of the file when there are enough of them and when the index is
+ * {@link #save(String) saved}. A saved index is stamped with the commit it reflects, so reopening it only requires mapping its files. The
+ * stamp is removed as soon as the index changes again, so an index that was not saved is rebuilt when it is next opened.
+ * </p>
+ */
+class OffHeapIdIndex {
+	/** The number of changes to an entity type held on the heap before they are merged into the type's index file */
+	static final int MERGE_THRESHOLD = 1 << 16;
+	private static final String HEAD_FILE = "head";
+	private static final String INDEX_EXTENSION = ".iidx";
+
+	private final File theDirectory;
+	/** Entity type to mapped index */
+	private final Map<String, MappedIdIndex> theIndexes;
+	/** Entity type to (ID key to shard index, or -1 for removed entities) not yet merged into the type's index file */
+	private final Map<String, Map<String, Integer>> theChanges;
+	private boolean isStamped;
+
+	OffHeapIdIndex(File directory) {
+		theDirectory = directory;
+		theIndexes = new HashMap<>();
+		theChanges = new HashMap<>();
+	}
+
+	/**
+	 * @param directory The index directory
+	 * @return Whether an off-heap ID index has been created in the directory
+	 */
+	static boolean exists(File directory) {
+		return directory.isDirectory();
+	}
+
+	/**
+	 * Maps the index files
+	 *
+	 * @return The commit that the index reflects, or null if the index was not saved and must be rebuilt
+	 * @throws IOException If the index files could not be read
+	 */
+	synchronized String load() throws IOException {
+		close();
+		File headFile = new File(theDirectory, HEAD_FILE);
+		if (!headFile.exists()) {
+			return null;
+		}
+		String head;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(headFile), StandardCharsets.UTF_8))) {
+			head = reader.readLine();
+		}
+		Set<String> entityTypes = new LinkedHashSet<>();
+		File[] files = theDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				int dot = name.endsWith(INDEX_EXTENSION) ? name.lastIndexOf('.', name.length() - INDEX_EXTENSION.length() - 1) : -1;
+				if (dot > 0) {
+					entityTypes.add(name.substring(0, dot));
+				}
+			}
+		}
+		for (String entityType : entityTypes) {
+			long generation = MappedIndexFile.getLatestGeneration(theDirectory, entityType, INDEX_EXTENSION);
+			MappedIdIndex index = generation < 0 ? null
+				: MappedIdIndex.open(MappedIndexFile.getGenerationFile(theDirectory, entityType, generation, INDEX_EXTENSION));
+			if (index == null) {
+				close();
+				return null;
+			}
+			theIndexes.put(entityType, index);
+			MappedIndexFile.deleteOldGenerations(theDirectory, entityType, INDEX_EXTENSION, generation);
+		}
+		isStamped = true;
+		return head == null ? "" : head;
+	}
+
+	/**
+	 * @param entityType The name of the entity type
+	 * @param idKey The {@link GitEntities#getIdKey(org.observe.util.VersionedEntities.EntityFormat, org.qommons.collect.QuickSet.QuickMap)
+	 *        ID key} of the entity
+	 * @return The file index of the shard containing the entity, or -1 if there is no such entity
+	 */
+	synchronized int getShard(String entityType, String idKey) {
+		Map<String, Integer> changes = theChanges.get(entityType);
+		Integer changed = changes == null ? null : changes.get(idKey);
+		if (changed != null) {
+			return changed;
+		}
+		MappedIdIndex index = theIndexes.get(entityType);
+		return index == null ? -1 : index.getShard(idKey);
+	}
+
+	/**
+	 * Records the shard containing an entity
+	 *
+	 * @param entityType The name of the entity type
+	 * @param idKey The ID key of the entity
+	 * @param shard The file index of the shard now containing the entity
+	 * @throws IOException If the changes could not be merged into the type's index file
+	 */
+	synchronized void put(String entityType, String idKey, int shard) throws IOException {
+		Map<String, Integer> changes = theChanges.computeIfAbsent(entityType, __ -> new HashMap<>());
+		changes.put(idKey, shard);
+		changed(entityType, changes);
+	}
+
+	/**
+	 * Records that an entity has been removed from a shard. Nothing is changed if the entity is known to be in a different shard.
+	 *
+	 * @param entityType The name of the entity type
+	 * @param idKey The ID key of the entity
+	 * @param shard The file index of the shard the entity was removed from
+	 * @throws IOException If the changes could not be merged into the type's index file
+	 */
+	synchronized void remove(String entityType, String idKey, int shard) throws IOException {
+		if (getShard(entityType, idKey) != shard) {
+			return;
+		}
+		Map<String, Integer> changes = theChanges.computeIfAbsent(entityType, __ -> new HashMap<>());
+		MappedIdIndex index = theIndexes.get(entityType);
+		if (index != null && index.getShard(idKey) >= 0) {
+			changes.put(idKey, -1);
+		} else {
+			changes.remove(idKey);
+		}
+		changed(entityType, changes);
+	}
+
+	private void changed(String entityType, Map<String, Integer> changes) throws IOException {
+		if (isStamped) {
+			File headFile = new File(theDirectory, HEAD_FILE);
+			if (headFile.exists() && !headFile.delete()) {
+				throw new IOException("Could not delete " + headFile.getPath());
+			}
+			isStamped = false;
+		}
+		if (changes.size() >= MERGE_THRESHOLD) {
+			merge(entityType);
+		}
+	}
+
+	/**
+	 * Merges the changes held on the heap for an entity type into a new generation of the type's index file
+	 *
+	 * @param entityType The entity type to merge the changes of
+	 * @throws IOException If the index could not be written
+	 */
+	private void merge(String entityType) throws IOException {
+		Map<String, Integer> changes = theChanges.remove(entityType);
+		if (changes == null || changes.isEmpty()) {
+			return;
+		}
+		theDirectory.mkdirs();
+		long generation = MappedIndexFile.getLatestGeneration(theDirectory, entityType, INDEX_EXTENSION) + 1;
+		MappedIdIndex old = theIndexes.get(entityType);
+		MappedIdIndex index = MappedIdIndex.rebuild(MappedIndexFile.getGenerationFile(theDirectory, entityType, generation, INDEX_EXTENSION),
+			old, changes);
+		theIndexes.put(entityType, index);
+		if (old != null) {
+			old.close();
+		}
+		MappedIndexFile.deleteOldGenerations(theDirectory, entityType, INDEX_EXTENSION, generation);
+	}
+
+	/**
+	 * Merges all changes into the index files and stamps the index with the commit it reflects
+	 *
+	 * @param head The commit that the index reflects
+	 * @throws IOException If the index could not be written
+	 */
+	synchronized void save(String head) throws IOException {
+		for (String entityType : theChanges.keySet().toArray(new String[theChanges.size()])) {
+			merge(entityType);
+		}
+		theDirectory.mkdirs();
+		try (OutputStream out = new FileOutputStream(new File(theDirectory, HEAD_FILE))) {
+			out.write((head == null ? "" : head).getBytes(StandardCharsets.UTF_8));
+		}
+		isStamped = true;
+	}
+
+	/**
+	 * Deletes the index, so that it can be rebuilt
+	 *
+	 * @throws IOException If the index files could not be deleted
+	 */
+	synchronized void clear() throws IOException {
+		close();
+		if (theDirectory.exists()) {
+			FileUtils.delete(theDirectory, null);
+		}
+		theDirectory.mkdirs();
+	}
+
+	/** Releases the mappings of this index's files and discards any unsaved changes */
+	synchronized void close() {
+		for (MappedIdIndex index : theIndexes.values()) {
+			index.close();
+		}
+		theIndexes.clear();
+		theChanges.clear();
+		isStamped = false;
+	}
+}
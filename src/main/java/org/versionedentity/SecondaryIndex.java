@@ -0,0 +1,242 @@
+package org.versionedentity;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * An index on a non-ID field of an entity type in a {@link GitEntities} entity set.
+ * </p>
+ * <p>
+ * Rather than pointing to individual entities, this index keeps track of which shard files contain entities with each value of the field,
+ * and how many. This keeps the index small and independent of the entity's ID types, while allowing a query to only read the few shards
+ * that can contain matches.
+ * </p>
+ */
+public class SecondaryIndex {
+	private final String theEntityType;
+	private final String theField;
+	private final File theFile;
+	/** Value key to (shard index to entity count) */
+	private final Map<String, TreeMap<Integer, Integer>> theValues;
+	private boolean isDirty;
+
+	SecondaryIndex(String entityType, String field, File file) {
+		theEntityType = entityType;
+		theField = field;
+		theFile = file;
+		theValues = new TreeMap<>();
+	}
+
+	/** @return The name of the entity type this index is for */
+	public String getEntityType() {
+		return theEntityType;
+	}
+
+	/** @return The name of the field this index is on */
+	public String getField() {
+		return theField;
+	}
+
+	/**
+	 * @param value The field value to get the shards for
+	 * @return The indexes of all shard files containing entities whose indexed field has the given value, in order
+	 */
+	public synchronized int[] getShards(Object value) {
+		TreeMap<Integer, Integer> shards = theValues.get(keyFor(value));
+		if (shards == null) {
+			return new int[0];
+		}
+		int[] result = new int[shards.size()];
+		int i = 0;
+		for (Integer shard : shards.keySet()) {
+			result[i++] = shard;
+		}
+		return result;
+	}
+
+	synchronized void add(Object value, int shard) {
+		theValues.computeIfAbsent(keyFor(value), __ -> new TreeMap<>()).merge(shard, 1, Integer::sum);
+		isDirty = true;
+	}
+
+	synchronized void remove(Object value, int shard) {
+		String key = keyFor(value);
+		TreeMap<Integer, Integer> shards = theValues.get(key);
+		if (shards == null) {
+			return;
+		}
+		Integer count = shards.get(shard);
+		if (count == null) {
+			return;
+		} else if (count <= 1) {
+			shards.remove(shard);
+			if (shards.isEmpty()) {
+				theValues.remove(key);
+			}
+		} else {
+			shards.put(shard, count - 1);
+		}
+		isDirty = true;
+	}
+
+	/**
+	 * Updates the index for a shard file that has been renamed without changing its content
+	 *
+	 * @param oldShard The previous index of the shard
+	 * @param newShard The new index of the shard
+	 */
+	synchronized void shardRenamed(int oldShard, int newShard) {
+		for (TreeMap<Integer, Integer> shards : theValues.values()) {
+			Integer count = shards.remove(oldShard);
+			if (count != null) {
+				shards.merge(newShard, count, Integer::sum);
+				isDirty = true;
+			}
+		}
+	}
+
+	synchronized void clear() {
+		theValues.clear();
+		isDirty = true;
+	}
+
+	/**
+	 * @param head The commit that the index is being loaded for
+	 * @return Whether the index was loaded from its file. False if the file does not exist or was written for a different commit.
+	 * @throws IOException If the index file could not be read
+	 */
+	synchronized boolean load(String head) throws IOException {
+		theValues.clear();
+		if (!theFile.exists()) {
+			return false;
+		}
+		try (BufferedReader reader = new BufferedReader(
+			new InputStreamReader(new FileInputStream(theFile), StandardCharsets.UTF_8))) {
+			String line = reader.readLine();
+			if (line == null || !line.equals(head)) {
+				return false;
+			}
+			for (line = reader.readLine(); line != null; line = reader.readLine()) {
+				int tab1 = line.indexOf('\t');
+				int tab2 = line.indexOf('\t', tab1 + 1);
+				if (tab1 < 0 || tab2 < 0) {
+					throw new IOException("Bad index line in " + theFile.getPath() + ": " + line);
+				}
+				int shard, count;
+				try {
+					shard = Integer.parseInt(line.substring(0, tab1));
+					count = Integer.parseInt(line.substring(tab1 + 1, tab2));
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad index line in " + theFile.getPath() + ": " + line, e);
+				}
+				theValues.computeIfAbsent(unescape(line.substring(tab2 + 1)), __ -> new TreeMap<>()).put(shard, count);
+			}
+		}
+		isDirty = false;
+		return true;
+	}
+
+	/**
+	 * Writes this index to its file if it has changed
+	 *
+	 * @param head The commit that the index's content reflects
+	 * @throws IOException If the index file could not be written
+	 */
+	synchronized void save(String head) throws IOException {
+		if (!isDirty) {
+			return;
+		}
+		theFile.getParentFile().mkdirs();
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(theFile), StandardCharsets.UTF_8))) {
+			writer.write(head == null ? "" : head);
+			writer.write('\n');
+			for (Map.Entry<String, TreeMap<Integer, Integer>> value : theValues.entrySet()) {
+				String escaped = escape(value.getKey());
+				for (Map.Entry<Integer, Integer> shard : value.getValue().entrySet()) {
+					writer.write(shard.getKey().toString());
+					writer.write('\t');
+					writer.write(shard.getValue().toString());
+					writer.write('\t');
+					writer.write(escaped);
+					writer.write('\n');
+				}
+			}
+		}
+		isDirty = false;
+	}
+
+	static String keyFor(Object value) {
+		return value == null ? "" : "=" + value;
+	}
+
+	static String escape(String str) {
+		StringBuilder escaped = null;
+		for (int c = 0; c < str.length(); c++) {
+			String replacement;
+			switch (str.charAt(c)) {
+			case '\\':
+				replacement = "\\\\";
+				break;
+			case '\n':
+				replacement = "\\n";
+				break;
+			case '\r':
+				replacement = "\\r";
+				break;
+			default:
+				replacement = null;
+			}
+			if (replacement != null && escaped == null) {
+				escaped = new StringBuilder(str.length() + 10).append(str, 0, c);
+			}
+			if (replacement != null) {
+				escaped.append(replacement);
+			} else if (escaped != null) {
+				escaped.append(str.charAt(c));
+			}
+		}
+		return escaped == null ? str : escaped.toString();
+	}
+
+	static String unescape(String str) {
+		if (str.indexOf('\\') < 0) {
+			return str;
+		}
+		StringBuilder unescaped = new StringBuilder(str.length());
+		for (int c = 0; c < str.length(); c++) {
+			char ch = str.charAt(c);
+			if (ch == '\\' && c + 1 < str.length()) {
+				c++;
+				switch (str.charAt(c)) {
+				case 'n':
+					unescaped.append('\n');
+					break;
+				case 'r':
+					unescaped.append('\r');
+					break;
+				default:
+					unescaped.append(str.charAt(c));
+				}
+			} else {
+				unescaped.append(ch);
+			}
+		}
+		return unescaped.toString();
+	}
+
+	@Override
+	public String toString() {
+		return theEntityType + "." + theField + " index";
+	}
+}
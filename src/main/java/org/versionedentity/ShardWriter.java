@@ -0,0 +1,120 @@
+package org.versionedentity;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.observe.util.VersionedEntities.EntityFormat;
+import org.qommons.collect.QuickSet.QuickMap;
+import org.qommons.io.Format;
+
+/**
+ * Writes entities as CSV rows in the column order of their entity type's current schema, for the rewriting of whole shards and for the
+ * sorted runs of a {@link GitEntities#bulkImport(String, java.util.Iterator, int, String) bulk import}
+ */
+class ShardWriter implements Closeable {
+	private final File theFile;
+	private final EntityFormat theEntity;
+	private final List<String> theFieldOrder;
+	private final Writer theWriter;
+	private final StringBuilder theLine;
+	private int theRowCount;
+
+	/**
+	 * @param file The file to write
+	 * @param entity The entity type of the rows to write
+	 * @param header The header to write as the first line of the file, or null to write rows only
+	 * @throws IOException If the file could not be created
+	 */
+	ShardWriter(File file, EntityFormat entity, String[] header) throws IOException {
+		theFile = file;
+		theEntity = entity;
+		theFieldOrder = entity.getFieldOrder();
+		theWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+		theLine = new StringBuilder();
+		if (header != null) {
+			for (int c = 0; c < header.length; c++) {
+				if (c > 0) {
+					theLine.append(',');
+				}
+				appendCell(theLine, header[c]);
+			}
+			endLine();
+		}
+	}
+
+	/** @return The file being written */
+	File getFile() {
+		return theFile;
+	}
+
+	/** @return The number of rows written so far, not counting the header */
+	int getRowCount() {
+		return theRowCount;
+	}
+
+	/**
+	 * @param row The entity to write
+	 * @throws IOException If the row could not be written
+	 */
+	void write(QuickMap<String, Object> row) throws IOException {
+		StringBuilder cell = new StringBuilder();
+		for (int f = 0; f < theFieldOrder.size(); f++) {
+			if (f > 0) {
+				theLine.append(',');
+			}
+			Object value = row.get(theFieldOrder.get(f));
+			if (value != null) {
+				cell.setLength(0);
+				theEntity.getFieldFormats().get(theFieldOrder.get(f)).append(cell, value);
+				appendCell(theLine, cell);
+			}
+		}
+		endLine();
+		theRowCount++;
+	}
+
+	private void endLine() throws IOException {
+		theLine.append('\n');
+		theWriter.append(theLine);
+		theLine.setLength(0);
+	}
+
+	/**
+	 * Appends a CSV cell, quoting it if it contains a delimiter, quote, or line break
+	 *
+	 * @param line The line to append to
+	 * @param cell The cell text
+	 */
+	static void appendCell(StringBuilder line, CharSequence cell) {
+		boolean quote = false;
+		for (int i = 0; !quote && i < cell.length(); i++) {
+			char c = cell.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			line.append(cell);
+			return;
+		}
+		line.append('"');
+		for (int i = 0; i < cell.length(); i++) {
+			char c = cell.charAt(i);
+			if (c == '"') {
+				line.append('"');
+			}
+			line.append(c);
+		}
+		line.append('"');
+	}
+
+	@Override
+	public void close() throws IOException {
+		theWriter.close();
+	}
+}
@@ -0,0 +1,120 @@
+package org.versionedentity;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * <p>
+ * A {@link ProgressMonitor} for {@link GitEntities#checkAndPush(org.observe.util.VersionedEntities.ConflictResolver, ProgressMonitor)
+ * synchronization} that records the progress of the current task and may be {@link #cancel() cancelled} or given a
+ * {@link #withDeadline(Duration) deadline}.
+ * </p>
+ * <p>
+ * Progress may optionally be forwarded to another monitor, e.g. one that displays it. This monitor is cancelled if the other one is.
+ * </p>
+ */
+public class SyncProgress implements ProgressMonitor {
+	private final ProgressMonitor theDelegate;
+	private volatile boolean isCancelled;
+	private volatile Instant theDeadline;
+	private volatile String theTask;
+	private volatile int theTaskTotal;
+	private volatile int theTaskCompleted;
+
+	/** Creates a progress monitor that does not forward progress */
+	public SyncProgress() {
+		this(null);
+	}
+
+	/** @param delegate The monitor to forward progress to, or null */
+	public SyncProgress(ProgressMonitor delegate) {
+		theDelegate = delegate;
+	}
+
+	/**
+	 * @param timeout The amount of time from now after which the synchronization will be cancelled
+	 * @return This monitor
+	 */
+	public SyncProgress withDeadline(Duration timeout) {
+		theDeadline = Instant.now().plus(timeout);
+		return this;
+	}
+
+	/** Cancels the synchronization that this monitor is watching */
+	public void cancel() {
+		isCancelled = true;
+	}
+
+	/** @return The title of the task currently being performed, or null if none has begun */
+	public String getTask() {
+		return theTask;
+	}
+
+	/** @return The total units of work in the current task, or {@link #UNKNOWN} */
+	public int getTaskTotal() {
+		return theTaskTotal;
+	}
+
+	/** @return The units of work completed in the current task */
+	public int getTaskCompleted() {
+		return theTaskCompleted;
+	}
+
+	@Override
+	public void start(int totalTasks) {
+		if (theDelegate != null) {
+			theDelegate.start(totalTasks);
+		}
+	}
+
+	@Override
+	public void beginTask(String title, int totalWork) {
+		theTask = title;
+		theTaskTotal = totalWork;
+		theTaskCompleted = 0;
+		if (theDelegate != null) {
+			theDelegate.beginTask(title, totalWork);
+		}
+	}
+
+	@Override
+	public void update(int completed) {
+		theTaskCompleted += completed;
+		if (theDelegate != null) {
+			theDelegate.update(completed);
+		}
+	}
+
+	@Override
+	public void endTask() {
+		if (theDelegate != null) {
+			theDelegate.endTask();
+		}
+	}
+
+	@Override
+	public boolean isCancelled() {
+		if (isCancelled) {
+			return true;
+		}
+		Instant deadline = theDeadline;
+		if ((deadline != null && Instant.now().isAfter(deadline)) || (theDelegate != null && theDelegate.isCancelled())) {
+			isCancelled = true;
+		}
+		return isCancelled;
+	}
+
+	@Override
+	public String toString() {
+		String task = theTask;
+		if (task == null) {
+			return "Not started";
+		} else if (theTaskTotal == UNKNOWN) {
+			return task + ": " + theTaskCompleted;
+		} else {
+			return task + ": " + theTaskCompleted + "/" + theTaskTotal;
+		}
+	}
+}
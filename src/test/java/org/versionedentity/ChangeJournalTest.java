@@ -0,0 +1,219 @@
+package org.versionedentity;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.observe.util.CsvEntitySetTestUtils;
+import org.observe.util.VersionedEntities.EntityFormat;
+
+/** Tests the {@link ChangeJournal change journal} of {@link GitEntities} entity sets */
+public class ChangeJournalTest {
+	/** Holds the repository and indexes of each test */
+	@Rule
+	public final TemporaryFolder theTestDir = new TemporaryFolder();
+
+	/**
+	 * Ensures that commits made while the journal was not being maintained are replayed into it when it is reopened
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testReplayOnOpen() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			File indexes = theTestDir.newFolder("indexes");
+			GitEntities entities = new GitEntities(git, indexes, null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 5; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				ChangeJournal journal = entities.withJournal(1024);
+				// A new journal starts at HEAD
+				Assert.assertEquals(0, journal.getEndOffset());
+				Assert.assertEquals(git.getRepository().resolve("HEAD").name(), journal.getHead());
+
+				TestRepositories.rename(entities, 3, "Entity 3B");
+				entities.commit("Renamed entity 3");
+				Assert.assertEquals(1, journal.getEndOffset());
+				Assert.assertEquals(git.getRepository().resolve("HEAD").name(), journal.getHead());
+			} finally {
+				entities.close();
+			}
+
+			// Commit without the journal
+			entities = new GitEntities(git, indexes, null, null);
+			try {
+				TestRepositories.rename(entities, 4, "Entity 4B");
+				entities.commit("Renamed entity 4");
+				TestRepositories.rename(entities, 2, "Entity 2B");
+				entities.commit("Renamed entity 2");
+			} finally {
+				entities.close();
+			}
+
+			entities = new GitEntities(git, indexes, null, null);
+			try {
+				ChangeJournal journal = entities.withJournal(1024);
+				Assert.assertEquals(3, journal.getEndOffset());
+				Assert.assertEquals(git.getRepository().resolve("HEAD").name(), journal.getHead());
+				List<ChangeJournal.Entry> replayed = new ArrayList<>();
+				journal.replay(1, replayed::add);
+				Assert.assertEquals(2, replayed.size());
+				Assert.assertEquals(git.getRepository().resolve("HEAD~1"), replayed.get(0).getCommitId());
+				Assert.assertEquals("Entity 4B", replayed.get(0).getNewValues().get("name"));
+				Assert.assertEquals(git.getRepository().resolve("HEAD"), replayed.get(1).getCommitId());
+				Assert.assertEquals("Entity 2B", replayed.get(1).getNewValues().get("name"));
+				for (ChangeJournal.Entry entry : replayed) {
+					Assert.assertEquals(EntityHistory.ChangeType.MODIFIED, entry.getChangeType());
+				}
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that a commit that cannot be journaled is still made, fired to the other listeners, and stamped, and that it is journaled
+	 * with the next commit once the journal can be written again
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testFailedJournalCommit() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			File indexes = theTestDir.newFolder("indexes");
+			GitEntities entities = new GitEntities(git, indexes, null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 5; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				ChangeJournal journal = entities.withJournal(1024);
+				List<String> fired = new ArrayList<>();
+				entities.addListener(commit -> fired.add(((GitEntities.CommitImpl) commit).getId().name()), false);
+
+				// Replace the journal directory with a file so that no segment can be written
+				File journalDir = new File(indexes, "journal");
+				File movedJournal = new File(indexes, "journal.moved");
+				Assert.assertTrue(journalDir.renameTo(movedJournal));
+				Assert.assertTrue(journalDir.createNewFile());
+				TestRepositories.rename(entities, 3, "Entity 3B");
+				try {
+					entities.commit("Renamed entity 3");
+					Assert.fail("Journal failure should have been thrown");
+				} catch (IOException e) {
+					// Expected
+				}
+				String head = git.getRepository().resolve("HEAD").name();
+				Assert.assertEquals("Renamed entity 3", git.log().setMaxCount(1).call().iterator().next().getFullMessage());
+				Assert.assertFalse(entities.hasModifications());
+				Assert.assertEquals(Arrays.asList(head), fired);
+				Assert.assertEquals(head, entities.readHeadStamp());
+				Assert.assertEquals(0, journal.getEndOffset());
+
+				Assert.assertTrue(journalDir.delete());
+				Assert.assertTrue(movedJournal.renameTo(journalDir));
+				TestRepositories.rename(entities, 4, "Entity 4B");
+				entities.commit("Renamed entity 4");
+				Assert.assertEquals(2, journal.getEndOffset());
+				Assert.assertEquals(git.getRepository().resolve("HEAD").name(), journal.getHead());
+				List<ChangeJournal.Entry> entries = new ArrayList<>();
+				journal.replay(0, entries::add);
+				Assert.assertEquals("Entity 3B", entries.get(0).getNewValues().get("name"));
+				Assert.assertEquals("Entity 4B", entries.get(1).getNewValues().get("name"));
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that no part of a commit is kept in the journal if the commit cannot be completely written, both when appending to an
+	 * existing segment and when starting a new one
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testFailedAppend() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			GitEntities entities = new GitEntities(git, theTestDir.newFolder("indexes"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 5; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				testFailedAppend(entities, theTestDir.newFolder("journal1"), 1024 * 1024);
+				testFailedAppend(entities, theTestDir.newFolder("journal2"), 1);
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	private static void testFailedAppend(GitEntities entities, File dir, long maxSegmentSize) throws Exception {
+		EntityFormat entity = entities.getEntityType("test1");
+		ChangeJournal journal = new ChangeJournal(dir, maxSegmentSize);
+		GitEntities.CommitImpl good = new GitEntities.CommitImpl(ObjectId.fromString("0123456789012345678901234567890123456789"), null,
+			Instant.now(), "Good", true);
+		good.addChange(entity, TestRepositories.getTest1(entities, 1), TestRepositories.getTest1(entities, 1).copy().with("name", "A"),
+			0);
+		journal.append(good);
+		Assert.assertEquals(1, journal.getEndOffset());
+		long size = journal.getSize();
+		int files = dir.list().length;
+
+		// The second change cannot be written
+		GitEntities.CommitImpl bad = new GitEntities.CommitImpl(ObjectId.fromString("1234567890123456789012345678901234567890"), null,
+			Instant.now(), "Bad", true);
+		bad.addChange(entity, TestRepositories.getTest1(entities, 2), TestRepositories.getTest1(entities, 2).copy().with("name", "B"),
+			0);
+		bad.addChange(entity, TestRepositories.getTest1(entities, 3),
+			TestRepositories.getTest1(entities, 3).copy().with("name", new Object() {
+				@Override
+				public String toString() {
+					throw new IllegalStateException("Unwritable");
+				}
+			}), 0);
+		try {
+			journal.append(bad);
+			Assert.fail("Append should have failed");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("Unwritable", e.getMessage());
+		}
+		Assert.assertEquals(1, journal.getEndOffset());
+		Assert.assertEquals(size, journal.getSize());
+		Assert.assertEquals(files, dir.list().length);
+		Assert.assertEquals(good.getId().name(), journal.getHead());
+
+		// The journal is still usable, and reopens the same
+		journal.append(good2(entities, entity));
+		Assert.assertEquals(2, journal.getEndOffset());
+		ChangeJournal reopened = new ChangeJournal(dir, maxSegmentSize);
+		Assert.assertEquals(2, reopened.getEndOffset());
+		List<ChangeJournal.Entry> entries = new ArrayList<>();
+		reopened.replay(0, entries::add);
+		Assert.assertEquals("A", entries.get(0).getNewValues().get("name"));
+		Assert.assertEquals("C", entries.get(1).getNewValues().get("name"));
+	}
+
+	private static GitEntities.CommitImpl good2(GitEntities entities, EntityFormat entity) throws Exception {
+		GitEntities.CommitImpl commit = new GitEntities.CommitImpl(ObjectId.fromString("2345678901234567890123456789012345678901"), null,
+			Instant.now(), "Good 2", true);
+		commit.addChange(entity, TestRepositories.getTest1(entities, 4), TestRepositories.getTest1(entities, 4).copy().with("name", "C"),
+			0);
+		return commit;
+	}
+}
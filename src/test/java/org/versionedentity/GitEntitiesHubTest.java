@@ -0,0 +1,141 @@
+package org.versionedentity;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.observe.util.CsvEntitySetTestUtils;
+import org.observe.util.VersionedEntities.EntityUpdate;
+
+/** Tests the synchronization of several {@link GitEntities} projects in one repository through a {@link GitEntitiesHub} */
+public class GitEntitiesHubTest {
+	/** Holds the repositories and indexes of each test */
+	@Rule
+	public final TemporaryFolder theTestDir = new TemporaryFolder();
+
+	/**
+	 * Ensures that a hub synchronizes all of its projects together, routing each pulled change only to the project it belongs to
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testProjects() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy1 = TestRepositories.clone(master, theTestDir, "copy1");
+			Git copy2 = TestRepositories.clone(master, theTestDir, "copy2")) {
+			GitEntitiesHub hub1 = new GitEntitiesHub(copy1, null);
+			try {
+				GitEntities a = hub1.addProject("a", theTestDir.newFolder("indexes1a"));
+				GitEntities b = hub1.addProject("b", theTestDir.newFolder("indexes1b"));
+				CsvEntitySetTestUtils.initSimpleEntitySet(a);
+				CsvEntitySetTestUtils.initSimpleEntitySet(b);
+				for (int i = 0; i < 5; i++) {
+					CsvEntitySetTestUtils.addTestEntity(a, i);
+				}
+				for (int i = 0; i < 3; i++) {
+					CsvEntitySetTestUtils.addTestEntity(b, i);
+				}
+				a.commit("Project a entities");
+				b.commit("Project b entities");
+				hub1.sync();
+
+				try {
+					hub1.addProject("a/nested", theTestDir.newFolder("indexes1c"));
+					Assert.fail("A project nested in another should have been rejected");
+				} catch (IllegalArgumentException e) {
+					// Expected
+				}
+			} finally {
+				hub1.close();
+			}
+
+			GitEntitiesHub hub2 = new GitEntitiesHub(copy2, null);
+			try {
+				GitEntities a = hub2.addProject("a", theTestDir.newFolder("indexes2a"));
+				GitEntities b = hub2.addProject("b", theTestDir.newFolder("indexes2b"));
+				List<EntityUpdate> aChanges = new ArrayList<>();
+				List<EntityUpdate> bChanges = new ArrayList<>();
+				a.addListener(commit -> aChanges.addAll(commit.getChanges()), true);
+				b.addListener(commit -> bChanges.addAll(commit.getChanges()), true);
+				// Synchronizing through one project synchronizes both
+				a.checkAndPush(null);
+				Assert.assertEquals(5, aChanges.size());
+				Assert.assertEquals(3, bChanges.size());
+				for (int i = 0; i < 5; i++) {
+					Assert.assertNotNull(TestRepositories.getTest1(a, i));
+				}
+				for (int i = 0; i < 3; i++) {
+					Assert.assertNotNull(TestRepositories.getTest1(b, i));
+				}
+				Assert.assertNull(TestRepositories.getTest1(b, 4));
+			} finally {
+				hub2.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that synchronizing through a project other than the hub's first uses that project's settings, and that its background
+	 * synchronization sees the changes it pulls, speeding up again instead of backing off
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testSecondProjectSync() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy1 = TestRepositories.clone(master, theTestDir, "copy1");
+			Git copy2 = TestRepositories.clone(master, theTestDir, "copy2")) {
+			GitEntitiesHub hub1 = new GitEntitiesHub(copy1, null);
+			GitEntitiesHub hub2 = new GitEntitiesHub(copy2, null);
+			try {
+				GitEntities a1 = hub1.addProject("a", theTestDir.newFolder("indexes1a"));
+				GitEntities b1 = hub1.addProject("b", theTestDir.newFolder("indexes1b"));
+				CsvEntitySetTestUtils.initSimpleEntitySet(a1);
+				CsvEntitySetTestUtils.initSimpleEntitySet(b1);
+				for (int i = 0; i < 3; i++) {
+					CsvEntitySetTestUtils.addTestEntity(a1, i);
+					CsvEntitySetTestUtils.addTestEntity(b1, i);
+				}
+				a1.commit("Project a entities");
+				b1.commit("Project b entities");
+				hub1.sync();
+
+				GitEntities a2 = hub2.addProject("a", theTestDir.newFolder("indexes2a"));
+				GitEntities b2 = hub2.addProject("b", theTestDir.newFolder("indexes2b"));
+				b2.withRemotes(Arrays.asList("origin"), Collections.emptyList());
+				b2.checkAndPush(null);
+				Assert.assertEquals("origin", b2.getActivePrimary());
+				Assert.assertNull(a2.getActivePrimary());
+				Assert.assertNotNull(TestRepositories.getTest1(a2, 2));
+
+				// Let background synchronization back off while there are no changes
+				Duration backedOff = Duration.ofMillis(160);
+				b2.startSync(Duration.ofMillis(10), Duration.ofHours(1));
+				long deadline = System.currentTimeMillis() + 30_000;
+				while (b2.getSyncInterval().compareTo(backedOff) < 0) {
+					Assert.assertTrue("Sync interval did not back off", System.currentTimeMillis() < deadline);
+					Thread.sleep(10);
+				}
+
+				TestRepositories.rename(b1, 1, "Entity 1B");
+				b1.commit("Renamed entity 1");
+				hub1.sync();
+				while (b2.getSyncInterval().compareTo(backedOff) >= 0) {
+					Assert.assertTrue("Sync interval was not reset by pulled changes", System.currentTimeMillis() < deadline);
+					Thread.sleep(1);
+				}
+				Assert.assertEquals("Entity 1B", TestRepositories.getTest1(b2, 1).get("name"));
+			} finally {
+				hub1.close();
+				hub2.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package org.versionedentity;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.transport.RefSpec;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.observe.util.CsvEntitySetTestUtils;
+import org.qommons.Transaction;
+import org.qommons.collect.QuickSet.QuickMap;
+import org.qommons.io.TextParseException;
+
+/**
+ * <p>
+ * A load harness for {@link GitEntities}: several clients, each in its own thread with its own clone, make randomized modifications to a
+ * shared key space, committing and synchronizing with a common <code>file://</code> remote as they go.
+ * </p>
+ * <p>
+ * The harness reports throughput, the rate of merge conflicts and push retries, and the latency with which each commit reaches the other
+ * clients, then verifies that all clients converge on the same content and that no write to an entity that only one client wrote was
+ * lost. The run may be configured with the system properties <code>gitentities.load.clients</code>,
+ * <code>gitentities.load.operations</code>, <code>gitentities.load.keys</code>, and <code>gitentities.load.seed</code>. The seed has a
+ * fixed default so that runs are reproducible.
+ * </p>
+ */
+public class GitEntitiesLoadTest {
+	private static final String COMMIT_TIME_MARKER = " @";
+	private static final long DEFAULT_SEED = 20210726L;
+	/** The number of times a client re-applies its writes after merge conflicts in a single synchronization before giving up */
+	private static final int MAX_CONFLICTS_PER_SYNC = 10;
+
+	private static class Client {
+		final int index;
+		final Git git;
+		final GitEntities entities;
+		final Random random;
+		/** Entity ID to the indexes of all clients that have written the entity, shared by all clients */
+		final Map<Integer, Set<Integer>> writers;
+		/** Entity ID to the name this client last wrote to the entity, or null if it last deleted it */
+		final Map<Integer, Object> lastWrites;
+		/** Entity ID to the entity before this client's first write to it since its last successful push, or null if it did not exist */
+		final Map<Integer, QuickMap<String, Object>> unpushedBases;
+		/** Entity ID to this client's last write to the entity since its last successful push, or null for a deletion */
+		final Map<Integer, QuickMap<String, Object>> unpushed;
+		long operations;
+		long commits;
+		long syncs;
+		long conflicts;
+		long conflictingWrites;
+		long failedPushes;
+
+		Client(int index, Git git, GitEntities entities, long seed, Map<Integer, Set<Integer>> writers) {
+			this.index = index;
+			this.git = git;
+			this.entities = entities;
+			random = new Random(seed);
+			this.writers = writers;
+			lastWrites = new HashMap<>();
+			unpushedBases = new HashMap<>();
+			unpushed = new HashMap<>();
+		}
+
+		void written(int id, QuickMap<String, Object> before, QuickMap<String, Object> after) {
+			if (!unpushed.containsKey(id)) {
+				unpushedBases.put(id, before);
+			}
+			unpushed.put(id, after);
+			lastWrites.put(id, getName(after));
+			writers.computeIfAbsent(id, __ -> ConcurrentHashMap.newKeySet()).add(index);
+		}
+	}
+
+	/** Holds the repositories and indexes of each test */
+	@Rule
+	public final TemporaryFolder theTestDir = new TemporaryFolder();
+
+	/**
+	 * Runs randomized modifications, commits, and synchronizations on several concurrent clients and verifies that they converge without
+	 * losing any non-conflicting writes
+	 *
+	 * @throws Exception If any client fails unexpectedly
+	 */
+	@Test
+	public void testContention() throws Exception {
+		int clientCount = Integer.getInteger("gitentities.load.clients", 3);
+		int operations = Integer.getInteger("gitentities.load.operations", 60);
+		int keySpace = Integer.getInteger("gitentities.load.keys", 200);
+		long seed = Long.getLong("gitentities.load.seed", DEFAULT_SEED);
+		System.out.println("Load test seed " + seed);
+
+		File testDir = theTestDir.getRoot();
+		Git master = Git.init()//
+			.setDirectory(new File(testDir, "master"))//
+			.setBare(true)//
+			.call();
+		String remoteUri = master.getRepository().getDirectory().toURI().toString();
+		// Need a commit on the remote to create the master branch, so that every client clones a tracking branch
+		try (Git init = Git.init().setDirectory(new File(testDir, "init")).call()) {
+			init.commit().setAllowEmpty(true).setMessage("Initial commit").call();
+			init.push().setRemote(remoteUri).setRefSpecs(new RefSpec("master:master")).call();
+		}
+		List<Client> clients = new ArrayList<>(clientCount);
+		Map<Integer, Set<Integer>> writers = new ConcurrentHashMap<>();
+		List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+		ExecutorService executor = Executors.newFixedThreadPool(clientCount);
+		try {
+			for (int c = 0; c < clientCount; c++) {
+				Git git = Git.cloneRepository()//
+					.setURI(remoteUri)//
+					.setDirectory(new File(testDir, "client" + c))//
+					.call();
+				GitEntities entities = new GitEntities(git, new File(testDir, "indexes/client" + c), null, null)//
+					.withPushRetry(5, Duration.ofMillis(10));
+				Client client = new Client(c, git, entities, seed + c, writers);
+				if (c == 0) {
+					CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+					for (int i = 0; i < keySpace / 2; i++) {
+						CsvEntitySetTestUtils.addTestEntity(entities, i);
+					}
+					entities.commit("Initial entities");
+				}
+				entities.checkAndPush(null);
+				entities.addListener(commit -> {
+					int marker = commit.getMessage().lastIndexOf(COMMIT_TIME_MARKER);
+					if (marker >= 0) {
+						long committed = Long.parseLong(commit.getMessage().substring(marker + COMMIT_TIME_MARKER.length()).trim());
+						latencies.add(System.currentTimeMillis() - committed);
+					}
+				}, true);
+				clients.add(client);
+			}
+
+			long start = System.nanoTime();
+			List<Future<?>> futures = new ArrayList<>(clientCount);
+			for (Client client : clients) {
+				futures.add(executor.submit(() -> {
+					runClient(client, operations, keySpace);
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					throw (Exception) e.getCause();
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+
+			report(clients, latencies, elapsed);
+
+			// Two rounds so that every client's last changes reach every other client
+			for (int round = 0; round < 2; round++) {
+				for (Client client : clients) {
+					sync(client);
+				}
+			}
+			List<QuickMap<String, Object>> expected = scanAll(clients.get(0).entities);
+			for (Client client : clients.subList(1, clients.size())) {
+				Assert.assertEquals("Client " + client.index + " did not converge", expected, scanAll(client.entities));
+			}
+			// Writes to an entity that only one client wrote can't have conflicted, so the last of them must have survived
+			Map<Integer, QuickMap<String, Object>> finalEntities = new HashMap<>();
+			for (QuickMap<String, Object> entity : expected) {
+				finalEntities.put(((Number) entity.get("id")).intValue(), entity);
+			}
+			for (Map.Entry<Integer, Set<Integer>> written : writers.entrySet()) {
+				if (written.getValue().size() == 1) {
+					Client writer = clients.get(written.getValue().iterator().next());
+					Assert.assertEquals("Write by client " + writer.index + " to entity " + written.getKey() + " was lost",
+						writer.lastWrites.get(written.getKey()), getName(finalEntities.get(written.getKey())));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			for (Client client : clients) {
+				client.entities.close();
+			}
+		}
+	}
+
+	private static void runClient(Client client, int operations, int keySpace)
+		throws IOException, TextParseException, GitAPIException {
+		for (int op = 0; op < operations; op++) {
+			int id = client.random.nextInt(keySpace);
+			QuickMap<String, Object> existing = get(client, id);
+			int action = client.random.nextInt(10);
+			if (existing == null) {
+				CsvEntitySetTestUtils.addTestEntity(client.entities, id);
+			} else if (action < 2) {
+				client.entities.delete("test1", existing);
+			} else {
+				client.entities.update("test1", existing.copy().with("name", "Entity " + id + " by " + client.index + "." + op), false);
+			}
+			client.written(id, existing, get(client, id));
+			client.operations++;
+			if (client.random.nextInt(4) == 0) {
+				client.entities.commit("Client " + client.index + " op " + op + COMMIT_TIME_MARKER + System.currentTimeMillis());
+				client.commits++;
+				if (client.random.nextBoolean()) {
+					sync(client);
+				}
+			}
+		}
+		if (client.entities.hasModifications()) {
+			client.entities.commit("Client " + client.index + " final" + COMMIT_TIME_MARKER + System.currentTimeMillis());
+			client.commits++;
+		}
+		sync(client);
+	}
+
+	private static QuickMap<String, Object> get(Client client, int id) throws IOException {
+		QuickMap<String, Object> entity = client.entities.get("test1",
+			client.entities.getEntityType("test1").create(false).with("id", (long) id));
+		return entity == null ? null : entity.copy();
+	}
+
+	private static Object getName(QuickMap<String, Object> entity) {
+		return entity == null ? null : entity.get("name");
+	}
+
+	private static void sync(Client client) throws IOException, GitAPIException {
+		for (int conflicts = 0;; conflicts++) {
+			client.syncs++;
+			try {
+				client.entities.checkAndPush(null);
+				client.unpushedBases.clear();
+				client.unpushed.clear();
+				return;
+			} catch (IllegalStateException e) {
+				// Merge conflict. Conflict resolution is not yet supported, so take the remote's content and re-apply our writes to it
+				client.conflicts++;
+				if (conflicts == MAX_CONFLICTS_PER_SYNC) {
+					throw e;
+				}
+				resetToRemote(client);
+				if (!reapplyUnpushed(client)) {
+					return;
+				}
+			} catch (IOException e) {
+				if (e.getMessage() == null || !e.getMessage().startsWith("Push rejected")) {
+					throw e;
+				}
+				client.failedPushes++;
+				return;
+			}
+		}
+	}
+
+	private static void resetToRemote(Client client) throws IOException, GitAPIException {
+		try (Transaction t = client.entities.lock(true, null)) {
+			client.git.reset().setMode(ResetType.HARD).setRef("origin/" + client.git.getRepository().getBranch()).call();
+			client.entities.catchUp();
+		}
+	}
+
+	/**
+	 * Re-applies a client's unpushed writes after its unpushed commits were abandoned for the remote's content. Writes to entities that
+	 * the remote has also changed conflict, and are dropped.
+	 *
+	 * @param client The client
+	 * @return Whether any writes were re-applied and committed
+	 * @throws IOException If the writes could not be re-applied
+	 */
+	private static boolean reapplyUnpushed(Client client) throws IOException {
+		Map<Integer, QuickMap<String, Object>> bases = new HashMap<>(client.unpushedBases);
+		Map<Integer, QuickMap<String, Object>> writes = new HashMap<>(client.unpushed);
+		client.unpushedBases.clear();
+		client.unpushed.clear();
+		for (Map.Entry<Integer, QuickMap<String, Object>> write : writes.entrySet()) {
+			QuickMap<String, Object> current = get(client, write.getKey());
+			if (!Objects.equals(getName(current), getName(bases.get(write.getKey())))) {
+				client.conflictingWrites++;
+				continue;
+			}
+			if (write.getValue() == null) {
+				if (current != null) {
+					client.entities.delete("test1", current);
+				}
+			} else {
+				client.entities.update("test1", write.getValue(), true);
+			}
+			client.unpushedBases.put(write.getKey(), current);
+			client.unpushed.put(write.getKey(), write.getValue());
+		}
+		if (!client.entities.hasModifications()) {
+			return false;
+		}
+		client.entities.commit("Client " + client.index + " re-applied" + COMMIT_TIME_MARKER + System.currentTimeMillis());
+		client.commits++;
+		return true;
+	}
+
+	private static List<QuickMap<String, Object>> scanAll(GitEntities entities) throws IOException {
+		try (Stream<QuickMap<String, Object>> rows = entities.scan("test1", null, null, null)) {
+			return rows.collect(Collectors.toList());
+		}
+	}
+
+	private static void report(List<Client> clients, List<Long> latencies, long elapsedNanos) {
+		long operations = 0, commits = 0, syncs = 0, conflicts = 0, conflictingWrites = 0, failedPushes = 0, pushRetries = 0;
+		for (Client client : clients) {
+			operations += client.operations;
+			commits += client.commits;
+			syncs += client.syncs;
+			conflicts += client.conflicts;
+			conflictingWrites += client.conflictingWrites;
+			failedPushes += client.failedPushes;
+			pushRetries += client.entities.getPushRetries();
+		}
+		double seconds = elapsedNanos / 1E9;
+		System.out.println(clients.size() + " clients, " + operations + " operations, " + commits + " commits, " + syncs + " syncs in "
+			+ String.format("%.2f", seconds) + "s");
+		System.out.println(String.format("Throughput: %.1f operations/s, %.1f commits/s", operations / seconds, commits / seconds));
+		System.out.println(String.format("Merge conflicts: %d (%.1f%% of syncs), dropping %d conflicting writes", conflicts,
+			syncs == 0 ? 0 : conflicts * 100.0 / syncs, conflictingWrites));
+		System.out.println(String.format("Push retries: %d (%.2f per sync), failed pushes: %d", pushRetries,
+			syncs == 0 ? 0 : pushRetries * 1.0 / syncs, failedPushes));
+		List<Long> sorted;
+		synchronized (latencies) {
+			sorted = new ArrayList<>(latencies);
+		}
+		if (!sorted.isEmpty()) {
+			Collections.sort(sorted);
+			AtomicLong total = new AtomicLong();
+			sorted.forEach(total::addAndGet);
+			System.out.println("Propagation latency: mean " + total.get() / sorted.size() + "ms, median " + sorted.get(sorted.size() / 2)
+				+ "ms, max " + sorted.get(sorted.size() - 1) + "ms over " + sorted.size() + " deliveries");
+		}
+	}
+}
@@ -0,0 +1,397 @@
+package org.versionedentity;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.observe.util.CsvEntitySetTestUtils;
+import org.observe.util.VersionedEntities;
+import org.qommons.collect.QuickSet.QuickMap;
+
+/** Tests the read paths of {@link GitEntities} beyond simple gets */
+public class GitEntitiesReadTest {
+	/** Holds the repository and indexes of each test */
+	@Rule
+	public final TemporaryFolder theTestDir = new TemporaryFolder();
+
+	/**
+	 * Ensures that {@link GitEntities#scan(String, QuickMap, QuickMap, java.util.Set) scans} return the entities in their range in ID
+	 * order, with only the requested fields
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testScan() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			GitEntities entities = new GitEntities(git, theTestDir.newFolder("indexes"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 19; i >= 0; i--) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+
+				QuickMap<String, Object> from = entities.getEntityType("test1").create(false).with("id", 5L);
+				QuickMap<String, Object> to = entities.getEntityType("test1").create(false).with("id", 15L);
+				try (Stream<QuickMap<String, Object>> range = entities.scan("test1", from, to, null)) {
+					List<QuickMap<String, Object>> rows = range.collect(Collectors.toList());
+					Assert.assertEquals(10, rows.size());
+					for (int i = 0; i < rows.size(); i++) {
+						Assert.assertEquals(TestRepositories.getTest1(entities, 5 + i), rows.get(i));
+					}
+				}
+				try (Stream<QuickMap<String, Object>> all = entities.scan("test1", null, null, Collections.singleton("id"))) {
+					List<Object> ids = all.map(e -> e.get("id")).collect(Collectors.toList());
+					Assert.assertEquals(20, ids.size());
+					for (int i = 0; i < ids.size(); i++) {
+						Assert.assertEquals(Long.valueOf(i), ids.get(i));
+					}
+				}
+				// A projection including a non-ID field returns only the IDs and that field
+				try (Stream<QuickMap<String, Object>> range = entities.scan("test1", from, to, Collections.singleton("name"))) {
+					List<QuickMap<String, Object>> rows = range.collect(Collectors.toList());
+					Assert.assertEquals(10, rows.size());
+					for (int i = 0; i < rows.size(); i++) {
+						Assert.assertEquals(Long.valueOf(5 + i), rows.get(i).get("id"));
+						Assert.assertEquals(TestRepositories.getTest1(entities, 5 + i).get("name"), rows.get(i).get("name"));
+						Assert.assertNull(rows.get(i).get("values"));
+					}
+				}
+				try {
+					entities.scan("test1", null, null, Collections.singleton("nonexistent")).close();
+					Assert.fail("Unknown field should have been rejected");
+				} catch (IllegalArgumentException e) {
+					// Expected
+				}
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that {@link GitEntities#query(String, String, Object) queries} on an indexed field find committed entities through the
+	 * index, and also see uncommitted modifications
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testQuery() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			GitEntities entities = new GitEntities(git, theTestDir.newFolder("indexes"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 20; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				SecondaryIndex index = entities.addSecondaryIndex("test1", "name");
+				Object name3 = TestRepositories.getTest1(entities, 3).get("name");
+				Assert.assertEquals(Collections.singletonList(TestRepositories.getTest1(entities, 3)),
+					entities.query("test1", "name", name3));
+				Assert.assertNotEquals(0, index.getShards(name3).length);
+
+				// Uncommitted
+				QuickMap<String, Object> renamed = TestRepositories.rename(entities, 3, "Renamed");
+				Assert.assertEquals(Collections.singletonList(renamed), entities.query("test1", "name", "Renamed"));
+				Assert.assertTrue(entities.query("test1", "name", name3).isEmpty());
+
+				entities.commit("Renamed entity 3");
+				Assert.assertNotEquals(0, index.getShards("Renamed").length);
+				Assert.assertEquals(0, index.getShards(name3).length);
+				Assert.assertEquals(Collections.singletonList(renamed), entities.query("test1", "name", "Renamed"));
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that entities can be read as they were at earlier commits
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testAsOf() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			GitEntities entities = new GitEntities(git, theTestDir.newFolder("indexes"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 20; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				String initial = git.getRepository().resolve("HEAD").name();
+				QuickMap<String, Object> entity2 = TestRepositories.getTest1(entities, 2);
+				QuickMap<String, Object> entity5 = TestRepositories.getTest1(entities, 5);
+				TestRepositories.rename(entities, 2, "Entity 2B");
+				Assert.assertTrue(entities.delete("test1", entity5));
+				entities.commit("Renamed entity 2, deleted entity 5");
+
+				Assert.assertEquals(entity2, entities.getAsOf(initial, "test1", entity2));
+				Assert.assertEquals("Entity 2B", entities.getAsOf("HEAD", "test1", entity2).get("name"));
+				Assert.assertEquals(entity5, entities.getAsOf(initial, "test1", entity5));
+				Assert.assertNull(entities.getAsOf("HEAD", "test1", entity5));
+				try (Stream<QuickMap<String, Object>> rows = entities.scanAsOf(initial, "test1")) {
+					Assert.assertEquals(20, rows.count());
+				}
+				try (Stream<QuickMap<String, Object>> rows = entities.scanAsOf("HEAD", "test1")) {
+					Assert.assertEquals(19, rows.count());
+				}
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that the history index is built from existing commits, maintained from new ones, and persisted
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testHistory() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			File indexes = theTestDir.newFolder("indexes");
+			GitEntities entities = new GitEntities(git, indexes, null, null);
+			QuickMap<String, Object> entity2;
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 20; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				entity2 = TestRepositories.getTest1(entities, 2);
+				TestRepositories.rename(entities, 2, "Entity 2B");
+				entities.commit("Renamed entity 2");
+
+				// Built from the existing commits
+				entities.withHistory(false);
+				Assert.assertEquals(Arrays.asList(EntityHistory.ChangeType.ADDED, EntityHistory.ChangeType.MODIFIED),
+					getChangeTypes(entities, entity2));
+				List<QuickMap<String, Object>> values = entities.getHistoricalValues("test1", entity2);
+				Assert.assertEquals(entity2, values.get(0));
+				Assert.assertEquals("Entity 2B", values.get(1).get("name"));
+
+				// Maintained from new commits
+				Assert.assertTrue(entities.delete("test1", TestRepositories.getTest1(entities, 2)));
+				entities.commit("Deleted entity 2");
+				Assert.assertEquals(
+					Arrays.asList(EntityHistory.ChangeType.ADDED, EntityHistory.ChangeType.MODIFIED, EntityHistory.ChangeType.DELETED),
+					getChangeTypes(entities, entity2));
+				Assert.assertNull(entities.getHistoricalValues("test1", entity2).get(2));
+			} finally {
+				entities.close();
+			}
+
+			// Persisted
+			entities = new GitEntities(git, indexes, null, null);
+			try {
+				entities.withHistory(false);
+				Assert.assertEquals(
+					Arrays.asList(EntityHistory.ChangeType.ADDED, EntityHistory.ChangeType.MODIFIED, EntityHistory.ChangeType.DELETED),
+					getChangeTypes(entities, entity2));
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that {@link GitEntities#withHistory(boolean) off-heap} history is mapped from its index files when reopened, stays off-heap,
+	 * and is rebuilt into new index files as it grows
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testOffHeapHistory() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			File indexes = theTestDir.newFolder("indexes");
+			File historyDir = new File(indexes, "history");
+			GitEntities entities = new GitEntities(git, indexes, null, null);
+			QuickMap<String, Object> entity2;
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 20; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				entity2 = TestRepositories.getTest1(entities, 2);
+				entities.withHistory(true);
+				TestRepositories.rename(entities, 2, "Entity 2B");
+				entities.commit("Renamed entity 2");
+				Assert.assertEquals(Arrays.asList(EntityHistory.ChangeType.ADDED, EntityHistory.ChangeType.MODIFIED),
+					getChangeTypes(entities, entity2));
+			} finally {
+				entities.close();
+			}
+
+			// Reopened off-heap, with the history written so far moved into an index file
+			entities = new GitEntities(git, indexes, null, null);
+			try {
+				entities.withHistory();
+				try {
+					entities.withHistory(false);
+					Assert.fail("History should have been reopened off-heap");
+				} catch (IllegalStateException e) {
+					// Expected
+				}
+				Assert.assertEquals(Arrays.asList(EntityHistory.ChangeType.ADDED, EntityHistory.ChangeType.MODIFIED),
+					getChangeTypes(entities, entity2));
+				String[] indexFiles = historyDir.list((dir, name) -> name.endsWith(".hidx"));
+				Assert.assertEquals(1, indexFiles.length);
+
+				Assert.assertTrue(entities.delete("test1", TestRepositories.getTest1(entities, 2)));
+				entities.commit("Deleted entity 2");
+			} finally {
+				entities.close();
+			}
+
+			// Changes since the index was built are read from the history file on top of the mapped index
+			entities = new GitEntities(git, indexes, null, null);
+			try {
+				entities.withHistory(true);
+				Assert.assertEquals(
+					Arrays.asList(EntityHistory.ChangeType.ADDED, EntityHistory.ChangeType.MODIFIED, EntityHistory.ChangeType.DELETED),
+					getChangeTypes(entities, entity2));
+				Assert.assertEquals(1, getChangeTypes(entities, TestRepositories.getTest1(entities, 3)).size());
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that gets through the {@link GitEntities#withOffHeapIdIndex() off-heap ID index} find entities added, and not those deleted,
+	 * by commits, and that the index is re-enabled and mapped when the entity set is reopened
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testOffHeapIdIndex() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			File indexes = theTestDir.newFolder("indexes");
+			GitEntities entities = new GitEntities(git, indexes, null, null);
+			List<QuickMap<String, Object>> expected = new ArrayList<>();
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 20; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				for (int i = 0; i < 20; i++) {
+					expected.add(TestRepositories.getTest1(entities, i));
+				}
+				Assert.assertFalse(entities.isIdIndexOffHeap());
+				entities.withOffHeapIdIndex();
+				Assert.assertTrue(entities.isIdIndexOffHeap());
+				for (int i = 0; i < 20; i++) {
+					Assert.assertEquals(expected.get(i), TestRepositories.getTest1(entities, i));
+				}
+
+				Assert.assertTrue(entities.delete("test1", expected.get(2)));
+				CsvEntitySetTestUtils.addTestEntity(entities, 25);
+				entities.commit("Replaced entity 2 with 25");
+				Assert.assertNull(TestRepositories.getTest1(entities, 2));
+				Assert.assertNotNull(TestRepositories.getTest1(entities, 25));
+			} finally {
+				entities.close();
+			}
+			String[] indexFiles = new File(indexes, "ids").list((dir, name) -> name.endsWith(".iidx"));
+			Assert.assertEquals(1, indexFiles.length);
+
+			entities = new GitEntities(git, indexes, null, null);
+			try {
+				Assert.assertTrue(entities.isIdIndexOffHeap());
+				Assert.assertNull(TestRepositories.getTest1(entities, 2));
+				Assert.assertNotNull(TestRepositories.getTest1(entities, 25));
+				for (int i = 3; i < 20; i++) {
+					Assert.assertEquals(expected.get(i), TestRepositories.getTest1(entities, i));
+				}
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that rows of a shard written with an older schema are read with the current fields, with the default value for fields the
+	 * shard lacks
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testOldSchemaShard() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			GitEntities entities = new GitEntities(git, theTestDir.newFolder("indexes"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 20; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				List<QuickMap<String, Object>> expected = new ArrayList<>();
+				for (int i = 0; i < 20; i++) {
+					expected.add(TestRepositories.getTest1(entities, i));
+				}
+				VersionedEntities.EntityFormat test1 = entities.getEntityType("test1");
+				List<String> fields = test1.getFieldOrder();
+				String dropped = fields.get(fields.size() - 1);
+				Assert.assertTrue(fields.size() > test1.getIdFieldCount());
+
+				// Rewrite every shard as if it had been written before the last field was added
+				File dir = new File(git.getRepository().getWorkTree(), "test1");
+				File[] shards = dir.listFiles();
+				Assert.assertNotNull(shards);
+				for (File shard : shards) {
+					if (GitEntities.getShardIndex("test1", shard.getName()) < 0) {
+						continue;
+					}
+					List<String> lines = Files.readAllLines(shard.toPath(), StandardCharsets.UTF_8);
+					List<String> oldLines = new ArrayList<>(lines.size());
+					for (String line : lines) {
+						// The test entities' values contain no commas or quotes
+						oldLines.add(line.isEmpty() ? line : line.substring(0, line.lastIndexOf(',')));
+					}
+					Files.write(shard.toPath(), oldLines, StandardCharsets.UTF_8);
+					git.add().addFilepattern("test1/" + shard.getName()).call();
+				}
+				git.commit().setMessage("Old schema").call();
+				entities.catchUp();
+
+				Object defaultValue = GitEntities.getDefaultValue(test1.getFields().get(dropped));
+				try (Stream<QuickMap<String, Object>> all = entities.scan("test1", null, null, null)) {
+					List<QuickMap<String, Object>> rows = all.collect(Collectors.toList());
+					Assert.assertEquals(expected.size(), rows.size());
+					for (int i = 0; i < rows.size(); i++) {
+						for (String field : fields) {
+							Object value = field.equals(dropped) ? defaultValue : expected.get(i).get(field);
+							if (value != null) {
+								Assert.assertEquals(value, rows.get(i).get(field));
+							}
+						}
+					}
+				}
+				String idField = fields.get(0);
+				Assert.assertEquals(1, entities.query("test1", idField, expected.get(3).get(idField)).size());
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	static List<EntityHistory.ChangeType> getChangeTypes(GitEntities entities, QuickMap<String, Object> entity) {
+		return entities.getHistory("test1", entity).stream().map(EntityHistory.HistoryEntry::getChangeType).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,730 @@
+package org.versionedentity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RepositoryState;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.observe.util.CsvEntitySetTestUtils;
+import org.observe.util.VersionedEntities.EntityFormat;
+import org.observe.util.VersionedEntities.EntityUpdate;
+import org.qommons.Transaction;
+import org.qommons.collect.QuickSet.QuickMap;
+import org.qommons.io.TextParseException;
+
+/** Tests the synchronization of {@link GitEntities} with remote repositories */
+public class GitEntitiesSyncTest {
+	/** Holds the repositories and indexes of each test */
+	@Rule
+	public final TemporaryFolder theTestDir = new TemporaryFolder();
+
+	/**
+	 * Ensures that a push rejected because another client pushed first is retried after merging the other client's changes
+	 *
+	 * @throws GitAPIException If an error occurs in the Git API
+	 * @throws IOException If an error occurs reading or writing the data
+	 * @throws TextParseException If an error occurs parsing entity data
+	 */
+	@Test
+	public void testPushRetry() throws GitAPIException, IOException, TextParseException {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy1 = TestRepositories.clone(master, theTestDir, "copy1");
+			Git copy2 = TestRepositories.clone(master, theTestDir, "copy2")) {
+			GitEntities entities1 = new GitEntities(copy1, theTestDir.newFolder("indexes1"), null, null);
+			GitEntities entities2 = new GitEntities(copy2, theTestDir.newFolder("indexes2"), null, null);
+			try {
+				entities1.withPushRetry(5, Duration.ofMillis(1));
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities1);
+				for (int i = 0; i < 20; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities1, i);
+				}
+				entities1.commit("Initial entities");
+				entities1.checkAndPush(null);
+				entities2.checkAndPush(null);
+
+				// Entity set 2 pushes a change for entity set 1 to merge
+				TestRepositories.rename(entities2, 2, "Entity 2B");
+				entities2.commit("Renamed entity 2");
+				entities2.checkAndPush(null);
+
+				// Entity set 1 commits its own change, and while it is merging entity set 2's change, entity set 2 pushes again,
+				// so entity set 1's first push is rejected
+				TestRepositories.rename(entities1, 8, "Entity 8B");
+				entities1.commit("Renamed entity 8");
+				AtomicBoolean interloped = new AtomicBoolean();
+				entities1.addListener(commit -> {
+					if (interloped.compareAndSet(false, true)) {
+						try {
+							TestRepositories.rename(entities2, 15, "Entity 15B");
+							entities2.commit("Renamed entity 15");
+							entities2.checkAndPush(null);
+						} catch (IOException | TextParseException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				}, true);
+				entities1.checkAndPush(null);
+				Assert.assertTrue(interloped.get());
+				Assert.assertEquals(1, entities1.getPushRetries());
+
+				entities2.checkAndPush(null);
+				for (GitEntities entities : new GitEntities[] { entities1, entities2 }) {
+					Assert.assertEquals("Entity 2B", TestRepositories.getTest1(entities, 2).get("name"));
+					Assert.assertEquals("Entity 8B", TestRepositories.getTest1(entities, 8).get("name"));
+					Assert.assertEquals("Entity 15B", TestRepositories.getTest1(entities, 15).get("name"));
+				}
+			} finally {
+				entities1.close();
+				entities2.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that commits made with {@link GitEntities#commitAndPush(String) group-commit} are pushed together once enough of them are
+	 * pending
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testGroupCommit() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy = TestRepositories.clone(master, theTestDir, "copy")) {
+			GitEntities entities = new GitEntities(copy, theTestDir.newFolder("indexes"), null, null);
+			try {
+				// A window long enough that only the commit count can trigger the push
+				entities.withGroupCommit(Duration.ofHours(1), 3);
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				List<CompletableFuture<Void>> pushes = new ArrayList<>();
+				for (int i = 0; i < 3; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+					pushes.add(entities.commitAndPush("Entity " + i));
+					if (i < 2) {
+						Assert.assertFalse(pushes.get(i).isDone());
+					}
+				}
+				for (CompletableFuture<Void> push : pushes) {
+					push.get(30, TimeUnit.SECONDS);
+				}
+				List<String> messages = new ArrayList<>();
+				for (RevCommit commit : master.log().setMaxCount(3).call()) {
+					messages.add(commit.getFullMessage());
+				}
+				Assert.assertEquals(Arrays.asList("Entity 2", "Entity 1", "Entity 0"), messages);
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that a group push that comes due while the entity set is being modified waits for the modifications to be committed instead
+	 * of failing
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testGroupPushWhileModified() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy = TestRepositories.clone(master, theTestDir, "copy")) {
+			GitEntities entities = new GitEntities(copy, theTestDir.newFolder("indexes"), null, null);
+			try {
+				entities.withGroupCommit(Duration.ofMillis(10), 0);
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				CompletableFuture<Void> push;
+				// Hold the lock so the push can't come due before the next modification is made
+				try (Transaction t = entities.lock(true, null)) {
+					CsvEntitySetTestUtils.addTestEntity(entities, 0);
+					push = entities.commitAndPush("Entity 0");
+					CsvEntitySetTestUtils.addTestEntity(entities, 1);
+				}
+				Thread.sleep(200);
+				Assert.assertFalse(push.isDone());
+				Assert.assertTrue(entities.hasModifications());
+
+				entities.commit("Entity 1");
+				push.get(30, TimeUnit.SECONDS);
+				List<String> messages = new ArrayList<>();
+				for (RevCommit commit : master.log().setMaxCount(2).call()) {
+					messages.add(commit.getFullMessage());
+				}
+				Assert.assertEquals(Arrays.asList("Entity 1", "Entity 0"), messages);
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that background synchronization backs off while there are no changes, and that stopping it (even right after restarting
+	 * it) leaves no synchronization running
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testBackgroundSync() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy = TestRepositories.clone(master, theTestDir, "copy")) {
+			GitEntities entities = new GitEntities(copy, theTestDir.newFolder("indexes"), null, null);
+			try {
+				entities.startSync(Duration.ofMillis(10), Duration.ofMillis(40));
+				Assert.assertEquals(Duration.ofMillis(10), entities.getSyncInterval());
+				long deadline = System.currentTimeMillis() + 30_000;
+				while (!entities.getSyncInterval().equals(Duration.ofMillis(40))) {
+					Assert.assertTrue("Sync interval did not back off", System.currentTimeMillis() < deadline);
+					Thread.sleep(10);
+				}
+
+				// Restart repeatedly while synchronizations may be in progress, then stop
+				for (int i = 0; i < 10; i++) {
+					entities.stopSync();
+					entities.startSync(Duration.ofMillis(1), Duration.ofMillis(2));
+				}
+				entities.stopSync();
+				Thread.sleep(200);
+				Assert.assertEquals(GitEntities.SyncState.STOPPED, entities.getSyncState().get());
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that readers holding the read lock see a synchronization's changes all at once, and that a scan holds the read lock until
+	 * its stream is closed
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testConcurrentReads() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy1 = TestRepositories.clone(master, theTestDir, "copy1");
+			Git copy2 = TestRepositories.clone(master, theTestDir, "copy2")) {
+			GitEntities entities1 = new GitEntities(copy1, theTestDir.newFolder("indexes1"), null, null);
+			GitEntities entities2 = new GitEntities(copy2, theTestDir.newFolder("indexes2"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities1);
+				for (int i = 0; i < 20; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities1, i);
+				}
+				entities1.commit("Initial entities");
+				entities1.checkAndPush(null);
+				entities2.checkAndPush(null);
+
+				// Read 2 entities changed by the same commit over and over while the commit is pulled
+				AtomicBoolean done = new AtomicBoolean();
+				AtomicReference<Throwable> failure = new AtomicReference<>();
+				Thread reader = new Thread(() -> {
+					try {
+						while (!done.get()) {
+							try (Transaction t = entities2.lock(false, null)) {
+								boolean renamed2 = TestRepositories.getTest1(entities2, 2).get("name").toString().endsWith("B");
+								boolean renamed15 = TestRepositories.getTest1(entities2, 15).get("name").toString().endsWith("B");
+								if (renamed2 != renamed15) {
+									throw new AssertionError("Saw a partially-applied commit");
+								}
+							}
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}, "Reader");
+				reader.start();
+				TestRepositories.rename(entities1, 2, "Entity 2B");
+				TestRepositories.rename(entities1, 15, "Entity 15B");
+				entities1.commit("Renamed entities 2 and 15");
+				entities1.checkAndPush(null);
+				entities2.checkAndPush(null);
+				done.set(true);
+				reader.join();
+				Assert.assertNull(failure.get());
+				Assert.assertEquals("Entity 2B", TestRepositories.getTest1(entities2, 2).get("name"));
+				Assert.assertEquals("Entity 15B", TestRepositories.getTest1(entities2, 15).get("name"));
+
+				try (Stream<QuickMap<String, Object>> rows = entities2.scan("test1", null, null, null)) {
+					Assert.assertEquals(20, rows.count());
+					Assert.assertFalse(tryWriteLock(entities2));
+				}
+				Assert.assertTrue(tryWriteLock(entities2));
+			} finally {
+				entities1.close();
+				entities2.close();
+			}
+		}
+	}
+
+	private static boolean tryWriteLock(GitEntities entities) throws Exception {
+		// The lock must be obtained and released on a thread other than the test's
+		return CompletableFuture.supplyAsync(() -> {
+			Transaction t = entities.tryLock(true, null);
+			if (t == null) {
+				return false;
+			}
+			t.close();
+			return true;
+		}).get(30, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Ensures that a shard file renamed by a remote commit is recognized as a move, so its entities are neither reported as changed nor
+	 * lost from the indexes
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testShardRename() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy1 = TestRepositories.clone(master, theTestDir, "copy1");
+			Git copy2 = TestRepositories.clone(master, theTestDir, "copy2")) {
+			GitEntities entities1 = new GitEntities(copy1, theTestDir.newFolder("indexes1"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities1);
+				for (int i = 0; i < 20; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities1, i);
+				}
+				entities1.commit("Initial entities");
+				entities1.checkAndPush(null);
+			} finally {
+				entities1.close();
+			}
+			GitEntities entities2 = new GitEntities(copy2, theTestDir.newFolder("indexes2"), null, null);
+			try {
+				entities2.checkAndPush(null);
+				SecondaryIndex index = entities2.addSecondaryIndex("test1", "name");
+				Object name3 = TestRepositories.getTest1(entities2, 3).get("name");
+				List<EntityUpdate> changes = new ArrayList<>();
+				entities2.addListener(commit -> changes.addAll(commit.getChanges()), true);
+
+				// Rename every shard outside of GitEntities
+				File dir = new File(copy1.getRepository().getWorkTree(), "test1");
+				File[] shards = dir.listFiles();
+				Assert.assertNotNull(shards);
+				Set<Integer> newIndexes = new HashSet<>();
+				for (File shard : shards) {
+					int fileIndex = GitEntities.getShardIndex("test1", shard.getName());
+					if (fileIndex >= 0) {
+						String newName = "test1_" + (fileIndex + 1000) + ".csv";
+						Assert.assertTrue(shard.renameTo(new File(dir, newName)));
+						copy1.rm().addFilepattern("test1/" + shard.getName()).call();
+						copy1.add().addFilepattern("test1/" + newName).call();
+						newIndexes.add(fileIndex + 1000);
+					}
+				}
+				Assert.assertFalse(newIndexes.isEmpty());
+				copy1.commit().setMessage("Renamed shards").call();
+				copy1.push().call();
+
+				entities2.checkAndPush(null);
+				Assert.assertTrue(changes.isEmpty());
+				for (int i = 0; i < 20; i++) {
+					Assert.assertNotNull(TestRepositories.getTest1(entities2, i));
+				}
+				int[] name3Shards = index.getShards(name3);
+				Assert.assertEquals(1, name3Shards.length);
+				Assert.assertTrue(newIndexes.contains(name3Shards[0]));
+			} finally {
+				entities2.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that when the ID index entries of a shard renamed by a remote commit cannot all be moved, the entity type is reindexed
+	 * instead of being left with some entries pointing to the old shard
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testShardRenameIndexFailure() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy1 = TestRepositories.clone(master, theTestDir, "copy1");
+			Git copy2 = TestRepositories.clone(master, theTestDir, "copy2")) {
+			GitEntities entities1 = new GitEntities(copy1, theTestDir.newFolder("indexes1"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities1);
+				for (int i = 0; i < 20; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities1, i);
+				}
+				entities1.commit("Initial entities");
+				entities1.checkAndPush(null);
+			} finally {
+				entities1.close();
+			}
+			AtomicBoolean failMove = new AtomicBoolean();
+			GitEntities entities2 = new GitEntities(copy2, theTestDir.newFolder("indexes2"), null, null) {
+				@Override
+				protected void updateIndex(EntityFormat entity, QuickMap<String, Object> values, boolean add, int fileIndex)
+					throws IOException {
+					// Fail to move the first entity into a renamed shard
+					if (add && fileIndex >= 1000 && failMove.compareAndSet(true, false)) {
+						throw new IOException("Test failure");
+					}
+					super.updateIndex(entity, values, add, fileIndex);
+				}
+			};
+			try {
+				entities2.checkAndPush(null);
+
+				// Rename every shard outside of GitEntities
+				File dir = new File(copy1.getRepository().getWorkTree(), "test1");
+				File[] shards = dir.listFiles();
+				Assert.assertNotNull(shards);
+				for (File shard : shards) {
+					int fileIndex = GitEntities.getShardIndex("test1", shard.getName());
+					if (fileIndex >= 0) {
+						String newName = "test1_" + (fileIndex + 1000) + ".csv";
+						Assert.assertTrue(shard.renameTo(new File(dir, newName)));
+						copy1.rm().addFilepattern("test1/" + shard.getName()).call();
+						copy1.add().addFilepattern("test1/" + newName).call();
+					}
+				}
+				copy1.commit().setMessage("Renamed shards").call();
+				copy1.push().call();
+
+				failMove.set(true);
+				entities2.checkAndPush(null);
+				Assert.assertFalse(failMove.get());
+				for (int i = 0; i < 20; i++) {
+					Assert.assertNotNull(TestRepositories.getTest1(entities2, i));
+				}
+			} finally {
+				entities2.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that an entity set {@link GitEntities#subscribe(java.util.Collection) subscribed} to a subset of entity types ignores
+	 * pulled changes to other types, rejects reads of them, and keeps its subscription when reopened
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testSubscription() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy1 = TestRepositories.clone(master, theTestDir, "copy1");
+			Git copy2 = TestRepositories.clone(master, theTestDir, "copy2")) {
+			GitEntities entities1 = new GitEntities(copy1, theTestDir.newFolder("indexes1"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities1);
+				for (int i = 0; i < 5; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities1, i);
+				}
+				entities1.commit("Initial entities");
+				entities1.checkAndPush(null);
+			} finally {
+				entities1.close();
+			}
+			File indexes2 = theTestDir.newFolder("indexes2");
+			GitEntities entities2 = new GitEntities(copy2, indexes2, null, null);
+			try {
+				entities2.subscribe(Collections.emptySet());
+				List<EntityUpdate> changes = new ArrayList<>();
+				entities2.addListener(commit -> changes.addAll(commit.getChanges()), true);
+				entities2.checkAndPush(null);
+				Assert.assertTrue(changes.isEmpty());
+				Assert.assertFalse(entities2.isSubscribed("test1"));
+				try {
+					entities2.get("test1", null);
+					Assert.fail("Read of an unsubscribed entity type should have been rejected");
+				} catch (IllegalArgumentException e) {
+					// Expected
+				}
+			} finally {
+				entities2.close();
+			}
+
+			entities2 = new GitEntities(copy2, indexes2, null, null);
+			try {
+				Assert.assertEquals(Collections.emptySet(), entities2.getSubscription());
+				try {
+					entities2.subscribe(Collections.singleton("test1"));
+					Assert.fail("Entity types should not be addable to a persisted subscription");
+				} catch (IllegalStateException e) {
+					// Expected
+				}
+			} finally {
+				entities2.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that unpushed local commits are re-applied when the remote history is {@link GitEntities#compactHistory(Duration)
+	 * compacted}, and that the local branch is restored, not lost, if they cannot be re-applied
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testRewrittenHistory() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy1 = TestRepositories.clone(master, theTestDir, "copy1");
+			Git copy2 = TestRepositories.clone(master, theTestDir, "copy2")) {
+			GitEntities entities1 = new GitEntities(copy1, theTestDir.newFolder("indexes1"), null, null);
+			GitEntities entities2 = new GitEntities(copy2, theTestDir.newFolder("indexes2"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities1);
+				for (int i = 0; i < 10; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities1, i);
+				}
+				entities1.commit("Initial entities");
+				entities1.checkAndPush(null);
+				entities2.checkAndPush(null);
+
+				// A local commit that doesn't conflict with the rewritten history is re-applied onto it
+				TestRepositories.rename(entities2, 3, "Entity 3B");
+				entities2.commit("Renamed entity 3");
+				// A negative retention compacts everything
+				Assert.assertNotNull(entities1.compactHistory(Duration.ofMinutes(-1)));
+				entities2.checkAndPush(null);
+				Assert.assertEquals("Entity 3B", TestRepositories.getTest1(entities2, 3).get("name"));
+				RevCommit masterHead = master.log().setMaxCount(1).call().iterator().next();
+				Assert.assertEquals("Renamed entity 3", masterHead.getFullMessage());
+				Assert.assertEquals(0, masterHead.getParent(0).getParentCount());
+
+				// A local commit that conflicts with the rewritten history leaves the local branch where it was
+				entities1.checkAndPush(null);
+				TestRepositories.rename(entities2, 5, "Entity 5B");
+				entities2.commit("Renamed entity 5");
+				ObjectId localHead = copy2.getRepository().resolve("HEAD");
+				Assert.assertNotNull(entities1.compactHistory(Duration.ofMinutes(-1)));
+				TestRepositories.rename(entities1, 5, "Entity 5A");
+				entities1.commit("Renamed entity 5 differently");
+				entities1.checkAndPush(null);
+				try {
+					entities2.checkAndPush(null);
+					Assert.fail("Conflicting local commit should not have been re-applied");
+				} catch (IOException e) {
+					// Expected
+				}
+				Assert.assertEquals(localHead, copy2.getRepository().resolve("HEAD"));
+				Assert.assertEquals(RepositoryState.SAFE, copy2.getRepository().getRepositoryState());
+				Assert.assertEquals("Entity 5B", TestRepositories.getTest1(entities2, 5).get("name"));
+				Assert.assertEquals("Entity 3B", TestRepositories.getTest1(entities2, 3).get("name"));
+			} finally {
+				entities1.close();
+				entities2.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that a synchronization cancelled while applying merged commits catches up the rest before releasing the write lock, so that
+	 * the indexes and listeners reflect the whole merge
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testCancelledReplay() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy1 = TestRepositories.clone(master, theTestDir, "copy1");
+			Git copy2 = TestRepositories.clone(master, theTestDir, "copy2")) {
+			GitEntities entities1 = new GitEntities(copy1, theTestDir.newFolder("indexes1"), null, null);
+			GitEntities entities2 = new GitEntities(copy2, theTestDir.newFolder("indexes2"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities1);
+				for (int i = 0; i < 10; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities1, i);
+				}
+				entities1.commit("Initial entities");
+				entities1.checkAndPush(null);
+				entities2.checkAndPush(null);
+				SecondaryIndex index = entities2.addSecondaryIndex("test1", "name");
+				List<EntityUpdate> changes = new ArrayList<>();
+				entities2.addListener(commit -> changes.addAll(commit.getChanges()), true);
+
+				for (int i = 2; i <= 4; i++) {
+					TestRepositories.rename(entities1, i, "Entity " + i + "B");
+					entities1.commit("Renamed entity " + i);
+				}
+				entities1.checkAndPush(null);
+
+				// Cancel after the first merged commit is applied
+				SyncProgress progress = new SyncProgress() {
+					@Override
+					public void update(int completed) {
+						super.update(completed);
+						if ("Applying merged commits".equals(getTask())) {
+							cancel();
+						}
+					}
+				};
+				try {
+					entities2.checkAndPush(null, progress);
+					Assert.fail("Synchronization should have been cancelled");
+				} catch (CancellationException e) {
+					// Expected
+				}
+				Assert.assertEquals(copy2.getRepository().resolve("HEAD").name(), entities2.readHeadStamp());
+				Assert.assertEquals(3, changes.size());
+				for (int i = 2; i <= 4; i++) {
+					Assert.assertEquals("Entity " + i + "B", TestRepositories.getTest1(entities2, i).get("name"));
+					Assert.assertEquals(1, index.getShards("Entity " + i + "B").length);
+				}
+
+				// Nothing is replayed again
+				entities2.checkAndPush(null);
+				Assert.assertEquals(3, changes.size());
+			} finally {
+				entities1.close();
+				entities2.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that a remote cannot be both a primary and a mirror, and that the history is replicated to mirrors, including after it is
+	 * {@link GitEntities#compactHistory(Duration) compacted}
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testMirrors() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git mirror = TestRepositories.clone(master, theTestDir, "mirror");
+			Git copy = TestRepositories.clone(master, theTestDir, "copy")) {
+			copy.remoteAdd()//
+				.setName("mirror")//
+				.setUri(new URIish(TestRepositories.getUri(mirror)))//
+				.call();
+			GitEntities entities = new GitEntities(copy, theTestDir.newFolder("indexes"), null, null);
+			try {
+				try {
+					entities.withRemotes(Arrays.asList("origin", "mirror"), Arrays.asList("mirror"));
+					Assert.fail("A remote should not be allowed to be both a primary and a mirror");
+				} catch (IllegalArgumentException e) {
+					// Expected
+				}
+				Assert.assertTrue(entities.getMirrors().isEmpty());
+				entities.withRemotes(Arrays.asList("origin"), Arrays.asList("mirror"));
+
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 10; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				entities.checkAndPush(null);
+				waitForMirror(entities, copy, mirror);
+
+				TestRepositories.rename(entities, 3, "Entity 3B");
+				entities.commit("Renamed entity 3");
+				entities.checkAndPush(null);
+				waitForMirror(entities, copy, mirror);
+
+				// The compacted history is not a fast-forward of what the mirror has
+				Assert.assertNotNull(entities.compactHistory(Duration.ofMinutes(-1)));
+				waitForMirror(entities, copy, mirror);
+				Assert.assertEquals(master.getRepository().resolve("refs/heads/master"),
+					mirror.getRepository().resolve("refs/heads/master"));
+				RevCommit mirrorHead = mirror.log().setMaxCount(1).call().iterator().next();
+				Assert.assertEquals("Renamed entity 3", mirrorHead.getFullMessage());
+				Assert.assertEquals(0, mirrorHead.getParent(0).getParentCount());
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	private static void waitForMirror(GitEntities entities, Git local, Git mirror) throws Exception {
+		ObjectId head = local.getRepository().resolve("HEAD");
+		long deadline = System.currentTimeMillis() + 30_000;
+		while (!head.equals(mirror.getRepository().resolve("refs/heads/master"))) {
+			Assert.assertTrue("Mirror did not catch up: " + entities.getMirrorFailure("mirror"), System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		while (!entities.getMirrorLag("mirror").isZero()) {
+			Assert.assertTrue("Mirror lag was not cleared", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		Assert.assertNull(entities.getMirrorFailure("mirror"));
+	}
+
+	/**
+	 * Ensures that {@link GitEntities#withMaintenance(int, int, Duration) maintenance} collects the repository when its thresholds are
+	 * exceeded, never while synchronizing, records its timing, and runs in the background
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testMaintenance() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy = TestRepositories.clone(master, theTestDir, "copy")) {
+			GitEntities entities = new GitEntities(copy, theTestDir.newFolder("indexes"), null, null);
+			try {
+				// An interval long enough that only explicit runs happen
+				entities.withMaintenance(1, 0, Duration.ofHours(1));
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 10; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				Object name3 = TestRepositories.getTest1(entities, 3).get("name");
+				Assert.assertNull(entities.getLastMaintenanceTime());
+
+				// Not while synchronizing
+				entities.getSyncLock().lock();
+				try {
+					CompletableFuture<Boolean> ran = CompletableFuture.supplyAsync(() -> {
+						try {
+							return entities.runMaintenance();
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+					Assert.assertFalse(ran.get(30, TimeUnit.SECONDS));
+				} finally {
+					entities.getSyncLock().unlock();
+				}
+				Assert.assertEquals(0, entities.getMaintenanceCount());
+
+				Assert.assertTrue(entities.runMaintenance());
+				Assert.assertEquals(1, entities.getMaintenanceCount());
+				Assert.assertNotNull(entities.getLastMaintenanceTime());
+				Assert.assertFalse(entities.getLastMaintenanceDuration().isNegative());
+				Assert.assertEquals(entities.getLastMaintenanceDuration(), entities.getTotalMaintenanceTime());
+				// Everything is packed now
+				Assert.assertFalse(entities.runMaintenance());
+				Assert.assertEquals(1, entities.getMaintenanceCount());
+
+				// The entities are intact and the repository still synchronizes
+				Assert.assertEquals(name3, TestRepositories.getTest1(entities, 3).get("name"));
+				entities.checkAndPush(null);
+
+				entities.withMaintenance(1, 0, Duration.ofMillis(10));
+				TestRepositories.rename(entities, 3, "Entity 3B");
+				entities.commit("Renamed entity 3");
+				long deadline = System.currentTimeMillis() + 30_000;
+				while (entities.getMaintenanceCount() < 2) {
+					Assert.assertTrue("Background maintenance did not run", System.currentTimeMillis() < deadline);
+					Thread.sleep(10);
+				}
+				entities.stopMaintenance();
+				Assert.assertEquals("Entity 3B", TestRepositories.getTest1(entities, 3).get("name"));
+			} finally {
+				entities.close();
+			}
+		}
+	}
+}
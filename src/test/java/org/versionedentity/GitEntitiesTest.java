@@ -2,13 +2,16 @@ package org.versionedentity;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.List;
 
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.observe.util.CsvEntitySetTestUtils;
 import org.observe.util.VersionedEntities.ChangeListener;
 import org.observe.util.VersionedEntities.Commit;
@@ -23,6 +26,10 @@ import org.qommons.tree.BetterTreeMap;
 
 /** Tests GitEntities */
 public class GitEntitiesTest {
+	/** Holds the repositories and indexes of tests other than {@link #testBasic()} */
+	@Rule
+	public final TemporaryFolder theTestDir = new TemporaryFolder();
+
 	/**
 	 * Ensures the basic CRUD functionality of {@link GitEntities} works
 	 *
@@ -161,4 +168,108 @@ public class GitEntitiesTest {
 			FileUtils.delete(testDir, null);
 		}
 	}
+
+	/**
+	 * Ensures that the changes of local commits are reported to local listeners, but not to remote-only listeners
+	 *
+	 * @throws GitAPIException If an error occurs in the Git API
+	 * @throws IOException If an error occurs reading or writing the data
+	 * @throws TextParseException If an error occurs parsing entity data
+	 */
+	@Test
+	public void testLocalCommitListeners() throws GitAPIException, IOException, TextParseException {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			GitEntities entities = new GitEntities(git, theTestDir.newFolder("indexes"), null, null);
+			try {
+				List<Commit> localCommits = new ArrayList<>();
+				List<Commit> remoteCommits = new ArrayList<>();
+				entities.addListener(localCommits::add, false);
+				entities.addListener(remoteCommits::add, true);
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 5; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				Assert.assertEquals(1, localCommits.size());
+				Assert.assertTrue(localCommits.get(0).isLocalOnly());
+				Assert.assertEquals("Initial entities", localCommits.get(0).getMessage());
+				Assert.assertEquals(5, localCommits.get(0).getChanges().size());
+				for (EntityUpdate change : localCommits.get(0).getChanges()) {
+					Assert.assertNull(change.getOldValues());
+					Assert.assertEquals(entities.get("test1", change.getNewValues()), change.getNewValues());
+				}
+
+				QuickMap<String, Object> entity = entities.get("test1", entities.getEntityType("test1").create(false).with("id", 2L));
+				Assert.assertTrue(entities.update("test1", entity.copy().with("name", "Entity 2B"), false));
+				entities.commit("Renamed entity 2");
+				Assert.assertEquals(2, localCommits.size());
+				Assert.assertEquals(1, localCommits.get(1).getChanges().size());
+				EntityUpdate change = localCommits.get(1).getChanges().get(0);
+				Assert.assertEquals(entity, change.getOldValues());
+				Assert.assertEquals("Entity 2B", change.getNewValues().get("name"));
+
+				Assert.assertTrue(remoteCommits.isEmpty());
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that the rows of shard files deleted by a remote commit are reported as removals
+	 *
+	 * @throws GitAPIException If an error occurs in the Git API
+	 * @throws IOException If an error occurs reading or writing the data
+	 * @throws TextParseException If an error occurs parsing entity data
+	 */
+	@Test
+	public void testDeletedShard() throws GitAPIException, IOException, TextParseException {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy1 = TestRepositories.clone(master, theTestDir, "copy1");
+			Git copy2 = TestRepositories.clone(master, theTestDir, "copy2")) {
+			List<QuickMap<String, Object>> existing = new ArrayList<>();
+			GitEntities entities1 = new GitEntities(copy1, theTestDir.newFolder("indexes1"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities1);
+				for (int i = 0; i < 10; i++) {
+					existing.add(CsvEntitySetTestUtils.addTestEntity(entities1, i));
+				}
+				entities1.commit("Initial entities");
+				entities1.checkAndPush(null);
+			} finally {
+				entities1.close();
+			}
+			GitEntities entities2 = new GitEntities(copy2, theTestDir.newFolder("indexes2"), null, null);
+			try {
+				entities2.checkAndPush(null);
+				List<EntityUpdate> changes = new ArrayList<>();
+				entities2.addListener(commit -> changes.addAll(commit.getChanges()), true);
+
+				// Remove the entity type's shards outside of GitEntities
+				File[] shards = new File(copy1.getRepository().getWorkTree(), "test1").listFiles();
+				Assert.assertNotNull(shards);
+				boolean removedAny = false;
+				for (File shard : shards) {
+					if (GitEntities.getShardIndex("test1", shard.getName()) >= 0) {
+						copy1.rm().addFilepattern("test1/" + shard.getName()).call();
+						removedAny = true;
+					}
+				}
+				Assert.assertTrue(removedAny);
+				copy1.commit().setMessage("Removed shards").call();
+				copy1.push().call();
+
+				entities2.checkAndPush(null);
+				Assert.assertEquals(existing.size(), changes.size());
+				for (EntityUpdate change : changes) {
+					Assert.assertNotNull(change.getOldValues());
+					Assert.assertNull(change.getNewValues());
+					Assert.assertTrue(existing.contains(change.getOldValues()));
+					Assert.assertNull(entities2.get("test1", change.getOldValues()));
+				}
+			} finally {
+				entities2.close();
+			}
+		}
+	}
 }
@@ -0,0 +1,181 @@
+package org.versionedentity;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.observe.util.CsvEntitySetTestUtils;
+import org.qommons.collect.QuickSet.QuickMap;
+import org.qommons.tree.BetterTreeList;
+
+/** Tests the bulk write paths of {@link GitEntities} */
+public class GitEntitiesWriteTest {
+	/** Holds the repository and indexes of each test */
+	@Rule
+	public final TemporaryFolder theTestDir = new TemporaryFolder();
+
+	/**
+	 * Ensures that a bulk import larger than its chunk size is sorted externally and merged into the existing entities, with the last of
+	 * any duplicate rows winning, and that an import that fails is rolled back
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testBulkImport() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			GitEntities entities = new GitEntities(git, theTestDir.newFolder("indexes"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 5; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+
+				List<QuickMap<String, Object>> rows = new ArrayList<>();
+				for (long id = 3; id < 53; id++) {
+					rows.add(createEntity(entities, id, "Imported " + id));
+				}
+				Collections.shuffle(rows, new Random(30));
+				rows.add(createEntity(entities, 10, "Imported 10B"));
+				// A chunk size smaller than the import, so it is spilled into several sorted runs
+				Assert.assertEquals(2, entities.bulkImport("test1", rows.iterator(), 7, "Imported"));
+				Assert.assertFalse(entities.hasModifications());
+				Assert.assertEquals("Imported", git.log().setMaxCount(1).call().iterator().next().getFullMessage());
+
+				for (long id = 3; id < 53; id++) {
+					Assert.assertEquals(id == 10 ? "Imported 10B" : "Imported " + id, TestRepositories.getTest1(entities, id).get("name"));
+				}
+				Assert.assertNotNull(TestRepositories.getTest1(entities, 0));
+				try (Stream<QuickMap<String, Object>> all = entities.scan("test1", null, null, null)) {
+					List<Object> ids = all.map(e -> e.get("id")).collect(Collectors.toList());
+					Assert.assertEquals(53, ids.size());
+					for (int i = 0; i < ids.size(); i++) {
+						Assert.assertEquals(Long.valueOf(i), ids.get(i));
+					}
+				}
+
+				// A chunk size larger than the import, so it is not spilled
+				Assert.assertEquals(1, entities.bulkImport("test1",
+					Collections.singletonList(createEntity(entities, 20, "Imported 20B")).iterator(), 1000, null));
+				Assert.assertEquals("Imported 20B", TestRepositories.getTest1(entities, 20).get("name"));
+
+				// An import that fails while merging into the shards is rolled back
+				ObjectId head = git.getRepository().resolve("HEAD");
+				rows.clear();
+				for (long id = 40; id < 70; id++) {
+					rows.add(createEntity(entities, id, "Failed " + id));
+				}
+				rows.set(25, createEntity(entities, 65, null).with("name", new Object() {
+					@Override
+					public String toString() {
+						throw new IllegalStateException("Unwritable");
+					}
+				}));
+				try {
+					entities.bulkImport("test1", rows.iterator(), 1000, "Failed import");
+					Assert.fail("Import should have failed");
+				} catch (RuntimeException e) {
+					// Expected
+				}
+				Assert.assertEquals(head, git.getRepository().resolve("HEAD"));
+				Assert.assertTrue(git.status().call().isClean());
+				Assert.assertFalse(entities.hasModifications());
+				Assert.assertEquals("Imported 40", TestRepositories.getTest1(entities, 40).get("name"));
+				Assert.assertNull(TestRepositories.getTest1(entities, 60));
+				try (Stream<QuickMap<String, Object>> all = entities.scan("test1", null, null, null)) {
+					Assert.assertEquals(53, all.count());
+				}
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that a {@link GitEntityBatch batch} applies its last write to each entity in a single commit, and that a batch that fails
+	 * after its writes were applied leaves the entity set and its ID index as they were before it
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testBatch() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			GitEntities entities = new GitEntities(git, theTestDir.newFolder("indexes"), null, null);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 10; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+
+				try (GitEntityBatch batch = entities.batch()) {
+					batch.put("test1", createEntity(entities, 2, "Batched 2"))//
+						.put("test1", createEntity(entities, 3, "Batched 3"))//
+						.put("test1", createEntity(entities, 3, "Batched 3B"))//
+						.delete("test1", TestRepositories.getTest1(entities, 4))//
+						.put("test1", createEntity(entities, 20, "Batched 20"));
+					Assert.assertEquals(4, batch.size());
+					// Nothing is applied until the batch is committed
+					Assert.assertNull(TestRepositories.getTest1(entities, 20));
+					Assert.assertEquals(3, batch.commit("Batch"));
+				}
+				Assert.assertFalse(entities.hasModifications());
+				Assert.assertEquals("Batch", git.log().setMaxCount(1).call().iterator().next().getFullMessage());
+				Assert.assertEquals("Batched 2", TestRepositories.getTest1(entities, 2).get("name"));
+				Assert.assertEquals("Batched 3B", TestRepositories.getTest1(entities, 3).get("name"));
+				Assert.assertNull(TestRepositories.getTest1(entities, 4));
+				Assert.assertEquals("Batched 20", TestRepositories.getTest1(entities, 20).get("name"));
+
+				// A batch whose commit fails after the writes were applied and committed is rolled back
+				ObjectId head = git.getRepository().resolve("HEAD");
+				Runnable removeListener = entities.addListener(commit -> {
+					throw new UncheckedIOException(new IOException("Listener failure"));
+				}, false);
+				try (GitEntityBatch batch = entities.batch()) {
+					batch.put("test1", createEntity(entities, 2, "Batched 2B"))//
+						.delete("test1", TestRepositories.getTest1(entities, 5))//
+						.put("test1", createEntity(entities, 25, "Batched 25"));
+					try {
+						batch.commit("Failed batch");
+						Assert.fail("Batch should have failed");
+					} catch (IOException e) {
+						Assert.assertEquals("Listener failure", e.getMessage());
+					}
+				}
+				removeListener.run();
+				Assert.assertEquals(head, git.getRepository().resolve("HEAD"));
+				Assert.assertTrue(git.status().call().isClean());
+				Assert.assertFalse(entities.hasModifications());
+				Assert.assertEquals("Batched 2", TestRepositories.getTest1(entities, 2).get("name"));
+				Assert.assertNotNull(TestRepositories.getTest1(entities, 5));
+				Assert.assertNull(TestRepositories.getTest1(entities, 25));
+
+				// The entity set is still writable
+				try (GitEntityBatch batch = entities.batch()) {
+					Assert.assertEquals(0, batch.put("test1", createEntity(entities, 25, "Batched 25")).commit(null));
+				}
+				Assert.assertEquals("Batched 25", TestRepositories.getTest1(entities, 25).get("name"));
+			} finally {
+				entities.close();
+			}
+		}
+	}
+
+	static QuickMap<String, Object> createEntity(GitEntities entities, long id, String name) {
+		return entities.getEntityType("test1").create(false)//
+			.with("id", id)//
+			.with("name", name)//
+			.with("values", BetterTreeList.build().build());
+	}
+}
@@ -0,0 +1,120 @@
+package org.versionedentity;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.observe.util.CsvEntitySetTestUtils;
+
+/** Tests {@link GitEntityBranches} and the closing of {@link GitEntities} */
+public class GitEntityBranchesTest {
+	/** Holds the repositories and indexes of each test */
+	@Rule
+	public final TemporaryFolder theTestDir = new TemporaryFolder();
+
+	/**
+	 * Ensures that switching branches keeps each branch's entities separate, stops the background work of the branch switched away from,
+	 * and closes the least recently used entity sets
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testSwitch() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master")) {
+			master.branchCreate().setName("v2").call();
+			try (Git copy = TestRepositories.clone(master, theTestDir, "copy")) {
+				GitEntityBranches branches = new GitEntityBranches(copy, theTestDir.newFolder("indexes"), null, null, 1);
+				try {
+					GitEntities masterEntities = branches.getCurrent();
+					CsvEntitySetTestUtils.initSimpleEntitySet(masterEntities);
+					for (int i = 0; i < 5; i++) {
+						CsvEntitySetTestUtils.addTestEntity(masterEntities, i);
+					}
+					masterEntities.commit("Initial entities");
+					masterEntities.startSync(Duration.ofHours(1), Duration.ofHours(1));
+
+					GitEntities v2Entities = branches.switchTo("v2");
+					Assert.assertNotSame(masterEntities, v2Entities);
+					Assert.assertEquals(GitEntities.SyncState.STOPPED, masterEntities.getSyncState().get());
+					Assert.assertTrue(v2Entities.getEntityTypes().isEmpty());
+					// Only 1 may be open, so the master entity set was closed
+					try {
+						masterEntities.commitAndPush(null);
+						Assert.fail("The master entity set should be closed");
+					} catch (IllegalStateException e) {
+						// Expected
+					}
+
+					masterEntities = branches.switchTo("master");
+					Assert.assertNotNull(TestRepositories.getTest1(masterEntities, 3));
+				} finally {
+					branches.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ensures that switching to a new branch in a repository with no remote creates the branch from HEAD
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testSwitchWithoutRemote() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "local")) {
+			GitEntityBranches branches = new GitEntityBranches(git, theTestDir.newFolder("indexes"), null, null, 2);
+			try {
+				GitEntities masterEntities = branches.getCurrent();
+				CsvEntitySetTestUtils.initSimpleEntitySet(masterEntities);
+				for (int i = 0; i < 5; i++) {
+					CsvEntitySetTestUtils.addTestEntity(masterEntities, i);
+				}
+				masterEntities.commit("Initial entities");
+
+				GitEntities v2Entities = branches.switchTo("v2");
+				Assert.assertEquals("v2", git.getRepository().getBranch());
+				Assert.assertEquals(git.getRepository().resolve("master"), git.getRepository().resolve("v2"));
+				Assert.assertNotNull(TestRepositories.getTest1(v2Entities, 3));
+			} finally {
+				branches.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensures that closing an entity set stops its background work
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testClose() throws Exception {
+		try (Git master = TestRepositories.init(theTestDir, "master");
+			Git copy = TestRepositories.clone(master, theTestDir, "copy")) {
+			GitEntities entities = new GitEntities(copy, theTestDir.newFolder("indexes"), null, null);
+			CompletableFuture<Void> push;
+			try {
+				entities.withGroupCommit(Duration.ofHours(1), 0);
+				entities.startSync(Duration.ofHours(1), Duration.ofHours(1));
+				entities.withMaintenance(1000, 10, Duration.ofHours(1));
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				CsvEntitySetTestUtils.addTestEntity(entities, 0);
+				push = entities.commitAndPush("Entity 0");
+				Assert.assertFalse(push.isDone());
+			} finally {
+				entities.close();
+			}
+			Assert.assertTrue(push.isCompletedExceptionally());
+			Assert.assertEquals(GitEntities.SyncState.STOPPED, entities.getSyncState().get());
+			try {
+				entities.startSync(Duration.ofHours(1), Duration.ofHours(1));
+				Assert.fail("Background work should not start after closing");
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package org.versionedentity;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.observe.collect.ObservableSortedCollection;
+import org.observe.util.CsvEntitySetTestUtils;
+import org.qommons.collect.QuickSet.QuickMap;
+
+/** Tests the {@link GitEntityCollections observable collections} of {@link GitEntities} entity sets */
+public class GitEntityCollectionsTest {
+	/** Holds the repository and indexes of each test */
+	@Rule
+	public final TemporaryFolder theTestDir = new TemporaryFolder();
+
+	/**
+	 * Ensures that a collection is seeded from HEAD, reflects each commit but not uncommitted modifications, and cannot be modified
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testCollection() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			GitEntities entities = new GitEntities(git, theTestDir.newFolder("indexes"), null, null);
+			GitEntityCollections collections = new GitEntityCollections(entities);
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 5; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				// Uncommitted modifications are not seen
+				TestRepositories.rename(entities, 3, "Entity 3B");
+				CsvEntitySetTestUtils.addTestEntity(entities, 5);
+
+				ObservableSortedCollection<QuickMap<String, Object>> collection = collections.getCollection("test1");
+				Assert.assertEquals(5, collection.size());
+				Assert.assertNotEquals("Entity 3B", collection.get(3).get("name"));
+
+				entities.commit("Renamed entity 3 and added entity 5");
+				Assert.assertEquals(6, collection.size());
+				Assert.assertEquals("Entity 3B", collection.get(3).get("name"));
+				Assert.assertEquals(5L, ((Number) collection.get(5).get("id")).longValue());
+
+				Assert.assertTrue(entities.delete("test1", TestRepositories.getTest1(entities, 0)));
+				entities.commit("Deleted entity 0");
+				Assert.assertEquals(5, collection.size());
+				Assert.assertEquals(1L, ((Number) collection.get(0).get("id")).longValue());
+
+				try {
+					collection.addElement(TestRepositories.getTest1(entities, 1).copy().with("id", 10L), false);
+					Assert.fail("Collection should not be modifiable");
+				} catch (UnsupportedOperationException e) {
+					// Expected
+				}
+				Assert.assertEquals(5, collection.size());
+			} finally {
+				collections.close();
+				entities.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package org.versionedentity;
+
+import java.io.File;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.SortedMap;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.observe.util.CsvEntitySetTestUtils;
+
+/** Tests the {@link MerkleSummary hash summaries} of {@link GitEntities} entity sets */
+public class MerkleSummaryTest {
+	/** Holds the repository and indexes of each test */
+	@Rule
+	public final TemporaryFolder theTestDir = new TemporaryFolder();
+
+	/**
+	 * Ensures that a summary is maintained from commits, matches the historical summary of the same commit, narrows a difference down to
+	 * the shard and row that changed, and is persisted
+	 *
+	 * @throws Exception If the test fails
+	 */
+	@Test
+	public void testSummary() throws Exception {
+		try (Git git = TestRepositories.init(theTestDir, "repo")) {
+			File indexes = theTestDir.newFolder("indexes");
+			GitEntities entities = new GitEntities(git, indexes, null, null);
+			String rootHash;
+			try {
+				CsvEntitySetTestUtils.initSimpleEntitySet(entities);
+				for (int i = 0; i < 20; i++) {
+					CsvEntitySetTestUtils.addTestEntity(entities, i);
+				}
+				entities.commit("Initial entities");
+				MerkleSummary summary = entities.withSummary();
+				Assert.assertEquals(20, summary.getRowCount("test1"));
+				Assert.assertTrue(summary.diff(entities.summarizeAsOf("HEAD")).isEmpty());
+				String initialHash = summary.getRootHash();
+
+				TestRepositories.rename(entities, 3, "Entity 3B");
+				entities.commit("Renamed entity 3");
+				rootHash = summary.getRootHash();
+				Assert.assertNotEquals(initialHash, rootHash);
+				Assert.assertEquals(20, summary.getRowCount("test1"));
+				Assert.assertTrue(summary.diff(entities.summarizeAsOf("HEAD")).isEmpty());
+
+				Map<String, NavigableSet<Integer>> diff = summary.diff(entities.summarizeAsOf("HEAD~1"));
+				Assert.assertEquals(1, diff.size());
+				NavigableSet<Integer> shards = diff.get("test1");
+				Assert.assertEquals(1, shards.size());
+				SortedMap<String, String> rows = entities.getRowHashes("test1", shards.first());
+				SortedMap<String, String> oldRows = entities.getRowHashesAsOf("HEAD~1", "test1", shards.first());
+				Assert.assertEquals(oldRows.keySet(), rows.keySet());
+				String id3 = GitEntities.getIdKey(entities.getEntityType("test1"), TestRepositories.getTest1(entities, 3));
+				for (String id : rows.keySet()) {
+					Assert.assertEquals(id + " changed", id.equals(id3), !rows.get(id).equals(oldRows.get(id)));
+				}
+			} finally {
+				entities.close();
+			}
+
+			entities = new GitEntities(git, indexes, null, null);
+			try {
+				Assert.assertEquals(rootHash, entities.withSummary().getRootHash());
+			} finally {
+				entities.close();
+			}
+		}
+	}
+}
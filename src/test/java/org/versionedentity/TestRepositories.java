@@ -0,0 +1,86 @@
+package org.versionedentity;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.rules.TemporaryFolder;
+import org.observe.util.VersionedEntities;
+import org.qommons.collect.QuickSet.QuickMap;
+import org.qommons.io.TextParseException;
+
+/** Utilities for creating the repositories and entities that GitEntities tests work with */
+class TestRepositories {
+	private TestRepositories() {}
+
+	/**
+	 * @param dir The temporary folder to create the repository in
+	 * @param name The name of the repository's folder
+	 * @return A new repository with a single, empty commit on its master branch
+	 * @throws IOException If the folder could not be created
+	 * @throws GitAPIException If the repository could not be created
+	 */
+	static Git init(TemporaryFolder dir, String name) throws IOException, GitAPIException {
+		Git git = Git.init()//
+			.setDirectory(dir.newFolder(name))//
+			.call();
+		git.commit()// Need a commit to create the master branch
+		.setAllowEmpty(true)//
+		.setMessage("Initial commit")//
+		.call();
+		return git;
+	}
+
+	/**
+	 * @param master The repository to clone
+	 * @param dir The temporary folder to create the clone in
+	 * @param name The name of the clone's folder
+	 * @return The new clone
+	 * @throws IOException If the folder could not be created
+	 * @throws GitAPIException If the repository could not be cloned
+	 */
+	static Git clone(Git master, TemporaryFolder dir, String name) throws IOException, GitAPIException {
+		return Git.cloneRepository()//
+			.setURI(getUri(master))//
+			.setDirectory(dir.newFolder(name))//
+			.call();
+	}
+
+	/**
+	 * @param git The repository
+	 * @return The URI of the repository's working tree
+	 */
+	static String getUri(Git git) {
+		return git.getRepository().getDirectory().getParentFile().toURI().toString();
+	}
+
+	/**
+	 * @param entities The entity set
+	 * @param id The ID of the test1 entity to get
+	 * @return The test1 entity with the given ID, or null if there is no such entity
+	 * @throws IOException If the entity could not be read
+	 * @throws TextParseException If the entity could not be parsed
+	 */
+	static QuickMap<String, Object> getTest1(VersionedEntities entities, long id) throws IOException, TextParseException {
+		return entities.get("test1", entities.getEntityType("test1").create(false).with("id", id));
+	}
+
+	/**
+	 * Renames a test1 entity
+	 *
+	 * @param entities The entity set
+	 * @param id The ID of the test1 entity to rename
+	 * @param name The new name for the entity
+	 * @return The renamed entity
+	 * @throws IOException If the entity could not be read or written
+	 * @throws TextParseException If the entity could not be parsed
+	 */
+	static QuickMap<String, Object> rename(VersionedEntities entities, long id, String name) throws IOException, TextParseException {
+		QuickMap<String, Object> entity = getTest1(entities, id).copy().with("name", name);
+		if (!entities.update("test1", entity, false)) {
+			throw new IllegalStateException("No such entity: " + id);
+		}
+		return entity;
+	}
+}